@@ -0,0 +1,97 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures ArchiveSchedule.archive and rebuilding the catalog over a local backup
+ * directory with many dated files. The directory has files=instructions*days empty
+ * files.<br>
+ * <br>
+ * scan archives with nothing expired, which is the cost paid by every run.<br>
+ * purge archives once per iteration with half of the files expired. The directory
+ * is recreated before each iteration.<br>
+ * rebuild lists the directory and rebuilds the catalog without checksums.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ArchiveBenchmark
+{
+    /** The number of instructions. */
+    @Param({ "10" })
+    public int instructions;
+    /** The number of dated files of each instruction. */
+    @Param({ "100", "1000" })
+    public int days;
+
+    /** The local backup directory. */
+    protected File _dir;
+    /** The schedule that expires nothing. */
+    protected ArchiveSchedule _keepAll;
+    /** The schedule that expires half of the files. */
+    protected ArchiveSchedule _keepHalf;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        _dir = SyntheticTree.createTempDir("archive");
+        BackupInstruction[] instr = SyntheticTree.createBackupDir(_dir, instructions, days);
+        Logger logger = Logger.getInstance("com.zitego.backup.benchmark");
+        _keepAll = new ArchiveSchedule("days_till_purge="+(days+1), instr, logger);
+        _keepHalf = new ArchiveSchedule("days_till_purge="+(days/2), instr, logger);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() throws IOException
+    {
+        SyntheticTree.closeCatalog(_dir);
+        SyntheticTree.delete(_dir);
+        SyntheticTree.createBackupDir(_dir, instructions, days);
+        BackupCatalog.getInstance( _dir.getPath() );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        SyntheticTree.closeCatalog(_dir);
+        SyntheticTree.delete(_dir);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void scan()
+    {
+        _keepAll.archive( _dir.getPath() );
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public void purge()
+    {
+        _keepHalf.archive( _dir.getPath() );
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public int rebuild() throws IOException
+    {
+        BackupCatalog catalog = BackupCatalog.getInstance( _dir.getPath() );
+        catalog.rebuild(BackupCatalog.UNKNOWN, false);
+        return catalog.size();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,178 @@
+package com.zitego.backup;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Compares two JMH result files written with -rf csv, such as the results of two
+ * versions, and prints the change in score of each benchmark and parameter set.
+ * A benchmark is marked faster or slower when the scores differ by more than both
+ * of their errors. Throughput scores are better when higher and all other modes
+ * are better when lower. It is run with the following arguments:<br>
+ * java com.zitego.backup.BenchmarkCompare &lt;baseline csv&gt; &lt;new csv&gt;
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BenchmarkCompare
+{
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.out.println("Usage: java com.zitego.backup.BenchmarkCompare <baseline csv> <new csv>");
+            System.exit(1);
+        }
+        Hashtable base = new Hashtable();
+        read(args[0], base, null);
+        Vector order = new Vector();
+        Hashtable current = new Hashtable();
+        read(args[1], current, order);
+
+        System.out.println("Benchmark\tParams\tMode\tUnit\tBaseline\tNew\tChange");
+        for (int i=0; i<order.size(); i++)
+        {
+            String key = (String)order.get(i);
+            Result now = (Result)current.get(key);
+            Result then = (Result)base.get(key);
+            StringBuffer line = new StringBuffer()
+                .append(now.benchmark).append('\t').append(now.params).append('\t')
+                .append(now.mode).append('\t').append(now.unit).append('\t');
+            if (then == null)
+            {
+                line.append("-\t").append( format(now.score) ).append("\tnew");
+            }
+            else
+            {
+                line.append( format(then.score) ).append('\t').append( format(now.score) ).append('\t');
+                double change = (then.score != 0 ? (now.score-then.score)/then.score*100d : 0);
+                line.append( (change >= 0 ? "+" : "") ).append( format(change) ).append('%');
+                if ( Math.abs(now.score-then.score) > Math.max(now.error, then.error) )
+                {
+                    boolean better = ( "thrpt".equals(now.mode) ? now.score > then.score : now.score < then.score );
+                    line.append( (better ? " faster" : " slower") );
+                }
+            }
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Reads the results of a csv file into the table keyed by benchmark and params.
+     *
+     * @param String The path.
+     * @param Hashtable The table.
+     * @param Vector The keys in the order they were read or null.
+     * @throws IOException
+     */
+    protected static void read(String path, Hashtable results, Vector order) throws IOException
+    {
+        BufferedReader in = new BufferedReader( new FileReader(path) );
+        try
+        {
+            String[] header = split( in.readLine() );
+            String line = null;
+            while ( (line=in.readLine()) != null )
+            {
+                if (line.trim().length() == 0) continue;
+                String[] cols = split(line);
+                Result r = new Result();
+                StringBuffer params = new StringBuffer();
+                for (int i=0; i<header.length && i<cols.length; i++)
+                {
+                    if ( "Benchmark".equals(header[i]) ) r.benchmark = cols[i];
+                    else if ( "Mode".equals(header[i]) ) r.mode = cols[i];
+                    else if ( "Score".equals(header[i]) ) r.score = parse(cols[i]);
+                    else if ( header[i].startsWith("Score Error") ) r.error = parse(cols[i]);
+                    else if ( "Unit".equals(header[i]) ) r.unit = cols[i];
+                    else if ( header[i].startsWith("Param: ") && cols[i].length() > 0 )
+                    {
+                        if (params.length() > 0) params.append(',');
+                        params.append( header[i].substring(7) ).append('=').append(cols[i]);
+                    }
+                }
+                r.params = params.toString();
+                String key = r.benchmark+" "+r.mode+" "+r.params;
+                results.put(key, r);
+                if (order != null) order.add(key);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Splits a csv line. Quoted columns may contain commas.
+     *
+     * @param String The line.
+     * @return String[]
+     */
+    protected static String[] split(String line)
+    {
+        Vector tmp = new Vector();
+        StringBuffer col = new StringBuffer();
+        boolean quoted = false;
+        for (int i=0; i<line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (c == '"') quoted = !quoted;
+            else if (c == ',' && !quoted)
+            {
+                tmp.add( col.toString() );
+                col.setLength(0);
+            }
+            else col.append(c);
+        }
+        tmp.add( col.toString() );
+        String[] ret = new String[tmp.size()];
+        tmp.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Parses a score, which is NaN when JMH could not compute it.
+     *
+     * @param String The score.
+     * @return double
+     */
+    protected static double parse(String val)
+    {
+        try
+        {
+            return Double.parseDouble(val);
+        }
+        catch (NumberFormatException nfe)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Formats a number with three decimal places.
+     *
+     * @param double The number.
+     * @return String
+     */
+    protected static String format(double val)
+    {
+        return String.valueOf( Math.round(val*1000d)/1000d );
+    }
+
+    /**
+     * One row of a result file.
+     */
+    protected static class Result
+    {
+        protected String benchmark;
+        protected String mode;
+        protected String unit;
+        protected String params;
+        protected double score;
+        protected double error;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+package com.zitego.backup;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures getDatedFilename, which formats today's date for every file that is
+ * retrieved or purged. The shared benchmark is run with several threads since
+ * the date format is synchronized.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DatedFilenameBenchmark
+{
+    /** The retriever. */
+    protected FileRetriever _retriever;
+
+    @Setup
+    public void setup()
+    {
+        _retriever = new LocalFileRetriever();
+    }
+
+    @Benchmark
+    public String datedFilename()
+    {
+        return _retriever.getDatedFilename("db.sql.gz");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String datedFilenameShared()
+    {
+        return _retriever.getDatedFilename("db.sql.gz");
+    }
+}
\ No newline at end of file
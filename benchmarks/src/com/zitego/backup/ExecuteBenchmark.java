@@ -0,0 +1,47 @@
+package com.zitego.backup;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures spawning a command with FileRetriever.execute, which is how every prep
+ * script, clean script, ssh, and scp command is run. The command prints the given
+ * number of bytes so the cost of reading its output is included.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExecuteBenchmark
+{
+    /** The number of bytes the command prints. */
+    @Param({ "0", "65536" })
+    public int output;
+
+    /** The retriever. */
+    protected FileRetriever _retriever;
+    /** The command. */
+    protected String[] _cmd;
+
+    @Setup
+    public void setup()
+    {
+        _retriever = new LocalFileRetriever();
+        _cmd = new String[] { "head", "-c", String.valueOf(output), "/dev/zero" };
+    }
+
+    @Benchmark
+    public ProcessResult execute() throws FileRetrievalException
+    {
+        return _retriever.execute(_cmd, false, 0);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,70 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures parsing the comma delimited property strings of BackupInstruction,
+ * SSHFileRetriever, and ArchiveSchedule. The strings are the ones from
+ * sample_backup.properties.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PropertiesBenchmark
+{
+    /** An instruction with a prep script and two arguments. */
+    public static final String INSTRUCTION = "remote_staged_file=photos.tgz," +
+        "prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh," +
+        "arg=/home/httpd/domains/penwrights.com/images/photos,arg=photos.tgz";
+    /** An ssh file retriever with every common property. */
+    public static final String RETRIEVER = "class=com.zitego.backup.SSHFileRetriever,ssh_cmd=/usr/bin/ssh," +
+        "scp_cmd=/usr/bin/scp,user=jglorioso,remote_server=zitego.com," +
+        "clean_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/clean_backup_files.sh," +
+        "remote_staging_dir=/home/httpd/domains/bak_staging,local_backup_dir=/home/jglorioso/backups," +
+        "reuse_connection=true,command_timeout=600,instruction_timeout=3600";
+    /** An archive schedule. */
+    public static final String SCHEDULE = "days_till_purge=5,min_free_mb=20480";
+
+    /** The logger for archive schedules. It has no handlers. */
+    protected Logger _logger;
+    /** The instructions for archive schedules. */
+    protected BackupInstruction[] _instructions;
+
+    @Setup
+    public void setup()
+    {
+        _logger = Logger.getInstance("com.zitego.backup.benchmark");
+        _instructions = new BackupInstruction[] { new BackupInstruction(INSTRUCTION) };
+    }
+
+    @Benchmark
+    public BackupInstruction instruction()
+    {
+        return new BackupInstruction(INSTRUCTION);
+    }
+
+    @Benchmark
+    public FileRetriever sshRetriever()
+    {
+        FileRetriever ret = new SSHFileRetriever();
+        ret.setProperties(RETRIEVER);
+        return ret;
+    }
+
+    @Benchmark
+    public ArchiveSchedule archiveSchedule()
+    {
+        return new ArchiveSchedule(SCHEDULE, _instructions, _logger);
+    }
+}
\ No newline at end of file
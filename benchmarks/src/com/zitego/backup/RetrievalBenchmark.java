@@ -0,0 +1,102 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures retrieving a synthetic staging tree end to end with a LocalFileRetriever
+ * the same way BackupJob does: sequentially when pipeline_depth is 1 and through a
+ * RetrievalPipeline otherwise. Each iteration retrieves every file into an empty
+ * local backup directory, so the score is the time for files*size bytes. The tree
+ * size is set with JMH parameters, for example -p files=1000 -p size=4096.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RetrievalBenchmark
+{
+    /** The number of files. */
+    @Param({ "100" })
+    public int files;
+    /** The size of each file in bytes. */
+    @Param({ "1048576" })
+    public long size;
+    /** The copy_mode of the retriever. */
+    @Param({ "copy", "link" })
+    public String copyMode;
+    /** The pipeline_depth. */
+    @Param({ "1", "4" })
+    public int pipelineDepth;
+
+    /** The staging directory. */
+    protected File _staging;
+    /** The local backup directory. */
+    protected File _local;
+    /** The instructions. */
+    protected BackupInstruction[] _instructions;
+    /** The retriever. */
+    protected LocalFileRetriever _retriever;
+    /** The logger. It has no handlers. */
+    protected Logger _logger;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        _staging = SyntheticTree.createTempDir("staging");
+        _local = SyntheticTree.createTempDir("local");
+        _instructions = SyntheticTree.createStagingDir(_staging, files, size);
+        _logger = Logger.getInstance("com.zitego.backup.benchmark");
+        _retriever = new LocalFileRetriever();
+        _retriever.setProperties
+        (
+            "remote_staging_dir="+_staging.getPath()+",local_backup_dir="+_local.getPath()+",copy_mode="+copyMode
+        );
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() throws IOException
+    {
+        SyntheticTree.closeCatalog(_local);
+        SyntheticTree.delete(_local);
+        _local.mkdirs();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        SyntheticTree.closeCatalog(_local);
+        SyntheticTree.delete(_local);
+        SyntheticTree.delete(_staging);
+    }
+
+    @Benchmark
+    public void retrieve() throws Exception
+    {
+        if (pipelineDepth > 1)
+        {
+            new RetrievalPipeline(_retriever, pipelineDepth, _logger).retrieveFiles(_instructions);
+        }
+        else
+        {
+            for (int i=0; i<_instructions.length; i++)
+            {
+                _retriever.retrieveFile(_instructions[i]);
+            }
+        }
+    }
+}
\ No newline at end of file
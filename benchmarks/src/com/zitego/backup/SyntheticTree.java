@@ -0,0 +1,132 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Creates the synthetic staging and local backup directories used by the
+ * benchmarks. File contents come from a seeded random so every run writes the
+ * same bytes.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class SyntheticTree
+{
+    /** One day in milliseconds. */
+    public static final long DAY = 24L*60L*60L*1000L;
+
+    /**
+     * Creates a new empty directory under java.io.tmpdir.
+     *
+     * @param String The directory name prefix.
+     * @return File
+     * @throws IOException
+     */
+    public static File createTempDir(String prefix) throws IOException
+    {
+        File ret = File.createTempFile(prefix, "");
+        if ( !ret.delete() || !ret.mkdir() ) throw new IOException("Could not create "+ret);
+        return ret;
+    }
+
+    /**
+     * Creates a staging directory with the number of files of the size. The files are
+     * named file[n].bin.
+     *
+     * @param File The directory.
+     * @param int The number of files.
+     * @param long The size of each file.
+     * @return BackupInstruction[] An instruction without a prep script for each file.
+     * @throws IOException
+     */
+    public static BackupInstruction[] createStagingDir(File dir, int files, long size) throws IOException
+    {
+        dir.mkdirs();
+        Random random = new Random(files);
+        byte[] buf = new byte[64*1024];
+        BackupInstruction[] ret = new BackupInstruction[files];
+        for (int i=0; i<files; i++)
+        {
+            String name = "file"+i+".bin";
+            FileOutputStream out = new FileOutputStream( new File(dir, name) );
+            try
+            {
+                for (long written=0; written<size; written+=buf.length)
+                {
+                    random.nextBytes(buf);
+                    out.write( buf, 0, (int)Math.min(buf.length, size-written) );
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            ret[i] = new BackupInstruction(name, null, null);
+        }
+        return ret;
+    }
+
+    /**
+     * Creates a local backup directory with dated copies of each instruction's file,
+     * one per day going back from today. The modification time of each file is set
+     * to its date so the catalog built from disk ages them correctly.
+     *
+     * @param File The directory.
+     * @param int The number of instructions.
+     * @param int The number of dated copies of each instruction.
+     * @return BackupInstruction[] The instructions.
+     * @throws IOException
+     */
+    public static BackupInstruction[] createBackupDir(File dir, int instructions, int days) throws IOException
+    {
+        dir.mkdirs();
+        SimpleDateFormat format = new SimpleDateFormat("MMddyyyy");
+        long now = System.currentTimeMillis();
+        BackupInstruction[] ret = new BackupInstruction[instructions];
+        for (int i=0; i<instructions; i++)
+        {
+            ret[i] = new BackupInstruction("file"+i+".tgz", null, null);
+            for (int j=0; j<days; j++)
+            {
+                long time = now - j*DAY;
+                File f = new File( dir, "file"+i+"_"+format.format( new Date(time) )+".tgz" );
+                new FileOutputStream(f).close();
+                f.setLastModified(time);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Deletes the directory and everything under it.
+     *
+     * @param File The directory.
+     */
+    public static void delete(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i=0; files != null && i<files.length; i++)
+        {
+            if ( files[i].isDirectory() ) delete(files[i]);
+            else files[i].delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Closes the catalog of the local backup directory so the next getInstance
+     * reads it again from disk.
+     *
+     * @param File The local backup directory.
+     * @throws IOException
+     */
+    public static void closeCatalog(File dir) throws IOException
+    {
+        if ( new File(dir, BackupCatalog.FILE_NAME).exists() ) BackupCatalog.getInstance( dir.getPath() ).close();
+    }
+}
\ No newline at end of file
@@ -1,7 +1,8 @@
 #!/bin/sh
 
+#Java 7 or later
 JAVA=/usr/local/java/bin/java
 HOME=/home/jglorioso/zitego/backup
-CP=$HOME/dist/zitego_backup_1.1.jar:$HOME/lib/zitego_common_1.0.6.jar:$HOME/lib/zitego_filemanager_1.1.jar:$HOME/lib/zitego_markup_1.2.2.jar
+CP=$HOME/dist/zitego_backup_1.2.jar:$HOME/lib/zitego_common_1.0.6.jar:$HOME/lib/zitego_filemanager_1.1.jar:$HOME/lib/zitego_markup_1.2.2.jar
 
-$JAVA -classpath $CP com.zitego.backup.BackupManager -log_file $HOME/logs/backup.log -backup_list $1
+$JAVA -classpath $CP com.zitego.backup.BackupManager -log_file $HOME/logs/backup.log -journal_file $HOME/logs/backup.journal -backup_list $1
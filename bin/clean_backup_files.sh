@@ -4,5 +4,5 @@ DIR=/home/httpd/domains/bak_staging/
 FILE=$1
 
 cd $DIR
-rm -f $DIR/$FILE
+rm -f $DIR/$FILE $DIR/$FILE.sha256
 echo '----- EOF -----'
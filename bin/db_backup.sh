@@ -1,6 +1,14 @@
 #!/bin/sh
+# Pass "raw" as the first argument to skip gzip when the retriever has
+# local_compress=true. The dump keeps the .gz name the instruction expects.
 
 BAK_HOME=/home/httpd/domains/bak_staging
 mysqldump --opt -u |USER| -p|PASSWORD| |DB_NAME|> $BAK_HOME/db.sql
-/bin/gzip $BAK_HOME/db.sql
+if [ "$1" = "raw" ]; then
+    mv $BAK_HOME/db.sql $BAK_HOME/db.sql.gz
+else
+    /bin/gzip $BAK_HOME/db.sql
+fi
+# The checksum the retriever checks with remote_checksum=true
+cd $BAK_HOME && sha256sum db.sql.gz > db.sql.gz.sha256
 echo '----- EOF -----'
@@ -1,9 +1,15 @@
 #!/bin/sh
+# Pass "raw" as the third argument to leave the tar file uncompressed
+# when the retriever has local_compress=true.
 
 FROM_HOME=$1
 TO_HOME=/home/httpd/domains/bak_staging
 FILE=$2
+TAR_OPTS=-czvf
+[ "$3" = "raw" ] && TAR_OPTS=-cvf
 
 cd $FROM_HOME
-/bin/tar -czvf $TO_HOME/$FILE *
+/bin/tar $TAR_OPTS $TO_HOME/$FILE * || exit 1
+# The checksum the retriever checks with remote_checksum=true
+cd $TO_HOME && sha256sum $FILE > $FILE.sha256
 echo '----- EOF -----'
@@ -0,0 +1,10 @@
+#!/bin/sh
+# Pass "raw" as the second argument to send the tar stream uncompressed
+# when the retriever has local_compress=true.
+
+FROM_HOME=$1
+TAR_OPTS=-czf
+[ "$2" = "raw" ] && TAR_OPTS=-cf
+
+cd $FROM_HOME || exit 1
+exec /bin/tar $TAR_OPTS - *
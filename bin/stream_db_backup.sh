@@ -0,0 +1,11 @@
+#!/bin/bash
+# Writes a gzipped database dump to standard out for the
+# StreamingSSHFileRetriever. Nothing else may be written to standard out.
+# Pass "raw" to send the dump uncompressed when the retriever has
+# local_compress=true.
+
+set -o pipefail
+if [ "$1" = "raw" ]; then
+    exec mysqldump --opt -u |USER| -p|PASSWORD| |DB_NAME|
+fi
+mysqldump --opt -u |USER| -p|PASSWORD| |DB_NAME| | /bin/gzip -c
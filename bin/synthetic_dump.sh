@@ -0,0 +1,25 @@
+#!/bin/sh
+# A stand-in for mysqldump to test database dump instructions. It writes
+# synthetic SQL for a table to standard out:
+#   synthetic_dump.sh <rows> [table]
+# The table is last so it can be used as a dump_part. Example:
+#   instruction_0=remote_staged_file=db.sql.gz,dump_cmd=/path/to/synthetic_dump.sh,\
+#                 arg=100000,dump_part=users,dump_part=orders,dump_threads=2
+
+ROWS=${1:-1000}
+TABLE=${2:-synthetic}
+
+awk -v rows="$ROWS" -v table="$TABLE" 'BEGIN {
+    print "-- Synthetic dump of " table
+    print "DROP TABLE IF EXISTS `" table "`;"
+    print "CREATE TABLE `" table "` (`id` int NOT NULL, `name` varchar(64), `amount` decimal(10,2), PRIMARY KEY (`id`));"
+    srand(rows)
+    for (i=1; i<=rows; i++)
+    {
+        if ((i-1) % 500 == 0) printf "INSERT INTO `%s` VALUES ", table
+        printf "(%d,\x27%s_%d\x27,%.2f)", i, table, int(rand()*1000000), rand()*10000
+        if (i % 500 == 0 || i == rows) print ";"
+        else printf ","
+    }
+    print "-- Dump completed"
+}'
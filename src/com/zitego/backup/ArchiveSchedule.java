@@ -1,79 +1,320 @@
-package com.zitego.backup;
-
-import java.io.File;
-import com.zitego.filemanager.util.WildcardFilter;
-import com.zitego.logging.Logger;
-
-/**
- * Handles archiving the retrieved files. The required properties that must
- * be specified are days_till_purge. This tells how old a file should be when
- * it is purged.<br>
- * Example:<br>
- * days_till_purge=5
- *
- * @author John Glorioso
- * @version $Id: ArchiveSchedule.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
- */
-public class ArchiveSchedule
-{
-    /** How old files can (in days) get before they are purged. */
-    protected int _daysTillPurge = 0;
-    /** The backup instructions. */
-    protected BackupInstruction[] _instructions;
-    /** To log what is being being purged. */
-    protected Logger _logger;
-
-    /**
-     * Creates a new archive schedule with the specified properties and
-     * a set of backup instructions.
-     *
-     * @param String The properties.
-     * @param BackupInstruction[] The instructions.
-     * @param Logger The logger.
-     */
-    public ArchiveSchedule(String props, BackupInstruction[] instr, Logger logger)
-    {
-        String tokens[] = props.split(",");
-        if (tokens != null)
-        {
-            for (int i = 0; i < tokens.length; i++)
-            {
-                String token[] = tokens[i].split("=");
-                if ( token[0].equals("days_till_purge") ) _daysTillPurge = Integer.parseInt(token[1]);
-               }
-           }
-           _instructions = instr;
-           _logger = logger;
-           _logger.log("days_till_purge="+_daysTillPurge);
-    }
-
-    /**
-     * Archives the files that were retrieved by the back up instructions
-     * by seeing if any historical files are older then the specified number
-     * of days till purging.
-     *
-     * @param String The local backup directory.
-     */
-    public void archive(String localBackupDir)
-    {
-        for (int i=0; i<_instructions.length; i++)
-        {
-            File f = new File(localBackupDir);
-            String pattern = _instructions[i].remoteStagedFile.substring( 0, _instructions[i].remoteStagedFile.indexOf(".") );
-            File[] files = f.listFiles
-            (
-                new WildcardFilter(pattern+"*", false)
-            );
-            long curTime = System.currentTimeMillis();
-            for (int j=0; j<files.length; j++)
-            {
-                long fileAge = ( curTime-files[j].lastModified() )/24L/60L/60L/1000L;
-                if (fileAge > _daysTillPurge)
-                {
-                    files[j].delete();
-                    _logger.log("Purging "+files[j]);
-                }
-            }
-        }
-    }
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Hashtable;
+import com.zitego.logging.Logger;
+
+/**
+ * Handles archiving the retrieved files. The required properties that must
+ * be specified are days_till_purge. This tells how old a file should be when
+ * it is purged.<br>
+ * Example:<br>
+ * days_till_purge=5<br>
+ * <br>
+ * The optional property min_free_mb is the number of megabytes that should be kept
+ * free in the local backup directory. If there is less, then the expired files are
+ * purged right away and, if that is not enough, the oldest files are purged until
+ * there is enough space. The newest file of each instruction is always kept.<br>
+ * <br>
+ * If the local backup directory has a dedup store, then old files are also purged
+ * from it and its unused chunks are garbage collected.<br>
+ * <br>
+ * A file that a newer incremental backup is restored from is kept until that backup
+ * is purged too. Change manifests are purged with their files.
+ *
+ * @see BackupCatalog
+ * @see DedupStore
+ * @see ChangeManifest
+ * @author John Glorioso
+ * @version $Id: ArchiveSchedule.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
+ */
+public class ArchiveSchedule
+{
+    /** How old files can (in days) get before they are purged. */
+    protected int _daysTillPurge = 0;
+    /** The number of bytes to keep free in the local backup directory or 0 for no minimum. */
+    protected long _minFreeBytes = 0;
+    /** The backup instructions. */
+    protected BackupInstruction[] _instructions;
+    /** To log what is being being purged. */
+    protected Logger _logger;
+    /** The name of the job that metrics are labeled with. */
+    protected String _jobName;
+    /** The journal of the run or null if the run is not journaled. */
+    protected RunJournal _journal;
+
+    /**
+     * Creates a new archive schedule with the specified properties and
+     * a set of backup instructions.
+     *
+     * @param String The properties.
+     * @param BackupInstruction[] The instructions.
+     * @param Logger The logger.
+     */
+    public ArchiveSchedule(String props, BackupInstruction[] instr, Logger logger)
+    {
+        String tokens[] = props.split(",");
+        if (tokens != null)
+        {
+            for (int i = 0; i < tokens.length; i++)
+            {
+                String token[] = tokens[i].split("=");
+                if ( token[0].equals("days_till_purge") ) _daysTillPurge = Integer.parseInt(token[1]);
+                else if ( token[0].equals("min_free_mb") ) _minFreeBytes = Long.parseLong(token[1])*1024L*1024L;
+               }
+           }
+           _instructions = instr;
+           _logger = logger;
+           _logger.log("days_till_purge="+_daysTillPurge);
+           if (_minFreeBytes > 0) _logger.log("min_free_mb="+(_minFreeBytes/1024L/1024L));
+    }
+
+    /**
+     * Archives the files that were retrieved by the back up instructions
+     * by seeing if any historical files are older then the specified number
+     * of days till purging. The expired files of each instruction are found in
+     * the catalog of the local backup directory, so only files retrieved for that
+     * exact instruction are purged and the directory is not listed.
+     *
+     * @param String The local backup directory.
+     */
+    public void archive(String localBackupDir)
+    {
+        archive(localBackupDir, null, null);
+    }
+
+    /**
+     * Archives the files like archive(String), waiting on the limiters before each
+     * file is deleted. If the run is journaled and the files were archived, then the
+     * job is recorded as archived.
+     *
+     * @param String The local backup directory.
+     * @param RateLimiter The limit on files deleted per second or null for none.
+     * @param RateLimiter The limit on bytes deleted per second or null for none.
+     */
+    public void archive(String localBackupDir, RateLimiter deletes, RateLimiter bytes)
+    {
+        if ( !purgeExpired(localBackupDir, deletes, bytes) || _journal == null ) return;
+        try
+        {
+            _journal.recordJob(_jobName, RunJournal.ARCHIVED);
+        }
+        catch (IOException ioe)
+        {
+            _logger.log("*** WARNING *** Could not record that "+_jobName+" is archived in the run journal: "+ioe);
+        }
+    }
+
+    /**
+     * Purges the expired files of the instructions, waiting on the limiters before
+     * each file is deleted.
+     *
+     * @param String The local backup directory.
+     * @param RateLimiter The limit on files deleted per second or null for none.
+     * @param RateLimiter The limit on bytes deleted per second or null for none.
+     * @return boolean Whether the files were purged without an error.
+     */
+    protected boolean purgeExpired(String localBackupDir, RateLimiter deletes, RateLimiter bytes)
+    {
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try
+        {
+            BackupCatalog catalog = BackupCatalog.getInstance(localBackupDir);
+            DedupStore store = ( DedupStore.exists(localBackupDir) ? DedupStore.getInstance(localBackupDir) : null );
+            //A file is purged once it is more than days_till_purge whole days old
+            long expired = System.currentTimeMillis() - (_daysTillPurge+1)*24L*60L*60L*1000L;
+            for (int i=0; i<_instructions.length; i++)
+            {
+                BackupCatalog.Entry[] entries = catalog.getExpired(_instructions[i].remoteStagedFile, expired);
+                if (entries.length == 0) continue;
+                Hashtable needed = getDependencies(localBackupDir, catalog, _instructions[i], entries.length);
+                for (int j=0; j<entries.length; j++)
+                {
+                    if ( needed.containsKey(entries[j].name) )
+                    {
+                        _logger.log("Keeping "+entries[j].name+" for the incremental backups that are restored from it");
+                        continue;
+                    }
+                    purge(localBackupDir, entries[j], catalog, store, deletes, bytes);
+                }
+            }
+            RunManifest.purge(localBackupDir, expired);
+            if (store != null)
+            {
+                long freed = store.gc();
+                _logger.log("Freed "+freed+" bytes from "+localBackupDir+"/"+DedupStore.DIR_NAME);
+            }
+            catalog.compactIfNeeded();
+            success = true;
+        }
+        catch (InterruptedException ie)
+        {
+            _logger.log("*** WARNING *** Purging "+localBackupDir+" was interrupted");
+        }
+        catch (IOException ioe)
+        {
+            _logger.log("*** ERROR *** Could not purge "+localBackupDir+": "+ioe);
+        }
+        finally
+        {
+            RunMetrics.getInstance().record(_jobName, null, localBackupDir, "purge", start, success);
+        }
+        return success;
+    }
+
+    /**
+     * Returns whether the local backup directory has less free space than min_free_mb.
+     *
+     * @param String The local backup directory.
+     * @return boolean
+     */
+    public boolean needsSpace(String localBackupDir)
+    {
+        return ( _minFreeBytes > 0 && new File(localBackupDir).getUsableSpace() < _minFreeBytes );
+    }
+
+    /**
+     * Makes room in the local backup directory if it has less free space than
+     * min_free_mb. The expired files are purged first. If that is not enough, then
+     * the oldest files of the instructions are purged, one at a time, until there is
+     * enough space or only the newest file of each instruction is left.
+     *
+     * @param String The local backup directory.
+     * @param RateLimiter The limit on files deleted per second or null for none.
+     * @param RateLimiter The limit on bytes deleted per second or null for none.
+     */
+    public void makeSpace(String localBackupDir, RateLimiter deletes, RateLimiter bytes)
+    {
+        if ( !needsSpace(localBackupDir) ) return;
+        _logger.log("*** WARNING *** Less than "+(_minFreeBytes/1024L/1024L)+"MB free in "+localBackupDir+", purging early");
+        purgeExpired(localBackupDir, deletes, bytes);
+        try
+        {
+            BackupCatalog catalog = BackupCatalog.getInstance(localBackupDir);
+            DedupStore store = ( DedupStore.exists(localBackupDir) ? DedupStore.getInstance(localBackupDir) : null );
+            while ( needsSpace(localBackupDir) )
+            {
+                //Find the oldest file that is not the newest of its instruction or needed by an incremental backup
+                BackupCatalog.Entry oldest = null;
+                for (int i=0; i<_instructions.length; i++)
+                {
+                    BackupCatalog.Entry[] entries = catalog.getEntries(_instructions[i].remoteStagedFile);
+                    if (entries.length < 2) continue;
+                    Hashtable needed = getDependencies(localBackupDir, catalog, _instructions[i], 0);
+                    for (int j=0; j<entries.length-1; j++)
+                    {
+                        if ( needed.containsKey(entries[j].name) ) continue;
+                        if ( oldest == null || entries[j].compareTo(oldest) < 0 ) oldest = entries[j];
+                        break;
+                    }
+                }
+                if (oldest == null)
+                {
+                    _logger.log("*** WARNING *** Nothing left to purge in "+localBackupDir);
+                    break;
+                }
+                purge(localBackupDir, oldest, catalog, store, deletes, bytes);
+                if (store != null) store.gc();
+            }
+            catalog.compactIfNeeded();
+        }
+        catch (InterruptedException ie)
+        {
+            _logger.log("*** WARNING *** Purging "+localBackupDir+" was interrupted");
+        }
+        catch (IOException ioe)
+        {
+            _logger.log("*** ERROR *** Could not make space in "+localBackupDir+": "+ioe);
+        }
+    }
+
+    /**
+     * Deletes the file of a catalog entry, or its recipe if it is in the dedup store,
+     * and removes it from the catalog.
+     *
+     * @param String The local backup directory.
+     * @param BackupCatalog.Entry The entry.
+     * @param BackupCatalog The catalog.
+     * @param DedupStore The dedup store or null if there is none.
+     * @param RateLimiter The limit on files deleted per second or null for none.
+     * @param RateLimiter The limit on bytes deleted per second or null for none.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void purge(String localBackupDir, BackupCatalog.Entry entry, BackupCatalog catalog, DedupStore store,
+                         RateLimiter deletes, RateLimiter bytes) throws IOException, InterruptedException
+    {
+        File f = new File(localBackupDir, entry.name);
+        if (deletes != null) deletes.acquire(1);
+        if ( f.exists() )
+        {
+            long size = f.length();
+            if (bytes != null) bytes.acquire(size);
+            f.delete();
+            RunMetrics.getInstance().addPurged(_jobName, size);
+            _logger.log("Purging "+f);
+        }
+        else if (store != null)
+        {
+            store.delete(entry.name);
+            RunMetrics.getInstance().addPurged(_jobName, entry.size);
+            _logger.log("Purging "+store.getRecipe(entry.name));
+        }
+        ChangeManifest.delete(localBackupDir, entry.name);
+        catalog.remove(entry.name);
+    }
+
+    /**
+     * Returns the dated files of the instruction that its incremental backups are
+     * restored from, leaving out the oldest backups.
+     *
+     * @param String The local backup directory.
+     * @param BackupCatalog The catalog.
+     * @param BackupInstruction The instruction.
+     * @param int The number of oldest backups to leave out.
+     * @return Hashtable The dated file names as keys.
+     * @throws IOException if a change manifest cannot be read.
+     */
+    protected Hashtable getDependencies(String localBackupDir, BackupCatalog catalog, BackupInstruction instr, int skip)
+        throws IOException
+    {
+        BackupCatalog.Entry[] entries = catalog.getEntries(instr.remoteStagedFile);
+        BackupCatalog.Entry[] kept = new BackupCatalog.Entry[Math.max(0, entries.length-skip)];
+        System.arraycopy(entries, entries.length-kept.length, kept, 0, kept.length);
+        return ChangeManifest.getDependencies(localBackupDir, kept);
+    }
+
+    /**
+     * Sets the name of the job that metrics are labeled with.
+     *
+     * @param String The job name.
+     * @see RunMetrics
+     */
+    public void setJobName(String name)
+    {
+        _jobName = name;
+    }
+
+    /**
+     * Sets the journal that archiving the job is recorded in.
+     *
+     * @param RunJournal The journal or null if the run is not journaled.
+     * @see RunJournal
+     */
+    public void setJournal(RunJournal journal)
+    {
+        _journal = journal;
+    }
+
+    /**
+     * Returns the number of bytes to keep free in the local backup directory.
+     *
+     * @return long
+     */
+    public long getMinFreeBytes()
+    {
+        return _minFreeBytes;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes a file to a hidden temporary file in the same directory and renames it
+ * to the real name when it is committed. The file is synced to disk before it is
+ * renamed, so the dated file is either complete or not there at all.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class AtomicFileOutputStream extends BackupOutputStream
+{
+    /** The file being written. */
+    protected File _file;
+    /** The temporary file. */
+    protected File _tmp;
+    /** The stream to the temporary file. */
+    protected FileOutputStream _out;
+
+    /**
+     * Creates a new atomic file output stream.
+     *
+     * @param file The file to write.
+     * @throws IOException if the temporary file cannot be created.
+     */
+    public AtomicFileOutputStream(File file) throws IOException
+    {
+        _file = file;
+        _tmp = getTempFile(file);
+        _out = new FileOutputStream(_tmp);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (_out == null) throw new IOException("Stream closed: "+_file);
+        _out.write(b, off, len);
+    }
+
+    public void commit() throws IOException
+    {
+        if (_out == null) throw new IOException("Stream closed: "+_file);
+        try
+        {
+            _out.flush();
+            _out.getFD().sync();
+            _out.close();
+            _out = null;
+            if ( !_tmp.renameTo(_file) )
+            {
+                _file.delete();
+                if ( !_tmp.renameTo(_file) ) throw new IOException("Could not rename "+_tmp+" to "+_file);
+            }
+        }
+        finally
+        {
+            abort();
+        }
+    }
+
+    public void abort()
+    {
+        if (_out != null)
+        {
+            try
+            {
+                _out.close();
+            }
+            catch (IOException ioe) { }
+            _out = null;
+        }
+        _tmp.delete();
+    }
+
+    /**
+     * Returns the file being written.
+     *
+     * @return File
+     */
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Returns the hidden temporary file that a file is written to before it is
+     * complete.
+     *
+     * @param file The file.
+     * @return File
+     */
+    public static File getTempFile(File file)
+    {
+        return new File( file.getParentFile(), "."+file.getName()+".tmp" );
+    }
+}
\ No newline at end of file
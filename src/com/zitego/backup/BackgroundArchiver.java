@@ -0,0 +1,209 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Runs archive schedules on a background thread so that purging old files does not
+ * hold up the next retrieval. Jobs submit their archive schedule when they finish
+ * retrieving and the schedules are run one at a time in the order they were
+ * submitted. Deletes are limited by a shared budget of files per second and bytes
+ * per second so purging does not compete with retrieval for the disks.<br>
+ * <br>
+ * While a job is retrieving, its local backup directory is watched. If the free
+ * space drops below the min_free_mb of its archive schedule, then files are purged
+ * early to make room. drain must be called before the process exits so the
+ * submitted schedules finish.
+ *
+ * @see ArchiveSchedule
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BackgroundArchiver implements Runnable
+{
+    /** How often (in milliseconds) the free space of watched directories is checked. */
+    public static final long CHECK_INTERVAL = 5000;
+
+    /** To log with. */
+    protected Logger _logger;
+    /** The limit on files deleted per second. */
+    protected RateLimiter _deletes;
+    /** The limit on bytes deleted per second. */
+    protected RateLimiter _bytes;
+    /** The schedules waiting to be run. */
+    protected Vector _queue = new Vector();
+    /** The schedules of the directories being watched keyed by local backup directory. */
+    protected Hashtable _watched = new Hashtable();
+    /** The background thread. */
+    protected Thread _thread;
+    /** Whether drain was called. */
+    protected boolean _draining = false;
+
+    /**
+     * Creates a new background archiver.
+     *
+     * @param Logger The logger.
+     * @param double The number of files that can be deleted per second or 0 for no limit.
+     * @param double The number of bytes that can be deleted per second or 0 for no limit.
+     */
+    public BackgroundArchiver(Logger logger, double deletesPerSecond, double bytesPerSecond)
+    {
+        _logger = logger;
+        _deletes = new RateLimiter(deletesPerSecond);
+        _bytes = new RateLimiter(bytesPerSecond);
+    }
+
+    /**
+     * Starts the background thread.
+     */
+    public synchronized void start()
+    {
+        if (_thread != null) return;
+        _thread = new Thread(this, "BackgroundArchiver");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Adds an archive schedule to be run for the local backup directory.
+     *
+     * @param ArchiveSchedule The schedule.
+     * @param String The local backup directory.
+     */
+    public synchronized void submit(ArchiveSchedule schedule, String localBackupDir)
+    {
+        if (_draining) throw new IllegalStateException("BackgroundArchiver is draining");
+        _queue.add( new Object[] { schedule, localBackupDir } );
+        notifyAll();
+    }
+
+    /**
+     * Makes room in the local backup directory right away if it is low on space,
+     * then watches it until unwatch is called.
+     *
+     * @param ArchiveSchedule The schedule.
+     * @param String The local backup directory.
+     */
+    public void watch(ArchiveSchedule schedule, String localBackupDir)
+    {
+        schedule.makeSpace(localBackupDir, _deletes, _bytes);
+        synchronized (this)
+        {
+            Vector schedules = (Vector)_watched.get(localBackupDir);
+            if (schedules == null)
+            {
+                schedules = new Vector();
+                _watched.put(localBackupDir, schedules);
+            }
+            schedules.add(schedule);
+        }
+    }
+
+    /**
+     * Stops watching the local backup directory for the schedule.
+     *
+     * @param ArchiveSchedule The schedule.
+     * @param String The local backup directory.
+     */
+    public synchronized void unwatch(ArchiveSchedule schedule, String localBackupDir)
+    {
+        Vector schedules = (Vector)_watched.get(localBackupDir);
+        if (schedules == null) return;
+        schedules.remove(schedule);
+        if (schedules.size() == 0) _watched.remove(localBackupDir);
+    }
+
+    /**
+     * Runs the submitted schedules and then stops the background thread. This blocks
+     * until they are done.
+     *
+     * @throws InterruptedException
+     */
+    public void drain() throws InterruptedException
+    {
+        Thread thread;
+        synchronized (this)
+        {
+            _draining = true;
+            notifyAll();
+            thread = _thread;
+        }
+        if (thread != null) thread.join();
+        _logger.log("BackgroundArchiver finished");
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            Object[] task = null;
+            synchronized (this)
+            {
+                if (_queue.size() == 0)
+                {
+                    if (_draining) return;
+                    try
+                    {
+                        wait(CHECK_INTERVAL);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        return;
+                    }
+                }
+                if (_queue.size() > 0) task = (Object[])_queue.remove(0);
+            }
+            try
+            {
+                if (task != null)
+                {
+                    String dir = (String)task[1];
+                    _logger.log("Archiving "+dir);
+                    ((ArchiveSchedule)task[0]).archive(dir, _deletes, _bytes);
+                }
+                checkSpace();
+            }
+            catch (Throwable t)
+            {
+                _logger.log("*** ERROR *** BackgroundArchiver: "+t);
+            }
+        }
+    }
+
+    /**
+     * Makes room in each watched directory that is low on space.
+     */
+    protected void checkSpace()
+    {
+        Vector tmp = new Vector();
+        synchronized (this)
+        {
+            for (Enumeration e=_watched.keys(); e.hasMoreElements();)
+            {
+                String dir = (String)e.nextElement();
+                Vector schedules = (Vector)_watched.get(dir);
+                for (int i=0; i<schedules.size(); i++)
+                {
+                    tmp.add( new Object[] { schedules.get(i), dir } );
+                }
+            }
+        }
+        for (int i=0; i<tmp.size(); i++)
+        {
+            Object[] watched = (Object[])tmp.get(i);
+            ((ArchiveSchedule)watched[0]).makeSpace( (String)watched[1], _deletes, _bytes );
+        }
+    }
+
+    /**
+     * Returns the number of schedules waiting to be run.
+     *
+     * @return int
+     */
+    public synchronized int getQueueSize()
+    {
+        return _queue.size();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,615 @@
+package com.zitego.backup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A catalog of the dated files in a local backup directory so that archiving does
+ * not have to list and stat the whole directory for every instruction. The catalog
+ * is the file .catalog in the local backup directory. It is append only. One line is
+ * added when a file is retrieved and one when it is purged. The fields are
+ * separated by tabs:<br>
+ * A time instruction host date size sha256 name<br>
+ * D time name<br>
+ * <br>
+ * where time is when the file was retrieved (in milliseconds), instruction is the
+ * instruction's remote_staged_file, date is yyyyMMdd, and name is the dated file
+ * name. A file retrieved again the same day replaces its entry. The catalog is read
+ * once when it is opened. The entries of each instruction are kept in time order so
+ * that purging only visits the entries that have expired. The catalog is rewritten
+ * without the purged entries when more than half of its lines are for purged files.<br>
+ * <br>
+ * If the catalog is lost, it can be rebuilt from the dated files on disk (and in the
+ * dedup store) with BackupManager -rebuild_catalog. A directory with no catalog is
+ * rebuilt without checksums the first time it is opened.
+ *
+ * @see ArchiveSchedule
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BackupCatalog
+{
+    /** The catalog file name. */
+    public static final String FILE_NAME = ".catalog";
+    /** The value of a field that is not known. */
+    public static final String UNKNOWN = "-";
+    /** Matches a dated file name. The instruction is group 1 plus group 5. */
+    protected static final Pattern DATED_NAME = Pattern.compile("([^.]+)_(\\d{2})(\\d{2})(\\d{4})(\\..*)");
+    /** Matches the files a retrieval writes before the dated file is complete. */
+    protected static final Pattern INCOMPLETE_NAME = Pattern.compile(".*\\.(tmp|part|part\\.info|dump\\d+)");
+    /** The open catalogs keyed by canonical file. */
+    protected static final Hashtable CATALOGS = new Hashtable();
+
+    /** The local backup directory. */
+    protected File _dir;
+    /** The catalog file. */
+    protected File _file;
+    /** The stream that entries are appended to. */
+    protected FileOutputStream _out;
+    /** The entries keyed by name. */
+    protected Hashtable _entries = new Hashtable();
+    /** The entries of each instruction in time order keyed by instruction. */
+    protected Hashtable _byInstruction = new Hashtable();
+    /** The number of lines in the catalog file. */
+    protected int _lines = 0;
+    /** To format entry dates. */
+    protected SimpleDateFormat _dateFormat = new SimpleDateFormat("yyyyMMdd");
+
+    /**
+     * Returns the catalog for the local backup directory, opening it if needed. If
+     * the directory has no catalog, then one is built from the files on disk.
+     *
+     * @param localBackupDir The local backup directory.
+     * @return BackupCatalog
+     * @throws IOException if the catalog cannot be opened.
+     */
+    public static BackupCatalog getInstance(String localBackupDir) throws IOException
+    {
+        File file = new File(localBackupDir, FILE_NAME).getCanonicalFile();
+        synchronized (CATALOGS)
+        {
+            BackupCatalog ret = (BackupCatalog)CATALOGS.get(file);
+            if (ret == null)
+            {
+                ret = new BackupCatalog(file);
+                CATALOGS.put(file, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Opens the catalog file.
+     *
+     * @param file The catalog file.
+     * @throws IOException
+     */
+    protected BackupCatalog(File file) throws IOException
+    {
+        _file = file;
+        _dir = file.getParentFile();
+        if ( _file.exists() )
+        {
+            load();
+            _out = new FileOutputStream(_file, true);
+        }
+        else
+        {
+            _dir.mkdirs();
+            rebuild(UNKNOWN, false);
+        }
+    }
+
+    /**
+     * Adds a retrieved file to the catalog.
+     *
+     * @param instruction The instruction's remote staged file.
+     * @param host The remote server or null if it is not known.
+     * @param name The dated file name.
+     * @param size The file size.
+     * @param sha256 The SHA-256 of the file or null if it is not known.
+     * @throws IOException
+     */
+    public synchronized void add(String instruction, String host, String name, long size, String sha256) throws IOException
+    {
+        long time = System.currentTimeMillis();
+        Entry entry = new Entry
+        (
+            time, instruction, (host != null ? host : UNKNOWN), _dateFormat.format( new Date(time) ),
+            size, (sha256 != null ? sha256 : UNKNOWN), name
+        );
+        append( entry.toString() );
+        put(entry);
+    }
+
+    /**
+     * Removes a purged file from the catalog.
+     *
+     * @param name The dated file name.
+     * @throws IOException
+     */
+    public synchronized void remove(String name) throws IOException
+    {
+        if ( !_entries.containsKey(name) ) return;
+        append( "D\t"+System.currentTimeMillis()+"\t"+name );
+        drop(name);
+    }
+
+    /**
+     * Returns the entry for the dated file name or null if there is none.
+     *
+     * @param name The dated file name.
+     * @return Entry
+     */
+    public synchronized Entry getEntry(String name)
+    {
+        return (Entry)_entries.get(name);
+    }
+
+    /**
+     * Returns the entries of the instruction that were retrieved at or before the
+     * time, oldest first.
+     *
+     * @param instruction The instruction's remote staged file.
+     * @param time The time in milliseconds.
+     * @return Entry[]
+     */
+    public synchronized Entry[] getExpired(String instruction, long time)
+    {
+        Vector tmp = new Vector();
+        TreeSet entries = (TreeSet)_byInstruction.get(instruction);
+        if (entries != null)
+        {
+            for (Iterator i=entries.iterator(); i.hasNext(); )
+            {
+                Entry entry = (Entry)i.next();
+                if (entry.time > time) break;
+                tmp.add(entry);
+            }
+        }
+        Entry[] ret = new Entry[tmp.size()];
+        tmp.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Returns the entries of the instruction, oldest first.
+     *
+     * @param instruction The instruction's remote staged file.
+     * @return Entry[]
+     */
+    public synchronized Entry[] getEntries(String instruction)
+    {
+        return getExpired(instruction, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns every entry in the catalog ordered by name.
+     *
+     * @return Entry[]
+     */
+    public synchronized Entry[] getEntries()
+    {
+        TreeSet names = new TreeSet( _entries.keySet() );
+        Entry[] ret = new Entry[names.size()];
+        int i = 0;
+        for (Iterator it=names.iterator(); it.hasNext(); )
+        {
+            ret[i++] = (Entry)_entries.get( it.next() );
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the newest entry of the instruction or null if there is none.
+     *
+     * @param instruction The instruction's remote staged file.
+     * @return Entry
+     */
+    public synchronized Entry getNewest(String instruction)
+    {
+        TreeSet entries = (TreeSet)_byInstruction.get(instruction);
+        return (entries != null && entries.size() > 0 ? (Entry)entries.last() : null);
+    }
+
+    /**
+     * Returns the number of files in the catalog.
+     *
+     * @return int
+     */
+    public synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    /**
+     * Rebuilds the catalog from the dated files in the local backup directory and
+     * its dedup store. The retrieval time of each file is its modification time.
+     *
+     * @param host The remote server to record for the files.
+     * @param checksums Whether to read every file to compute its SHA-256.
+     * @throws IOException
+     */
+    public void rebuild(String host, boolean checksums) throws IOException
+    {
+        rebuild(host, checksums, null);
+    }
+
+    /**
+     * Rebuilds the catalog from the dated files of the instructions in the local
+     * backup directory and its dedup store. Temporary files and the .part files of
+     * resumed downloads are never cataloged, and neither are dated files of other
+     * instructions, since archiving would never purge them.
+     *
+     * @param host The remote server to record for the files.
+     * @param checksums Whether to read every file to compute its SHA-256.
+     * @param instructions The remote_staged_file of each instruction or null to catalog every dated file.
+     * @throws IOException
+     */
+    public synchronized void rebuild(String host, boolean checksums, String[] instructions) throws IOException
+    {
+        _entries.clear();
+        _byInstruction.clear();
+        Hashtable names = null;
+        if (instructions != null)
+        {
+            names = new Hashtable();
+            for (int i=0; i<instructions.length; i++)
+            {
+                names.put(instructions[i], instructions[i]);
+            }
+        }
+        String[] files = _dir.list();
+        for (int i=0; files != null && i<files.length; i++)
+        {
+            Matcher m = matchDated(files[i], names);
+            File f = new File(_dir, files[i]);
+            if ( m == null || !f.isFile() ) continue;
+            String sha256 = UNKNOWN;
+            if (checksums)
+            {
+                InputStream in = new FileInputStream(f);
+                try
+                {
+                    sha256 = sha256(in);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            put( new Entry(f.lastModified(), m.group(1)+m.group(5), host, m.group(4)+m.group(2)+m.group(3), f.length(), sha256, files[i]) );
+        }
+        if ( DedupStore.exists(_dir.getPath()) )
+        {
+            DedupStore store = DedupStore.getInstance( _dir.getPath() );
+            String[] stored = store.list();
+            for (int i=0; i<stored.length; i++)
+            {
+                Matcher m = matchDated(stored[i], names);
+                if ( m == null || _entries.containsKey(stored[i]) ) continue;
+                String sha256 = UNKNOWN;
+                long size = -1;
+                if (checksums)
+                {
+                    CountingInputStream in = new CountingInputStream( store.open(stored[i]) );
+                    try
+                    {
+                        sha256 = sha256(in);
+                        size = in.getCount();
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+                put
+                (
+                    new Entry
+                    (
+                        store.getRecipe(stored[i]).lastModified(), m.group(1)+m.group(5), host,
+                        m.group(4)+m.group(2)+m.group(3), size, sha256, stored[i]
+                    )
+                );
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Returns the match of a dated file name or null if the name is not of a
+     * complete dated file of one of the instructions.
+     *
+     * @param name The file name.
+     * @param instructions The instructions keyed by remote_staged_file or null for any.
+     * @return Matcher
+     */
+    protected static Matcher matchDated(String name, Hashtable instructions)
+    {
+        if ( name.startsWith(".") || INCOMPLETE_NAME.matcher(name).matches() ) return null;
+        Matcher ret = DATED_NAME.matcher(name);
+        if ( !ret.matches() ) return null;
+        if ( instructions != null && !instructions.containsKey(ret.group(1)+ret.group(5)) ) return null;
+        return ret;
+    }
+
+    /**
+     * Rewrites the catalog file with only the current entries if more than half of
+     * its lines are for files that were purged or replaced.
+     *
+     * @throws IOException
+     */
+    public synchronized void compactIfNeeded() throws IOException
+    {
+        if (_lines > 1000 && _lines > _entries.size()*2) compact();
+    }
+
+    /**
+     * Rewrites the catalog file with only the current entries in time order. The file
+     * is replaced atomically.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException
+    {
+        TreeSet all = new TreeSet( _entries.values() );
+        AtomicFileOutputStream out = new AtomicFileOutputStream(_file);
+        try
+        {
+            for (Iterator i=all.iterator(); i.hasNext(); )
+            {
+                out.write( (i.next().toString()+"\n").getBytes("UTF-8") );
+            }
+            out.commit();
+        }
+        finally
+        {
+            out.abort();
+        }
+        if (_out != null) _out.close();
+        _out = new FileOutputStream(_file, true);
+        _lines = all.size();
+    }
+
+    /**
+     * Closes the catalog.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException
+    {
+        if (_out != null) _out.close();
+        _out = null;
+        synchronized (CATALOGS)
+        {
+            CATALOGS.remove(_file);
+        }
+    }
+
+    /**
+     * Reads the catalog file. A partly written last line (from a crash) is ignored.
+     *
+     * @throws IOException
+     */
+    protected void load() throws IOException
+    {
+        BufferedReader in = new BufferedReader( new FileReader(_file) );
+        try
+        {
+            String line;
+            while ( (line=in.readLine()) != null )
+            {
+                _lines++;
+                String[] field = line.split("\t");
+                try
+                {
+                    if (field.length == 8 && "A".equals(field[0]) )
+                    {
+                        put
+                        (
+                            new Entry
+                            (
+                                Long.parseLong(field[1]), field[2], field[3], field[4],
+                                Long.parseLong(field[5]), field[6], field[7]
+                            )
+                        );
+                    }
+                    else if (field.length == 3 && "D".equals(field[0]) )
+                    {
+                        drop(field[2]);
+                    }
+                }
+                catch (NumberFormatException nfe) { }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends a line to the catalog file. The line is written with one write so that
+     * processes appending to the same catalog do not mix their lines.
+     *
+     * @param line The line.
+     * @throws IOException
+     */
+    protected void append(String line) throws IOException
+    {
+        _out.write( (line+"\n").getBytes("UTF-8") );
+        _lines++;
+    }
+
+    /**
+     * Adds an entry to the indexes, replacing the entry with the same name.
+     *
+     * @param entry The entry.
+     */
+    protected void put(Entry entry)
+    {
+        drop(entry.name);
+        _entries.put(entry.name, entry);
+        TreeSet entries = (TreeSet)_byInstruction.get(entry.instruction);
+        if (entries == null)
+        {
+            entries = new TreeSet();
+            _byInstruction.put(entry.instruction, entries);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Removes the entry with the name from the indexes.
+     *
+     * @param name The dated file name.
+     */
+    protected void drop(String name)
+    {
+        Entry entry = (Entry)_entries.remove(name);
+        if (entry == null) return;
+        TreeSet entries = (TreeSet)_byInstruction.get(entry.instruction);
+        if (entries != null) entries.remove(entry);
+    }
+
+    /**
+     * Returns the SHA-256 of everything read from the stream as a hex string.
+     *
+     * @param in The stream.
+     * @return String
+     * @throws IOException
+     */
+    public static String sha256(InputStream in) throws IOException
+    {
+        MessageDigest md;
+        try
+        {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            throw new IOException( nsae.toString() );
+        }
+        byte[] buf = new byte[65536];
+        int len;
+        while ( (len=in.read(buf)) != -1 )
+        {
+            md.update(buf, 0, len);
+        }
+        return toHex( md.digest() );
+    }
+
+    /**
+     * Returns the bytes as a lower case hex string.
+     *
+     * @param b The bytes.
+     * @return String
+     */
+    public static String toHex(byte[] b)
+    {
+        StringBuffer ret = new StringBuffer();
+        for (int i=0; i<b.length; i++)
+        {
+            ret.append( Integer.toHexString((b[i] & 0xff) | 0x100).substring(1) );
+        }
+        return ret.toString();
+    }
+
+    /**
+     * A file in the catalog. Entries are ordered by retrieval time, then name.
+     */
+    public static class Entry implements Comparable
+    {
+        /** When the file was retrieved in milliseconds. */
+        public long time;
+        /** The instruction's remote staged file. */
+        public String instruction;
+        /** The remote server. */
+        public String host;
+        /** The retrieval date as yyyyMMdd. */
+        public String date;
+        /** The file size or -1 if it is not known. */
+        public long size;
+        /** The SHA-256 of the file or "-" if it is not known. */
+        public String sha256;
+        /** The dated file name. */
+        public String name;
+
+        public Entry(long time, String instruction, String host, String date, long size, String sha256, String name)
+        {
+            this.time = time;
+            this.instruction = instruction;
+            this.host = host;
+            this.date = date;
+            this.size = size;
+            this.sha256 = sha256;
+            this.name = name;
+        }
+
+        public int compareTo(Object obj)
+        {
+            Entry e = (Entry)obj;
+            if (time != e.time) return (time < e.time ? -1 : 1);
+            return name.compareTo(e.name);
+        }
+
+        public String toString()
+        {
+            return "A\t"+time+"\t"+instruction+"\t"+host+"\t"+date+"\t"+size+"\t"+sha256+"\t"+name;
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    protected static class CountingInputStream extends FilterInputStream
+    {
+        /** The number of bytes read. */
+        protected long _count = 0;
+
+        protected CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            int ret = super.read();
+            if (ret != -1) _count++;
+            return ret;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int ret = super.read(b, off, len);
+            if (ret > 0) _count += ret;
+            return ret;
+        }
+
+        /**
+         * Returns the number of bytes read.
+         *
+         * @return long
+         */
+        public long getCount()
+        {
+            return _count;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,644 @@
+package com.zitego.backup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the backup manager as a long running process that runs each properties file
+ * on its own schedule instead of being started by cron. It is started with the
+ * -daemon option of BackupManager and the schedule of a properties file is its
+ * run_schedule property (see CronSchedule). Properties files without one use the
+ * -schedule option, or are only run when asked to over the control port.<br>
+ * <br>
+ * The jobs are kept between runs so the properties are not parsed again, the file
+ * retrievers are not created again, and their shared ssh connections, catalogs,
+ * and the background archiver stay open. A properties file is reloaded when it
+ * changes, and the backup list is read again when it changes. A job that is still
+ * running when it is due again is skipped rather than run twice. max_jobs and
+ * max_jobs_per_host limit how many jobs run at the same time.<br>
+ * <br>
+ * A run starts when a job starts while no others are running or queued and ends
+ * when its last job finishes, so jobs that are due at the same time, or are started
+ * while others are still running, are one run. RunMetrics are started fresh for each
+ * run and the reports are written once when it ends.<br>
+ * <br>
+ * If control_port is set, then the daemon listens on that port of 127.0.0.1 for
+ * one line commands:<br>
+ * status - Lists each properties file with its state, next run, and last result.<br>
+ * run [properties file] - Runs the properties file, or all of them, now.<br>
+ * reload - Reloads every properties file.<br>
+ * stop - Waits for the running jobs and exits.<br>
+ * <br>
+ * Example:<br>
+ * echo status | nc 127.0.0.1 7341
+ *
+ * @see BackupManager
+ * @see CronSchedule
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BackupDaemon extends BackupManager
+{
+    /** How often (in milliseconds) the properties files are checked for changes. */
+    public static final long POLL_INTERVAL = 1000;
+    /** The job is waiting for its next run. */
+    public static final String IDLE = "idle";
+    /** The job is waiting for a free slot. */
+    public static final String QUEUED = "queued";
+    /** The job is running. */
+    public static final String RUNNING = "running";
+
+    /** The properties file given with -properties or null. */
+    protected String _propsPath;
+    /** The backup list file or null. */
+    protected String _backupList;
+    /** When the backup list was last modified. */
+    protected long _listModified = -1;
+    /** The schedule of properties files without a run_schedule or null. */
+    protected CronSchedule _defaultSchedule;
+    /** The port to listen for commands on or 0 for none. */
+    protected int _controlPort = 0;
+    /** The control socket. */
+    protected ServerSocket _server;
+    /** Runs the jobs. */
+    protected ExecutorService _pool;
+    /** The scheduled jobs in the order they are listed. */
+    protected Vector _entries = new Vector();
+    /** Whether stop was called. */
+    protected boolean _stopping = false;
+    /** Whether run has returned. */
+    protected boolean _stopped = false;
+    /** Whether a run is in progress. */
+    protected boolean _inRun = false;
+    /** Whether a job of the run in progress failed. */
+    protected boolean _runFailed = false;
+    /** To format times in the status. */
+    protected SimpleDateFormat _timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Creates a new daemon for a properties file and/or a backup list. The backup
+     * list is read when the daemon starts and whenever it changes.
+     *
+     * @param String The properties file path or null.
+     * @param String The backup list path or null.
+     * @throws IOException
+     */
+    public BackupDaemon(String propsPath, String backupList) throws IOException
+    {
+        super( new String[0] );
+        _propsPath = propsPath;
+        _backupList = backupList;
+    }
+
+    /**
+     * Sets the schedule of properties files that do not have a run_schedule.
+     *
+     * @param String The schedule or null to only run them when asked to.
+     * @throws IllegalArgumentException if the schedule is not valid.
+     */
+    public void setDefaultSchedule(String schedule)
+    {
+        _defaultSchedule = (schedule != null ? new CronSchedule(schedule) : null);
+    }
+
+    /**
+     * Sets the port of 127.0.0.1 to listen for commands on.
+     *
+     * @param int The port or 0 for none.
+     */
+    public void setControlPort(int port)
+    {
+        _controlPort = port;
+    }
+
+    /**
+     * Runs the scheduled jobs until stop is called.
+     *
+     * @throws Exception
+     */
+    public void run() throws Exception
+    {
+        _archiver = new BackgroundArchiver(_logger, _purgeFilesPerSec, _purgeBytesPerSec);
+        _archiver.start();
+        _pool = Executors.newFixedThreadPool(_maxJobs);
+        try
+        {
+            startControlServer();
+            _logger.log("Started BackupDaemon with max_jobs="+_maxJobs+", max_jobs_per_host="+_maxJobsPerHost);
+            synchronized (this)
+            {
+                while (!_stopping)
+                {
+                    checkForChanges();
+                    long now = System.currentTimeMillis();
+                    long wake = now + POLL_INTERVAL;
+                    for (int i=0; i<_entries.size(); i++)
+                    {
+                        ScheduledJob entry = (ScheduledJob)_entries.get(i);
+                        if (entry.nextRun > 0 && entry.nextRun <= now)
+                        {
+                            trigger(entry);
+                            entry.nextRun = entry.getSchedule().next(now);
+                        }
+                        if (entry.nextRun > 0) wake = Math.min(wake, entry.nextRun);
+                    }
+                    dispatch();
+                    if (wake > now) wait(wake-now);
+                }
+                _logger.log("Stopping BackupDaemon, waiting for "+_running+" running jobs");
+                while (_running > 0)
+                {
+                    wait();
+                }
+                for (int i=0; i<_entries.size(); i++)
+                {
+                    ((ScheduledJob)_entries.get(i)).close();
+                }
+            }
+        }
+        finally
+        {
+            if (_server != null) _server.close();
+            _pool.shutdown();
+            _archiver.drain();
+            _archiver = null;
+            synchronized (this)
+            {
+                if (_inRun) endRun();
+                _stopped = true;
+                notifyAll();
+            }
+        }
+        _logger.log("Finished BackupDaemon");
+    }
+
+    /**
+     * Stops scheduling jobs. run returns once the running jobs finish.
+     */
+    public synchronized void stop()
+    {
+        _stopping = true;
+        notifyAll();
+    }
+
+    /**
+     * Stops the daemon and waits for run to return.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void stopAndWait() throws InterruptedException
+    {
+        stop();
+        while (!_stopped)
+        {
+            wait();
+        }
+    }
+
+    /**
+     * Reads the backup list again if it changed and reloads the properties files that
+     * changed. A job is only reloaded while it is idle.
+     */
+    protected synchronized void checkForChanges()
+    {
+        if (_backupList != null)
+        {
+            long modified = new File(_backupList).lastModified();
+            if (modified != _listModified)
+            {
+                _listModified = modified;
+                loadBackupList();
+            }
+        }
+        else if (_entries.size() == 0 && _propsPath != null)
+        {
+            _entries.add( new ScheduledJob(_propsPath) );
+        }
+
+        for (int i=0; i<_entries.size(); i++)
+        {
+            ScheduledJob entry = (ScheduledJob)_entries.get(i);
+            if (entry.state != IDLE) continue;
+            if (entry.removed)
+            {
+                _logger.log("Removing "+entry.path);
+                entry.close();
+                _entries.remove(i--);
+            }
+            else if ( entry.isModified() )
+            {
+                entry.load();
+            }
+        }
+    }
+
+    /**
+     * Reads the backup list and adds and removes jobs to match it.
+     */
+    protected void loadBackupList()
+    {
+        Vector paths = new Vector();
+        if (_propsPath != null) paths.add(_propsPath);
+        try
+        {
+            BufferedReader in = new BufferedReader( new FileReader(_backupList) );
+            try
+            {
+                String line = null;
+                while ( (line=in.readLine()) != null )
+                {
+                    line = line.trim();
+                    if (line.length() > 0 && !paths.contains(line)) paths.add(line);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ioe)
+        {
+            _logger.log("*** ERROR *** Could not read "+_backupList+": "+ioe);
+            return;
+        }
+
+        for (int i=0; i<_entries.size(); i++)
+        {
+            ScheduledJob entry = (ScheduledJob)_entries.get(i);
+            entry.removed = !paths.contains(entry.path);
+        }
+        for (int i=0; i<paths.size(); i++)
+        {
+            if (getEntry((String)paths.get(i)) == null) _entries.add( new ScheduledJob((String)paths.get(i)) );
+        }
+    }
+
+    /**
+     * Queues the job to run unless it is already queued or running.
+     *
+     * @param ScheduledJob The job.
+     * @return boolean Whether it was queued.
+     */
+    protected synchronized boolean trigger(ScheduledJob entry)
+    {
+        if (entry.job == null)
+        {
+            _logger.log("*** WARNING *** Not running "+entry.path+", it could not be loaded: "+entry.lastResult);
+            return false;
+        }
+        if (entry.state != IDLE)
+        {
+            _logger.log("*** WARNING *** Not running "+entry.path+", it is still "+entry.state);
+            return false;
+        }
+        entry.state = QUEUED;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Starts the queued jobs that fit within max_jobs and max_jobs_per_host.
+     */
+    protected synchronized void dispatch()
+    {
+        for (int i=0; i<_entries.size() && _running<_maxJobs; i++)
+        {
+            ScheduledJob entry = (ScheduledJob)_entries.get(i);
+            if (entry.state != QUEUED) continue;
+            String host = entry.job.getRemoteServer();
+            if (getRunningCount(host) >= _maxJobsPerHost) continue;
+            if (!_inRun) startRun();
+            _runningByHost.put( host, Integer.valueOf(getRunningCount(host)+1) );
+            _running++;
+            entry.state = RUNNING;
+            entry.lastStart = System.currentTimeMillis();
+            _pool.execute( new JobRunner(entry.job) );
+        }
+    }
+
+    protected synchronized void jobFinished(BackupJob job, Throwable t)
+    {
+        //Failures are kept with each job instead of being collected for the run
+        if (t != null) logFailure(job.getPropertiesPath(), "job", t);
+        super.jobFinished(job, null);
+        _failures.clear();
+        for (int i=0; i<_entries.size(); i++)
+        {
+            ScheduledJob entry = (ScheduledJob)_entries.get(i);
+            if (entry.job != job) continue;
+            entry.state = IDLE;
+            entry.lastEnd = System.currentTimeMillis();
+            entry.runs++;
+            if (t != null) entry.failures++;
+            entry.lastResult = (t != null ? "failed: "+t : "ok");
+        }
+        if (t != null) _runFailed = true;
+        if ( _running == 0 && (_stopping || !hasQueued()) ) endRun();
+    }
+
+    /**
+     * Starts a run, clearing the metrics of the last one.
+     */
+    protected synchronized void startRun()
+    {
+        _inRun = true;
+        _runFailed = false;
+        RunMetrics.getInstance().start();
+        _logger.log("Starting run");
+    }
+
+    /**
+     * Ends the run and writes its metrics to the report files.
+     */
+    protected synchronized void endRun()
+    {
+        _inRun = false;
+        RunMetrics metrics = RunMetrics.getInstance();
+        metrics.end(!_runFailed);
+        writeReports(metrics);
+        _logger.log( "Finished run"+(_runFailed ? " with failures" : "") );
+    }
+
+    /**
+     * Returns whether any job is waiting for a free slot.
+     *
+     * @return boolean
+     */
+    protected synchronized boolean hasQueued()
+    {
+        for (int i=0; i<_entries.size(); i++)
+        {
+            if ( ((ScheduledJob)_entries.get(i)).state == QUEUED ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the scheduled job for the properties file or null if there is none.
+     *
+     * @param String The properties file path.
+     * @return ScheduledJob
+     */
+    protected synchronized ScheduledJob getEntry(String path)
+    {
+        for (int i=0; i<_entries.size(); i++)
+        {
+            ScheduledJob entry = (ScheduledJob)_entries.get(i);
+            if ( entry.path.equals(path) ) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Starts the thread that listens for commands on the control port.
+     *
+     * @throws IOException if the port cannot be opened.
+     */
+    protected void startControlServer() throws IOException
+    {
+        if (_controlPort <= 0) return;
+        _server = new ServerSocket( _controlPort, 10, InetAddress.getByName("127.0.0.1") );
+        Thread thread = new Thread("BackupDaemon control")
+        {
+            public void run()
+            {
+                while ( !_server.isClosed() )
+                {
+                    try
+                    {
+                        Socket socket = _server.accept();
+                        try
+                        {
+                            socket.setSoTimeout(10000);
+                            handleCommand(socket);
+                        }
+                        finally
+                        {
+                            socket.close();
+                        }
+                    }
+                    catch (IOException ioe)
+                    {
+                        if ( !_server.isClosed() ) _logger.log("*** WARNING *** Control connection failed: "+ioe);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        _logger.log("Listening for commands on 127.0.0.1:"+_controlPort);
+    }
+
+    /**
+     * Reads one command from the socket and writes the response.
+     *
+     * @param Socket The socket.
+     * @throws IOException
+     */
+    protected void handleCommand(Socket socket) throws IOException
+    {
+        BufferedReader in = new BufferedReader( new InputStreamReader(socket.getInputStream(), "UTF-8") );
+        PrintWriter out = new PrintWriter( new OutputStreamWriter(socket.getOutputStream(), "UTF-8") );
+        String line = in.readLine();
+        if (line == null) return;
+        line = line.trim();
+        String cmd = line;
+        String arg = null;
+        int space = line.indexOf(' ');
+        if (space != -1)
+        {
+            cmd = line.substring(0, space);
+            arg = line.substring(space+1).trim();
+        }
+        _logger.log("Control command: "+line);
+
+        if ( "status".equals(cmd) )
+        {
+            printStatus(out);
+        }
+        else if ( "run".equals(cmd) )
+        {
+            synchronized (this)
+            {
+                if (arg != null && getEntry(arg) == null)
+                {
+                    out.println("unknown "+arg);
+                }
+                for (int i=0; i<_entries.size(); i++)
+                {
+                    ScheduledJob entry = (ScheduledJob)_entries.get(i);
+                    if (arg != null && !entry.path.equals(arg)) continue;
+                    out.println( (trigger(entry) ? "queued " : "not queued ("+entry.state+") ")+entry.path );
+                }
+            }
+        }
+        else if ( "reload".equals(cmd) )
+        {
+            synchronized (this)
+            {
+                _listModified = -1;
+                for (int i=0; i<_entries.size(); i++)
+                {
+                    ((ScheduledJob)_entries.get(i)).modified = -1;
+                }
+                notifyAll();
+            }
+            out.println("reloading");
+        }
+        else if ( "stop".equals(cmd) )
+        {
+            stop();
+            out.println("stopping");
+        }
+        else
+        {
+            out.println("unknown command "+cmd);
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the state of each job.
+     *
+     * @param PrintWriter The writer.
+     */
+    protected synchronized void printStatus(PrintWriter out)
+    {
+        out.println
+        (
+            "running="+_running+" jobs="+_entries.size()+" archiver_queue="+(_archiver != null ? _archiver.getQueueSize() : 0)+
+            (_stopping ? " stopping" : "")
+        );
+        for (int i=0; i<_entries.size(); i++)
+        {
+            ScheduledJob entry = (ScheduledJob)_entries.get(i);
+            CronSchedule schedule = entry.getSchedule();
+            out.println
+            (
+                entry.path+" state="+entry.state+
+                " schedule="+(schedule != null ? schedule.toString().replace(' ', '_') : "none")+
+                " next="+formatTime(entry.nextRun)+
+                " last_start="+formatTime(entry.lastStart)+
+                " last_ms="+(entry.lastEnd >= entry.lastStart && entry.lastStart > 0 ? entry.lastEnd-entry.lastStart : 0)+
+                " runs="+entry.runs+" failures="+entry.failures+
+                " last_result="+(entry.lastResult != null ? entry.lastResult : "-")
+            );
+        }
+    }
+
+    /**
+     * Formats a time for the status or returns - if there is none.
+     *
+     * @param long The time in milliseconds.
+     * @return String
+     */
+    protected String formatTime(long time)
+    {
+        if (time <= 0) return "-";
+        synchronized (_timeFormat)
+        {
+            return _timeFormat.format( new Date(time) ).replace(' ', 'T');
+        }
+    }
+
+    /**
+     * A properties file and the job loaded from it.
+     */
+    protected class ScheduledJob
+    {
+        /** The properties file path. */
+        protected String path;
+        /** The job or null if it could not be loaded. */
+        protected BackupJob job;
+        /** When the properties file was last modified when it was loaded. */
+        protected long modified = -1;
+        /** The next time the job runs or -1 if it is not scheduled. */
+        protected long nextRun = -1;
+        /** IDLE, QUEUED, or RUNNING. */
+        protected String state = IDLE;
+        /** Whether the properties file was removed from the backup list. */
+        protected boolean removed = false;
+        /** When the last run started. */
+        protected long lastStart = 0;
+        /** When the last run ended. */
+        protected long lastEnd = 0;
+        /** The result of the last run or load. */
+        protected String lastResult;
+        /** The number of runs. */
+        protected int runs = 0;
+        /** The number of failed runs. */
+        protected int failures = 0;
+
+        protected ScheduledJob(String path)
+        {
+            this.path = path;
+        }
+
+        /**
+         * Returns whether the properties file changed since it was loaded.
+         *
+         * @return boolean
+         */
+        protected boolean isModified()
+        {
+            return ( new File(path).lastModified() != modified );
+        }
+
+        /**
+         * Loads the job from the properties file, replacing the current one.
+         */
+        protected void load()
+        {
+            boolean reload = (modified != -1 || job != null);
+            modified = new File(path).lastModified();
+            close();
+            job = null;
+            try
+            {
+                job = createJob(path);
+                job.setKeepSession(true);
+                lastResult = (reload ? "reloaded" : null);
+            }
+            catch (Exception e)
+            {
+                lastResult = "load failed: "+e;
+                _logger.log("*** ERROR *** Could not load "+path+": "+e);
+            }
+            CronSchedule schedule = getSchedule();
+            nextRun = (job != null && schedule != null ? schedule.next( System.currentTimeMillis() ) : -1);
+            _logger.log( (reload ? "Reloaded " : "Loaded ")+path+", next run at "+formatTime(nextRun) );
+        }
+
+        /**
+         * Returns the schedule of the job or null if it is not scheduled.
+         *
+         * @return CronSchedule
+         */
+        protected CronSchedule getSchedule()
+        {
+            CronSchedule ret = (job != null ? job.getRunSchedule() : null);
+            return (ret != null ? ret : _defaultSchedule);
+        }
+
+        /**
+         * Closes the job's retriever session.
+         */
+        protected void close()
+        {
+            if (job != null) job.close();
+        }
+    }
+}
\ No newline at end of file
@@ -1,79 +1,337 @@
-package com.zitego.backup;
-
-import java.util.Vector;
-
-/**
- * Stores the properties of each instruction. The property string must include
- * remote_staged_file, prep_script, and args.<br>
- * Example:<br>
- * remote_staged_file=photos.tgz,\<br>
- * prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
- * arg=/home/httpd/domains/penwrights.com/images/photos,\<br>
- * arg=photos.tgz
- *
- * @author John Glorioso
- * @version $Id: BackupInstruction.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
- */
-public class BackupInstruction
-{
-    /** The name of the staged file to retrieve. */
-    public String remoteStagedFile;
-    /** The prep script to run. */
-    public String prepScript;
-    /** The acript arguments. */
-    public String[] args;
-
-    /**
-     * Creates a backup instruction with a remote staged file, a prep script (can
-     * be null), and prep script arguments (can be null).
-     *
-     * @param file The remote file to retrieve.
-     * @param script The prep script.
-     * @param args The prep script args.
-     */
-    public BackupInstruction(String file, String script, String[] args)
-    {
-        this.remoteStagedFile = file;
-        this.prepScript = script;
-        this.args = args;
-    }
-
-    /**
-     * Creates a new backup instruction by parsing the properties
-     * String that comes in.
-     *
-     * @param props The properties.
-     */
-    public BackupInstruction(String props)
-    {
-        String tokens[] = props.split(",");
-        if (tokens != null)
-        {
-            Vector tmp = new Vector();
-            for (int i=0; i<tokens.length; i++)
-            {
-                String token[] = tokens[i].split("=");
-                if ( token[0].equals("remote_staged_file") ) remoteStagedFile = token[1];
-                else if (token[0].equals("prep_script") ) prepScript = token[1];
-                else if (token[0].equals("arg") ) tmp.add(token[1]);
-               }
-               args = new String[tmp.size()];
-               tmp.copyInto(args);
-           }
-    }
-
-    public String toString()
-    {
-        StringBuffer ret = new StringBuffer()
-            .append("[com.zitego.BackupInstruction:")
-            .append( " remoteStagedFile=").append(remoteStagedFile)
-            .append( " prepScript=").append(prepScript)
-            .append( " args:");
-        for (int i=0; i<args.length; i++)
-        {
-            ret.append(" ").append(args[i]);
-        }
-        ret.append("]");
-        return ret.toString();
-    }
+package com.zitego.backup;
+
+import java.util.Calendar;
+import java.util.Vector;
+
+/**
+ * Stores the properties of each instruction. The property string must include
+ * remote_staged_file, prep_script, and args.<br>
+ * Example:<br>
+ * remote_staged_file=photos.tgz,\<br>
+ * prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
+ * arg=/home/httpd/domains/penwrights.com/images/photos,\<br>
+ * arg=photos.tgz<br>
+ * <br>
+ * A database dump instruction has dump_cmd instead of prep_script. The dump command
+ * is run with the args and must write the dump to standard out, which is gzipped on
+ * the backup host as it arrives and written straight into the dated local file named
+ * after remote_staged_file. Nothing is staged. If the name does not end in .gz, then
+ * the dump is not compressed. The properties are:<br>
+ * dump_cmd - The dump command. It is run on the remote server by the ssh retrievers and
+ *            on the backup host by LocalFileRetriever.<br>
+ * dump_part - A table or schema to dump separately. It is added as the last argument of
+ *             its own run of the dump command. Give it once for each part (optional).<br>
+ * dump_threads - The number of parts to dump at the same time. Each part is its own
+ *                gzip member and they are written in the order they are given. Defaults
+ *                to 1 (optional).<br>
+ * Example:<br>
+ * remote_staged_file=db.sql.gz,\<br>
+ * dump_cmd=/usr/bin/mysqldump,\<br>
+ * arg=--single-transaction,\<br>
+ * arg=penwrights,\<br>
+ * dump_part=users,\<br>
+ * dump_part=orders,\<br>
+ * dump_threads=2<br>
+ * <br>
+ * An archive instruction has source_dir instead of prep_script. The directory must be
+ * on the backup host or mounted there. It is written as a tar by a TarArchiver into
+ * the dated local file named after remote_staged_file, gzipped on the way if the name
+ * ends in .tgz or .gz, so nothing is staged and tar is not run. The properties are:<br>
+ * source_dir - The directory to archive.<br>
+ * source_threads - The number of threads that read the directory ahead of the writer.
+ *                  Defaults to one per core (optional).<br>
+ * Example:<br>
+ * remote_staged_file=photos.tgz,\<br>
+ * source_dir=/mnt/penwrights/images/photos,\<br>
+ * source_threads=8<br>
+ * <br>
+ * Any instruction other than a dump can skip what has not changed since its last
+ * backup. Before the prep script is run, find lists change_dir and the list is
+ * compared with the change manifest of the last dated file. If nothing changed, the
+ * prep script is not run and the last file is stored again under today's name as a
+ * hard link (or dedup recipe) of it. If some files changed, only they are archived
+ * as an incremental backup on top of the last one, by tar on the server with
+ * change_dir or by a TarArchiver for an archive instruction. The properties are:<br>
+ * change_mode - skip to only skip unchanged backups or incremental to also take
+ *               incremental backups (optional).<br>
+ * change_dir - The directory the prep script archives, on the remote server for the
+ *              ssh retrievers. Defaults to source_dir for an archive instruction.<br>
+ * change_inodes - Whether a file whose inode changed has changed even if its size and
+ *                 time are the same. Defaults to false (optional).<br>
+ * max_incrementals - The number of incremental backups after a full one before the
+ *                    next full backup. Defaults to 6 (optional).<br>
+ * Example:<br>
+ * remote_staged_file=logs.tgz,\<br>
+ * prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
+ * arg=/home/httpd/domains/penwrights.com/logs,\<br>
+ * arg=logs.tgz,\<br>
+ * change_mode=incremental,\<br>
+ * change_dir=/home/httpd/domains/penwrights.com/logs<br>
+ * <br>
+ * When several properties files are run at the same time, a RunScheduler starts the
+ * ones predicted to take longest first. Any instruction can change that order with:<br>
+ * priority - Instructions and properties files with a higher priority are started
+ *            first. Defaults to 0 (optional).<br>
+ * finish_by - The time of day (HH:mm) the instruction should be finished by. Its
+ *             properties file is started early enough to finish by then if it can be
+ *             and it is run before the instructions of its file without one (optional).<br>
+ * Example:<br>
+ * remote_staged_file=db.sql.gz,\<br>
+ * dump_cmd=/usr/bin/mysqldump,\<br>
+ * arg=penwrights,\<br>
+ * finish_by=06:00
+ *
+ * @see FileRetriever#dumpToFile(BackupInstruction, java.io.File)
+ * @see FileRetriever#archiveToFile(BackupInstruction, java.io.File)
+ * @see ChangeManifest
+ * @see RunScheduler
+ * @author John Glorioso
+ * @version $Id: BackupInstruction.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
+ */
+public class BackupInstruction
+{
+    /** The name of the staged file to retrieve. */
+    public String remoteStagedFile;
+    /** Unchanged backups are stored again under today's name. */
+    public static final String SKIP = "skip";
+    /** Unchanged backups are skipped and changed ones are incremental. */
+    public static final String INCREMENTAL = "incremental";
+
+    /** The prep script to run. */
+    public String prepScript;
+    /** The acript arguments. */
+    public String[] args;
+    /** The time (in milliseconds) the instruction must finish by or 0 for none. */
+    public long deadline = 0;
+    /** The database dump command or null if this is not a dump. */
+    public String dumpCommand;
+    /** The tables or schemas to dump separately. */
+    public String[] dumpParts = new String[0];
+    /** The number of parts to dump at the same time. */
+    public int dumpThreads = 1;
+    /** The directory to archive or null if this is not an archive. */
+    public String sourceDir;
+    /** The number of threads that read the directory or 0 for one per core. */
+    public int sourceThreads = 0;
+    /** skip, incremental, or null if changes are not checked. */
+    public String changeMode;
+    /** The directory whose changes are checked. */
+    public String changeDir;
+    /** Whether inodes are compared when checking changes. */
+    public boolean changeInodes = false;
+    /** The number of incremental backups between full backups. */
+    public int maxIncrementals = 6;
+    /** Instructions with a higher priority are started first. */
+    public int priority = 0;
+    /** The minute of the day the instruction should be finished by or -1 for none. */
+    public int finishBy = -1;
+
+    /**
+     * Creates a backup instruction with a remote staged file, a prep script (can
+     * be null), and prep script arguments (can be null).
+     *
+     * @param file The remote file to retrieve.
+     * @param script The prep script.
+     * @param args The prep script args.
+     */
+    public BackupInstruction(String file, String script, String[] args)
+    {
+        this.remoteStagedFile = file;
+        this.prepScript = script;
+        this.args = args;
+    }
+
+    /**
+     * Creates a new backup instruction by parsing the properties
+     * String that comes in.
+     *
+     * @param props The properties.
+     */
+    public BackupInstruction(String props)
+    {
+        String tokens[] = props.split(",");
+        if (tokens != null)
+        {
+            Vector tmp = new Vector();
+            Vector parts = new Vector();
+            for (int i=0; i<tokens.length; i++)
+            {
+                //Dump arguments such as --defaults-extra-file=path can have an =
+                String token[] = tokens[i].split("=", 2);
+                if ( token[0].equals("remote_staged_file") ) remoteStagedFile = token[1];
+                else if (token[0].equals("prep_script") ) prepScript = token[1];
+                else if (token[0].equals("arg") ) tmp.add(token[1]);
+                else if (token[0].equals("dump_cmd") ) dumpCommand = token[1];
+                else if (token[0].equals("dump_part") ) parts.add(token[1]);
+                else if (token[0].equals("dump_threads") ) dumpThreads = Math.max( 1, Integer.parseInt(token[1].trim()) );
+                else if (token[0].equals("source_dir") ) sourceDir = token[1];
+                else if (token[0].equals("source_threads") ) sourceThreads = Integer.parseInt( token[1].trim() );
+                else if (token[0].equals("change_mode") ) changeMode = parseChangeMode( token[1].trim() );
+                else if (token[0].equals("change_dir") ) changeDir = token[1];
+                else if (token[0].equals("change_inodes") ) changeInodes = "true".equalsIgnoreCase( token[1].trim() );
+                else if (token[0].equals("max_incrementals") ) maxIncrementals = Integer.parseInt( token[1].trim() );
+                else if (token[0].equals("priority") ) priority = Integer.parseInt( token[1].trim() );
+                else if (token[0].equals("finish_by") ) finishBy = parseTimeOfDay( token[1].trim() );
+               }
+               args = new String[tmp.size()];
+               tmp.copyInto(args);
+               dumpParts = new String[parts.size()];
+               parts.copyInto(dumpParts);
+           }
+    }
+
+    /**
+     * Returns whether this is a database dump instruction.
+     *
+     * @return boolean
+     */
+    public boolean isDump()
+    {
+        return (dumpCommand != null);
+    }
+
+    /**
+     * Returns whether this is an archive instruction.
+     *
+     * @return boolean
+     */
+    public boolean isArchive()
+    {
+        return (sourceDir != null);
+    }
+
+    /**
+     * Returns whether changes since the last backup are checked. Dumps are always
+     * taken in full.
+     *
+     * @return boolean
+     */
+    public boolean isChangeChecked()
+    {
+        return ( changeMode != null && !isDump() && getChangeDir() != null );
+    }
+
+    /**
+     * Returns whether only the changed files are archived when some have changed.
+     *
+     * @return boolean
+     */
+    public boolean isIncremental()
+    {
+        return INCREMENTAL.equals(changeMode);
+    }
+
+    /**
+     * Returns the directory whose changes are checked or null if there is none.
+     *
+     * @return String
+     */
+    public String getChangeDir()
+    {
+        return (changeDir != null ? changeDir : sourceDir);
+    }
+
+    /**
+     * Returns whether the file is staged on the remote server by a prep script. Dumps
+     * and archives are written straight into the local file instead.
+     *
+     * @return boolean
+     */
+    public boolean isStaged()
+    {
+        return ( !isDump() && !isArchive() );
+    }
+
+    /**
+     * Returns the first time (in milliseconds) at or after the time that is the
+     * instruction's finish_by or 0 if it has none.
+     *
+     * @param now The time.
+     * @return long
+     */
+    public long getFinishBy(long now)
+    {
+        if (finishBy < 0) return 0;
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(now);
+        cal.set(Calendar.HOUR_OF_DAY, finishBy/60);
+        cal.set(Calendar.MINUTE, finishBy%60);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        if (cal.getTimeInMillis() < now) cal.add(Calendar.DAY_OF_MONTH, 1);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Returns the change mode if it is skip or incremental.
+     *
+     * @param mode The change mode.
+     * @return String
+     * @throws IllegalArgumentException if the mode is not valid.
+     */
+    protected static String parseChangeMode(String mode)
+    {
+        if ( !SKIP.equals(mode) && !INCREMENTAL.equals(mode) ) throw new IllegalArgumentException("Invalid change_mode: "+mode);
+        return mode;
+    }
+
+    /**
+     * Returns the minute of the day of a time of day in the format HH:mm.
+     *
+     * @param time The time of day.
+     * @return int
+     * @throws IllegalArgumentException if the time is not valid.
+     */
+    protected static int parseTimeOfDay(String time)
+    {
+        String[] fields = time.split(":");
+        int hour = -1;
+        int minute = -1;
+        try
+        {
+            if (fields.length == 2)
+            {
+                hour = Integer.parseInt(fields[0]);
+                minute = Integer.parseInt(fields[1]);
+            }
+        }
+        catch (NumberFormatException nfe) { }
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59) throw new IllegalArgumentException("finish_by is not HH:mm: "+time);
+        return hour*60 + minute;
+    }
+
+    public String toString()
+    {
+        StringBuffer ret = new StringBuffer()
+            .append("[com.zitego.BackupInstruction:")
+            .append( " remoteStagedFile=").append(remoteStagedFile)
+            .append( " prepScript=").append(prepScript)
+            .append( " args:");
+        for (int i=0; i<args.length; i++)
+        {
+            ret.append(" ").append(args[i]);
+        }
+        if ( isDump() )
+        {
+            ret.append(" dumpCommand=").append(dumpCommand).append(" dumpParts:");
+            for (int i=0; i<dumpParts.length; i++)
+            {
+                ret.append(" ").append(dumpParts[i]);
+            }
+            ret.append(" dumpThreads=").append(dumpThreads);
+        }
+        if ( isArchive() ) ret.append(" sourceDir=").append(sourceDir).append(" sourceThreads=").append(sourceThreads);
+        if (changeMode != null)
+        {
+            ret.append(" changeMode=").append(changeMode).append(" changeDir=").append( getChangeDir() )
+                .append(" changeInodes=").append(changeInodes).append(" maxIncrementals=").append(maxIncrementals);
+        }
+        if (priority != 0) ret.append(" priority=").append(priority);
+        if (finishBy >= 0)
+        {
+            ret.append(" finishBy=").append(finishBy/60).append(":").append( (finishBy%60 < 10 ? "0" : "") ).append(finishBy%60);
+        }
+        ret.append("]");
+        return ret.toString();
+    }
 }
\ No newline at end of file
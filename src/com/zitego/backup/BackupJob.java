@@ -0,0 +1,508 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.Vector;
+import java.io.FileInputStream;
+
+/**
+ * A single backup job. A job is created for each properties file given to the
+ * backup manager and holds its own backup instructions, file retriever, and
+ * archive schedule so that jobs for different properties files can be run at
+ * the same time.<br>
+ * <br>
+ * A properties file can also specify pipeline_depth. When it is greater then 1, the
+ * prepare, copy, and clean stages of different instructions are run at the same
+ * time with up to pipeline_depth instructions staged on the remote server at once.<br>
+ * <br>
+ * Transfers are limited by the process wide TransferThrottle, which is set from the
+ * -bandwidth_file of the BackupManager rather than from each properties file.<br>
+ * <br>
+ * If the job has a background archiver, then the archive schedule is handed to it
+ * instead of being run before the job returns.<br>
+ * <br>
+ * The time each stage takes is recorded in RunMetrics labeled with the properties
+ * file path. How long each instruction and the whole job took is added to the
+ * RunHistory of the local backup directory.<br>
+ * <br>
+ * The instructions with the highest priority are run first, then the ones with the
+ * earliest finish_by. The rest are run in the order they are numbered.<br>
+ * <br>
+ * run_schedule is a cron style schedule of when a BackupDaemon runs the job. See
+ * CronSchedule.<br>
+ * <br>
+ * If the job has a RunJournal, then the state each instruction reaches is recorded
+ * in it. When an interrupted run is continued, the instructions that were cleaned are
+ * skipped, the ones that were verified are only cleaned, and what the rest left in
+ * the local backup directory is deleted before they are retrieved again. A job that
+ * was archived is skipped.
+ *
+ * @see RetrievalPipeline
+ * @see TransferThrottle
+ * @see RunMetrics
+ * @see RunHistory
+ * @see RunJournal
+ * @see BackupDaemon
+ * @see BackupManager
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BackupJob
+{
+    /** The path to the properties file. */
+    protected String _propsPath;
+    /** The instructions for what to backup. */
+    protected BackupInstruction[] _instructions;
+    /** The archive schedule. */
+    protected ArchiveSchedule _schedule;
+    /** To handle retrieving files. */
+    protected FileRetriever _retriever;
+    /** To handle logging progress. */
+    protected Logger _logger;
+    /** The number of instructions that can be staged at once. */
+    protected int _pipelineDepth = 1;
+    /** The background archiver to archive with or null to archive before returning. */
+    protected BackgroundArchiver _archiver;
+    /** When a daemon runs the job or null if it is not scheduled. */
+    protected CronSchedule _runSchedule;
+    /** Whether the retriever's session is kept open between runs. */
+    protected boolean _keepSession = false;
+    /** Whether the retriever's session is open. */
+    protected boolean _sessionOpen = false;
+    /** The journal of the run or null if the run is not journaled. */
+    protected RunJournal _journal;
+
+    /**
+     * Creates a new backup job for the properties file path.
+     *
+     * @param String The properties file path.
+     * @param Logger The logger.
+     */
+    public BackupJob(String propsPath, Logger logger)
+    {
+        _propsPath = propsPath;
+        _logger = logger;
+    }
+
+    /**
+     * Creates the backup instructions, file retriever, and archive schedule from
+     * the properties file.
+     *
+     * @throws Exception
+     */
+    public void initialize() throws Exception
+    {
+        _logger.log("");
+        _logger.log("Loading backup instructions for "+_propsPath);
+
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream(_propsPath);
+        try
+        {
+            props.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        Vector tmp = new Vector();
+        int count = 0;
+        String prop = null;
+        while ( (prop=props.getProperty("instruction_"+count++)) != null )
+        {
+            tmp.add( new BackupInstruction(prop) );
+        }
+        _instructions = new BackupInstruction[tmp.size()];
+        tmp.copyInto(_instructions);
+
+        String depth = props.getProperty("pipeline_depth");
+        if (depth != null) _pipelineDepth = Integer.parseInt( depth.trim() );
+
+        String schedule = props.getProperty("run_schedule");
+        if (schedule != null)
+        {
+            _runSchedule = new CronSchedule(schedule);
+            _logger.log("run_schedule="+_runSchedule);
+        }
+
+        _logger.log("Creating FileRetriever");
+        _retriever = createFileRetriever( props.getProperty("file_retriever"), _logger );
+        _retriever.setJobName(_propsPath);
+        _retriever.setThrottle( TransferThrottle.getInstance() );
+        if (props.getProperty("bandwidth") != null)
+        {
+            _logger.log("*** WARNING *** Ignoring bandwidth in "+_propsPath+", bandwidth limits are set with -bandwidth_file");
+        }
+
+        _logger.log("Creating Archive Schedule");
+        _schedule = new ArchiveSchedule(props.getProperty("archive_schedule"), _instructions, _logger);
+        _schedule.setJobName(_propsPath);
+    }
+
+    /**
+     * Runs the backup instructions to retrieve and archive the specified files.
+     *
+     * @throws Exception
+     */
+    public void run() throws Exception
+    {
+        String localBackupDir = _retriever.getLocalBackupDir();
+        if ( isFinished() )
+        {
+            _logger.log("Skipping "+_propsPath+" since it finished before the run was interrupted");
+            return;
+        }
+        if (_archiver != null) _archiver.watch(_schedule, localBackupDir);
+        _logger.log("Retrieving files for "+_propsPath);
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        boolean resumed = false;
+        if (!_sessionOpen)
+        {
+            _retriever.beginSession();
+            _sessionOpen = true;
+        }
+        try
+        {
+            BackupInstruction[] instr = getRunOrder(start);
+            if ( _journal != null && _journal.isResumed() )
+            {
+                instr = resume(instr);
+                resumed = true;
+            }
+            if (_pipelineDepth > 1)
+            {
+                new RetrievalPipeline(_retriever, _pipelineDepth, _logger).retrieveFiles(instr);
+            }
+            else
+            {
+                for (int i=0; i<instr.length; i++)
+                {
+                    retrieveFile(instr[i]);
+                }
+            }
+            success = true;
+        }
+        finally
+        {
+            if (!_keepSession) close();
+            if (_archiver != null) _archiver.unwatch(_schedule, localBackupDir);
+            RunMetrics.getInstance().record(_retriever, null, "job", start, success);
+            //A continued job only did part of the work, so it is kept out of the run history
+            _retriever.instructionFinished(null, System.currentTimeMillis()-start, success && !resumed);
+        }
+        if (_archiver != null)
+        {
+            _archiver.submit(_schedule, localBackupDir);
+        }
+        else
+        {
+            _logger.log("Archiving "+_propsPath);
+            _schedule.archive(localBackupDir);
+        }
+    }
+
+    /**
+     * Retrieves the file for the instruction one stage at a time so each stage is
+     * timed. This does the same as FileRetriever.retrieveFile.
+     *
+     * @param BackupInstruction The instruction.
+     * @throws FileRetrievalException
+     */
+    protected void retrieveFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        RunMetrics metrics = RunMetrics.getInstance();
+        long first = System.currentTimeMillis();
+        long start = first;
+        boolean copied = false;
+        try
+        {
+            boolean success = false;
+            try
+            {
+                _retriever.prepareFile(instr);
+                success = true;
+            }
+            finally
+            {
+                metrics.record(_retriever, instr, "prep", start, success);
+            }
+            _retriever.journal(instr, RunJournal.PREPPED);
+            start = System.currentTimeMillis();
+            success = false;
+            try
+            {
+                _retriever.journal(instr, RunJournal.TRANSFERRING);
+                _retriever.copyFile(instr);
+                success = true;
+                copied = true;
+            }
+            finally
+            {
+                metrics.record(_retriever, instr, "copy", start, success);
+            }
+        }
+        finally
+        {
+            start = System.currentTimeMillis();
+            boolean success = false;
+            try
+            {
+                _retriever.cleanFile(instr);
+                success = true;
+            }
+            finally
+            {
+                metrics.record(_retriever, instr, "clean", start, success);
+                _retriever.instructionFinished(instr, System.currentTimeMillis()-first, copied && success);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the job finished before the run it is continuing was
+     * interrupted: every instruction was cleaned and the job was archived.
+     *
+     * @return boolean
+     */
+    protected boolean isFinished()
+    {
+        if ( _journal == null || !_journal.isResumed() ) return false;
+        if ( !RunJournal.ARCHIVED.equals(_journal.getJobState(_propsPath)) ) return false;
+        for (int i=0; i<_instructions.length; i++)
+        {
+            if ( !RunJournal.isAtLeast(_retriever.getJournalState(_instructions[i]), RunJournal.CLEANED) ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the instructions that still have to be retrieved when an interrupted run
+     * is continued. Instructions that were cleaned are skipped and the ones that were
+     * verified are cleaned. What the others left in the local backup directory is
+     * deleted.
+     *
+     * @param BackupInstruction[] The instructions in the order they are run.
+     * @return BackupInstruction[]
+     * @throws FileRetrievalException if a verified instruction cannot be cleaned.
+     */
+    protected BackupInstruction[] resume(BackupInstruction[] instr) throws FileRetrievalException
+    {
+        Vector tmp = new Vector();
+        for (int i=0; i<instr.length; i++)
+        {
+            String state = _retriever.getJournalState(instr[i]);
+            if ( RunJournal.isAtLeast(state, RunJournal.CLEANED) )
+            {
+                _logger.log("Skipping "+instr[i].remoteStagedFile+" since it was retrieved before the run was interrupted");
+            }
+            else if ( RunJournal.isAtLeast(state, RunJournal.VERIFIED) )
+            {
+                _logger.log("Cleaning "+instr[i].remoteStagedFile+" which was retrieved before the run was interrupted");
+                long start = System.currentTimeMillis();
+                boolean success = false;
+                try
+                {
+                    _retriever.cleanFile(instr[i]);
+                    success = true;
+                }
+                finally
+                {
+                    RunMetrics.getInstance().record(_retriever, instr[i], "clean", start, success);
+                }
+                _retriever.journal(instr[i], RunJournal.CLEANED);
+            }
+            else
+            {
+                if (state != null) _logger.log("Retrieving "+instr[i].remoteStagedFile+" again since it was "+state+" when the run was interrupted");
+                _retriever.removeIncomplete(instr[i]);
+                tmp.add(instr[i]);
+            }
+        }
+        BackupInstruction[] ret = new BackupInstruction[tmp.size()];
+        tmp.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Returns the instructions in the order they are run: highest priority first,
+     * then earliest finish_by, then in the order they are numbered.
+     *
+     * @param long The time the run starts, that finish_by is measured from.
+     * @return BackupInstruction[]
+     */
+    public BackupInstruction[] getRunOrder(final long now)
+    {
+        BackupInstruction[] ret = _instructions.clone();
+        //The sort is stable so the rest keep their numbered order
+        Arrays.sort
+        (
+            ret,
+            new Comparator()
+            {
+                public int compare(Object a, Object b)
+                {
+                    BackupInstruction x = (BackupInstruction)a;
+                    BackupInstruction y = (BackupInstruction)b;
+                    if (x.priority != y.priority) return (x.priority > y.priority ? -1 : 1);
+                    long xf = x.getFinishBy(now);
+                    long yf = y.getFinishBy(now);
+                    if (xf == yf) return 0;
+                    if (xf == 0 || yf == 0) return (xf == 0 ? 1 : -1);
+                    return (xf < yf ? -1 : 1);
+                }
+            }
+        );
+        return ret;
+    }
+
+    /**
+     * Sets whether the retriever's session (such as a shared ssh connection) is kept
+     * open between runs. If it is, then close must be called when the job is no
+     * longer needed.
+     *
+     * @param boolean Whether to keep the session open.
+     */
+    public void setKeepSession(boolean keep)
+    {
+        _keepSession = keep;
+    }
+
+    /**
+     * Ends the retriever's session if it is open.
+     */
+    public void close()
+    {
+        if (!_sessionOpen) return;
+        _sessionOpen = false;
+        _retriever.endSession();
+    }
+
+    /**
+     * Returns when a daemon runs the job or null if it is not scheduled.
+     *
+     * @return CronSchedule
+     */
+    public CronSchedule getRunSchedule()
+    {
+        return _runSchedule;
+    }
+
+    /**
+     * Sets the background archiver to hand the archive schedule to.
+     *
+     * @param BackgroundArchiver The archiver or null to archive before run returns.
+     */
+    public void setArchiver(BackgroundArchiver archiver)
+    {
+        _archiver = archiver;
+    }
+
+    /**
+     * Sets the journal that the run is recorded in. It is shared with the file
+     * retriever and archive schedule.
+     *
+     * @param RunJournal The journal or null if the run is not journaled.
+     */
+    public void setJournal(RunJournal journal)
+    {
+        _journal = journal;
+        _retriever.setJournal(journal);
+        _schedule.setJournal(journal);
+    }
+
+    /**
+     * Returns the properties file path.
+     *
+     * @return String
+     */
+    public String getPropertiesPath()
+    {
+        return _propsPath;
+    }
+
+    /**
+     * Returns the remote server this job retrieves from. Jobs with the same
+     * remote server share the per host job limit. If the file retriever does not
+     * have a remote server, then the properties file path is returned.
+     *
+     * @return String
+     */
+    public String getRemoteServer()
+    {
+        String host = (_retriever != null ? _retriever.getRemoteServer() : null);
+        return (host != null ? host : _propsPath);
+    }
+
+    /**
+     * Returns the number of instructions that can be staged at once.
+     *
+     * @return int
+     */
+    public int getPipelineDepth()
+    {
+        return _pipelineDepth;
+    }
+
+    /**
+     * Returns the backup instructions.
+     *
+     * @return BackupInstruction[]
+     */
+    public BackupInstruction[] getInstructions()
+    {
+        return _instructions;
+    }
+
+    /**
+     * Returns the file retriever.
+     *
+     * @return FileRetriever
+     */
+    public FileRetriever getFileRetriever()
+    {
+        return _retriever;
+    }
+
+    /**
+     * Returns the archive schedule.
+     *
+     * @return ArchiveSchedule
+     */
+    public ArchiveSchedule getArchiveSchedule()
+    {
+        return _schedule;
+    }
+
+    /**
+     * Creates the file retriever based on the comma delimited string of properties.
+     *
+     * @param String The properties.
+     * @param Logger The logger.
+     * @return FileRetriever
+     * @throws Exception if the retriever class cannot be created.
+     */
+    public static FileRetriever createFileRetriever(String props, Logger logger) throws Exception
+    {
+        FileRetriever ret = null;
+        String tokens[] = props.split(",");
+        if (tokens != null)
+        {
+            for (int i = 0; i < tokens.length; i++)
+            {
+                String token[] = tokens[i].split("=");
+                if ( token[0].equals("class") )
+                {
+                    ret = (FileRetriever)Class.forName(token[1]).getDeclaredConstructor().newInstance();
+                    ret.setLogger(logger);
+                    ret.setProperties(props);
+                }
+            }
+        }
+        if (ret == null) throw new IllegalArgumentException("file_retriever does not specify a class: "+props);
+        return ret;
+    }
+}
\ No newline at end of file
@@ -1,265 +1,1037 @@
-package com.zitego.backup;
-
-import com.zitego.util.getopts.*;
-import com.zitego.logging.Logger;
-import java.util.*;
-import java.io.*;
-
-/**
- * This class will handles backing-up specified files on remote server(s).
- * It is a stand alone application that is run with the following options:
- * backup_list - The path of the file that contains a list of property files.<br>
- * properties - The path of a properties file.<br>
- * log_file - The file to log to. If this is left out, then output will go to System.out.<br>
- * <p>
- * The properties file must contain backup instructions, a file retriever,and an archive schedule.
- * See the api documentation for those classes for details on specific options.
- * </p>
- * instruction_[n] - This property specifies an instruction to backup a remote directory. [n]
- *                   Is the number of the instruction. Ex: instruction_3<br>
- * file_retriever - This is the java class that will actually retrieve the files.<br>
- * archive_schedule - This tells the backup manager what to archive when.<br>
- * <br>
- * Example:<br>
- * instruction_0=remote_staging_file=files.tgz,\<br>
- *                 prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
- *                 arg=/home/httpd/domains/penwrights.com/images/files,\<br>
- *                 arg=files.tgz<br>
- * <br>
- * instruction_1=remote_staged_file=photos.tgz,\<br>
- *                 prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
- *                 arg=/home/httpd/domains/penwrights.com/images/photos,\<br>
- *                 arg=photos.tgz<br>
- * <br>
- * instruction_2=remote_staged_file=logs.tgz,\<br>
- *                 prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
- *                 arg=/home/httpd/domains/penwrights.com/images/logs,\<br>
- *                 arg=logs.tgz<br>
- * <br>
- * instruction_3=remote_staged_file=db.sql.gz,\<br>
- *                 prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/db_backup.sh<br>
- * <br>
- * file_retriever=class=com.zitego.backup.SSHFileRetriever,\<br>
- *               ssh_cmd=/usr/bin/ssh,\<br>
- *               scp_cmd=/usr/bin/scp,\<br>
- *               prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
- *               user=jglorioso,\<br>
- *               remote_server=zitego.com,\<br>
- *               clean_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/clean_backup_files.sh,\<br>
- *               remote_staging_dir=/home/httpd/domains/bak_staging,\<br>
- *               local_backup_dir=/home/jglorioso/backups<br>
- * <br>
- * database_backup=remote_dump_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/db_dump.sh,\
-
- * archive_schedule=days_till_purge=5
- *
- * @see FileRetriever
- * @see BackupInstruction
- * @see ArchiveSchedule
- * @author John Glorioso
- * @version $Id: BackupManager.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
- */
-public class BackupManager
-{
-    /** The properties of the backup manager. */
-    protected String[] _props;
-    /** The instructions for what to backup. */
-    protected BackupInstruction[] _instructions;
-    /** The archive schedule. */
-    protected ArchiveSchedule _schedule;
-    /** To handle retrieving files. */
-    protected FileRetriever _retriever;
-    /** To handle logging progress. */
-    protected Logger _logger;
-
-    /**
-     * To be called from the command line. A properties file is specified
-     * containing backup instructions.
-     *
-     * @param String[] The arguments.
-     */
-    public static void main(String[] args)
-    {
-        String backupPath = null;
-        String propsPath = null;
-        String logFile = null;
-        try
-        {
-            GetOpts opts = new GetOpts(new String[] { "backup_list::", "properties::", "log_file::" }, args, GetOpts.OPTION_CASE_INSENSITIVE);
-            int index;
-            while ( (index=opts.getOptions()) != -1 )
-            {
-                String arg = opts.getOptionString(index);
-                String value = opts.getOptarg();
-                if ( "log_file".equals(arg) )
-                {
-                    logFile = value;
-                }
-                else if ( "backup_list".equals(arg) )
-                {
-                    backupPath = value;
-                }
-                else if ( "properties".equals(arg) )
-                {
-                    propsPath = value;
-                }
-                else
-                {
-                    System.out.println("*** WARNING *** Ignoring invalid argument: " + arg);
-                }
-            }
-        }
-        catch(Throwable t)
-        {
-            System.out.println("*** ERROR *** Could not read properties: " + t);
-            System.exit(1);
-        }
-
-        if (backupPath == null && propsPath == null)
-        {
-            System.out.println("Usage: java com.zitego.backup.BackupManager [-log_file <log>] [-backup_list <backup list path>] [-properties <properties file>]");
-            System.exit(1);
-        }
-
-        try
-        {
-            Vector tmp = new Vector();
-            if (propsPath != null) tmp.add(propsPath);
-
-            if (backupPath != null)
-            {
-                BufferedReader in = new BufferedReader( new FileReader(backupPath) );
-                String line = null;
-                while ( (line=in.readLine()) != null )
-                {
-                    tmp.add(line);
-                }
-            }
-            String[] propsFiles = new String[tmp.size()];
-            tmp.copyInto(propsFiles);
-
-            BackupManager mgr = new BackupManager(propsFiles);
-            mgr.setLogFile(logFile);
-            mgr.run();
-        }
-        catch (Throwable t)
-        {
-            StringWriter err = new StringWriter();
-            t.printStackTrace( new PrintWriter(err) );
-            System.out.println("*** ERROR *** Could not execute backup manager:\r\n"+err);
-            System.exit(1);
-        }
-    }
-
-    /**
-     * Creates a new backup manager with a properties file path.
-     *
-     * @param String The properties file path.
-     * @throws IOException
-     */
-    public BackupManager(String propsPath) throws IOException
-    {
-        this( new String[] { propsPath } );
-    }
-
-    /**
-     * Creates a new backup manager with an array of properties file paths.
-     *
-     * @param String[] The properties file paths.
-     * @throws IOException
-     */
-    public BackupManager(String[] propsPaths) throws IOException
-    {
-        _props = propsPaths;
-    }
-
-    /**
-     * Sets the log file. If it is null, then it sets to standard out.
-     *
-     * @param String The path to the log file.
-     * @throws IOException if the path is invalid.
-     */
-    public void setLogFile(String path) throws IOException
-    {
-        _logger = Logger.getInstance("com.zitego.backup");
-        if (path != null) _logger.registerFileHandler("file", path);
-        else _logger.registerConsoleHandler("console");
-        _logger.log("--------------------------------------------------------------------------------");
-        _logger.log("Starting BatchManager");
-    }
-
-    /**
-     * Creates batch instructions and an archive schedule for the specified
-     * properties file index.
-     *
-     * @param int The index of the properties file to initialize.
-     */
-    protected void initializeBackup(int index) throws Exception
-    {
-        _logger.log("");
-        _logger.log("Loading backup instructions for "+_props[index]);
-
-        Properties props = new Properties();
-        props.load( new FileInputStream(_props[index]) );
-
-        Vector tmp = new Vector();
-        int count = 0;
-        String prop = null;
-        while ( (prop=props.getProperty("instruction_"+count++)) != null )
-        {
-            tmp.add( new BackupInstruction(prop) );
-        }
-        _instructions = new BackupInstruction[tmp.size()];
-        tmp.copyInto(_instructions);
-
-        _logger.log("Creating FileRetriever");
-        createFileRetriever( props.getProperty("file_retriever") );
-
-        _logger.log("Creating Archive Schedule");
-        _schedule = new ArchiveSchedule(props.getProperty("archive_schedule"), _instructions, _logger);
-    }
-
-    /**
-     * Runs the backup instructions to retrieve and archive the specified files.
-     *
-     * @throws Exception
-     */
-    public void run() throws Exception
-    {
-        for (int i=0; i<_props.length; i++)
-        {
-            initializeBackup(i);
-            _logger.log("Retrieving files");
-            for (int j=0; j<_instructions.length; j++)
-            {
-                _retriever.retrieveFile(_instructions[j]);
-            }
-            _logger.log("Archiving");
-            _schedule.archive( _retriever.getLocalBackupDir() );
-        }
-        _logger.log("Finished BackupManager");
-    }
-
-    /**
-     * Creates the file retriever based on the comma delimited string of properties.
-     *
-     * @param String The properties.
-     */
-    public void createFileRetriever(String props) throws Exception
-    {
-        String tokens[] = props.split(",");
-        if (tokens != null)
-        {
-            for (int i = 0; i < tokens.length; i++)
-            {
-                String token[] = tokens[i].split("=");
-                if ( token[0].equals("class") )
-                {
-                    _retriever = (FileRetriever)Class.forName(token[1]).newInstance();
-                    _retriever.setLogger(_logger);
-                    _retriever.setProperties(props);
-                }
-               }
-           }
-    }
+package com.zitego.backup;
+
+import com.zitego.util.getopts.*;
+import com.zitego.logging.Logger;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.io.*;
+
+/**
+ * This class will handles backing-up specified files on remote server(s).
+ * It is a stand alone application that is run with the following options:
+ * backup_list - The path of the file that contains a list of property files.<br>
+ * properties - The path of a properties file.<br>
+ * log_file - The file to log to. If this is left out, then output will go to System.out.<br>
+ * max_jobs - The number of properties files to back up at the same time. Defaults to 1.<br>
+ * max_jobs_per_host - The number of properties files with the same remote server to back up
+ *                     at the same time. Defaults to 1.<br>
+ * purge_files_per_sec - The number of old files the background archiver can delete per second.
+ *                       Defaults to no limit.<br>
+ * purge_mb_per_sec - The number of megabytes of old files the background archiver can delete per
+ *                    second. Defaults to no limit.<br>
+ * bandwidth_file - A properties file with the bandwidth and bandwidth_profile_[n] limits of every
+ *                  transfer in the process. See TransferThrottle.<br>
+ * rebuild_catalog - Rebuilds the catalog of each local backup directory from the dated files of
+ *                   its instructions on disk instead of running the backup.<br>
+ * report_file - The file to write a JSON report of the run's metrics to.<br>
+ * prom_file - The file to write the run's metrics to in the Prometheus text format, such as
+ *             a .prom file in the node_exporter textfile collector directory.<br>
+ * daemon - Keeps running and runs each properties file on its run_schedule. See BackupDaemon.<br>
+ * schedule - With daemon, the cron style schedule of properties files without a run_schedule.<br>
+ * control_port - With daemon, the port of 127.0.0.1 to listen for commands on.<br>
+ * verify - Checks the stored files of each local backup directory against their checksums and
+ *          that gzipped files decompress instead of running the backup. See BackupVerifier.<br>
+ * verify_threads - With verify, the number of files to check at the same time. Defaults to one per core.<br>
+ * verify_mb_per_sec - With verify, the number of megabytes that can be read per second. Defaults to
+ *                     no limit.<br>
+ * verify_fast - With verify, checks the CRC32 from the manifest instead of the SHA-256 when there is one.<br>
+ * restore - Restores the stored copy of the instruction with this remote staged file instead of running
+ *           the backup. The first properties file with a copy is used. See BackupRestorer.<br>
+ * restore_dir - With restore, the directory to extract the copy into.<br>
+ * restore_date - With restore, the day (yyyyMMdd) of the copy or its dated file name. Defaults to the newest.<br>
+ * restore_remote - With restore, the directory is on the remote server of the properties file instead of
+ *                  this host.<br>
+ * restore_paths - With restore, a comma separated list of the files and directories in the archive to
+ *                 restore. Defaults to all of it.<br>
+ * restore_threads - With restore, the number of threads that write extracted files. Defaults to one per core.<br>
+ * journal_file - The file to journal the run in. If the last run in it did not finish, then it is continued
+ *                instead of starting over. See RunJournal.<br>
+ * <p>
+ * The properties file must contain backup instructions, a file retriever,and an archive schedule.
+ * See the api documentation for those classes for details on specific options.
+ * </p>
+ * <p>
+ * Old files are purged by a BackgroundArchiver while the next properties file is
+ * being retrieved. The backup manager waits for it to finish before returning.
+ * </p>
+ * <p>
+ * The properties files are run in the order a RunScheduler picks from how long they
+ * and their instructions took in past runs: highest priority first, then longest
+ * first, with files whose instructions have a finish_by moved up if they would
+ * otherwise finish late. The predicted completion times are logged and written to the
+ * report next to the actual ones.
+ * </p>
+ * <p>
+ * With a journal_file, the state each instruction reaches is synced to the journal as
+ * the run goes. If the process dies or the host reboots, then the next run with the
+ * same journal_file deletes what the unfinished instructions left in the local backup
+ * directories and retrieves only those, skipping the properties files and
+ * instructions that finished. A run that fails is not marked finished either, so
+ * running it again the same day retries only what failed.
+ * </p>
+ * <p>
+ * The duration and outcome of each stage, the bytes retrieved, and the files purged
+ * are collected in RunMetrics labeled by properties file, remote server, and
+ * instruction. They are written to the report_file and prom_file when the run ends,
+ * whether it succeeded or not.
+ * </p>
+ * instruction_[n] - This property specifies an instruction to backup a remote directory. [n]
+ *                   Is the number of the instruction. Ex: instruction_3<br>
+ * file_retriever - This is the java class that will actually retrieve the files.<br>
+ * archive_schedule - This tells the backup manager what to archive when.<br>
+ * <br>
+ * Example:<br>
+ * instruction_0=remote_staging_file=files.tgz,\<br>
+ *                 prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
+ *                 arg=/home/httpd/domains/penwrights.com/images/files,\<br>
+ *                 arg=files.tgz<br>
+ * <br>
+ * instruction_1=remote_staged_file=photos.tgz,\<br>
+ *                 prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
+ *                 arg=/home/httpd/domains/penwrights.com/images/photos,\<br>
+ *                 arg=photos.tgz<br>
+ * <br>
+ * instruction_2=remote_staged_file=logs.tgz,\<br>
+ *                 prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
+ *                 arg=/home/httpd/domains/penwrights.com/images/logs,\<br>
+ *                 arg=logs.tgz<br>
+ * <br>
+ * instruction_3=remote_staged_file=db.sql.gz,\<br>
+ *                 prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/db_backup.sh<br>
+ * <br>
+ * file_retriever=class=com.zitego.backup.SSHFileRetriever,\<br>
+ *               ssh_cmd=/usr/bin/ssh,\<br>
+ *               scp_cmd=/usr/bin/scp,\<br>
+ *               prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/prep_backup_files.sh,\<br>
+ *               user=jglorioso,\<br>
+ *               remote_server=zitego.com,\<br>
+ *               clean_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/clean_backup_files.sh,\<br>
+ *               remote_staging_dir=/home/httpd/domains/bak_staging,\<br>
+ *               local_backup_dir=/home/jglorioso/backups<br>
+ * <br>
+ * database_backup=remote_dump_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/db_dump.sh,\
+
+ * archive_schedule=days_till_purge=5
+ *
+ * @see FileRetriever
+ * @see BackupInstruction
+ * @see ArchiveSchedule
+ * @see RunMetrics
+ * @see RunScheduler
+ * @see RunJournal
+ * @author John Glorioso
+ * @version $Id: BackupManager.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
+ */
+public class BackupManager
+{
+    /** The properties of the backup manager. */
+    protected String[] _props;
+    /** To handle logging progress. */
+    protected Logger _logger;
+    /** The maximum number of jobs to run at the same time. */
+    protected int _maxJobs = 1;
+    /** The maximum number of jobs to run at the same time against one remote server. */
+    protected int _maxJobsPerHost = 1;
+    /** The number of running jobs keyed by remote server. */
+    protected Hashtable _runningByHost = new Hashtable();
+    /** The number of running jobs. */
+    protected int _running = 0;
+    /** The exceptions thrown by failed jobs. */
+    protected Vector _failures = new Vector();
+    /** The number of files that can be purged per second or 0 for no limit. */
+    protected double _purgeFilesPerSec = 0;
+    /** The number of bytes that can be purged per second or 0 for no limit. */
+    protected double _purgeBytesPerSec = 0;
+    /** Purges old files in the background while jobs run. */
+    protected BackgroundArchiver _archiver;
+    /** The file to write the JSON report to or null for none. */
+    protected String _reportFile;
+    /** The file to write the Prometheus metrics to or null for none. */
+    protected String _promFile;
+    /** The file to journal the run in or null to not journal it. */
+    protected String _journalFile;
+    /** The journal of the current run or null if it is not journaled. */
+    protected RunJournal _journal;
+    /**
+     * The file retriever created by createFileRetriever.
+     *
+     * @deprecated Each properties file has its own retriever in its BackupJob.
+     */
+    @Deprecated
+    protected FileRetriever _retriever;
+
+    /**
+     * To be called from the command line. A properties file is specified
+     * containing backup instructions.
+     *
+     * @param String[] The arguments.
+     */
+    public static void main(String[] args)
+    {
+        String backupPath = null;
+        String propsPath = null;
+        String logFile = null;
+        int maxJobs = 1;
+        int maxJobsPerHost = 1;
+        boolean rebuildCatalog = false;
+        double purgeFilesPerSec = 0;
+        double purgeMbPerSec = 0;
+        String reportFile = null;
+        String promFile = null;
+        boolean daemon = false;
+        String schedule = null;
+        int controlPort = 0;
+        boolean verify = false;
+        int verifyThreads = 0;
+        double verifyMbPerSec = 0;
+        boolean verifyFast = false;
+        String restore = null;
+        String restoreDir = null;
+        String restoreDate = null;
+        boolean restoreRemote = false;
+        String[] restorePaths = null;
+        int restoreThreads = 0;
+        String journalFile = null;
+        String bandwidthFile = null;
+        try
+        {
+            GetOpts opts = new GetOpts
+            (
+                new String[] { "backup_list::", "properties::", "log_file::", "max_jobs::", "max_jobs_per_host::", "purge_files_per_sec::",
+                               "purge_mb_per_sec::", "rebuild_catalog", "report_file::", "prom_file::",
+                               "daemon", "schedule::", "control_port::", "verify", "verify_threads::", "verify_mb_per_sec::",
+                               "verify_fast", "restore::", "restore_dir::", "restore_date::", "restore_remote", "restore_paths::",
+                               "restore_threads::", "journal_file::", "bandwidth_file::" },
+                args, GetOpts.OPTION_CASE_INSENSITIVE
+            );
+            int index;
+            while ( (index=opts.getOptions()) != -1 )
+            {
+                String arg = opts.getOptionString(index);
+                String value = opts.getOptarg();
+                if ( "log_file".equals(arg) )
+                {
+                    logFile = value;
+                }
+                else if ( "backup_list".equals(arg) )
+                {
+                    backupPath = value;
+                }
+                else if ( "properties".equals(arg) )
+                {
+                    propsPath = value;
+                }
+                else if ( "max_jobs".equals(arg) )
+                {
+                    maxJobs = Integer.parseInt(value);
+                }
+                else if ( "max_jobs_per_host".equals(arg) )
+                {
+                    maxJobsPerHost = Integer.parseInt(value);
+                }
+                else if ( "purge_files_per_sec".equals(arg) )
+                {
+                    purgeFilesPerSec = Double.parseDouble(value);
+                }
+                else if ( "purge_mb_per_sec".equals(arg) )
+                {
+                    purgeMbPerSec = Double.parseDouble(value);
+                }
+                else if ( "rebuild_catalog".equals(arg) )
+                {
+                    rebuildCatalog = true;
+                }
+                else if ( "report_file".equals(arg) )
+                {
+                    reportFile = value;
+                }
+                else if ( "prom_file".equals(arg) )
+                {
+                    promFile = value;
+                }
+                else if ( "daemon".equals(arg) )
+                {
+                    daemon = true;
+                }
+                else if ( "schedule".equals(arg) )
+                {
+                    schedule = value;
+                }
+                else if ( "control_port".equals(arg) )
+                {
+                    controlPort = Integer.parseInt(value);
+                }
+                else if ( "verify".equals(arg) )
+                {
+                    verify = true;
+                }
+                else if ( "verify_threads".equals(arg) )
+                {
+                    verifyThreads = Integer.parseInt(value);
+                }
+                else if ( "verify_mb_per_sec".equals(arg) )
+                {
+                    verifyMbPerSec = Double.parseDouble(value);
+                }
+                else if ( "verify_fast".equals(arg) )
+                {
+                    verifyFast = true;
+                }
+                else if ( "restore".equals(arg) )
+                {
+                    restore = value;
+                }
+                else if ( "restore_dir".equals(arg) )
+                {
+                    restoreDir = value;
+                }
+                else if ( "restore_date".equals(arg) )
+                {
+                    restoreDate = value;
+                }
+                else if ( "restore_remote".equals(arg) )
+                {
+                    restoreRemote = true;
+                }
+                else if ( "restore_paths".equals(arg) )
+                {
+                    restorePaths = value.split(",");
+                }
+                else if ( "restore_threads".equals(arg) )
+                {
+                    restoreThreads = Integer.parseInt(value);
+                }
+                else if ( "journal_file".equals(arg) )
+                {
+                    journalFile = value;
+                }
+                else if ( "bandwidth_file".equals(arg) )
+                {
+                    bandwidthFile = value;
+                }
+                else
+                {
+                    System.out.println("*** WARNING *** Ignoring invalid argument: " + arg);
+                }
+            }
+        }
+        catch(Throwable t)
+        {
+            System.out.println("*** ERROR *** Could not read properties: " + t);
+            System.exit(1);
+        }
+
+        if ( (backupPath == null && propsPath == null) || (restore != null && restoreDir == null) )
+        {
+            System.out.println("Usage: java com.zitego.backup.BackupManager [-log_file <log>] [-backup_list <backup list path>] [-properties <properties file>] " +
+                               "[-max_jobs <jobs>] [-max_jobs_per_host <jobs>] [-purge_files_per_sec <files>] " +
+                               "[-purge_mb_per_sec <mb>] [-bandwidth_file <properties file>] [-rebuild_catalog] [-report_file <json file>] [-prom_file <prom file>] " +
+                               "[-daemon [-schedule <cron schedule>] [-control_port <port>]] " +
+                               "[-verify [-verify_threads <threads>] [-verify_mb_per_sec <mb>] [-verify_fast]] " +
+                               "[-restore <remote staged file> -restore_dir <dir> [-restore_date <yyyyMMdd>] [-restore_remote] " +
+                               "[-restore_paths <path,...>] [-restore_threads <threads>]] [-journal_file <journal file>]");
+            System.exit(1);
+        }
+
+        if (daemon)
+        {
+            runDaemon(propsPath, backupPath, logFile, maxJobs, maxJobsPerHost, purgeFilesPerSec, purgeMbPerSec,
+                      bandwidthFile, reportFile, promFile, schedule, controlPort);
+            return;
+        }
+
+        try
+        {
+            Vector tmp = new Vector();
+            if (propsPath != null) tmp.add(propsPath);
+
+            if (backupPath != null)
+            {
+                BufferedReader in = new BufferedReader( new FileReader(backupPath) );
+                String line = null;
+                while ( (line=in.readLine()) != null )
+                {
+                    tmp.add(line);
+                }
+            }
+            String[] propsFiles = new String[tmp.size()];
+            tmp.copyInto(propsFiles);
+
+            BackupManager mgr = new BackupManager(propsFiles);
+            mgr.setLogFile(logFile);
+            mgr.setMaxJobs(maxJobs);
+            mgr.setMaxJobsPerHost(maxJobsPerHost);
+            mgr.setPurgeLimits(purgeFilesPerSec, purgeMbPerSec*1024d*1024d);
+            mgr.setBandwidthFile(bandwidthFile);
+            mgr.setReportFiles(reportFile, promFile);
+            mgr.setJournalFile(journalFile);
+            if (rebuildCatalog)
+            {
+                mgr.rebuildCatalogs();
+            }
+            else if (verify)
+            {
+                if ( !mgr.verify(verifyThreads, verifyMbPerSec*1024d*1024d, verifyFast) ) System.exit(2);
+            }
+            else if (restore != null)
+            {
+                mgr.restore(restore, restoreDate, restoreDir, restoreRemote, restorePaths, restoreThreads);
+            }
+            else
+            {
+                mgr.run();
+            }
+        }
+        catch (Throwable t)
+        {
+            StringWriter err = new StringWriter();
+            t.printStackTrace( new PrintWriter(err) );
+            System.out.println("*** ERROR *** Could not execute backup manager:\r\n"+err);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a BackupDaemon until it is told to stop or the process is shut down.
+     *
+     * @param String The properties file path or null.
+     * @param String The backup list path or null.
+     * @param String The log file or null for standard out.
+     * @param int The maximum number of jobs.
+     * @param int The maximum number of jobs per host.
+     * @param double The number of files that can be purged per second.
+     * @param double The number of megabytes that can be purged per second.
+     * @param String The bandwidth limits file or null.
+     * @param String The JSON report file or null.
+     * @param String The Prometheus file or null.
+     * @param String The default schedule or null.
+     * @param int The control port or 0 for none.
+     */
+    protected static void runDaemon(String propsPath, String backupPath, String logFile, int maxJobs, int maxJobsPerHost,
+                                    double purgeFilesPerSec, double purgeMbPerSec, String bandwidthFile, String reportFile,
+                                    String promFile, String schedule, int controlPort)
+    {
+        try
+        {
+            final BackupDaemon daemon = new BackupDaemon(propsPath, backupPath);
+            daemon.setLogFile(logFile);
+            daemon.setMaxJobs(maxJobs);
+            daemon.setMaxJobsPerHost(maxJobsPerHost);
+            daemon.setPurgeLimits(purgeFilesPerSec, purgeMbPerSec*1024d*1024d);
+            daemon.setBandwidthFile(bandwidthFile);
+            daemon.setReportFiles(reportFile, promFile);
+            daemon.setDefaultSchedule(schedule);
+            daemon.setControlPort(controlPort);
+            Runtime.getRuntime().addShutdownHook
+            (
+                new Thread("BackupDaemon shutdown")
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            daemon.stopAndWait();
+                        }
+                        catch (InterruptedException ie) { }
+                    }
+                }
+            );
+            daemon.run();
+        }
+        catch (Throwable t)
+        {
+            StringWriter err = new StringWriter();
+            t.printStackTrace( new PrintWriter(err) );
+            System.out.println("*** ERROR *** Could not execute backup daemon:\r\n"+err);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates a new backup manager with a properties file path.
+     *
+     * @param String The properties file path.
+     * @throws IOException
+     */
+    public BackupManager(String propsPath) throws IOException
+    {
+        this( new String[] { propsPath } );
+    }
+
+    /**
+     * Creates a new backup manager with an array of properties file paths.
+     *
+     * @param String[] The properties file paths.
+     * @throws IOException
+     */
+    public BackupManager(String[] propsPaths) throws IOException
+    {
+        _props = propsPaths;
+    }
+
+    /**
+     * Sets the log file. If it is null, then it sets to standard out.
+     *
+     * @param String The path to the log file.
+     * @throws IOException if the path is invalid.
+     */
+    public void setLogFile(String path) throws IOException
+    {
+        _logger = Logger.getInstance("com.zitego.backup");
+        if (path != null) _logger.registerFileHandler("file", path);
+        else _logger.registerConsoleHandler("console");
+        _logger.log("--------------------------------------------------------------------------------");
+        _logger.log("Starting BatchManager");
+    }
+
+    /**
+     * Sets the maximum number of jobs (properties files) to run at the same time.
+     *
+     * @param int The number of jobs.
+     */
+    public void setMaxJobs(int max)
+    {
+        _maxJobs = (max > 0 ? max : 1);
+    }
+
+    /**
+     * Returns the maximum number of jobs to run at the same time.
+     *
+     * @return int
+     */
+    public int getMaxJobs()
+    {
+        return _maxJobs;
+    }
+
+    /**
+     * Sets the maximum number of jobs to run at the same time against the same
+     * remote server.
+     *
+     * @param int The number of jobs.
+     */
+    public void setMaxJobsPerHost(int max)
+    {
+        _maxJobsPerHost = (max > 0 ? max : 1);
+    }
+
+    /**
+     * Returns the maximum number of jobs to run at the same time against the same
+     * remote server.
+     *
+     * @return int
+     */
+    public int getMaxJobsPerHost()
+    {
+        return _maxJobsPerHost;
+    }
+
+    /**
+     * Sets how fast the background archiver can delete old files.
+     *
+     * @param double The number of files per second or 0 for no limit.
+     * @param double The number of bytes per second or 0 for no limit.
+     */
+    public void setPurgeLimits(double filesPerSec, double bytesPerSec)
+    {
+        _purgeFilesPerSec = filesPerSec;
+        _purgeBytesPerSec = bytesPerSec;
+    }
+
+    /**
+     * Sets the bandwidth limits of every transfer in the process from the bandwidth
+     * and bandwidth_profile_[n] properties in the file. The limits are shared by all
+     * of the properties files, so they are set once here instead of in each one.
+     *
+     * @param String The path of the properties file or null to not limit bandwidth.
+     * @throws IOException if the file cannot be read.
+     * @see TransferThrottle
+     */
+    public void setBandwidthFile(String path) throws IOException
+    {
+        if (path == null) return;
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream(path);
+        try
+        {
+            props.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        if (props.getProperty("bandwidth") == null) throw new IOException("No bandwidth property in "+path);
+        TransferThrottle.getInstance().configure(props);
+    }
+
+    /**
+     * Sets the files that the metrics are written to when a run ends.
+     *
+     * @param String The path of the JSON report or null for none.
+     * @param String The path of the Prometheus text file or null for none.
+     * @see RunMetrics
+     */
+    public void setReportFiles(String reportFile, String promFile)
+    {
+        _reportFile = reportFile;
+        _promFile = promFile;
+    }
+
+    /**
+     * Sets the file that runs are journaled in so that an interrupted run can be
+     * continued.
+     *
+     * @param String The path of the journal or null to not journal runs.
+     * @see RunJournal
+     */
+    public void setJournalFile(String path)
+    {
+        _journalFile = path;
+    }
+
+    /**
+     * Creates the backup job for the specified properties file index.
+     *
+     * @param int The index of the properties file to initialize.
+     * @return BackupJob
+     * @throws Exception if the job could not be initialized.
+     */
+    protected BackupJob createJob(int index) throws Exception
+    {
+        return createJob(_props[index]);
+    }
+
+    /**
+     * Creates the backup job for the properties file.
+     *
+     * @param String The properties file path.
+     * @return BackupJob
+     * @throws Exception if the job could not be initialized.
+     */
+    protected BackupJob createJob(String propsPath) throws Exception
+    {
+        BackupJob job = new BackupJob(propsPath, _logger);
+        job.initialize();
+        job.setArchiver(_archiver);
+        job.setJournal(_journal);
+        return job;
+    }
+
+    /**
+     * Runs the backup instructions to retrieve and archive the specified files. If
+     * max jobs is greater then one, then the properties files are run concurrently.
+     * Every properties file is loaded first so that a RunScheduler can order them.
+     * A properties file that cannot be loaded, or a job that fails, is logged and
+     * recorded and the other jobs still run. If any failed, an exception is thrown
+     * once all of them have finished. If there is a journal file and its last run did
+     * not finish, then that run is continued. The run is only marked finished in the
+     * journal if it succeeded.
+     *
+     * @throws Exception if any job could not be loaded or failed.
+     */
+    public void run() throws Exception
+    {
+        RunMetrics metrics = RunMetrics.getInstance();
+        metrics.start();
+        boolean success = false;
+        if (_journalFile != null)
+        {
+            _journal = new RunJournal( new File(_journalFile) );
+            if ( _journal.isUnfinished() ) _logger.log("Continuing the unfinished run in "+_journalFile);
+            _journal.begin();
+        }
+        _archiver = new BackgroundArchiver(_logger, _purgeFilesPerSec, _purgeBytesPerSec);
+        _archiver.start();
+        try
+        {
+            synchronized (this)
+            {
+                _failures.clear();
+            }
+            Vector loaded = new Vector();
+            for (int i=0; i<_props.length; i++)
+            {
+                try
+                {
+                    loaded.add( createJob(i) );
+                }
+                catch (Exception e)
+                {
+                    jobFailed(_props[i], "load", e);
+                }
+            }
+            BackupJob[] jobs = new BackupJob[loaded.size()];
+            loaded.copyInto(jobs);
+            boolean concurrent = (_maxJobs > 1 && jobs.length > 1);
+            jobs = new RunScheduler( _logger, (concurrent ? _maxJobs : 1), _maxJobsPerHost ).order( jobs, System.currentTimeMillis() );
+            if (concurrent)
+            {
+                runConcurrently(jobs);
+            }
+            else
+            {
+                for (int i=0; i<jobs.length; i++)
+                {
+                    try
+                    {
+                        jobs[i].run();
+                    }
+                    catch (Exception e)
+                    {
+                        jobFailed(jobs[i].getPropertiesPath(), "job", e);
+                    }
+                }
+            }
+            checkFailures();
+            success = true;
+        }
+        finally
+        {
+            try
+            {
+                _archiver.drain();
+                _archiver = null;
+                if (success && _journal != null) _journal.end();
+            }
+            finally
+            {
+                if (_journal != null) _journal.close();
+                _journal = null;
+                metrics.end(success);
+                writeReports(metrics);
+            }
+        }
+        _logger.log("Finished BackupManager");
+    }
+
+    /**
+     * Creates the file retriever based on the comma delimited string of properties.
+     *
+     * @param String The properties.
+     * @throws Exception if the retriever class cannot be created.
+     * @deprecated Each properties file has its own retriever in its BackupJob. Use
+     *             BackupJob.createFileRetriever(String, Logger).
+     */
+    @Deprecated
+    public void createFileRetriever(String props) throws Exception
+    {
+        _retriever = BackupJob.createFileRetriever(props, _logger);
+    }
+
+    /**
+     * Writes the metrics to the report file and Prometheus file. A file that cannot
+     * be written is logged and does not fail the run.
+     *
+     * @param RunMetrics The metrics.
+     */
+    protected void writeReports(RunMetrics metrics)
+    {
+        if (_reportFile != null)
+        {
+            try
+            {
+                metrics.writeJson( new File(_reportFile) );
+                _logger.log("Wrote report to "+_reportFile);
+            }
+            catch (IOException ioe)
+            {
+                _logger.log("*** ERROR *** Could not write report to "+_reportFile+": "+ioe);
+            }
+        }
+        if (_promFile != null)
+        {
+            try
+            {
+                metrics.writePrometheus( new File(_promFile) );
+                _logger.log("Wrote metrics to "+_promFile);
+            }
+            catch (IOException ioe)
+            {
+                _logger.log("*** ERROR *** Could not write metrics to "+_promFile+": "+ioe);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the catalog of the local backup directory of each properties file from
+     * the dated files on disk and in its dedup store. Every file is read to compute its
+     * checksum. Only the files of the instructions of the properties files that use the
+     * directory are cataloged. A directory shared by several properties files is only
+     * rebuilt once and its files are recorded with the first one's remote server.
+     *
+     * @throws Exception
+     */
+    public void rebuildCatalogs() throws Exception
+    {
+        Vector dirs = new Vector();
+        Hashtable hosts = new Hashtable();
+        Hashtable instructions = new Hashtable();
+        for (int i=0; i<_props.length; i++)
+        {
+            BackupJob job = createJob(i);
+            FileRetriever retriever = job.getFileRetriever();
+            File dir = new File( retriever.getLocalBackupDir() ).getCanonicalFile();
+            Vector names = (Vector)instructions.get(dir);
+            if (names == null)
+            {
+                String host = retriever.getRemoteServer();
+                dirs.add(dir);
+                hosts.put( dir, (host != null ? host : BackupCatalog.UNKNOWN) );
+                names = new Vector();
+                instructions.put(dir, names);
+            }
+            BackupInstruction[] instr = job.getInstructions();
+            for (int j=0; j<instr.length; j++)
+            {
+                names.add(instr[j].remoteStagedFile);
+            }
+        }
+        for (int i=0; i<dirs.size(); i++)
+        {
+            File dir = (File)dirs.get(i);
+            _logger.log("Rebuilding the catalog of "+dir);
+            BackupCatalog catalog = BackupCatalog.getInstance( dir.getPath() );
+            Vector names = (Vector)instructions.get(dir);
+            String[] tmp = new String[names.size()];
+            names.copyInto(tmp);
+            catalog.rebuild( (String)hosts.get(dir), true, tmp );
+            _logger.log("Cataloged "+catalog.size()+" files in "+dir);
+        }
+    }
+
+    /**
+     * Checks the stored files of the local backup directory of each properties file
+     * with a BackupVerifier and writes the results to the report file and Prometheus
+     * file. A directory shared by several properties files is only checked once.
+     *
+     * @param int The number of files to check at the same time or 0 for one per core.
+     * @param double The number of bytes that can be read per second or 0 for no limit.
+     * @param boolean Whether to check the CRC32 instead of the SHA-256 when there is one.
+     * @return boolean Whether every file is good.
+     * @throws Exception
+     */
+    public boolean verify(int threads, double bytesPerSecond, boolean fast) throws Exception
+    {
+        RunMetrics metrics = RunMetrics.getInstance();
+        metrics.start();
+        int bad = -1;
+        try
+        {
+            BackupVerifier verifier = new BackupVerifier(_logger, threads, bytesPerSecond);
+            verifier.setFast(fast);
+            for (int i=0; i<_props.length; i++)
+            {
+                FileRetriever retriever = createJob(i).getFileRetriever();
+                verifier.add( _props[i], retriever.getRemoteServer(), retriever.getLocalBackupDir(), retriever.getKey() );
+            }
+            bad = verifier.verify();
+            return (bad == 0);
+        }
+        finally
+        {
+            metrics.end(bad == 0);
+            writeReports(metrics);
+        }
+    }
+
+    /**
+     * Restores the stored copy of an instruction's file with a BackupRestorer and
+     * writes the result to the report file and Prometheus file. The copy is taken
+     * from the local backup directory of the first properties file that has one.
+     *
+     * @param String The instruction's remote staged file.
+     * @param String The day (yyyyMMdd) of the copy, its dated file name, or null for the newest.
+     * @param String The directory to restore into.
+     * @param boolean Whether the directory is on the remote server instead of this host.
+     * @param String[] The files and directories in the archive to restore or null for all of it.
+     * @param int The number of threads that write extracted files or 0 for one per core.
+     * @throws Exception if there is no copy or it cannot be restored.
+     */
+    public void restore(String instruction, String date, String dir, boolean remote, String[] paths, int threads) throws Exception
+    {
+        RunMetrics metrics = RunMetrics.getInstance();
+        metrics.start();
+        boolean success = false;
+        try
+        {
+            BackupRestorer restorer = new BackupRestorer(_logger, threads);
+            restorer.setPaths(paths);
+            for (int i=0; i<_props.length; i++)
+            {
+                FileRetriever retriever = createJob(i).getFileRetriever();
+                BackupCatalog.Entry entry = restorer.find( retriever.getLocalBackupDir(), instruction, date );
+                if (entry == null) continue;
+
+                if (remote) retriever.beginSession();
+                try
+                {
+                    restorer.restore(_props[i], retriever, entry, dir, remote);
+                }
+                finally
+                {
+                    if (remote) retriever.endSession();
+                }
+                success = true;
+                return;
+            }
+            throw new FileRetrievalException("No stored copy of "+instruction+(date != null ? " from "+date : ""));
+        }
+        finally
+        {
+            metrics.end(success);
+            writeReports(metrics);
+        }
+    }
+
+    /**
+     * Runs the jobs on a pool of max jobs threads. A job is only started when fewer
+     * then max jobs per host jobs are running against its remote server. Each time a
+     * thread is free, the first job in order that can be started is. A failed job does
+     * not stop the others. It is logged and added to the failures of the run, which
+     * run checks once all of the jobs have finished.
+     *
+     * @param BackupJob[] The jobs in the order they should be started.
+     * @throws Exception
+     */
+    protected void runConcurrently(BackupJob[] jobs) throws Exception
+    {
+        Vector pending = new Vector( Arrays.asList(jobs) );
+        _logger.log("Running "+pending.size()+" jobs with max_jobs="+_maxJobs+", max_jobs_per_host="+_maxJobsPerHost);
+
+        ExecutorService pool = Executors.newFixedThreadPool(_maxJobs);
+        try
+        {
+            synchronized (this)
+            {
+                while (pending.size() > 0 || _running > 0)
+                {
+                    for (int i=0; i<pending.size() && _running<_maxJobs; i++)
+                    {
+                        BackupJob job = (BackupJob)pending.get(i);
+                        String host = job.getRemoteServer();
+                        if (getRunningCount(host) < _maxJobsPerHost)
+                        {
+                            pending.remove(i--);
+                            _runningByHost.put( host, Integer.valueOf(getRunningCount(host)+1) );
+                            _running++;
+                            pool.execute( new JobRunner(job) );
+                        }
+                    }
+                    wait();
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Logs and records a job that could not be loaded or failed, so the run fails
+     * once the other jobs have finished.
+     *
+     * @param String The properties file path.
+     * @param String The stage that failed, load or job.
+     * @param Throwable The error.
+     */
+    protected synchronized void jobFailed(String propsPath, String stage, Throwable t)
+    {
+        logFailure(propsPath, stage, t);
+        RunMetrics.getInstance().addFailure(propsPath, null, null, stage, propsPath, t.toString());
+        _failures.add(t);
+    }
+
+    /**
+     * Logs a job that could not be loaded or failed with its stack trace.
+     *
+     * @param String The properties file path.
+     * @param String The stage that failed, load or job.
+     * @param Throwable The error.
+     */
+    protected void logFailure(String propsPath, String stage, Throwable t)
+    {
+        StringWriter trace = new StringWriter();
+        t.printStackTrace( new PrintWriter(trace) );
+        _logger.log("*** ERROR *** Backup "+("load".equals(stage) ? "could not be loaded" : "failed")+" for "+propsPath+":\r\n"+trace);
+    }
+
+    /**
+     * Throws an exception if any job of the run could not be loaded or failed.
+     *
+     * @throws Exception
+     */
+    protected synchronized void checkFailures() throws Exception
+    {
+        if (_failures.size() > 0)
+        {
+            throw new Exception(_failures.size()+" of "+_props.length+" backup jobs failed. First failure: "+_failures.get(0), (Throwable)_failures.get(0));
+        }
+    }
+
+    /**
+     * Returns the number of jobs running against the remote server.
+     *
+     * @param String The remote server.
+     * @return int
+     */
+    protected synchronized int getRunningCount(String host)
+    {
+        Integer count = (Integer)_runningByHost.get(host);
+        return (count != null ? count.intValue() : 0);
+    }
+
+    /**
+     * Called when a job has finished to free up its slots.
+     *
+     * @param BackupJob The job.
+     * @param Throwable The error if the job failed.
+     */
+    protected synchronized void jobFinished(BackupJob job, Throwable t)
+    {
+        String host = job.getRemoteServer();
+        int count = getRunningCount(host) - 1;
+        if (count > 0) _runningByHost.put( host, Integer.valueOf(count) );
+        else _runningByHost.remove(host);
+        _running--;
+        if (t != null) jobFailed(job.getPropertiesPath(), "job", t);
+        notifyAll();
+    }
+
+    /**
+     * Runs a single job on a pool thread.
+     */
+    protected class JobRunner implements Runnable
+    {
+        /** The job to run. */
+        protected BackupJob _job;
+
+        /**
+         * Creates a new job runner.
+         *
+         * @param BackupJob The job.
+         */
+        protected JobRunner(BackupJob job)
+        {
+            _job = job;
+        }
+
+        public void run()
+        {
+            Throwable err = null;
+            try
+            {
+                _job.run();
+            }
+            catch (Throwable t)
+            {
+                err = t;
+            }
+            finally
+            {
+                jobFinished(_job, err);
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.zitego.backup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that a retrieved file is written to. Nothing written is
+ * considered part of the backup until commit is called. If the retrieval fails,
+ * then abort is called and whatever was written is thrown away.
+ *
+ * @see FileRetriever#openOutput(java.io.File)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public abstract class BackupOutputStream extends OutputStream
+{
+    /**
+     * Finishes writing and makes the file part of the backup. The stream is closed.
+     *
+     * @throws IOException if the file cannot be completed.
+     */
+    public abstract void commit() throws IOException;
+
+    /**
+     * Throws away everything that was written. The stream is closed. This never
+     * throws an exception so it can be called from a finally block.
+     */
+    public abstract void abort();
+
+    public void write(int b) throws IOException
+    {
+        write( new byte[] { (byte)b }, 0, 1 );
+    }
+
+    /**
+     * Closing without committing aborts the file.
+     */
+    public void close()
+    {
+        abort();
+    }
+}
\ No newline at end of file
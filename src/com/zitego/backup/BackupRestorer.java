@@ -0,0 +1,555 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Restores a stored backup file. The newest copy of an instruction's file, or the copy
+ * from a given day, is found in the catalog of the local backup directory and read
+ * from disk or from the dedup store. It is decompressed and extracted as it is read,
+ * so the archive is never written out whole before it is unpacked. A .tgz, .tar.gz,
+ * or .tar file is extracted with a TarExtractor, which writes small files on several
+ * threads at once. Any other .gz file is decompressed into the directory without the
+ * .gz and any other file is copied as is. Paths can limit a tar to selected files and
+ * directories. An encrypted file is decrypted with the keyfile of the file retriever
+ * on every core as it is read.<br>
+ * <br>
+ * To restore to the remote server, the stored file is handed to the file retriever
+ * which streams it there. SSHFileRetriever pipes it through ssh into tar on the remote
+ * server.<br>
+ * <br>
+ * An incremental backup is restored by restoring each file of its chain in order,
+ * starting with the full backup, and deleting the paths that each incremental
+ * backup's change manifest lists as deleted.<br>
+ * <br>
+ * Progress is logged as the file is read. Each restore is recorded in RunMetrics as
+ * a restore stage with the bytes read, so it is reported in the same report_file and
+ * prom_file as a backup run.
+ *
+ * @see BackupManager#restore(String, String, String, boolean, String[], int)
+ * @see FileRetriever#restoreFile(BackupRestorer, String, InputStream, String)
+ * @see ChangeManifest
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BackupRestorer
+{
+    /** How often (in milliseconds) progress is logged. */
+    public static final long PROGRESS_INTERVAL = 10000L;
+    /** The size of the buffer the stored file is read through. */
+    protected static final int BUFFER_SIZE = 1024*1024;
+
+    /** The logger. */
+    protected Logger _logger;
+    /** The number of threads that write extracted files. */
+    protected int _threads;
+    /** The relative paths to restore or null for everything. */
+    protected String[] _paths;
+
+    /**
+     * Creates a new restorer.
+     *
+     * @param Logger The logger.
+     * @param int The number of threads that write extracted files or 0 or less for one per core.
+     */
+    public BackupRestorer(Logger logger, int threads)
+    {
+        _logger = logger;
+        _threads = threads;
+    }
+
+    /**
+     * Sets the paths in the archive to restore. Each path restores the file or
+     * directory with that name relative to the top of the archive.
+     *
+     * @param String[] The paths or null for everything.
+     * @throws IOException if a path has a .. component.
+     */
+    public void setPaths(String[] paths) throws IOException
+    {
+        if (paths == null || paths.length == 0)
+        {
+            _paths = null;
+            return;
+        }
+        Vector tmp = new Vector();
+        for (int i=0; i<paths.length; i++)
+        {
+            String path = TarExtractor.normalize( paths[i].trim() );
+            if (path.length() > 0) tmp.add(path);
+        }
+        _paths = null;
+        if (tmp.size() > 0)
+        {
+            _paths = new String[tmp.size()];
+            tmp.copyInto(_paths);
+        }
+    }
+
+    /**
+     * Returns the paths in the archive to restore or null for everything.
+     *
+     * @return String[]
+     */
+    public String[] getPaths()
+    {
+        return _paths;
+    }
+
+    /**
+     * Returns the catalog entry of the instruction's file to restore or null if there
+     * is none.
+     *
+     * @param String The local backup directory.
+     * @param String The instruction's remote staged file.
+     * @param String The day (yyyyMMdd) the file was retrieved, the dated file name, or null for the newest.
+     * @return BackupCatalog.Entry
+     * @throws IOException if the catalog cannot be read.
+     */
+    public BackupCatalog.Entry find(String localBackupDir, String instruction, String date) throws IOException
+    {
+        BackupCatalog.Entry[] entries = BackupCatalog.getInstance(localBackupDir).getEntries(instruction);
+        for (int i=entries.length-1; i>=0; i--)
+        {
+            if ( date == null || date.equals(entries[i].date) || date.equals(entries[i].name) ) return entries[i];
+        }
+        return null;
+    }
+
+    /**
+     * Restores the instruction's file from the retriever's local backup directory into
+     * the directory and records the result. If the file is an incremental backup,
+     * then every file of its chain is restored in order.
+     *
+     * @param String The job name the metrics are labeled with.
+     * @param FileRetriever The file retriever of the properties file.
+     * @param BackupCatalog.Entry The catalog entry of the file.
+     * @param String The directory to restore into.
+     * @param boolean Whether the directory is on the remote server instead of this host.
+     * @throws Exception if the file cannot be restored.
+     */
+    public void restore(String job, FileRetriever retriever, BackupCatalog.Entry entry, String dir, boolean remote) throws Exception
+    {
+        String localBackupDir = retriever.getLocalBackupDir();
+        String[] chain = ChangeManifest.readChain(localBackupDir, entry.name);
+        if (chain == null || chain.length < 2)
+        {
+            restoreFile(job, retriever, entry, dir, remote);
+            return;
+        }
+
+        _logger.log("Restoring "+entry.name+" from "+toString(chain));
+        BackupCatalog catalog = BackupCatalog.getInstance(localBackupDir);
+        BackupCatalog.Entry[] layers = new BackupCatalog.Entry[chain.length];
+        for (int i=0; i<chain.length; i++)
+        {
+            layers[i] = catalog.getEntry(chain[i]);
+            if (layers[i] == null)
+            {
+                String msg = chain[i]+", which "+entry.name+" is restored from, is missing";
+                RunMetrics.getInstance().addFailure(job, retriever.getRemoteServer(), entry.instruction, "restore", entry.name, msg);
+                throw new IOException(msg);
+            }
+        }
+        for (int i=0; i<layers.length; i++)
+        {
+            restoreFile(job, retriever, layers[i], dir, remote);
+            if (i == 0) continue;
+            String[] deleted = select( ChangeManifest.read(localBackupDir, chain[i]).getDeleted() );
+            if (deleted.length == 0) continue;
+            _logger.log("Deleting "+deleted.length+" paths that were deleted before "+chain[i]);
+            if (remote) retriever.removeRestored(this, deleted, dir);
+            else remove( deleted, new File(dir) );
+        }
+    }
+
+    /**
+     * Restores one stored file into the directory and records the result.
+     *
+     * @param String The job name the metrics are labeled with.
+     * @param FileRetriever The file retriever of the properties file.
+     * @param BackupCatalog.Entry The catalog entry of the file.
+     * @param String The directory to restore into.
+     * @param boolean Whether the directory is on the remote server instead of this host.
+     * @throws Exception if the file cannot be restored.
+     */
+    protected void restoreFile(String job, FileRetriever retriever, BackupCatalog.Entry entry, String dir, boolean remote) throws Exception
+    {
+        String localBackupDir = retriever.getLocalBackupDir();
+        String target = (remote ? retriever.getRemoteServer()+":" : "")+dir;
+        _logger.log
+        (
+            "Restoring "+entry.name+" ("+entry.size+" bytes) to "+target+
+            (_paths != null ? " paths "+toString(_paths) : "")
+        );
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        ProgressInputStream in = new ProgressInputStream( open(retriever, entry), entry );
+        RunMetrics metrics = RunMetrics.getInstance();
+        try
+        {
+            long written = -1;
+            if (remote)
+            {
+                retriever.restoreFile(this, entry.name, in, dir);
+            }
+            else
+            {
+                written = extract( entry.name, in, new File(dir) );
+            }
+            //Read anything after the end of the archive so the whole file is counted
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (in.read(buf) != -1) { }
+            success = true;
+            long elapsed = System.currentTimeMillis() - start;
+            _logger.log
+            (
+                "Restored "+entry.name+" to "+target+": "+in.getCount()+" bytes read"+
+                (written >= 0 ? ", "+written+" bytes written" : "")+" in "+elapsed+"ms ("+
+                (elapsed > 0 ? in.getCount()*1000L/elapsed : 0)+" bytes/sec)"
+            );
+        }
+        catch (Exception e)
+        {
+            metrics.addFailure(job, retriever.getRemoteServer(), entry.instruction, "restore", entry.name, e.toString());
+            throw e;
+        }
+        finally
+        {
+            in.close();
+            metrics.record(job, retriever.getRemoteServer(), entry.instruction, "restore", start, success);
+            metrics.addRestored( job, retriever.getRemoteServer(), entry.instruction, in.getCount() );
+        }
+    }
+
+    /**
+     * Decompresses and extracts a stored file into a directory on this host as it is
+     * read and returns the number of bytes written. The stream is not closed.
+     *
+     * @param String The dated file name.
+     * @param InputStream The stored file.
+     * @param File The directory.
+     * @return long
+     * @throws IOException
+     */
+    public long extract(String name, InputStream in, File dir) throws IOException
+    {
+        InputStream data = (isGzip(name) ? new GZIPInputStream(in, BUFFER_SIZE) : in);
+        if ( isTar(name) )
+        {
+            TarExtractor tar = new TarExtractor(_logger, dir, _threads, _paths);
+            tar.extract(data);
+            //Inflate the rest of the gzip so its checksum is checked
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (data.read(buf) != -1) { }
+            _logger.log("Extracted "+tar.getEntries()+" entries ("+tar.getBytes()+" bytes) into "+dir);
+            return tar.getBytes();
+        }
+
+        if (_paths != null) _logger.log("*** WARNING *** "+name+" is not a tar file, restoring all of it");
+        if ( !dir.isDirectory() && !dir.mkdirs() ) throw new IOException("Could not create "+dir);
+        File file = new File( dir, getRestoredName(name) );
+        AtomicFileOutputStream out = new AtomicFileOutputStream(file);
+        long ret = 0;
+        try
+        {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ( (len=data.read(buf)) != -1 )
+            {
+                out.write(buf, 0, len);
+                ret += len;
+            }
+            out.commit();
+        }
+        finally
+        {
+            out.abort();
+        }
+        _logger.log("Wrote "+ret+" bytes to "+file);
+        return ret;
+    }
+
+    /**
+     * Deletes restored files and directories from a directory on this host. A path
+     * that is not in the directory, or is under a symbolic link that leads out of it,
+     * is skipped.
+     *
+     * @param String[] The paths relative to the directory.
+     * @param File The directory.
+     * @throws IOException if a file cannot be deleted.
+     */
+    public void remove(String[] paths, File dir) throws IOException
+    {
+        String canonicalDir = dir.getCanonicalPath();
+        for (int i=0; i<paths.length; i++)
+        {
+            String name = TarExtractor.normalize(paths[i]);
+            if (name.length() == 0) continue;
+            File file = new File(dir, name);
+            String parent = file.getParentFile().getCanonicalPath();
+            if ( !parent.equals(canonicalDir) && !parent.startsWith(canonicalDir+File.separator) )
+            {
+                _logger.log("*** WARNING *** Not deleting "+name+", it is outside of "+dir);
+                continue;
+            }
+            delete( file.toPath() );
+        }
+    }
+
+    /**
+     * Deletes a file or a directory and everything in it without following links.
+     *
+     * @param Path The file or directory.
+     * @throws IOException
+     */
+    protected void delete(Path path) throws IOException
+    {
+        if ( Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) )
+        {
+            DirectoryStream children = Files.newDirectoryStream(path);
+            try
+            {
+                for (Iterator i=children.iterator(); i.hasNext(); )
+                {
+                    delete( (Path)i.next() );
+                }
+            }
+            finally
+            {
+                children.close();
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Returns the paths that are at or below one of the paths to restore.
+     *
+     * @param String[] The paths.
+     * @return String[]
+     */
+    protected String[] select(String[] paths)
+    {
+        if (_paths == null) return paths;
+        Vector tmp = new Vector();
+        for (int i=0; i<paths.length; i++)
+        {
+            for (int j=0; j<_paths.length; j++)
+            {
+                if ( paths[i].equals(_paths[j]) || paths[i].startsWith(_paths[j]+"/") )
+                {
+                    tmp.add(paths[i]);
+                    break;
+                }
+            }
+        }
+        String[] ret = new String[tmp.size()];
+        tmp.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Opens the stored file from disk or from the dedup store. An encrypted file is
+     * decrypted with the retriever's keyfile as it is read. If it is read from disk,
+     * then entries of a tar that are not restored are skipped without decrypting them.
+     *
+     * @param FileRetriever The file retriever of the properties file.
+     * @param BackupCatalog.Entry The catalog entry of the file.
+     * @return InputStream
+     * @throws IOException if the file is missing or is encrypted and there is no keyfile.
+     */
+    protected InputStream open(FileRetriever retriever, BackupCatalog.Entry entry) throws IOException
+    {
+        String localBackupDir = retriever.getLocalBackupDir();
+        File file = new File(localBackupDir, entry.name);
+        if ( file.isFile() )
+        {
+            FileInputStream in = new FileInputStream(file);
+            if ( !EncryptionKey.isEncrypted(file) ) return in;
+            try
+            {
+                return new DecryptingInputStream( in.getChannel(), getKey(retriever, entry), retriever.getEncryptPool() );
+            }
+            catch (IOException ioe)
+            {
+                in.close();
+                throw ioe;
+            }
+        }
+        if ( DedupStore.exists(localBackupDir) )
+        {
+            DedupStore store = DedupStore.getInstance(localBackupDir);
+            if ( !store.getRecipe(entry.name).isFile() ) throw new IOException(file+" is missing");
+            if ( !EncryptionKey.isEncrypted(store.open(entry.name)) ) return store.open(entry.name);
+            EncryptionKey key = getKey(retriever, entry);
+            InputStream in = store.open(entry.name);
+            try
+            {
+                return new DecryptingInputStream( in, key, retriever.getEncryptPool() );
+            }
+            catch (IOException ioe)
+            {
+                in.close();
+                throw ioe;
+            }
+        }
+        throw new IOException(file+" is missing");
+    }
+
+    /**
+     * Returns the key an encrypted file is decrypted with.
+     *
+     * @param FileRetriever The file retriever of the properties file.
+     * @param BackupCatalog.Entry The catalog entry of the file.
+     * @return EncryptionKey
+     * @throws IOException if the retriever has no keyfile.
+     */
+    protected EncryptionKey getKey(FileRetriever retriever, BackupCatalog.Entry entry) throws IOException
+    {
+        if (retriever.getKey() == null) throw new IOException(entry.name+" is encrypted and file_retriever has no keyfile");
+        return retriever.getKey();
+    }
+
+    /**
+     * Returns the name of a stored file that is not a tar once it is restored, which
+     * is the dated file name without .gz.
+     *
+     * @param String The dated file name.
+     * @return String
+     */
+    public static String getRestoredName(String name)
+    {
+        return ( name.toLowerCase().endsWith(".gz") ? name.substring(0, name.length()-3) : name );
+    }
+
+    /**
+     * Returns whether the file name is of a gzipped file.
+     *
+     * @param String The file name.
+     * @return boolean
+     */
+    public static boolean isGzip(String name)
+    {
+        String lower = name.toLowerCase();
+        return ( lower.endsWith(".gz") || lower.endsWith(".tgz") );
+    }
+
+    /**
+     * Returns whether the file name is of a tar file, gzipped or not.
+     *
+     * @param String The file name.
+     * @return boolean
+     */
+    public static boolean isTar(String name)
+    {
+        String lower = name.toLowerCase();
+        return ( lower.endsWith(".tgz") || lower.endsWith(".tar.gz") || lower.endsWith(".tar") );
+    }
+
+    /**
+     * Returns the strings separated by commas.
+     *
+     * @param String[] The strings.
+     * @return String
+     */
+    protected static String toString(String[] s)
+    {
+        StringBuffer ret = new StringBuffer();
+        for (int i=0; i<s.length; i++)
+        {
+            if (i > 0) ret.append(",");
+            ret.append(s[i]);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Counts the bytes read through it and logs the progress every PROGRESS_INTERVAL.
+     */
+    protected class ProgressInputStream extends FilterInputStream
+    {
+        /** The catalog entry of the file. */
+        protected BackupCatalog.Entry _entry;
+        /** The number of bytes read. */
+        protected long _count = 0;
+        /** When reading started. */
+        protected long _start = System.currentTimeMillis();
+        /** When progress was last logged. */
+        protected long _logged = _start;
+
+        protected ProgressInputStream(InputStream in, BackupCatalog.Entry entry)
+        {
+            super(in);
+            _entry = entry;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1 ? -1 : b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int ret = in.read(b, off, len);
+            if (ret > 0) addCount(ret);
+            return ret;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long ret = in.skip(n);
+            if (ret > 0) addCount(ret);
+            return ret;
+        }
+
+        /**
+         * Returns at least the bytes left in the file. GZIPInputStream only looks for
+         * another member after the end of one if this is more than zero and the dedup
+         * store's stream does not know how much is left.
+         *
+         * @return int
+         */
+        public int available() throws IOException
+        {
+            long left = Math.max( 0, _entry.size-getCount() );
+            return (int)Math.min( Math.max(left, in.available()), Integer.MAX_VALUE );
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        protected synchronized void addCount(long n)
+        {
+            _count += n;
+            long now = System.currentTimeMillis();
+            if (now - _logged < PROGRESS_INTERVAL) return;
+            _logged = now;
+            long elapsed = now - _start;
+            _logger.log
+            (
+                "Restoring "+_entry.name+": "+_count+(_entry.size > 0 ? " of "+_entry.size+" bytes ("+(_count*100L/_entry.size)+"%)" : " bytes")+
+                ", "+(elapsed > 0 ? _count*1000L/elapsed : 0)+" bytes/sec"
+            );
+        }
+
+        protected synchronized long getCount()
+        {
+            return _count;
+        }
+    }
+}
\ No newline at end of file
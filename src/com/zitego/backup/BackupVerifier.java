@@ -0,0 +1,521 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks that the files in local backup directories still match the checksums
+ * recorded when they were retrieved and that gzipped files (.gz and .tgz) still
+ * decompress. The files are checked at the same time on a fixed number of threads.
+ * Each file is read once through memory mapped windows. The bytes are hashed and, for
+ * gzipped files, fully inflated without writing the output anywhere. Files in a dedup
+ * store are read back from their chunks. An encrypted file is decrypted with the
+ * keyfile of its directory, which checks the tag of every segment, before it is
+ * inflated. Without a keyfile only its checksum is checked. A rate limit on the bytes
+ * read keeps the check from starving a backup that is running at the same time.<br>
+ * <br>
+ * The expected SHA-256 comes from the catalog, or from the manifests if the catalog
+ * does not have it. In fast mode the CRC32 in the manifest is checked instead of the
+ * SHA-256 when there is one. Each file is recorded in RunMetrics as a verify stage and
+ * each bad file is added to its failures, so bad files show up in the same report_file
+ * and prom_file as a backup run.
+ *
+ * @see BackupManager#verify(int, double, boolean)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BackupVerifier
+{
+    /** The size of the windows files are mapped in. */
+    public static final int WINDOW_SIZE = 64*1024*1024;
+    /** The size of the buffer the bytes are read through. */
+    protected static final int BUFFER_SIZE = 1024*1024;
+
+    /** The logger. */
+    protected Logger _logger;
+    /** The number of files checked at the same time. */
+    protected int _threads;
+    /** The limit on bytes read per second. */
+    protected RateLimiter _bytes;
+    /** Whether the CRC32 is checked instead of the SHA-256 when there is one. */
+    protected boolean _fast = false;
+    /** The directories to check as { job, host, directory }. */
+    protected Vector _dirs = new Vector();
+    /** The keys encrypted files are decrypted with keyed by directory. */
+    protected Hashtable _keys = new Hashtable();
+    /** The number of bytes read. */
+    protected long _read = 0;
+
+    /**
+     * Creates a new verifier.
+     *
+     * @param Logger The logger.
+     * @param int The number of files to check at the same time or 0 or less for one per core.
+     * @param double The number of bytes that can be read per second or 0 for no limit.
+     */
+    public BackupVerifier(Logger logger, int threads, double bytesPerSecond)
+    {
+        _logger = logger;
+        _threads = (threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        _bytes = new RateLimiter(bytesPerSecond, Math.max(bytesPerSecond, BUFFER_SIZE));
+    }
+
+    /**
+     * Sets whether the CRC32 in the manifest is checked instead of the SHA-256 when
+     * there is one.
+     *
+     * @param boolean Whether to use the CRC32.
+     */
+    public void setFast(boolean fast)
+    {
+        _fast = fast;
+    }
+
+    /**
+     * Adds a local backup directory to check. A directory that was already added is
+     * ignored.
+     *
+     * @param String The properties file the directory belongs to.
+     * @param String The remote server or null.
+     * @param String The local backup directory.
+     * @throws IOException
+     */
+    public void add(String job, String host, String localBackupDir) throws IOException
+    {
+        add(job, host, localBackupDir, null);
+    }
+
+    /**
+     * Adds a local backup directory to check with the key its encrypted files are
+     * decrypted with. A directory that was already added is ignored.
+     *
+     * @param String The properties file the directory belongs to.
+     * @param String The remote server or null.
+     * @param String The local backup directory.
+     * @param EncryptionKey The key from the file retriever's keyfile or null if it has none.
+     * @throws IOException
+     */
+    public void add(String job, String host, String localBackupDir, EncryptionKey key) throws IOException
+    {
+        String dir = new File(localBackupDir).getCanonicalPath();
+        for (int i=0; i<_dirs.size(); i++)
+        {
+            if ( dir.equals(((String[])_dirs.get(i))[2]) ) return;
+        }
+        _dirs.add( new String[] { job, host, dir } );
+        if (key != null) _keys.put(dir, key);
+    }
+
+    /**
+     * Checks every file in the catalogs of the directories and returns the number of
+     * bad files.
+     *
+     * @return int
+     * @throws IOException if a catalog cannot be read.
+     * @throws InterruptedException if interrupted while waiting for the checks.
+     */
+    public int verify() throws IOException, InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(_threads);
+        Vector futures = new Vector();
+        int files = 0;
+        try
+        {
+            for (int i=0; i<_dirs.size(); i++)
+            {
+                final String[] dir = (String[])_dirs.get(i);
+                BackupCatalog.Entry[] entries = BackupCatalog.getInstance(dir[2]).getEntries();
+                final Hashtable manifest = RunManifest.read(dir[2]);
+                final DedupStore store = ( DedupStore.exists(dir[2]) ? DedupStore.getInstance(dir[2]) : null );
+                _logger.log("Verifying "+entries.length+" files in "+dir[2]);
+                for (int j=0; j<entries.length; j++)
+                {
+                    final BackupCatalog.Entry entry = entries[j];
+                    futures.add
+                    (
+                        pool.submit
+                        (
+                            new Callable()
+                            {
+                                public Object call()
+                                {
+                                    return Boolean.valueOf( verifyFile(dir[0], dir[1], dir[2], entry, manifest, store) );
+                                }
+                            }
+                        )
+                    );
+                    files++;
+                }
+            }
+            int ret = 0;
+            for (int i=0; i<futures.size(); i++)
+            {
+                try
+                {
+                    if ( !((Boolean)((Future)futures.get(i)).get()).booleanValue() ) ret++;
+                }
+                catch (ExecutionException ee)
+                {
+                    ret++;
+                }
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            _logger.log
+            (
+                "Verified "+files+" files ("+getBytesRead()+" bytes in "+elapsed+"ms, "+
+                (elapsed > 0 ? getBytesRead()*1000L/elapsed : 0)+" bytes/sec), "+ret+" bad"
+            );
+            return ret;
+        }
+        finally
+        {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Returns the number of bytes read.
+     *
+     * @return long
+     */
+    public synchronized long getBytesRead()
+    {
+        return _read;
+    }
+
+    /**
+     * Checks one file and records the result. Returns whether the file is good.
+     *
+     * @param String The properties file.
+     * @param String The remote server or null.
+     * @param String The local backup directory.
+     * @param BackupCatalog.Entry The catalog entry of the file.
+     * @param Hashtable The manifest entries of the directory keyed by name.
+     * @param DedupStore The dedup store of the directory or null if there is none.
+     * @return boolean
+     */
+    protected boolean verifyFile(String job, String host, String dir, BackupCatalog.Entry entry, Hashtable manifest, DedupStore store)
+    {
+        long start = System.currentTimeMillis();
+        String error = null;
+        try
+        {
+            error = check(dir, entry, (String[])manifest.get(entry.name), store);
+        }
+        catch (InterruptedIOException iioe)
+        {
+            error = "Interrupted";
+        }
+        catch (IOException ioe)
+        {
+            error = ioe.toString();
+        }
+        RunMetrics metrics = RunMetrics.getInstance();
+        metrics.record(job, host, entry.instruction, "verify", start, error == null);
+        if (error != null)
+        {
+            metrics.addFailure(job, host, entry.instruction, "verify", entry.name, error);
+            _logger.log("*** ERROR *** "+dir+File.separator+entry.name+": "+error);
+        }
+        return (error == null);
+    }
+
+    /**
+     * Reads the file and returns what is wrong with it or null if nothing is.
+     *
+     * @param String The local backup directory.
+     * @param BackupCatalog.Entry The catalog entry of the file.
+     * @param String[] The manifest entry of the file (size, sha256, crc32) or null if there is none.
+     * @param DedupStore The dedup store of the directory or null if there is none.
+     * @return String
+     * @throws IOException
+     */
+    protected String check(String dir, BackupCatalog.Entry entry, String[] manifest, DedupStore store) throws IOException
+    {
+        String sha256 = entry.sha256;
+        if ( BackupCatalog.UNKNOWN.equals(sha256) ) sha256 = (manifest != null ? manifest[1] : null);
+        String crc32 = ( _fast && manifest != null && !BackupCatalog.UNKNOWN.equals(manifest[2]) ? manifest[2] : null );
+        if (crc32 != null) sha256 = null;
+
+        InputStream in = null;
+        boolean encrypted = false;
+        File file = new File(dir, entry.name);
+        if ( file.isFile() )
+        {
+            if (entry.size >= 0 && file.length() != entry.size) return "Size is "+file.length()+", expected "+entry.size;
+            encrypted = EncryptionKey.isEncrypted(file);
+            in = new MappedFileInputStream(file);
+        }
+        else if ( store != null && store.getRecipe(entry.name).isFile() )
+        {
+            encrypted = EncryptionKey.isEncrypted( store.open(entry.name) );
+            in = store.open(entry.name);
+        }
+        else
+        {
+            return "File is missing";
+        }
+
+        EncryptionKey key = (EncryptionKey)_keys.get(dir);
+        if (encrypted && key == null)
+        {
+            _logger.log("*** WARNING *** "+dir+File.separator+entry.name+" is encrypted and there is no keyfile, only its checksum is checked");
+        }
+        CheckedInputStream checked = new CheckedInputStream(in, entry.size, sha256 != null, crc32 != null);
+        try
+        {
+            InputStream data = checked;
+            if (encrypted && key != null)
+            {
+                try
+                {
+                    data = new DecryptingInputStream( checked, key, ParallelGzipOutputStream.getPool(0) );
+                    //Decrypting checks the tag of every segment, so it is read through even if it is not gzipped
+                    if ( !isGzip(entry.name) )
+                    {
+                        byte[] buf = new byte[BUFFER_SIZE];
+                        while (data.read(buf) != -1) { }
+                    }
+                }
+                catch (IOException ioe)
+                {
+                    if (ioe instanceof InterruptedIOException) throw ioe;
+                    return "Does not decrypt: "+ioe.getMessage();
+                }
+            }
+            if ( isGzip(entry.name) && (!encrypted || key != null) )
+            {
+                try
+                {
+                    InputStream gz = new GZIPInputStream(data, BUFFER_SIZE);
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    while (gz.read(buf) != -1) { }
+                }
+                catch (IOException ioe)
+                {
+                    if (ioe instanceof InterruptedIOException) throw ioe;
+                    return "Does not decompress: "+ioe.getMessage();
+                }
+            }
+            //Read anything the inflater did not so the checksum covers the whole file
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (checked.read(buf) != -1) { }
+        }
+        finally
+        {
+            checked.close();
+            synchronized (this)
+            {
+                _read += checked.getCount();
+            }
+        }
+
+        //Files cataloged from the dedup store without checksums have no size
+        if (entry.size >= 0 && checked.getCount() != entry.size) return "Read "+checked.getCount()+" bytes, expected "+entry.size;
+        String actual = (crc32 != null ? checked.getCrc32() : null);
+        if ( crc32 != null && !crc32.equals(actual) ) return "CRC32 is "+actual+", expected "+crc32;
+        actual = (sha256 != null ? checked.getSha256() : null);
+        if ( sha256 != null && !sha256.equals(actual) ) return "SHA-256 is "+actual+", expected "+sha256;
+        if (sha256 == null && crc32 == null)
+        {
+            _logger.log
+            (
+                "*** WARNING *** No checksum for "+dir+File.separator+entry.name+", only "+
+                (entry.size >= 0 ? "its size was checked" : "that it can be read was checked")
+            );
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the file name is of a gzipped file.
+     *
+     * @param String The file name.
+     * @return boolean
+     */
+    protected boolean isGzip(String name)
+    {
+        String lower = name.toLowerCase();
+        return ( lower.endsWith(".gz") || lower.endsWith(".tgz") );
+    }
+
+    /**
+     * Hashes the bytes read through it and waits on the rate limit.
+     */
+    protected class CheckedInputStream extends FilterInputStream
+    {
+        /** The SHA-256 or null if it is not computed. */
+        protected MessageDigest _sha256;
+        /** The CRC32 or null if it is not computed. */
+        protected CRC32 _crc32;
+        /** The number of bytes read. */
+        protected long _count = 0;
+        /** The size of the file or -1 if it is not known. */
+        protected long _size;
+        /** Whether the end of the file was read. */
+        protected boolean _eof = false;
+
+        protected CheckedInputStream(InputStream in, long size, boolean sha256, boolean crc32) throws IOException
+        {
+            super(in);
+            _size = size;
+            if (sha256)
+            {
+                try
+                {
+                    _sha256 = MessageDigest.getInstance("SHA-256");
+                }
+                catch (NoSuchAlgorithmException nsae)
+                {
+                    throw new IOException( nsae.toString() );
+                }
+            }
+            if (crc32) _crc32 = new CRC32();
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1 ? -1 : b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int ret = in.read(b, off, len);
+            if (ret == -1) _eof = true;
+            if (ret > 0)
+            {
+                try
+                {
+                    _bytes.acquire(ret);
+                }
+                catch (InterruptedException ie)
+                {
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+                if (_sha256 != null) _sha256.update(b, off, ret);
+                if (_crc32 != null) _crc32.update(b, off, ret);
+                _count += ret;
+            }
+            return ret;
+        }
+
+        /**
+         * Returns the bytes left in the file or, if the size is not known, 1 until the
+         * end is read. GZIPInputStream only looks for another member after the end of
+         * one if this is more than zero.
+         *
+         * @return int
+         */
+        public int available()
+        {
+            if (_size < 0) return (_eof ? 0 : 1);
+            return (int)Math.min( Math.max(0, _size-_count), Integer.MAX_VALUE );
+        }
+
+        public long skip(long n) throws IOException
+        {
+            //Skipped bytes would not be hashed
+            byte[] b = new byte[(int)Math.min(n, BUFFER_SIZE)];
+            return Math.max( 0, read(b, 0, b.length) );
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        /**
+         * Returns the SHA-256 as a hex string. It can only be called once.
+         *
+         * @return String
+         */
+        protected String getSha256()
+        {
+            return BackupCatalog.toHex( _sha256.digest() );
+        }
+
+        protected String getCrc32()
+        {
+            String ret = Long.toHexString( _crc32.getValue() );
+            return "00000000".substring( ret.length() ) + ret;
+        }
+
+        protected long getCount()
+        {
+            return _count;
+        }
+    }
+
+    /**
+     * Reads a file through memory mapped windows so the data is paged in by the
+     * kernel without a read call for every buffer.
+     */
+    protected static class MappedFileInputStream extends InputStream
+    {
+        /** The file. */
+        protected FileInputStream _in;
+        /** The channel. */
+        protected FileChannel _channel;
+        /** The file size. */
+        protected long _size;
+        /** The position of the current window in the file. */
+        protected long _pos = 0;
+        /** The current window or null before the first read. */
+        protected MappedByteBuffer _window;
+
+        protected MappedFileInputStream(File file) throws IOException
+        {
+            _in = new FileInputStream(file);
+            _channel = _in.getChannel();
+            _size = _channel.size();
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1 ? -1 : b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) return 0;
+            if ( _window == null || !_window.hasRemaining() )
+            {
+                if (_window != null) _pos += _window.capacity();
+                if (_pos >= _size) return -1;
+                _window = _channel.map( FileChannel.MapMode.READ_ONLY, _pos, Math.min(WINDOW_SIZE, _size-_pos) );
+            }
+            int ret = Math.min( len, _window.remaining() );
+            _window.get(b, off, ret);
+            return ret;
+        }
+
+        public void close() throws IOException
+        {
+            _window = null;
+            _in.close();
+        }
+    }
+}
\ No newline at end of file
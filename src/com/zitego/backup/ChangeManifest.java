@@ -0,0 +1,412 @@
+package com.zitego.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A list of the files in an instruction's change_dir with their type, mode, size,
+ * modification time, and inode, used to tell whether anything changed since the
+ * instruction's last backup. The list is made with find on the server that has the
+ * directory and is one record per file:<br>
+ * type mode size mtime inode path<br>
+ * <br>
+ * The manifest of each dated file is kept in the local backup directory as the file
+ * .changes_[dated file name]. It is gzipped and its records end with a NUL so that
+ * any path can be stored. The first record is the chain of dated files the backup is
+ * restored from: the full backup first and the file itself last. An incremental
+ * backup only has the files that changed since the file before it in the chain, so
+ * the manifest also has the paths that were deleted since then.
+ *
+ * @see FileRetriever#planChanges(BackupInstruction)
+ * @see BackupRestorer
+ * @see ArchiveSchedule
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ChangeManifest
+{
+    /** The start of change manifest file names. */
+    public static final String FILE_PREFIX = ".changes_";
+    /** The find -printf format of a record. */
+    public static final String FIND_FORMAT = "%y\\t%m\\t%s\\t%T@\\t%i\\t%P\\0";
+    /** The start of the chain record. */
+    protected static final String CHAIN = "chain";
+    /** The start of a deleted path record. */
+    protected static final String DELETED = "-";
+
+    /** The dated file names the backup is restored from, full backup first. */
+    protected String[] _chain = new String[0];
+    /** The type, mode, size, mtime, and inode separated by tabs keyed by path. */
+    protected Hashtable _files = new Hashtable();
+    /** The paths deleted since the previous file in the chain. */
+    protected Vector _deleted = new Vector();
+
+    /**
+     * Returns the change manifest file of a dated file.
+     *
+     * @param localBackupDir The local backup directory.
+     * @param name The dated file name.
+     * @return File
+     */
+    public static File getFile(String localBackupDir, String name)
+    {
+        return new File(localBackupDir, FILE_PREFIX+name);
+    }
+
+    /**
+     * Reads the change manifest of a dated file or returns null if it has none.
+     *
+     * @param localBackupDir The local backup directory.
+     * @param name The dated file name.
+     * @return ChangeManifest
+     * @throws IOException if the manifest cannot be read.
+     */
+    public static ChangeManifest read(String localBackupDir, String name) throws IOException
+    {
+        File file = getFile(localBackupDir, name);
+        if ( !file.isFile() ) return null;
+        ChangeManifest ret = new ChangeManifest();
+        InputStream in = new BufferedInputStream( new GZIPInputStream(new FileInputStream(file)) );
+        try
+        {
+            OutputStream parser = ret.getParser();
+            byte[] buf = new byte[65536];
+            int len;
+            while ( (len=in.read(buf)) != -1 )
+            {
+                parser.write(buf, 0, len);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the chain of a dated file without reading the rest of its manifest or
+     * null if it has no manifest.
+     *
+     * @param localBackupDir The local backup directory.
+     * @param name The dated file name.
+     * @return String[]
+     * @throws IOException if the manifest cannot be read.
+     */
+    public static String[] readChain(String localBackupDir, String name) throws IOException
+    {
+        File file = getFile(localBackupDir, name);
+        if ( !file.isFile() ) return null;
+        InputStream in = new BufferedInputStream( new GZIPInputStream(new FileInputStream(file)) );
+        try
+        {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            int b;
+            while ( (b=in.read()) > 0 )
+            {
+                record.write(b);
+            }
+            String[] fields = record.toString("UTF-8").split("\t");
+            if ( !CHAIN.equals(fields[0]) ) throw new IOException(file+" does not start with a chain");
+            String[] ret = new String[fields.length-1];
+            System.arraycopy(fields, 1, ret, 0, ret.length);
+            return ret;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the dated file names that the backups depend on: every file in their
+     * chains except the backups themselves.
+     *
+     * @param localBackupDir The local backup directory.
+     * @param entries The catalog entries of the backups.
+     * @return Hashtable The dated file names as keys.
+     * @throws IOException if a manifest cannot be read.
+     */
+    public static Hashtable getDependencies(String localBackupDir, BackupCatalog.Entry[] entries) throws IOException
+    {
+        Hashtable ret = new Hashtable();
+        for (int i=0; i<entries.length; i++)
+        {
+            String[] chain = readChain(localBackupDir, entries[i].name);
+            for (int j=0; chain != null && j<chain.length-1; j++)
+            {
+                ret.put(chain[j], chain[j]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Deletes the change manifest of a dated file if it has one.
+     *
+     * @param localBackupDir The local backup directory.
+     * @param name The dated file name.
+     */
+    public static void delete(String localBackupDir, String name)
+    {
+        getFile(localBackupDir, name).delete();
+    }
+
+    /**
+     * Returns the find command that lists a directory in the manifest format.
+     *
+     * @param dir The directory.
+     * @return String[]
+     */
+    public static String[] getFindCommand(String dir)
+    {
+        return new String[] { "find", dir, "-mindepth", "1", "-printf", FIND_FORMAT };
+    }
+
+    /**
+     * Returns a stream that adds the records written to it. The output of the find
+     * command is written to it.
+     *
+     * @return OutputStream
+     */
+    public OutputStream getParser()
+    {
+        return new Parser();
+    }
+
+    /**
+     * Writes the manifest as the change manifest of the dated file. The file is
+     * replaced atomically.
+     *
+     * @param localBackupDir The local backup directory.
+     * @param name The dated file name.
+     * @throws IOException
+     */
+    public void write(String localBackupDir, String name) throws IOException
+    {
+        AtomicFileOutputStream file = new AtomicFileOutputStream( getFile(localBackupDir, name) );
+        try
+        {
+            GZIPOutputStream gzip = new GZIPOutputStream(file, 65536);
+            OutputStream out = new BufferedOutputStream(gzip, 65536);
+            StringBuffer chain = new StringBuffer(CHAIN);
+            for (int i=0; i<_chain.length; i++)
+            {
+                chain.append("\t").append(_chain[i]);
+            }
+            writeRecord( out, chain.toString() );
+            for (int i=0; i<_deleted.size(); i++)
+            {
+                writeRecord(out, DELETED+"\t"+_deleted.get(i));
+            }
+            for (Enumeration e=_files.keys(); e.hasMoreElements(); )
+            {
+                String path = (String)e.nextElement();
+                writeRecord(out, _files.get(path)+"\t"+path);
+            }
+            out.flush();
+            gzip.finish();
+            file.commit();
+        }
+        finally
+        {
+            file.abort();
+        }
+    }
+
+    /**
+     * Compares the manifest with the manifest of an earlier backup. Returns the
+     * sorted paths that are new or changed and sets the paths that were deleted. A
+     * file has changed if its type, mode, size, or modification time is different,
+     * or its inode if inodes are compared. A directory has changed if its type or
+     * mode is different, since its size and time change with what is in it.
+     *
+     * @param previous The manifest of the earlier backup.
+     * @param inodes Whether to compare inodes.
+     * @return String[]
+     */
+    public String[] compare(ChangeManifest previous, boolean inodes)
+    {
+        Vector changed = new Vector();
+        for (Enumeration e=_files.keys(); e.hasMoreElements(); )
+        {
+            String path = (String)e.nextElement();
+            String before = (String)previous._files.get(path);
+            if ( before == null || !isSame((String)_files.get(path), before, inodes) ) changed.add(path);
+        }
+        String[] deleted = new String[0];
+        Vector tmp = new Vector();
+        for (Enumeration e=previous._files.keys(); e.hasMoreElements(); )
+        {
+            String path = (String)e.nextElement();
+            if ( !_files.containsKey(path) ) tmp.add(path);
+        }
+        setDeleted( (String[])tmp.toArray(deleted) );
+        String[] ret = new String[changed.size()];
+        changed.copyInto(ret);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /**
+     * Returns whether two records are the same.
+     *
+     * @param a The type, mode, size, mtime, and inode of one record.
+     * @param b The same of the other record.
+     * @param inodes Whether to compare inodes.
+     * @return boolean
+     */
+    protected boolean isSame(String a, String b, boolean inodes)
+    {
+        String[] x = a.split("\t");
+        String[] y = b.split("\t");
+        if ( x.length != 5 || y.length != 5 || !x[0].equals(y[0]) || !x[1].equals(y[1]) ) return false;
+        if ( "d".equals(x[0]) ) return true;
+        return ( x[2].equals(y[2]) && x[3].equals(y[3]) && (!inodes || x[4].equals(y[4])) );
+    }
+
+    /**
+     * Returns the chain of dated files the backup is restored from.
+     *
+     * @return String[]
+     */
+    public String[] getChain()
+    {
+        return _chain;
+    }
+
+    /**
+     * Sets the chain of dated files the backup is restored from.
+     *
+     * @param chain The dated file names, full backup first.
+     */
+    public void setChain(String[] chain)
+    {
+        _chain = chain;
+    }
+
+    /**
+     * Returns the paths deleted since the previous file in the chain.
+     *
+     * @return String[]
+     */
+    public String[] getDeleted()
+    {
+        String[] ret = new String[_deleted.size()];
+        _deleted.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Sets the paths deleted since the previous file in the chain.
+     *
+     * @param deleted The paths.
+     */
+    public void setDeleted(String[] deleted)
+    {
+        String[] tmp = deleted.clone();
+        Arrays.sort(tmp);
+        _deleted = new Vector( Arrays.asList(tmp) );
+    }
+
+    /**
+     * Returns the number of files in the manifest.
+     *
+     * @return int
+     */
+    public int size()
+    {
+        return _files.size();
+    }
+
+    /**
+     * Adds a record.
+     *
+     * @param record The record without its NUL.
+     */
+    protected void addRecord(String record)
+    {
+        if ( record.startsWith(CHAIN+"\t") || record.equals(CHAIN) )
+        {
+            String[] fields = record.split("\t");
+            _chain = new String[fields.length-1];
+            System.arraycopy(fields, 1, _chain, 0, _chain.length);
+            return;
+        }
+        else if ( record.startsWith(DELETED+"\t") )
+        {
+            _deleted.add( record.substring(DELETED.length()+1) );
+            return;
+        }
+        //The path is last and can have tabs in it
+        int end = -1;
+        for (int i=0; i<5; i++)
+        {
+            end = record.indexOf('\t', end+1);
+            if (end == -1) return;
+        }
+        String path = record.substring(end+1);
+        if (path.length() > 0) _files.put( path, record.substring(0, end) );
+    }
+
+    /**
+     * Writes a record followed by a NUL.
+     *
+     * @param out The stream.
+     * @param record The record.
+     * @throws IOException
+     */
+    protected static void writeRecord(OutputStream out, String record) throws IOException
+    {
+        out.write( record.getBytes("UTF-8") );
+        out.write(0);
+    }
+
+    /**
+     * Splits what is written to it into records at each NUL and adds them.
+     */
+    protected class Parser extends OutputStream
+    {
+        /** The record being read. */
+        protected ByteArrayOutputStream _record = new ByteArrayOutputStream();
+
+        public void write(int b) throws IOException
+        {
+            if (b == 0)
+            {
+                addRecord( _record.toString("UTF-8") );
+                _record.reset();
+            }
+            else
+            {
+                _record.write(b);
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            int start = off;
+            for (int i=off; i<off+len; i++)
+            {
+                if (b[i] != 0) continue;
+                _record.write(b, start, i-start);
+                addRecord( _record.toString("UTF-8") );
+                _record.reset();
+                start = i+1;
+            }
+            _record.write(b, start, off+len-start);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Computes the SHA-256 (and optionally the CRC32) of the bytes written to it as
+ * they pass through to another stream, so a retrieved file does not have to be read
+ * a second time to get its checksum. The underlying stream can be null to only
+ * compute the checksums. commit and abort pass through to the underlying stream.
+ *
+ * @see FileRetriever#streamToFile(BackupInstruction, String[], File, long)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ChecksumOutputStream extends BackupOutputStream
+{
+    /** The stream to write to or null. */
+    protected BackupOutputStream _out;
+    /** The SHA-256 digest. */
+    protected MessageDigest _sha256;
+    /** The CRC32 or null if it is not computed. */
+    protected CRC32 _crc32;
+    /** The number of bytes written. */
+    protected long _bytes = 0;
+    /** The SHA-256 as a hex string once it is finished. */
+    protected String _sha256Hex;
+    /** The array the bytes of direct buffers are copied into for the CRC32 and the underlying stream. */
+    protected byte[] _scratch;
+
+    /**
+     * Returns the checksums of a file.
+     *
+     * @param file The file.
+     * @param crc32 Whether to compute the CRC32 too.
+     * @return ChecksumOutputStream
+     * @throws IOException
+     */
+    public static ChecksumOutputStream checksum(File file, boolean crc32) throws IOException
+    {
+        ChecksumOutputStream ret = new ChecksumOutputStream(null, crc32);
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buf = new byte[256*1024];
+            int len;
+            while ( (len=in.read(buf)) != -1 )
+            {
+                ret.write(buf, 0, len);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Creates a new stream.
+     *
+     * @param out The stream to write to or null to only compute the checksums.
+     * @param crc32 Whether to compute the CRC32 too.
+     */
+    public ChecksumOutputStream(BackupOutputStream out, boolean crc32)
+    {
+        _out = out;
+        try
+        {
+            _sha256 = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            throw new RuntimeException(nsae);
+        }
+        if (crc32) _crc32 = new CRC32();
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        _sha256.update(b, off, len);
+        if (_crc32 != null) _crc32.update(b, off, len);
+        _bytes += len;
+        if (_out != null) _out.write(b, off, len);
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer. If only the SHA-256 is computed, then
+     * the bytes of a direct buffer are digested where they are. Otherwise they are
+     * copied out in pieces.
+     *
+     * @param buf The buffer.
+     * @throws IOException
+     */
+    public void write(ByteBuffer buf) throws IOException
+    {
+        if ( buf.hasArray() )
+        {
+            write( buf.array(), buf.arrayOffset()+buf.position(), buf.remaining() );
+            buf.position( buf.limit() );
+        }
+        else if (_crc32 == null && _out == null)
+        {
+            _bytes += buf.remaining();
+            _sha256.update(buf);
+        }
+        else
+        {
+            if (_scratch == null) _scratch = new byte[64*1024];
+            while ( buf.hasRemaining() )
+            {
+                int len = Math.min( _scratch.length, buf.remaining() );
+                buf.get(_scratch, 0, len);
+                write(_scratch, 0, len);
+            }
+        }
+    }
+
+    public void commit() throws IOException
+    {
+        if (_out != null) _out.commit();
+    }
+
+    public void abort()
+    {
+        if (_out != null) _out.abort();
+    }
+
+    /**
+     * Returns the SHA-256 of everything written as a hex string. Nothing more can be
+     * written once this is called.
+     *
+     * @return String
+     */
+    public String getSha256()
+    {
+        if (_sha256Hex == null) _sha256Hex = BackupCatalog.toHex( _sha256.digest() );
+        return _sha256Hex;
+    }
+
+    /**
+     * Returns the CRC32 of everything written as a hex string or null if it is not
+     * computed.
+     *
+     * @return String
+     */
+    public String getCrc32()
+    {
+        if (_crc32 == null) return null;
+        String ret = Long.toHexString( _crc32.getValue() );
+        return "00000000".substring( ret.length() ) + ret;
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return long
+     */
+    public long getBytes()
+    {
+        return _bytes;
+    }
+}
\ No newline at end of file
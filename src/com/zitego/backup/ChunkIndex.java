@@ -0,0 +1,424 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A hash table of the chunks in a dedup store kept in a memory mapped file so that
+ * it does not use heap memory no matter how many chunks there are. The operating
+ * system pages in the parts of the table that are being used. Each slot is 64 bytes
+ * and holds the SHA-256 digest of a chunk, the pack it is in, its offset and
+ * length in the pack, and the number of recipes that reference it. Slots are found
+ * by linear probing from the first 8 bytes of the digest. The table is doubled
+ * when it is 70% full.<br>
+ * <br>
+ * The file is mapped in segments of at most 1GB so the table can be larger than a
+ * single mapping allows.
+ *
+ * @see DedupStore
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ChunkIndex
+{
+    /** The size of a slot in bytes. */
+    public static final int SLOT_SIZE = 64;
+    /** The size of the file header in bytes. */
+    protected static final int HEADER_SIZE = 64;
+    /** The magic number at the start of the file. */
+    protected static final int MAGIC = 0x42494458;
+    /** The number of slots in a mapped segment. */
+    protected static final int SEGMENT_SLOTS = 1 << 24;
+    /** A slot that has never been used. */
+    public static final int EMPTY = 0;
+    /** A slot holding a chunk. */
+    public static final int USED = 1;
+    /** A slot whose chunk was removed. */
+    public static final int DELETED = 2;
+    /** Slot field offsets. */
+    protected static final int DIGEST = 0, PACK = 32, LENGTH = 36, OFFSET = 40, REFS = 48, STATE = 52;
+
+    /** The index file. */
+    protected File _file;
+    /** The open file. */
+    protected RandomAccessFile _raf;
+    /** The mapped header. */
+    protected MappedByteBuffer _header;
+    /** The mapped slot segments. */
+    protected MappedByteBuffer[] _segments;
+    /** The number of slots. */
+    protected long _capacity;
+    /** The number of used slots. */
+    protected long _count;
+    /** The number of deleted slots. */
+    protected long _deleted;
+
+    /**
+     * Opens the index file, creating it with the initial capacity if it does not exist.
+     *
+     * @param file The index file.
+     * @param initialCapacity The initial number of slots (rounded up to a power of 2).
+     * @throws IOException
+     */
+    public ChunkIndex(File file, long initialCapacity) throws IOException
+    {
+        _file = file;
+        if ( !file.exists() ) create(file, initialCapacity);
+        map();
+    }
+
+    /**
+     * Creates an empty index file.
+     *
+     * @param file The file.
+     * @param capacity The number of slots (rounded up to a power of 2).
+     * @throws IOException
+     */
+    protected static void create(File file, long capacity) throws IOException
+    {
+        long cap = 1024;
+        while (cap < capacity) cap <<= 1;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(HEADER_SIZE + cap*SLOT_SIZE);
+            raf.writeInt(MAGIC);
+            raf.writeInt(1);
+            raf.writeLong(cap);
+            raf.writeLong(0);
+            raf.writeLong(0);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps the index file.
+     *
+     * @throws IOException
+     */
+    protected void map() throws IOException
+    {
+        _raf = new RandomAccessFile(_file, "rw");
+        FileChannel ch = _raf.getChannel();
+        _header = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (_header.getInt(0) != MAGIC) throw new IOException("Not a chunk index: "+_file);
+        _capacity = _header.getLong(8);
+        _count = _header.getLong(16);
+        _deleted = _header.getLong(24);
+        int segs = (int)( (_capacity+SEGMENT_SLOTS-1) / SEGMENT_SLOTS );
+        _segments = new MappedByteBuffer[segs];
+        for (int i=0; i<segs; i++)
+        {
+            long slots = Math.min(SEGMENT_SLOTS, _capacity - (long)i*SEGMENT_SLOTS);
+            _segments[i] = ch.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long)i*SEGMENT_SLOTS*SLOT_SIZE, slots*SLOT_SIZE);
+        }
+    }
+
+    /**
+     * Returns the slot holding the chunk with the digest or -1 if there is none.
+     *
+     * @param digest The chunk digest.
+     * @return long
+     */
+    public long find(byte[] digest)
+    {
+        long mask = _capacity - 1;
+        for (long slot=hash(digest)&mask, i=0; i<_capacity; slot=(slot+1)&mask, i++)
+        {
+            int state = getState(slot);
+            if (state == EMPTY) return -1;
+            if ( state == USED && digestEquals(slot, digest) ) return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a chunk with a reference count of zero. The chunk must not already be
+     * in the index.
+     *
+     * @param digest The chunk digest.
+     * @param pack The pack number.
+     * @param offset The offset of the chunk data in the pack.
+     * @param length The chunk length.
+     * @return long The slot.
+     * @throws IOException if the index needs to grow and cannot.
+     */
+    public long add(byte[] digest, int pack, long offset, int length) throws IOException
+    {
+        if ( (_count+_deleted+1)*10 > _capacity*7 ) rehash(_count*4 > _capacity ? _capacity*2 : _capacity);
+        long mask = _capacity - 1;
+        long slot = hash(digest) & mask;
+        int state;
+        while ( (state=getState(slot)) == USED )
+        {
+            slot = (slot+1) & mask;
+        }
+        if (state == DELETED) _deleted--;
+        MappedByteBuffer seg = segment(slot);
+        int pos = position(slot);
+        for (int i=0; i<32; i++)
+        {
+            seg.put(pos+DIGEST+i, digest[i]);
+        }
+        seg.putInt(pos+PACK, pack);
+        seg.putInt(pos+LENGTH, length);
+        seg.putLong(pos+OFFSET, offset);
+        seg.putInt(pos+REFS, 0);
+        seg.putInt(pos+STATE, USED);
+        _count++;
+        writeCounts();
+        return slot;
+    }
+
+    /**
+     * Removes the chunk in the slot.
+     *
+     * @param slot The slot.
+     */
+    public void remove(long slot)
+    {
+        segment(slot).putInt(position(slot)+STATE, DELETED);
+        _count--;
+        _deleted++;
+        writeCounts();
+    }
+
+    /**
+     * Rebuilds the table with the new capacity into a new file and replaces the old
+     * file with it. Deleted slots are dropped.
+     *
+     * @param capacity The new number of slots.
+     * @throws IOException
+     */
+    protected void rehash(long capacity) throws IOException
+    {
+        File tmp = new File( _file.getParentFile(), _file.getName()+".new" );
+        tmp.delete();
+        create(tmp, capacity);
+        ChunkIndex idx = new ChunkIndex(tmp, capacity);
+        byte[] digest = new byte[32];
+        for (long slot=0; slot<_capacity; slot++)
+        {
+            if (getState(slot) != USED) continue;
+            getDigest(slot, digest);
+            long to = idx.add( digest, getPack(slot), getOffset(slot), getLength(slot) );
+            idx.setRefs( to, getRefs(slot) );
+        }
+        idx.force();
+        idx.close();
+        close();
+        if ( !tmp.renameTo(_file) ) throw new IOException("Could not replace "+_file);
+        map();
+    }
+
+    /**
+     * Returns the number of slots.
+     *
+     * @return long
+     */
+    public long getCapacity()
+    {
+        return _capacity;
+    }
+
+    /**
+     * Returns the number of chunks.
+     *
+     * @return long
+     */
+    public long getCount()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns the state of the slot (EMPTY, USED, or DELETED).
+     *
+     * @param slot The slot.
+     * @return int
+     */
+    public int getState(long slot)
+    {
+        return segment(slot).getInt(position(slot)+STATE);
+    }
+
+    /**
+     * Copies the digest of the chunk in the slot into the array.
+     *
+     * @param slot The slot.
+     * @param digest The 32 byte array to copy into.
+     */
+    public void getDigest(long slot, byte[] digest)
+    {
+        MappedByteBuffer seg = segment(slot);
+        int pos = position(slot);
+        for (int i=0; i<32; i++)
+        {
+            digest[i] = seg.get(pos+DIGEST+i);
+        }
+    }
+
+    /**
+     * Returns the pack number of the chunk in the slot.
+     *
+     * @param slot The slot.
+     * @return int
+     */
+    public int getPack(long slot)
+    {
+        return segment(slot).getInt(position(slot)+PACK);
+    }
+
+    /**
+     * Returns the offset of the chunk data in its pack.
+     *
+     * @param slot The slot.
+     * @return long
+     */
+    public long getOffset(long slot)
+    {
+        return segment(slot).getLong(position(slot)+OFFSET);
+    }
+
+    /**
+     * Returns the length of the chunk in the slot.
+     *
+     * @param slot The slot.
+     * @return int
+     */
+    public int getLength(long slot)
+    {
+        return segment(slot).getInt(position(slot)+LENGTH);
+    }
+
+    /**
+     * Returns the number of recipes that reference the chunk in the slot.
+     *
+     * @param slot The slot.
+     * @return int
+     */
+    public int getRefs(long slot)
+    {
+        return segment(slot).getInt(position(slot)+REFS);
+    }
+
+    /**
+     * Sets the number of recipes that reference the chunk in the slot.
+     *
+     * @param slot The slot.
+     * @param refs The reference count.
+     */
+    public void setRefs(long slot, int refs)
+    {
+        segment(slot).putInt(position(slot)+REFS, refs);
+    }
+
+    /**
+     * Moves the chunk in the slot to a new pack and offset.
+     *
+     * @param slot The slot.
+     * @param pack The pack number.
+     * @param offset The offset in the pack.
+     */
+    public void move(long slot, int pack, long offset)
+    {
+        MappedByteBuffer seg = segment(slot);
+        int pos = position(slot);
+        seg.putInt(pos+PACK, pack);
+        seg.putLong(pos+OFFSET, offset);
+    }
+
+    /**
+     * Writes the changes to disk.
+     */
+    public void force()
+    {
+        _header.force();
+        for (int i=0; i<_segments.length; i++)
+        {
+            _segments[i].force();
+        }
+    }
+
+    /**
+     * Closes the index file. The mappings are released when they are garbage collected.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        if (_raf != null) _raf.close();
+        _raf = null;
+    }
+
+    /**
+     * Writes the chunk counts to the header.
+     */
+    protected void writeCounts()
+    {
+        _header.putLong(16, _count);
+        _header.putLong(24, _deleted);
+    }
+
+    /**
+     * Returns whether the chunk in the slot has the digest.
+     *
+     * @param slot The slot.
+     * @param digest The digest.
+     * @return boolean
+     */
+    protected boolean digestEquals(long slot, byte[] digest)
+    {
+        MappedByteBuffer seg = segment(slot);
+        int pos = position(slot);
+        for (int i=0; i<32; i++)
+        {
+            if (seg.get(pos+DIGEST+i) != digest[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the mapped segment that holds the slot.
+     *
+     * @param slot The slot.
+     * @return MappedByteBuffer
+     */
+    protected MappedByteBuffer segment(long slot)
+    {
+        return _segments[(int)(slot / SEGMENT_SLOTS)];
+    }
+
+    /**
+     * Returns the position of the slot in its segment.
+     *
+     * @param slot The slot.
+     * @return int
+     */
+    protected int position(long slot)
+    {
+        return (int)(slot % SEGMENT_SLOTS) * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the hash of a digest which is its first 8 bytes.
+     *
+     * @param digest The digest.
+     * @return long
+     */
+    protected static long hash(byte[] digest)
+    {
+        long ret = 0;
+        for (int i=0; i<8; i++)
+        {
+            ret = (ret << 8) | (digest[i] & 0xff);
+        }
+        return ret & Long.MAX_VALUE;
+    }
+}
\ No newline at end of file
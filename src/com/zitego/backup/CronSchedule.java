@@ -0,0 +1,248 @@
+package com.zitego.backup;
+
+import java.util.BitSet;
+import java.util.Calendar;
+
+/**
+ * A cron style schedule. The expression has five fields separated by spaces:<br>
+ * minute hour day_of_month month day_of_week<br>
+ * <br>
+ * A sixth field for seconds can be added to the front to run more often than once
+ * a minute. Each field is a comma delimited list of values, ranges (a-b), and steps
+ * (a-b/n or *&#47;n). Months and days of the week can be given by their three letter
+ * names and Sunday is 0 or 7. Like cron, when both the day of the month and the
+ * day of the week are restricted, a day matching either one matches. &#64;yearly,
+ * &#64;monthly, &#64;weekly, &#64;daily, and &#64;hourly are also accepted.<br>
+ * <br>
+ * Examples:<br>
+ * 30 2 * * * - Every day at 2:30am.<br>
+ * 0 1 * * mon-fri - Weekdays at 1:00am.<br>
+ * *&#47;15 * * * * * - Every 15 seconds.
+ *
+ * @see BackupDaemon
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class CronSchedule
+{
+    /** The names of the months. */
+    protected static final String[] MONTHS = { "jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec" };
+    /** The names of the days of the week. */
+    protected static final String[] DAYS = { "sun", "mon", "tue", "wed", "thu", "fri", "sat" };
+    /** How far ahead (in years) next looks before giving up. */
+    protected static final int MAX_YEARS = 5;
+
+    /** The expression. */
+    protected String _expression;
+    /** The seconds. */
+    protected BitSet _seconds;
+    /** The minutes. */
+    protected BitSet _minutes;
+    /** The hours. */
+    protected BitSet _hours;
+    /** The days of the month. */
+    protected BitSet _days;
+    /** The months (1-12). */
+    protected BitSet _months;
+    /** The days of the week (0-6 with 0 being Sunday). */
+    protected BitSet _weekdays;
+    /** Whether the day of the month is restricted. */
+    protected boolean _daysRestricted;
+    /** Whether the day of the week is restricted. */
+    protected boolean _weekdaysRestricted;
+
+    /**
+     * Creates a new schedule from the expression.
+     *
+     * @param String The expression.
+     * @throws IllegalArgumentException if the expression is not valid.
+     */
+    public CronSchedule(String expression)
+    {
+        _expression = expression.trim();
+        String expr = _expression;
+        if ( "@yearly".equals(expr) || "@annually".equals(expr) ) expr = "0 0 1 1 *";
+        else if ( "@monthly".equals(expr) ) expr = "0 0 1 * *";
+        else if ( "@weekly".equals(expr) ) expr = "0 0 * * 0";
+        else if ( "@daily".equals(expr) || "@midnight".equals(expr) ) expr = "0 0 * * *";
+        else if ( "@hourly".equals(expr) ) expr = "0 * * * *";
+
+        String[] fields = expr.split("\\s+");
+        if (fields.length != 5 && fields.length != 6)
+        {
+            throw new IllegalArgumentException("Schedule must have 5 or 6 fields: "+expression);
+        }
+        int i = 0;
+        _seconds = (fields.length == 6 ? parseField(fields[i++], 0, 59, null) : parseField("0", 0, 59, null));
+        _minutes = parseField(fields[i++], 0, 59, null);
+        _hours = parseField(fields[i++], 0, 23, null);
+        _daysRestricted = !fields[i].startsWith("*");
+        _days = parseField(fields[i++], 1, 31, null);
+        _months = parseField(fields[i++], 1, 12, MONTHS);
+        _weekdaysRestricted = !fields[i].startsWith("*");
+        _weekdays = parseField(fields[i++], 0, 7, DAYS);
+        if ( _weekdays.get(7) ) _weekdays.set(0);
+    }
+
+    /**
+     * Parses one field into the set of values it matches.
+     *
+     * @param String The field.
+     * @param int The smallest value.
+     * @param int The largest value.
+     * @param String[] The names of the values starting at min or null if they have no names.
+     * @return BitSet
+     * @throws IllegalArgumentException if the field is not valid.
+     */
+    protected BitSet parseField(String field, int min, int max, String[] names)
+    {
+        BitSet ret = new BitSet(max+1);
+        String[] parts = field.split(",");
+        for (int i=0; i<parts.length; i++)
+        {
+            String part = parts[i];
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash != -1)
+            {
+                step = parseValue(part.substring(slash+1), 1, max, null);
+                part = part.substring(0, slash);
+            }
+            int from = min;
+            int to = max;
+            if ( !"*".equals(part) )
+            {
+                int dash = part.indexOf('-');
+                if (dash != -1)
+                {
+                    from = parseValue(part.substring(0, dash), min, max, names);
+                    to = parseValue(part.substring(dash+1), min, max, names);
+                }
+                else
+                {
+                    from = parseValue(part, min, max, names);
+                    to = (slash != -1 ? max : from);
+                }
+            }
+            if (from > to) throw new IllegalArgumentException("Invalid range in schedule: "+field);
+            for (int j=from; j<=to; j+=step)
+            {
+                ret.set(j);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parses a single value or name.
+     *
+     * @param String The value.
+     * @param int The smallest value.
+     * @param int The largest value.
+     * @param String[] The names of the values starting at min or null if they have no names.
+     * @return int
+     * @throws IllegalArgumentException if the value is not valid.
+     */
+    protected int parseValue(String val, int min, int max, String[] names)
+    {
+        if (names != null)
+        {
+            for (int i=0; i<names.length; i++)
+            {
+                if ( names[i].equalsIgnoreCase(val) ) return (names == MONTHS ? i+1 : i);
+            }
+        }
+        try
+        {
+            int ret = Integer.parseInt(val);
+            if (ret < min || ret > max) throw new IllegalArgumentException("Value out of range in schedule: "+val);
+            return ret;
+        }
+        catch (NumberFormatException nfe)
+        {
+            throw new IllegalArgumentException("Invalid value in schedule: "+val);
+        }
+    }
+
+    /**
+     * Returns the first time after the given time that matches the schedule or -1
+     * if there is none in the next few years.
+     *
+     * @param long The time in milliseconds.
+     * @return long
+     */
+    public long next(long after)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(after);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.SECOND, 1);
+        int maxYear = cal.get(Calendar.YEAR) + MAX_YEARS;
+        while (cal.get(Calendar.YEAR) <= maxYear)
+        {
+            if ( !_months.get(cal.get(Calendar.MONTH)+1) )
+            {
+                cal.add(Calendar.MONTH, 1);
+                cal.set(Calendar.DAY_OF_MONTH, 1);
+                startOfDay(cal);
+            }
+            else if ( !dayMatches(cal) )
+            {
+                cal.add(Calendar.DAY_OF_MONTH, 1);
+                startOfDay(cal);
+            }
+            else if ( !_hours.get(cal.get(Calendar.HOUR_OF_DAY)) )
+            {
+                cal.add(Calendar.HOUR_OF_DAY, 1);
+                cal.set(Calendar.MINUTE, 0);
+                cal.set(Calendar.SECOND, 0);
+            }
+            else if ( !_minutes.get(cal.get(Calendar.MINUTE)) )
+            {
+                cal.add(Calendar.MINUTE, 1);
+                cal.set(Calendar.SECOND, 0);
+            }
+            else if ( !_seconds.get(cal.get(Calendar.SECOND)) )
+            {
+                cal.add(Calendar.SECOND, 1);
+            }
+            else
+            {
+                return cal.getTimeInMillis();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the day of the calendar matches the day of the month and day of
+     * the week fields.
+     *
+     * @param Calendar The calendar.
+     * @return boolean
+     */
+    protected boolean dayMatches(Calendar cal)
+    {
+        boolean day = _days.get( cal.get(Calendar.DAY_OF_MONTH) );
+        boolean weekday = _weekdays.get( cal.get(Calendar.DAY_OF_WEEK)-1 );
+        if (_daysRestricted && _weekdaysRestricted) return (day || weekday);
+        return (day && weekday);
+    }
+
+    /**
+     * Sets the calendar to midnight.
+     *
+     * @param Calendar The calendar.
+     */
+    protected void startOfDay(Calendar cal)
+    {
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+    }
+
+    public String toString()
+    {
+        return _expression;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,383 @@
+package com.zitego.backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Decrypts a file in the segmented AES-GCM format of EncryptionKey as it is read.
+ * The encrypted segments are read in order and decrypted ahead of the reader on a
+ * fork join pool, at most two segments per thread at a time. Every segment's tag is
+ * checked before its bytes are returned, so damaged or cut short files fail with an
+ * IOException instead of returning bad data.<br>
+ * <br>
+ * If the file is read from a FileChannel, then seek and skip jump straight to the
+ * segment holding the new position without reading or decrypting the segments in
+ * between.
+ *
+ * @see EncryptionKey
+ * @see EncryptingOutputStream
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class DecryptingInputStream extends InputStream
+{
+    /** The stream the file is read from or null if it is read from a channel. */
+    protected InputStream _in;
+    /** The channel the file is read from or null if it is read from a stream. */
+    protected FileChannel _channel;
+    /** The position in the channel of the next encrypted segment. */
+    protected long _channelPos = 0;
+    /** The cipher of the file. */
+    protected EncryptionKey.SegmentCipher _cipher;
+    /** The pool that decrypts the segments. */
+    protected ForkJoinPool _pool;
+    /** The segments being decrypted in order. */
+    protected Vector _pending = new Vector();
+    /** The most segments that can be pending. */
+    protected int _maxPending;
+    /** The number of the next segment to read. */
+    protected long _next = 0;
+    /** The segment that was read but not submitted since it is not known whether it is the last. */
+    protected byte[] _held;
+    /** The number of bytes in the held segment. */
+    protected int _heldLen = 0;
+    /** Whether every segment was read. */
+    protected boolean _eof = false;
+    /** The plain bytes of the current segment. */
+    protected byte[] _segment = new byte[0];
+    /** The position in the current segment. */
+    protected int _pos = 0;
+    /** The position in the file of the start of the current segment. */
+    protected long _offset = 0;
+    /** Whether the current segment is the last one. */
+    protected boolean _last = false;
+
+    /**
+     * Creates a stream that reads the encrypted file from a stream.
+     *
+     * @param in The stream.
+     * @param key The key.
+     * @param pool The pool to decrypt on.
+     * @throws IOException if the header cannot be read or is not of an encrypted file.
+     */
+    public DecryptingInputStream(InputStream in, EncryptionKey key, ForkJoinPool pool) throws IOException
+    {
+        _in = in;
+        init(key, pool);
+    }
+
+    /**
+     * Creates a seekable stream that reads the encrypted file from a channel.
+     *
+     * @param channel The channel.
+     * @param key The key.
+     * @param pool The pool to decrypt on.
+     * @throws IOException if the header cannot be read or is not of an encrypted file.
+     */
+    public DecryptingInputStream(FileChannel channel, EncryptionKey key, ForkJoinPool pool) throws IOException
+    {
+        _channel = channel;
+        init(key, pool);
+    }
+
+    /**
+     * Reads the header.
+     *
+     * @param key The key.
+     * @param pool The pool to decrypt on.
+     * @throws IOException
+     */
+    protected void init(EncryptionKey key, ForkJoinPool pool) throws IOException
+    {
+        _pool = pool;
+        _maxPending = pool.getParallelism() * 2;
+        byte[] header = new byte[EncryptionKey.HEADER_SIZE];
+        _cipher = key.getCipher( readFully(header) == header.length ? header : new byte[0] );
+    }
+
+    public int read() throws IOException
+    {
+        if ( !fill() ) return -1;
+        return _segment[_pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        if ( !fill() ) return -1;
+        int n = Math.min(len, _segment.length-_pos);
+        System.arraycopy(_segment, _pos, b, off, n);
+        _pos += n;
+        return n;
+    }
+
+    /**
+     * Skips bytes. If the file is read from a channel, then the segments skipped over
+     * are not read.
+     *
+     * @param n The number of bytes to skip.
+     * @return long The number of bytes skipped.
+     * @throws IOException
+     */
+    public long skip(long n) throws IOException
+    {
+        if (n <= 0) return 0;
+        if (_channel == null || n <= _segment.length-_pos) return super.skip(n);
+        long start = getPosition();
+        seek( Math.min(start+n, getSize()) );
+        return getPosition() - start;
+    }
+
+    /**
+     * Returns the bytes left in the current segment or, if it is used up, 1 if there
+     * are more segments. GZIPInputStream only looks for another gzip member if this is
+     * more than 0.
+     *
+     * @return int
+     */
+    public int available()
+    {
+        if (_pos < _segment.length) return _segment.length-_pos;
+        return (_last ? 0 : 1);
+    }
+
+    public void close() throws IOException
+    {
+        cancel();
+        if (_in != null) _in.close();
+        if (_channel != null) _channel.close();
+    }
+
+    /**
+     * Returns the position in the plain file of the next byte that will be read.
+     *
+     * @return long
+     */
+    public long getPosition()
+    {
+        return _offset + _pos;
+    }
+
+    /**
+     * Returns the size of the plain file. It is only known if the file is read from
+     * a channel.
+     *
+     * @return long
+     * @throws IOException if the file is read from a stream or is not the size of an encrypted file.
+     */
+    public long getSize() throws IOException
+    {
+        if (_channel == null) throw new IOException("The size is not known when reading from a stream");
+        long data = _channel.size() - EncryptionKey.HEADER_SIZE;
+        long segment = _cipher.getSegmentSize() + EncryptionKey.TAG_SIZE;
+        long segments = (data + segment - 1) / segment;
+        long last = data - (segments-1)*segment;
+        if (segments == 0 || last < EncryptionKey.TAG_SIZE) throw new IOException("The encrypted file is cut short");
+        return data - segments*EncryptionKey.TAG_SIZE;
+    }
+
+    /**
+     * Moves to a position in the plain file. The segment holding it is the next one
+     * read and decrypted.
+     *
+     * @param pos The position.
+     * @throws IOException if the file is read from a stream or the position is past the end.
+     */
+    public void seek(long pos) throws IOException
+    {
+        if (_channel == null) throw new IOException("Cannot seek when reading from a stream");
+        if ( pos < 0 || pos > getSize() ) throw new IOException("Cannot seek to "+pos+" of "+getSize());
+        cancel();
+        int size = _cipher.getSegmentSize();
+        _next = pos / size;
+        _channelPos = EncryptionKey.HEADER_SIZE + _next*(size+EncryptionKey.TAG_SIZE);
+        _eof = false;
+        _held = null;
+        _last = false;
+        _segment = new byte[0];
+        _pos = 0;
+        _offset = _next*size;
+        if ( fill() ) _pos = (int)(pos - _offset);
+    }
+
+    /**
+     * Makes sure there are bytes left in the current segment, moving on to the next
+     * one if needed. Returns false at the end of the file.
+     *
+     * @return boolean
+     * @throws IOException if a segment cannot be read or decrypted.
+     */
+    protected boolean fill() throws IOException
+    {
+        while (_pos == _segment.length)
+        {
+            if (_last) return false;
+            readAhead();
+            if (_pending.size() == 0) throw new IOException("The encrypted file is cut short");
+            DecryptTask task = (DecryptTask)_pending.remove(0);
+            byte[] segment = null;
+            try
+            {
+                segment = (byte[])task.get();
+            }
+            catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException("Interrupted while decrypting");
+            }
+            catch (ExecutionException ee)
+            {
+                //The pool wraps what the task threw, which wraps the IOException
+                Throwable cause = ee.getCause();
+                while (cause instanceof RuntimeException && cause.getCause() != null) cause = cause.getCause();
+                IOException ioe = new IOException( (cause instanceof IOException ? cause.getMessage() : "Could not decrypt segment: "+cause) );
+                ioe.initCause(cause);
+                throw ioe;
+            }
+            _offset += _segment.length;
+            _segment = segment;
+            _pos = 0;
+            _last = task._last;
+            readAhead();
+        }
+        return true;
+    }
+
+    /**
+     * Reads segments and hands them to the pool until enough are pending or the file
+     * is read. A segment is held back until the one after it is read, so it is known
+     * whether it is the last.
+     *
+     * @throws IOException
+     */
+    protected void readAhead() throws IOException
+    {
+        int size = _cipher.getSegmentSize() + EncryptionKey.TAG_SIZE;
+        while (!_eof && _pending.size() < _maxPending)
+        {
+            byte[] raw = new byte[size];
+            int len = readFully(raw);
+            if (_held != null) submit(_held, _heldLen, len == 0);
+            _held = null;
+            if (len == 0)
+            {
+                _eof = true;
+            }
+            else if (len < size)
+            {
+                submit(raw, len, true);
+                _eof = true;
+            }
+            else
+            {
+                _held = raw;
+                _heldLen = len;
+            }
+        }
+    }
+
+    /**
+     * Hands a segment to the pool.
+     *
+     * @param raw The segment and its tag.
+     * @param len The number of bytes.
+     * @param last Whether it is the last segment.
+     * @throws IOException if it is too short to hold a tag.
+     */
+    protected void submit(byte[] raw, int len, boolean last) throws IOException
+    {
+        if (len < EncryptionKey.TAG_SIZE) throw new IOException("The encrypted file is cut short");
+        _pending.add( _pool.submit(new DecryptTask(_cipher, _next++, last, raw, len)) );
+    }
+
+    /**
+     * Cancels the segments being decrypted.
+     */
+    protected void cancel()
+    {
+        for (int i=0; i<_pending.size(); i++)
+        {
+            ((ForkJoinTask)_pending.get(i)).cancel(true);
+        }
+        _pending.clear();
+    }
+
+    /**
+     * Reads until the buffer is full or the end of the file and returns the number of
+     * bytes read.
+     *
+     * @param b The buffer.
+     * @return int
+     * @throws IOException
+     */
+    protected int readFully(byte[] b) throws IOException
+    {
+        int off = 0;
+        if (_channel != null)
+        {
+            ByteBuffer buf = ByteBuffer.wrap(b);
+            while ( buf.hasRemaining() )
+            {
+                int len = _channel.read(buf, _channelPos);
+                if (len == -1) break;
+                _channelPos += len;
+            }
+            return buf.position();
+        }
+        while (off < b.length)
+        {
+            int len = _in.read(b, off, b.length-off);
+            if (len == -1) break;
+            off += len;
+        }
+        return off;
+    }
+
+    /**
+     * Decrypts one segment.
+     */
+    protected static class DecryptTask extends RecursiveTask
+    {
+        /** Tasks are never serialized, but ForkJoinTask is Serializable. */
+        private static final long serialVersionUID = 1L;
+
+        /** The cipher of the file. */
+        protected EncryptionKey.SegmentCipher _cipher;
+        /** The segment number. */
+        protected long _index;
+        /** Whether it is the last segment. */
+        protected boolean _last;
+        /** The segment and its tag. */
+        protected byte[] _data;
+        /** The number of bytes. */
+        protected int _len;
+
+        protected DecryptTask(EncryptionKey.SegmentCipher cipher, long index, boolean last, byte[] data, int len)
+        {
+            _cipher = cipher;
+            _index = index;
+            _last = last;
+            _data = data;
+            _len = len;
+        }
+
+        protected Object compute()
+        {
+            try
+            {
+                return _cipher.decrypt(_index, _last, _data, _len);
+            }
+            catch (IOException ioe)
+            {
+                throw new RuntimeException(ioe);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,869 @@
+package com.zitego.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * A deduplicated store for backup files kept in the .dedup directory of a local
+ * backup directory. Each file is split into variable sized chunks where the chunk
+ * boundaries are picked from the content with a rolling (gear) hash, so data that
+ * is the same from one day to the next ends up in the same chunks even if bytes were
+ * added or removed before it. Each chunk is stored once in a pack file and each
+ * dated backup file is stored as a small recipe that lists its chunks.<br>
+ * <br>
+ * The layout of the store is:<br>
+ * .dedup/index - The memory mapped chunk index (see ChunkIndex).<br>
+ * .dedup/packs/pack-[n] - Chunks appended as digest, length, and data.<br>
+ * .dedup/recipes/[dated file name].recipe - The digest and length of each chunk in the file.<br>
+ * <br>
+ * Chunks are reference counted by the recipes that use them. Deleting a recipe
+ * lowers the count of its chunks and gc removes the chunks no longer used, deleting
+ * packs that are empty and rewriting packs that are mostly unused.<br>
+ * <br>
+ * Deduplication works best on uncompressed streams or streams compressed with
+ * "gzip --rsyncable" since a small change early in a normal gzip stream changes
+ * all of the compressed bytes after it.
+ *
+ * @see ChunkIndex
+ * @see ArchiveSchedule
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class DedupStore
+{
+    /** The name of the store directory in the local backup directory. */
+    public static final String DIR_NAME = ".dedup";
+    /** The extension of recipe files. */
+    public static final String RECIPE_EXT = ".recipe";
+    /** The smallest chunk. */
+    public static final int MIN_CHUNK = 16*1024;
+    /** The largest chunk. */
+    public static final int MAX_CHUNK = 256*1024;
+    /** The boundary mask which gives an average chunk of about 64k. */
+    protected static final long BOUNDARY_MASK = 0xffffL << 48;
+    /** The gear table for the rolling hash. It is seeded so boundaries never change. */
+    protected static final long[] GEAR = new long[256];
+    static
+    {
+        Random r = new Random(0x5eed5eedL);
+        for (int i=0; i<GEAR.length; i++)
+        {
+            GEAR[i] = r.nextLong();
+        }
+    }
+    /** The magic number at the start of a recipe. */
+    protected static final int RECIPE_MAGIC = 0x42524350;
+    /** The open stores keyed by directory. */
+    protected static final Hashtable STORES = new Hashtable();
+
+    /** The store directory. */
+    protected File _dir;
+    /** The pack directory. */
+    protected File _packDir;
+    /** The recipe directory. */
+    protected File _recipeDir;
+    /** The chunk index. */
+    protected ChunkIndex _index;
+    /** Keeps other processes from using the store at the same time. */
+    protected FileLock _lock;
+    /** The lock file. */
+    protected RandomAccessFile _lockFile;
+    /** The pack being written. */
+    protected RandomAccessFile _pack;
+    /** The number of the pack being written. */
+    protected int _packNum;
+    /** The size packs are rolled over at. */
+    protected long _packSize = 512L*1024L*1024L;
+    /** The open packs for reading keyed by pack number. */
+    protected Hashtable _readers = new Hashtable();
+
+    /**
+     * Returns the store for the local backup directory, opening it if needed.
+     *
+     * @param localBackupDir The local backup directory.
+     * @return DedupStore
+     * @throws IOException if the store cannot be opened.
+     */
+    public static DedupStore getInstance(String localBackupDir) throws IOException
+    {
+        File dir = new File(localBackupDir, DIR_NAME).getCanonicalFile();
+        synchronized (STORES)
+        {
+            DedupStore ret = (DedupStore)STORES.get(dir);
+            if (ret == null)
+            {
+                ret = new DedupStore(dir);
+                STORES.put(dir, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Returns whether the local backup directory has a dedup store.
+     *
+     * @param localBackupDir The local backup directory.
+     * @return boolean
+     */
+    public static boolean exists(String localBackupDir)
+    {
+        return new File(localBackupDir, DIR_NAME).isDirectory();
+    }
+
+    /**
+     * Opens the store in the directory, creating it if needed.
+     *
+     * @param dir The store directory.
+     * @throws IOException
+     */
+    protected DedupStore(File dir) throws IOException
+    {
+        _dir = dir;
+        _packDir = new File(dir, "packs");
+        _recipeDir = new File(dir, "recipes");
+        _packDir.mkdirs();
+        _recipeDir.mkdirs();
+        _lockFile = new RandomAccessFile(new File(dir, "lock"), "rw");
+        _lock = _lockFile.getChannel().tryLock();
+        if (_lock == null)
+        {
+            _lockFile.close();
+            throw new IOException("Dedup store is in use by another process: "+dir);
+        }
+        _index = new ChunkIndex( new File(dir, "index"), 1 << 16 );
+        String[] packs = _packDir.list();
+        for (int i=0; i<packs.length; i++)
+        {
+            if ( packs[i].startsWith("pack-") ) _packNum = Math.max( _packNum, Integer.parseInt(packs[i].substring(5)) );
+        }
+    }
+
+    /**
+     * Creates a stream that chunks and stores everything written to it. The recipe
+     * is written with the name when the stream is committed.
+     *
+     * @param name The name of the file (the dated file name).
+     * @return BackupOutputStream
+     * @throws IOException
+     */
+    public BackupOutputStream createWriter(String name) throws IOException
+    {
+        return new ChunkWriter(name);
+    }
+
+    /**
+     * Stores the file under its name and deletes it.
+     *
+     * @param file The file.
+     * @throws IOException
+     */
+    public void ingest(File file) throws IOException
+    {
+        BackupOutputStream out = createWriter( file.getName() );
+        InputStream in = new FileInputStream(file);
+        boolean committed = false;
+        try
+        {
+            byte[] buf = new byte[1024*1024];
+            int len;
+            while ( (len=in.read(buf)) != -1 )
+            {
+                out.write(buf, 0, len);
+            }
+            out.commit();
+            committed = true;
+        }
+        finally
+        {
+            if (!committed) out.abort();
+            in.close();
+        }
+        file.delete();
+    }
+
+    /**
+     * Returns the recipe file for the name.
+     *
+     * @param name The file name.
+     * @return File
+     */
+    public File getRecipe(String name)
+    {
+        return new File(_recipeDir, name+RECIPE_EXT);
+    }
+
+    /**
+     * Returns the recipe directory.
+     *
+     * @return File
+     */
+    public File getRecipeDir()
+    {
+        return _recipeDir;
+    }
+
+    /**
+     * Returns the names of the stored files.
+     *
+     * @return String[]
+     */
+    public String[] list()
+    {
+        String[] files = _recipeDir.list();
+        Vector tmp = new Vector();
+        for (int i=0; files != null && i<files.length; i++)
+        {
+            if ( files[i].endsWith(RECIPE_EXT) && !files[i].startsWith(".") )
+            {
+                tmp.add( files[i].substring(0, files[i].length()-RECIPE_EXT.length()) );
+            }
+        }
+        String[] ret = new String[tmp.size()];
+        tmp.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Deletes the recipe and lowers the reference count of its chunks. The chunks
+     * are not removed until gc is run.
+     *
+     * @param name The file name.
+     * @throws IOException
+     */
+    public void delete(String name) throws IOException
+    {
+        File recipe = getRecipe(name);
+        if ( !recipe.exists() ) return;
+        release(recipe);
+        recipe.delete();
+    }
+
+    /**
+     * Lowers the reference count of every chunk in the recipe.
+     *
+     * @param recipe The recipe file.
+     * @throws IOException
+     */
+    protected void release(File recipe) throws IOException
+    {
+        DataInputStream in = openRecipe(recipe);
+        try
+        {
+            byte[] digest = new byte[32];
+            while ( readEntry(in, digest) != -1 )
+            {
+                synchronized (this)
+                {
+                    long slot = _index.find(digest);
+                    if (slot != -1) _index.setRefs( slot, _index.getRefs(slot)-1 );
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a stream that reads back the stored file.
+     *
+     * @param name The file name.
+     * @return InputStream
+     * @throws IOException if the file is not in the store.
+     */
+    public InputStream open(String name) throws IOException
+    {
+        return new ChunkReader( getRecipe(name) );
+    }
+
+    /**
+     * Writes the stored file to the output stream.
+     *
+     * @param name The file name.
+     * @param out The output stream.
+     * @return long The number of bytes written.
+     * @throws IOException
+     */
+    public long restore(String name, OutputStream out) throws IOException
+    {
+        InputStream in = open(name);
+        long ret = 0;
+        try
+        {
+            byte[] buf = new byte[MAX_CHUNK];
+            int len;
+            while ( (len=in.read(buf)) != -1 )
+            {
+                out.write(buf, 0, len);
+                ret += len;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Removes the chunks that are no longer used by any recipe. Packs with no used
+     * chunks are deleted and packs where most of the data is unused are rewritten.
+     *
+     * @return long The number of bytes freed.
+     * @throws IOException
+     */
+    public synchronized long gc() throws IOException
+    {
+        //Start a new pack so every existing pack can be collected
+        closePack();
+
+        Hashtable live = new Hashtable();
+        Hashtable dead = new Hashtable();
+        for (long slot=0; slot<_index.getCapacity(); slot++)
+        {
+            if (_index.getState(slot) != ChunkIndex.USED) continue;
+            Integer pack = Integer.valueOf( _index.getPack(slot) );
+            Hashtable stats = (_index.getRefs(slot) > 0 ? live : dead);
+            Long bytes = (Long)stats.get(pack);
+            stats.put( pack, Long.valueOf((bytes != null ? bytes.longValue() : 0) + _index.getLength(slot)) );
+        }
+
+        long freed = 0;
+        for (Enumeration e=dead.keys(); e.hasMoreElements();)
+        {
+            Integer pack = (Integer)e.nextElement();
+            long deadBytes = ((Long)dead.get(pack)).longValue();
+            Long liveBytes = (Long)live.get(pack);
+            if (liveBytes == null || liveBytes.longValue() < deadBytes)
+            {
+                //Copy the used chunks to the current pack and drop the rest
+                byte[] digest = new byte[32];
+                byte[] buf = new byte[MAX_CHUNK];
+                for (long slot=0; slot<_index.getCapacity(); slot++)
+                {
+                    if (_index.getState(slot) != ChunkIndex.USED || _index.getPack(slot) != pack.intValue()) continue;
+                    if (_index.getRefs(slot) > 0)
+                    {
+                        int len = _index.getLength(slot);
+                        readChunk(pack.intValue(), _index.getOffset(slot), buf, len);
+                        _index.getDigest(slot, digest);
+                        long offset = appendChunk(digest, buf, len);
+                        _index.move(slot, _packNum, offset);
+                    }
+                    else
+                    {
+                        _index.remove(slot);
+                    }
+                }
+                freed += deadBytes;
+                if (_pack != null) _pack.getChannel().force(false);
+                _index.force();
+                closeReader( pack.intValue() );
+                getPackFile( pack.intValue() ).delete();
+            }
+        }
+        _index.force();
+        return freed;
+    }
+
+    /**
+     * Rebuilds the chunk index from the packs and recipes. This is used if the index
+     * is lost or damaged.
+     *
+     * @throws IOException
+     */
+    public synchronized void rebuildIndex() throws IOException
+    {
+        closePack();
+        _index.close();
+        File file = new File(_dir, "index");
+        file.delete();
+        _index = new ChunkIndex(file, 1 << 16);
+
+        File[] packs = _packDir.listFiles();
+        for (int i=0; packs != null && i<packs.length; i++)
+        {
+            if ( !packs[i].getName().startsWith("pack-") ) continue;
+            int num = Integer.parseInt( packs[i].getName().substring(5) );
+            DataInputStream in = new DataInputStream( new BufferedInputStream(new FileInputStream(packs[i]), 1024*1024) );
+            try
+            {
+                byte[] digest = new byte[32];
+                long offset = 0;
+                while (true)
+                {
+                    try
+                    {
+                        in.readFully(digest);
+                    }
+                    catch (EOFException eof)
+                    {
+                        break;
+                    }
+                    int len = in.readInt();
+                    offset += 36;
+                    if (offset + len > packs[i].length()) break;
+                    if (_index.find(digest) == -1) _index.add(digest, num, offset, len);
+                    in.skipBytes(len);
+                    offset += len;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        File[] recipes = _recipeDir.listFiles();
+        for (int i=0; recipes != null && i<recipes.length; i++)
+        {
+            if ( recipes[i].getName().startsWith(".") ) continue;
+            DataInputStream in = openRecipe(recipes[i]);
+            try
+            {
+                byte[] digest = new byte[32];
+                while (readEntry(in, digest) != -1)
+                {
+                    long slot = _index.find(digest);
+                    if (slot == -1) throw new IOException("Recipe "+recipes[i]+" references a missing chunk");
+                    _index.setRefs( slot, _index.getRefs(slot)+1 );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        _index.force();
+    }
+
+    /**
+     * Closes the store.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException
+    {
+        closePack();
+        for (Enumeration e=_readers.keys(); e.hasMoreElements();)
+        {
+            closeReader( ((Integer)e.nextElement()).intValue() );
+        }
+        _index.force();
+        _index.close();
+        _lock.release();
+        _lockFile.close();
+        synchronized (STORES)
+        {
+            STORES.remove(_dir);
+        }
+    }
+
+    /**
+     * Stores the chunk if it is not already stored and adds a reference to it.
+     *
+     * @param digest The chunk digest.
+     * @param buf The chunk data.
+     * @param len The chunk length.
+     * @return boolean Whether the chunk was new.
+     * @throws IOException
+     */
+    protected synchronized boolean addChunk(byte[] digest, byte[] buf, int len) throws IOException
+    {
+        long slot = _index.find(digest);
+        boolean added = (slot == -1);
+        if (added)
+        {
+            long offset = appendChunk(digest, buf, len);
+            slot = _index.add(digest, _packNum, offset, len);
+        }
+        _index.setRefs( slot, _index.getRefs(slot)+1 );
+        return added;
+    }
+
+    /**
+     * Appends the chunk to the current pack, starting a new pack if it is full.
+     *
+     * @param digest The chunk digest.
+     * @param buf The chunk data.
+     * @param len The chunk length.
+     * @return long The offset of the data in the pack.
+     * @throws IOException
+     */
+    protected long appendChunk(byte[] digest, byte[] buf, int len) throws IOException
+    {
+        if (_pack == null || _pack.length() >= _packSize)
+        {
+            closePack();
+            _packNum++;
+            _pack = new RandomAccessFile(getPackFile(_packNum), "rw");
+        }
+        long pos = _pack.length();
+        ByteBuffer rec = ByteBuffer.allocate(36+len);
+        rec.put(digest).putInt(len).put(buf, 0, len).flip();
+        FileChannel ch = _pack.getChannel();
+        while ( rec.hasRemaining() )
+        {
+            ch.write(rec, pos+rec.position());
+        }
+        return pos + 36;
+    }
+
+    /**
+     * Writes everything added to the store to disk.
+     *
+     * @throws IOException
+     */
+    protected synchronized void sync() throws IOException
+    {
+        if (_pack != null) _pack.getChannel().force(false);
+        _index.force();
+    }
+
+    /**
+     * Reads a chunk from a pack.
+     *
+     * @param pack The pack number.
+     * @param offset The offset of the data.
+     * @param buf The buffer to read into.
+     * @param len The chunk length.
+     * @throws IOException
+     */
+    protected void readChunk(int pack, long offset, byte[] buf, int len) throws IOException
+    {
+        FileChannel ch = getReader(pack);
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while ( bb.hasRemaining() )
+        {
+            if (ch.read(bb, offset+bb.position()) == -1) throw new EOFException("Chunk past end of pack "+pack);
+        }
+    }
+
+    /**
+     * Returns a channel to read a pack.
+     *
+     * @param pack The pack number.
+     * @return FileChannel
+     * @throws IOException
+     */
+    protected synchronized FileChannel getReader(int pack) throws IOException
+    {
+        Integer key = Integer.valueOf(pack);
+        RandomAccessFile raf = (RandomAccessFile)_readers.get(key);
+        if (raf == null)
+        {
+            raf = new RandomAccessFile(getPackFile(pack), "r");
+            _readers.put(key, raf);
+        }
+        return raf.getChannel();
+    }
+
+    /**
+     * Closes the reader for a pack.
+     *
+     * @param pack The pack number.
+     * @throws IOException
+     */
+    protected synchronized void closeReader(int pack) throws IOException
+    {
+        RandomAccessFile raf = (RandomAccessFile)_readers.remove( Integer.valueOf(pack) );
+        if (raf != null) raf.close();
+    }
+
+    /**
+     * Closes the pack being written.
+     *
+     * @throws IOException
+     */
+    protected void closePack() throws IOException
+    {
+        if (_pack != null)
+        {
+            _pack.getChannel().force(false);
+            _pack.close();
+            _pack = null;
+        }
+    }
+
+    /**
+     * Returns the file of a pack.
+     *
+     * @param pack The pack number.
+     * @return File
+     */
+    protected File getPackFile(int pack)
+    {
+        String num = String.valueOf(pack);
+        while (num.length() < 6) num = "0"+num;
+        return new File(_packDir, "pack-"+num);
+    }
+
+    /**
+     * Opens a recipe for reading and checks its header.
+     *
+     * @param recipe The recipe file.
+     * @return DataInputStream
+     * @throws IOException
+     */
+    protected static DataInputStream openRecipe(File recipe) throws IOException
+    {
+        DataInputStream ret = new DataInputStream( new BufferedInputStream(new FileInputStream(recipe), 64*1024) );
+        if (ret.readInt() != RECIPE_MAGIC)
+        {
+            ret.close();
+            throw new IOException("Not a recipe: "+recipe);
+        }
+        ret.readInt();
+        return ret;
+    }
+
+    /**
+     * Reads the next chunk digest from a recipe.
+     *
+     * @param in The recipe.
+     * @param digest The array to read the digest into.
+     * @return int The chunk length or -1 at the end of the recipe.
+     * @throws IOException
+     */
+    protected static int readEntry(DataInputStream in, byte[] digest) throws IOException
+    {
+        try
+        {
+            in.readFully(digest);
+        }
+        catch (EOFException eof)
+        {
+            return -1;
+        }
+        return in.readInt();
+    }
+
+    /**
+     * Returns a new SHA-256 digest.
+     *
+     * @return MessageDigest
+     */
+    protected static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            throw new RuntimeException(nsae);
+        }
+    }
+
+    /**
+     * Splits everything written to it into chunks, stores them, and writes the
+     * recipe. The recipe is written to a temporary file as chunks are stored so
+     * memory use does not depend on the size of the file. If the writer is aborted,
+     * then the references added by the temporary recipe are released.
+     */
+    protected class ChunkWriter extends BackupOutputStream
+    {
+        /** The file name. */
+        protected String _name;
+        /** The temporary recipe. */
+        protected File _tmp;
+        /** The recipe file being written. */
+        protected FileOutputStream _recipeFile;
+        /** The recipe being written. */
+        protected DataOutputStream _recipe;
+        /** The current chunk. */
+        protected byte[] _buf = new byte[MAX_CHUNK];
+        /** The length of the current chunk. */
+        protected int _len = 0;
+        /** The rolling hash. */
+        protected long _hash = 0;
+        /** Digests the chunks. */
+        protected MessageDigest _md = newDigest();
+        /** The number of bytes written. */
+        protected long _bytes = 0;
+        /** The number of bytes in new chunks. */
+        protected long _newBytes = 0;
+
+        protected ChunkWriter(String name) throws IOException
+        {
+            _name = name;
+            _tmp = new File(_recipeDir, "."+name+RECIPE_EXT+".tmp");
+            _recipeFile = new FileOutputStream(_tmp);
+            _recipe = new DataOutputStream( new BufferedOutputStream(_recipeFile, 64*1024) );
+            _recipe.writeInt(RECIPE_MAGIC);
+            _recipe.writeInt(1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (_recipe == null) throw new IOException("Stream closed: "+_name);
+            int end = off + len;
+            for (int i=off; i<end; i++)
+            {
+                byte c = b[i];
+                _buf[_len++] = c;
+                _hash = (_hash << 1) + GEAR[c & 0xff];
+                if ( _len >= MIN_CHUNK && ((_hash & BOUNDARY_MASK) == 0 || _len == MAX_CHUNK) ) storeChunk();
+            }
+            _bytes += len;
+        }
+
+        /**
+         * Stores the current chunk and adds it to the recipe.
+         *
+         * @throws IOException
+         */
+        protected void storeChunk() throws IOException
+        {
+            if (_len == 0) return;
+            _md.update(_buf, 0, _len);
+            byte[] digest = _md.digest();
+            if ( addChunk(digest, _buf, _len) ) _newBytes += _len;
+            _recipe.write(digest);
+            _recipe.writeInt(_len);
+            _len = 0;
+            _hash = 0;
+        }
+
+        public void commit() throws IOException
+        {
+            if (_recipe == null) throw new IOException("Stream closed: "+_name);
+            storeChunk();
+            sync();
+            _recipe.flush();
+            _recipeFile.getFD().sync();
+            _recipe.close();
+            _recipe = null;
+            File recipe = getRecipe(_name);
+            if ( recipe.exists() ) release(recipe);
+            recipe.delete();
+            if ( !_tmp.renameTo(recipe) ) throw new IOException("Could not rename "+_tmp+" to "+recipe);
+        }
+
+        public void abort()
+        {
+            if (_recipe != null)
+            {
+                try
+                {
+                    _recipe.close();
+                    release(_tmp);
+                }
+                catch (IOException ioe) { }
+                _recipe = null;
+            }
+            _tmp.delete();
+        }
+
+        /**
+         * Returns the number of bytes written.
+         *
+         * @return long
+         */
+        public long getBytes()
+        {
+            return _bytes;
+        }
+
+        /**
+         * Returns the number of bytes that were not already in the store.
+         *
+         * @return long
+         */
+        public long getNewBytes()
+        {
+            return _newBytes;
+        }
+    }
+
+    /**
+     * Reads a stored file back by following its recipe.
+     */
+    protected class ChunkReader extends InputStream
+    {
+        /** The recipe. */
+        protected DataInputStream _recipe;
+        /** The current chunk. */
+        protected byte[] _buf = new byte[MAX_CHUNK];
+        /** The length of the current chunk. */
+        protected int _len = 0;
+        /** The position in the current chunk. */
+        protected int _pos = 0;
+        /** The current digest. */
+        protected byte[] _digest = new byte[32];
+        /** Checks the chunks. */
+        protected MessageDigest _md = newDigest();
+
+        protected ChunkReader(File recipe) throws IOException
+        {
+            _recipe = openRecipe(recipe);
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1 ? -1 : b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (_pos == _len && !nextChunk()) return -1;
+            int ret = Math.min(len, _len-_pos);
+            System.arraycopy(_buf, _pos, b, off, ret);
+            _pos += ret;
+            return ret;
+        }
+
+        /**
+         * Reads the next chunk in the recipe.
+         *
+         * @return boolean Whether there was another chunk.
+         * @throws IOException
+         */
+        protected boolean nextChunk() throws IOException
+        {
+            int len = readEntry(_recipe, _digest);
+            if (len == -1) return false;
+            int pack;
+            long offset;
+            synchronized (DedupStore.this)
+            {
+                long slot = _index.find(_digest);
+                if (slot == -1) throw new IOException("Missing chunk in dedup store");
+                pack = _index.getPack(slot);
+                offset = _index.getOffset(slot);
+            }
+            readChunk(pack, offset, _buf, len);
+            _md.update(_buf, 0, len);
+            if ( !MessageDigest.isEqual(_md.digest(), _digest) ) throw new IOException("Corrupt chunk in pack "+pack+" at "+offset);
+            _len = len;
+            _pos = 0;
+            return true;
+        }
+
+        public void close() throws IOException
+        {
+            _recipe.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,217 @@
+package com.zitego.backup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Encrypts what is written to it in the segmented AES-GCM format of EncryptionKey
+ * using every core of the backup host. The data is cut into segments that are
+ * encrypted at the same time on a fork join pool and written, in order, after the
+ * header. A segment is only handed to the pool once more data is written after it
+ * or the stream is committed, so the last segment is known when it is encrypted.<br>
+ * <br>
+ * Nothing is written to the underlying stream until the segments before it are done
+ * and at most two segments per thread are held in memory. commit and abort pass
+ * through to the underlying stream.
+ *
+ * @see EncryptionKey
+ * @see FileRetriever#setProperty(String, String)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class EncryptingOutputStream extends BackupOutputStream
+{
+    /** The default segment size. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024*1024;
+
+    /** The stream the encrypted data is written to. */
+    protected BackupOutputStream _out;
+    /** The cipher of the file. */
+    protected EncryptionKey.SegmentCipher _cipher;
+    /** The pool that encrypts the segments. */
+    protected ForkJoinPool _pool;
+    /** The segment being filled. */
+    protected byte[] _segment;
+    /** The number of bytes in the segment. */
+    protected int _count = 0;
+    /** The number of segments handed to the pool. */
+    protected long _segments = 0;
+    /** The segments being encrypted in the order they are written. */
+    protected Vector _pending = new Vector();
+    /** The most segments that can be pending before write waits. */
+    protected int _maxPending;
+    /** Whether the header was written. */
+    protected boolean _headerWritten = false;
+    /** The number of bytes written to the underlying stream. */
+    protected long _written = 0;
+
+    /**
+     * Creates a new stream with a new salt and nonce prefix.
+     *
+     * @param out The stream to write the encrypted data to.
+     * @param key The key.
+     * @param segmentSize The number of plain bytes in each segment.
+     * @param pool The pool to encrypt on.
+     * @throws IOException if the file's key cannot be derived.
+     */
+    public EncryptingOutputStream(BackupOutputStream out, EncryptionKey key, int segmentSize, ForkJoinPool pool) throws IOException
+    {
+        _out = out;
+        _cipher = key.newCipher( Math.max(segmentSize, 1024) );
+        _pool = pool;
+        _segment = new byte[_cipher.getSegmentSize()];
+        _maxPending = pool.getParallelism() * 2;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            //A full segment is only submitted once there is more to write, since it may be the last
+            if (_count == _segment.length) submit(false);
+            int n = Math.min(len, _segment.length-_count);
+            System.arraycopy(b, off, _segment, _count, n);
+            _count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Encrypts the last segment, writes every segment, and commits the underlying
+     * stream. If nothing was written, then the file is one empty segment.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException
+    {
+        submit(true);
+        while (_pending.size() > 0)
+        {
+            writeNext();
+        }
+        _out.commit();
+    }
+
+    public void abort()
+    {
+        for (int i=0; i<_pending.size(); i++)
+        {
+            ((ForkJoinTask)_pending.get(i)).cancel(true);
+        }
+        _pending.clear();
+        _out.abort();
+    }
+
+    /**
+     * Returns the number of encrypted bytes written to the underlying stream.
+     *
+     * @return long
+     */
+    public long getBytesWritten()
+    {
+        return _written;
+    }
+
+    /**
+     * Hands the current segment to the pool and starts a new one. If too many
+     * segments are pending, then this waits for the oldest to be written.
+     *
+     * @param last Whether it is the last segment.
+     * @throws IOException
+     */
+    protected void submit(boolean last) throws IOException
+    {
+        _pending.add( _pool.submit( new EncryptTask(_cipher, _segments++, last, _segment, _count) ) );
+        _segment = new byte[_segment.length];
+        _count = 0;
+        while (_pending.size() > _maxPending)
+        {
+            writeNext();
+        }
+    }
+
+    /**
+     * Waits for the oldest pending segment and writes it, after the header if it is
+     * the first.
+     *
+     * @throws IOException
+     */
+    protected void writeNext() throws IOException
+    {
+        ForkJoinTask task = (ForkJoinTask)_pending.remove(0);
+        byte[] segment = null;
+        try
+        {
+            segment = (byte[])task.get();
+        }
+        catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException("Interrupted while encrypting");
+        }
+        catch (ExecutionException ee)
+        {
+            //The pool wraps what the task threw, which wraps the IOException
+            Throwable cause = ee.getCause();
+            while (cause instanceof RuntimeException && cause.getCause() != null) cause = cause.getCause();
+            IOException ioe = new IOException( (cause instanceof IOException ? cause.getMessage() : "Could not encrypt segment: "+cause) );
+            ioe.initCause(cause);
+            throw ioe;
+        }
+        if (!_headerWritten)
+        {
+            byte[] header = _cipher.getHeader();
+            _out.write(header);
+            _written += header.length;
+            _headerWritten = true;
+        }
+        _out.write(segment);
+        _written += segment.length;
+    }
+
+    /**
+     * Encrypts one segment.
+     */
+    protected static class EncryptTask extends RecursiveTask
+    {
+        /** Tasks are never serialized, but ForkJoinTask is Serializable. */
+        private static final long serialVersionUID = 1L;
+
+        /** The cipher of the file. */
+        protected EncryptionKey.SegmentCipher _cipher;
+        /** The segment number. */
+        protected long _index;
+        /** Whether it is the last segment. */
+        protected boolean _last;
+        /** The segment. */
+        protected byte[] _data;
+        /** The number of bytes in the segment. */
+        protected int _len;
+
+        protected EncryptTask(EncryptionKey.SegmentCipher cipher, long index, boolean last, byte[] data, int len)
+        {
+            _cipher = cipher;
+            _index = index;
+            _last = last;
+            _data = data;
+            _len = len;
+        }
+
+        protected Object compute()
+        {
+            try
+            {
+                return _cipher.encrypt(_index, _last, _data, _len);
+            }
+            catch (IOException ioe)
+            {
+                throw new RuntimeException(ioe);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,382 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The key that retrieved files are encrypted with and the format of encrypted files.
+ * The key is read from a keyfile on the backup host that holds 32 random bytes,
+ * either as they are or as 64 hex digits (such as the output of
+ * "openssl rand -hex 32").<br>
+ * <br>
+ * An encrypted file starts with a 32 byte header:<br>
+ * magic (4) - ZGCM<br>
+ * version (1) - 1<br>
+ * segment size (4) - The number of plain bytes in each segment, big endian.<br>
+ * salt (16) - Random bytes that the file's own key is derived from.<br>
+ * nonce prefix (7) - Random bytes that start the nonce of every segment.<br>
+ * <br>
+ * The rest of the file is segments of the data, each encrypted on its own with
+ * AES-256-GCM and followed by its 16 byte tag. Every segment holds segment size bytes
+ * except the last one, which holds the rest (and is empty only if the file is). The
+ * nonce of a segment is the nonce prefix, the segment's number (4 bytes, big endian),
+ * and a byte that is 1 for the last segment and 0 for the others, so segments cannot
+ * be reordered, and a file cannot be cut short at a segment boundary, without failing
+ * the tag check. The header is authenticated with every segment.<br>
+ * <br>
+ * The file's key is the HMAC-SHA256 of the salt keyed by the keyfile, so files never
+ * share a key and nonces do not have to be unique across files. Because each segment
+ * stands alone, segments are encrypted and decrypted on several cores at once and a
+ * reader can start at any segment.
+ *
+ * @see EncryptingOutputStream
+ * @see DecryptingInputStream
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class EncryptionKey
+{
+    /** The first bytes of an encrypted file. */
+    public static final byte[] MAGIC = { 'Z', 'G', 'C', 'M' };
+    /** The version of the format. */
+    public static final int VERSION = 1;
+    /** The size of the header. */
+    public static final int HEADER_SIZE = 32;
+    /** The size of the tag after each segment. */
+    public static final int TAG_SIZE = 16;
+    /** The size of the keys. */
+    public static final int KEY_SIZE = 32;
+    /** The size of the salt. */
+    protected static final int SALT_SIZE = 16;
+    /** The size of the nonce prefix. */
+    protected static final int PREFIX_SIZE = 7;
+    /** Makes the salts and nonce prefixes. */
+    protected static final SecureRandom RANDOM = new SecureRandom();
+
+    /** The key from the keyfile. */
+    protected byte[] _key;
+    /** The keyfile. */
+    protected File _file;
+
+    /**
+     * Reads the key from a keyfile.
+     *
+     * @param file The keyfile.
+     * @return EncryptionKey
+     * @throws IOException if the keyfile cannot be read or does not hold a key.
+     */
+    public static EncryptionKey load(File file) throws IOException
+    {
+        if (file.length() > 1024) throw new IOException(file+" is not a keyfile");
+        byte[] data = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int off = 0;
+            while (off < data.length)
+            {
+                int len = in.read(data, off, data.length-off);
+                if (len == -1) break;
+                off += len;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        if (data.length == KEY_SIZE) return new EncryptionKey(data, file);
+
+        String hex = new String(data, "US-ASCII").trim();
+        if ( !hex.matches("[0-9a-fA-F]{"+(KEY_SIZE*2)+"}") )
+        {
+            throw new IOException(file+" must hold "+KEY_SIZE+" bytes or "+(KEY_SIZE*2)+" hex digits");
+        }
+        byte[] key = new byte[KEY_SIZE];
+        for (int i=0; i<key.length; i++)
+        {
+            key[i] = (byte)Integer.parseInt( hex.substring(i*2, i*2+2), 16 );
+        }
+        return new EncryptionKey(key, file);
+    }
+
+    /**
+     * Creates a key.
+     *
+     * @param key The key bytes.
+     * @param file The keyfile it came from or null.
+     */
+    public EncryptionKey(byte[] key, File file)
+    {
+        if (key.length != KEY_SIZE) throw new IllegalArgumentException("The key must be "+KEY_SIZE+" bytes");
+        _key = key.clone();
+        _file = file;
+    }
+
+    /**
+     * Returns the keyfile the key came from or null.
+     *
+     * @return File
+     */
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Returns the cipher for a new file with a new salt and nonce prefix.
+     *
+     * @param segmentSize The number of plain bytes in each segment.
+     * @return SegmentCipher
+     * @throws IOException if the file's key cannot be derived.
+     */
+    public SegmentCipher newCipher(int segmentSize) throws IOException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[4] = (byte)VERSION;
+        writeInt(header, 5, segmentSize);
+        byte[] random = new byte[SALT_SIZE+PREFIX_SIZE];
+        RANDOM.nextBytes(random);
+        System.arraycopy(random, 0, header, 9, random.length);
+        return new SegmentCipher(header);
+    }
+
+    /**
+     * Returns the cipher for an encrypted file from its header.
+     *
+     * @param header The first HEADER_SIZE bytes of the file.
+     * @return SegmentCipher
+     * @throws IOException if the header is not of an encrypted file.
+     */
+    public SegmentCipher getCipher(byte[] header) throws IOException
+    {
+        if ( !isHeader(header, header.length) ) throw new IOException("Not an encrypted file");
+        if (header[4] != VERSION) throw new IOException("Unknown encrypted file version "+header[4]);
+        if (readInt(header, 5) <= 0) throw new IOException("Bad segment size "+readInt(header, 5));
+        return new SegmentCipher(header);
+    }
+
+    /**
+     * Returns whether the bytes start with the magic of an encrypted file.
+     *
+     * @param data The bytes.
+     * @param len The number of bytes.
+     * @return boolean
+     */
+    public static boolean isHeader(byte[] data, int len)
+    {
+        if (len < HEADER_SIZE) return false;
+        for (int i=0; i<MAGIC.length; i++)
+        {
+            if (data[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a file is encrypted.
+     *
+     * @param file The file.
+     * @return boolean
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isEncrypted(File file) throws IOException
+    {
+        return isEncrypted( new FileInputStream(file) );
+    }
+
+    /**
+     * Returns whether a stream starts with the header of an encrypted file. The
+     * stream is closed.
+     *
+     * @param in The stream.
+     * @return boolean
+     * @throws IOException if the stream cannot be read.
+     */
+    public static boolean isEncrypted(InputStream in) throws IOException
+    {
+        try
+        {
+            byte[] header = new byte[HEADER_SIZE];
+            int off = 0;
+            while (off < header.length)
+            {
+                int len = in.read(header, off, header.length-off);
+                if (len == -1) break;
+                off += len;
+            }
+            return isHeader(header, off);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes an int in big endian order.
+     *
+     * @param b The bytes.
+     * @param off Where to write it.
+     * @param val The value.
+     */
+    protected static void writeInt(byte[] b, int off, int val)
+    {
+        b[off] = (byte)(val >>> 24);
+        b[off+1] = (byte)(val >>> 16);
+        b[off+2] = (byte)(val >>> 8);
+        b[off+3] = (byte)val;
+    }
+
+    /**
+     * Reads an int in big endian order.
+     *
+     * @param b The bytes.
+     * @param off Where to read it.
+     * @return int
+     */
+    protected static int readInt(byte[] b, int off)
+    {
+        return ( (b[off] & 0xff) << 24 ) | ( (b[off+1] & 0xff) << 16 ) | ( (b[off+2] & 0xff) << 8 ) | (b[off+3] & 0xff);
+    }
+
+    /**
+     * Encrypts and decrypts the segments of one file. A cipher can be used by several
+     * threads at once.
+     */
+    public class SegmentCipher
+    {
+        /** The file's header. */
+        protected byte[] _header;
+        /** The file's key. */
+        protected SecretKeySpec _fileKey;
+        /** The number of plain bytes in each segment. */
+        protected int _segmentSize;
+
+        protected SegmentCipher(byte[] header) throws IOException
+        {
+            _header = header.clone();
+            _segmentSize = readInt(_header, 5);
+            try
+            {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init( new SecretKeySpec(_key, "HmacSHA256") );
+                mac.update(_header, 9, SALT_SIZE);
+                _fileKey = new SecretKeySpec( mac.doFinal(), "AES" );
+            }
+            catch (GeneralSecurityException gse)
+            {
+                IOException ioe = new IOException("Could not derive the file key: "+gse);
+                ioe.initCause(gse);
+                throw ioe;
+            }
+        }
+
+        /**
+         * Returns the file's header.
+         *
+         * @return byte[]
+         */
+        public byte[] getHeader()
+        {
+            return _header.clone();
+        }
+
+        /**
+         * Returns the number of plain bytes in each segment.
+         *
+         * @return int
+         */
+        public int getSegmentSize()
+        {
+            return _segmentSize;
+        }
+
+        /**
+         * Encrypts one segment and returns it with its tag.
+         *
+         * @param index The segment number.
+         * @param last Whether it is the last segment.
+         * @param data The plain bytes.
+         * @param len The number of plain bytes.
+         * @return byte[]
+         * @throws IOException if it cannot be encrypted.
+         */
+        public byte[] encrypt(long index, boolean last, byte[] data, int len) throws IOException
+        {
+            try
+            {
+                return init(Cipher.ENCRYPT_MODE, index, last).doFinal(data, 0, len);
+            }
+            catch (GeneralSecurityException gse)
+            {
+                IOException ioe = new IOException("Could not encrypt segment "+index+": "+gse);
+                ioe.initCause(gse);
+                throw ioe;
+            }
+        }
+
+        /**
+         * Decrypts one segment and its tag and returns the plain bytes.
+         *
+         * @param index The segment number.
+         * @param last Whether it is the last segment.
+         * @param data The segment and its tag.
+         * @param len The number of bytes in the segment and its tag.
+         * @return byte[]
+         * @throws IOException if it fails the tag check.
+         */
+        public byte[] decrypt(long index, boolean last, byte[] data, int len) throws IOException
+        {
+            try
+            {
+                return init(Cipher.DECRYPT_MODE, index, last).doFinal(data, 0, len);
+            }
+            catch (AEADBadTagException abte)
+            {
+                throw new IOException
+                (
+                    "Segment "+index+" failed the tag check, the file is damaged or was encrypted with another key"+
+                    (_file != null ? " than "+_file : "")
+                );
+            }
+            catch (GeneralSecurityException gse)
+            {
+                IOException ioe = new IOException("Could not decrypt segment "+index+": "+gse);
+                ioe.initCause(gse);
+                throw ioe;
+            }
+        }
+
+        /**
+         * Returns a cipher set up for a segment.
+         *
+         * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+         * @param index The segment number.
+         * @param last Whether it is the last segment.
+         * @return Cipher
+         * @throws GeneralSecurityException
+         */
+        protected Cipher init(int mode, long index, boolean last) throws GeneralSecurityException
+        {
+            if (index < 0 || index > 0xffffffffL) throw new GeneralSecurityException("Too many segments");
+            byte[] nonce = new byte[12];
+            System.arraycopy(_header, 9+SALT_SIZE, nonce, 0, PREFIX_SIZE);
+            writeInt( nonce, PREFIX_SIZE, (int)index );
+            nonce[11] = (byte)(last ? 1 : 0);
+            Cipher ret = Cipher.getInstance("AES/GCM/NoPadding");
+            ret.init( mode, _fileKey, new GCMParameterSpec(TAG_SIZE*8, nonce) );
+            ret.updateAAD(_header);
+            return ret;
+        }
+    }
+}
\ No newline at end of file
@@ -1,181 +1,1802 @@
-package com.zitego.backup;
-
-import com.zitego.logging.Logger;
-import com.zitego.markup.xml.XmlTag;
-import java.util.Date;
-import java.text.SimpleDateFormat;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-
-/**
- * This is an abstract class that defines how to retrieve
- * files from a remote server. Properties are set specific to
- * the child classes. See documentation in those classes for
- * details.
- *
- * @author John Glorioso
- * @version $Id: FileRetriever.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
- */
-public abstract class FileRetriever
-{
-    /** The remote staging directory to retrieve files from. */
-    protected String _remoteStagingDir;
-    /** The local directory to backup to. */
-    protected String _localBackupDir;
-    /** The log writer. */
-    protected Logger _logger;
-    /** The dated file format. */
-    protected SimpleDateFormat _fileFormat = new SimpleDateFormat("MMddyyyy");
-
-    /**
-     * Sets the properties for the file retriever.
-     *
-     * @param props A comma delimited properties string.
-     */
-    public abstract void setProperties(String props);
-
-    /**
-     * Sets the properties for the file retriever given an XmlTag object. The tag is expected to have
-     * xml tag children for each of the allowable properties.
-     *
-     * @param xml The xml tag.
-     */
-    public abstract void setPropertiesFromXml(XmlTag tag);
-
-    /**
-     * Retrieves the file specified by the batch instruction.
-     *
-     * @param instr The instruction about the file.
-     * @throws FileRetrievalException
-     */
-    public abstract void retrieveFile(BackupInstruction instr) throws FileRetrievalException;
-
-    /**
-     * Sets the log writer.
-     *
-     * @param logger The writer.
-     */
-    public void setLogger(Logger logger)
-    {
-        _logger = logger;
-    }
-
-    /**
-     * Logs the specified message.
-     *
-     * @param msg The message.
-     */
-    public void log(String msg)
-    {
-        if (_logger != null) _logger.log(msg);
-    }
-
-    /**
-     * Executes the command and arguments.
-     *
-     * @param args The command and arguments.
-     * @throws FileRetrievalException
-     */
-    public void execute(String[] args) throws FileRetrievalException
-    {
-        FileRetrievalException fre = null;
-        try
-        {
-            StringBuffer cmd = new StringBuffer();
-            for (int i=0; i<args.length; i++)
-            {
-                cmd.append( (i>0?" ":"") ).append(args[i]);
-            }
-            log( cmd.toString() );
-            Process proc = Runtime.getRuntime().exec(args);
-            BufferedReader procOut = new BufferedReader( new InputStreamReader(proc.getInputStream()) );
-            String line = null;
-            StringBuffer msg = new StringBuffer();
-            while ( (line=procOut.readLine()) != null )
-            {
-                if (line == "----- EOF -----") break;
-            }
-            BufferedReader err = new BufferedReader( new InputStreamReader(proc.getErrorStream()) );
-            line = null;
-            msg = new StringBuffer();
-            while ( (line=err.readLine()) != null )
-            {
-                msg.append(line).append(" ");
-            }
-            if (msg.length() > 0)
-            {
-                log("*** ERROR *** "+msg);
-                fre = new FileRetrievalException( msg.toString() );
-            }
-        }
-        catch (Exception e)
-        {
-            fre = new FileRetrievalException(e);
-        }
-        if (fre != null) throw fre;
-    }
-
-    /**
-     * Returns the dated file name based on the one passed in. If the file name ends in a wild
-     * card (*) then an empty string is returned.
-     *
-     * @param f The filename.
-     * @return String
-     */
-    public String getDatedFilename(String f)
-    {
-        if ( !f.endsWith("*") )
-        {
-            int index = f.indexOf(".");
-            String name = f.substring(0, index);
-            String ext = f.substring(index);
-            StringBuffer ret = new StringBuffer()
-                .append(name).append("_").append( _fileFormat.format(new Date()) ).append(ext);
-            return ret.toString();
-        }
-        else
-        {
-            return "";
-        }
-    }
-
-    /**
-     * Sets the remote staging directory to retrieve files from.
-     *
-     * @param dir The remote staging directory.
-     */
-    public void setRemoteStagingDir(String dir)
-    {
-        _remoteStagingDir = dir;
-    }
-
-    /**
-     * Returns the remote staging directory to retrieve files from.
-     *
-     * @return String
-     */
-    public String getRemoteStagingDir()
-    {
-        return _remoteStagingDir;
-    }
-
-    /**
-     * Sets the local directory to backup to.
-     *
-     * @param dir The directory.
-     */
-    public void setLocalBackupDir(String dir)
-    {
-        _localBackupDir = dir;
-    }
-
-    /**
-     * Returns the local directory to backup to.
-     *
-     * @return String
-     */
-    public String getLocalBackupDir()
-    {
-        return _localBackupDir;
-    }
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import com.zitego.markup.xml.XmlTag;
+import java.util.Date;
+import java.text.SimpleDateFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This is an abstract class that defines how to retrieve
+ * files from a remote server. Properties are set specific to
+ * the child classes. See documentation in those classes for
+ * details. All file retrievers also accept the properties described in
+ * {@link #setProperty(String, String)}.
+ *
+ * @author John Glorioso
+ * @version $Id: FileRetriever.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
+ */
+public abstract class FileRetriever
+{
+    /** The remote staging directory to retrieve files from. */
+    protected String _remoteStagingDir;
+    /** The local directory to backup to. */
+    protected String _localBackupDir;
+    /** The log writer. */
+    protected Logger _logger;
+    /** The dated file format. */
+    protected SimpleDateFormat _fileFormat = new SimpleDateFormat("MMddyyyy");
+    /** The number of seconds a single command can run or 0 for no limit. */
+    protected long _commandTimeout = 0;
+    /** The number of seconds the commands for an instruction can run or 0 for no limit. */
+    protected long _instructionTimeout = 0;
+    /** Runs the commands. */
+    protected ProcessRunner _processRunner = new ProcessRunner();
+    /** Whether retrieved files are stored in the dedup store. */
+    protected boolean _dedup = false;
+    /** Limits the bandwidth of transfers or null for no limits. */
+    protected TransferThrottle _throttle;
+    /** The name of the job that metrics are labeled with. */
+    protected String _jobName;
+    /** Whether retrieved files are compressed on this host. */
+    protected boolean _localCompress = false;
+    /** The gzip level used when compressing locally. */
+    protected int _compressLevel = 6;
+    /** The size of the blocks compressed in parallel. */
+    protected int _compressBlockSize = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+    /** The number of threads that compress or 0 for one per core. */
+    protected int _compressThreads = 0;
+    /** Whether the CRC32 of retrieved files is computed along with the SHA-256. */
+    protected boolean _fastHash = false;
+    /** Whether retrieved files are checked against the checksum of the remote file. */
+    protected boolean _remoteChecksum = false;
+    /** The change plans of the instructions being retrieved keyed by instruction. */
+    protected Hashtable _changePlans = new Hashtable();
+    /** The bytes retrieved for the instructions that have not finished keyed by remote staged file. */
+    protected Hashtable _retrieved = new Hashtable();
+    /** The bytes retrieved by the finished instructions since the job last finished. */
+    protected long _jobBytes = 0;
+    /** The journal of the run or null if the run is not journaled. */
+    protected RunJournal _journal;
+    /** The key retrieved files are encrypted with or null if they are not encrypted. */
+    protected EncryptionKey _key;
+    /** The size of the segments encrypted in parallel. */
+    protected int _encryptSegmentSize = EncryptingOutputStream.DEFAULT_SEGMENT_SIZE;
+    /** The number of threads that encrypt or 0 for one per core. */
+    protected int _encryptThreads = 0;
+
+    /**
+     * Sets the properties for the file retriever.
+     *
+     * @param props A comma delimited properties string.
+     */
+    public abstract void setProperties(String props);
+
+    /**
+     * Sets the properties for the file retriever given an XmlTag object. The tag is expected to have
+     * xml tag children for each of the allowable properties.
+     *
+     * @param xml The xml tag.
+     */
+    public abstract void setPropertiesFromXml(XmlTag tag);
+
+    /**
+     * Retrieves the file specified by the batch instruction.
+     *
+     * @param instr The instruction about the file.
+     * @throws FileRetrievalException
+     */
+    public abstract void retrieveFile(BackupInstruction instr) throws FileRetrievalException;
+
+    /**
+     * Called before any files are retrieved for a backup job so that a retriever
+     * can set up anything that is shared by all of the instructions, such as a
+     * connection. By default, there is nothing to set up.
+     *
+     * @throws FileRetrievalException
+     */
+    public void beginSession() throws FileRetrievalException { }
+
+    /**
+     * Called after all of the files for a backup job have been retrieved, even
+     * when retrieving them failed. By default, there is nothing to tear down.
+     */
+    public void endSession() { }
+
+    /**
+     * Prepares the file specified by the instruction to be copied. This is the first
+     * stage of retrieving a file and is used when stages are pipelined. By default,
+     * there is nothing to prepare.
+     *
+     * @param instr The instruction about the file.
+     * @throws FileRetrievalException
+     * @see RetrievalPipeline
+     */
+    public void prepareFile(BackupInstruction instr) throws FileRetrievalException { }
+
+    /**
+     * Copies the prepared file specified by the instruction. This is the second stage
+     * of retrieving a file. By default, it retrieves the file.
+     *
+     * @param instr The instruction about the file.
+     * @throws FileRetrievalException
+     * @see RetrievalPipeline
+     */
+    public void copyFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        retrieveFile(instr);
+    }
+
+    /**
+     * Cleans up after the file specified by the instruction. This is the last stage
+     * of retrieving a file and is run even when the earlier stages fail. By default,
+     * there is nothing to clean.
+     *
+     * @param instr The instruction about the file.
+     * @throws FileRetrievalException
+     * @see RetrievalPipeline
+     */
+    public void cleanFile(BackupInstruction instr) throws FileRetrievalException { }
+
+    /**
+     * Restores a stored file into a directory on the remote server. The stored file
+     * is read from the stream as it is sent, so it is never copied whole to the remote
+     * server before it is extracted. By default, restoring to the remote server is not
+     * supported.
+     *
+     * @param restorer The restorer with the paths to restore.
+     * @param name The dated file name.
+     * @param in The stored file.
+     * @param dir The directory on the remote server.
+     * @throws FileRetrievalException if the file cannot be restored.
+     * @see BackupRestorer
+     */
+    public void restoreFile(BackupRestorer restorer, String name, InputStream in, String dir) throws FileRetrievalException
+    {
+        throw new FileRetrievalException( getClass().getName()+" cannot restore to the remote server" );
+    }
+
+    /**
+     * Deletes files and directories that were restored into a directory on the remote
+     * server. This is used to apply the deletions of an incremental backup. By
+     * default, restoring to the remote server is not supported.
+     *
+     * @param restorer The restorer.
+     * @param paths The paths relative to the directory.
+     * @param dir The directory on the remote server.
+     * @throws FileRetrievalException if the files cannot be deleted.
+     * @see BackupRestorer
+     */
+    public void removeRestored(BackupRestorer restorer, String[] paths, String dir) throws FileRetrievalException
+    {
+        throw new FileRetrievalException( getClass().getName()+" cannot restore to the remote server" );
+    }
+
+    /**
+     * Sets the log writer.
+     *
+     * @param logger The writer.
+     */
+    public void setLogger(Logger logger)
+    {
+        _logger = logger;
+    }
+
+    /**
+     * Sets the throttle that limits the bandwidth of transfers.
+     *
+     * @param throttle The throttle or null for no limits.
+     */
+    public void setThrottle(TransferThrottle throttle)
+    {
+        _throttle = throttle;
+    }
+
+    /**
+     * Returns the stream to write a transfer through so that it is held to the
+     * bandwidth limits. The stream is returned as is if there are no limits.
+     *
+     * @param out The stream.
+     * @param network Whether the data comes from the remote server.
+     * @return OutputStream
+     */
+    protected OutputStream throttle(OutputStream out, boolean network)
+    {
+        if ( _throttle == null || !_throttle.isLimited() ) return out;
+        return _throttle.wrap( out, getRemoteServer(), network );
+    }
+
+    /**
+     * Records that a transfer from the remote server started so it gets a share
+     * of the bandwidth limits. endTransfer must be called when it finishes.
+     */
+    protected void beginTransfer()
+    {
+        if (_throttle != null) _throttle.begin( getRemoteServer() );
+    }
+
+    /**
+     * Records that a transfer from the remote server finished.
+     */
+    protected void endTransfer()
+    {
+        if (_throttle != null) _throttle.end( getRemoteServer() );
+    }
+
+    /**
+     * Returns the bytes per second a transfer by an external command can use under
+     * the bandwidth limits or 0 if it is not limited. This is only valid between
+     * beginTransfer and endTransfer.
+     *
+     * @return long
+     */
+    protected long getTransferShare()
+    {
+        if ( _throttle == null || !_throttle.isLimited() ) return 0;
+        return _throttle.getShare( getRemoteServer() );
+    }
+
+    /**
+     * Logs the specified message.
+     *
+     * @param msg The message.
+     */
+    public void log(String msg)
+    {
+        if (_logger != null) _logger.log(msg);
+    }
+
+    /**
+     * Executes the command and arguments. The command must exit with a code of 0 and
+     * finish before the command timeout.
+     *
+     * @param args The command and arguments.
+     * @throws FileRetrievalException
+     */
+    public void execute(String[] args) throws FileRetrievalException
+    {
+        execute( args, false, getCommandDeadline() );
+    }
+
+    /**
+     * Executes the command and arguments. The command must exit with a code of 0 and
+     * finish before the deadline. If expectEof is true, then it must also print the
+     * end of file marker.
+     *
+     * @param args The command and arguments.
+     * @param expectEof Whether the command must print the end of file marker.
+     * @param deadline The time (in milliseconds) the command must finish by or 0 for none.
+     * @return ProcessResult
+     * @throws FileRetrievalException if the command fails.
+     * @see ProcessRunner#EOF_MARKER
+     */
+    public ProcessResult execute(String[] args, boolean expectEof, long deadline) throws FileRetrievalException
+    {
+        String cmd = toCommandString(args);
+        log(cmd);
+        if ( deadline > 0 && deadline <= System.currentTimeMillis() )
+        {
+            throw new FileRetrievalException("Deadline passed before running: "+cmd);
+        }
+
+        ProcessResult result = null;
+        long start = System.currentTimeMillis();
+        try
+        {
+            result = _processRunner.run(args, deadline);
+        }
+        catch (Exception e)
+        {
+            RunMetrics.getInstance().record(this, null, "command", start, false);
+            throw new FileRetrievalException(e);
+        }
+        RunMetrics.getInstance().record( this, null, "command", start, result.isSuccess(expectEof) );
+        if ( !result.isSuccess(expectEof) )
+        {
+            String msg = result.getFailureReason(expectEof);
+            log("*** ERROR *** "+cmd+": "+msg);
+            throw new FileRetrievalException(cmd+": "+msg);
+        }
+        else if (result.getStderr().length() > 0)
+        {
+            log("*** WARNING *** "+result.getStderr());
+        }
+        return result;
+    }
+
+    /**
+     * Executes the command and arguments with the stream sent to its standard in. The
+     * command must exit with a code of 0 and finish before the deadline.
+     *
+     * @param args The command and arguments.
+     * @param in What to send to standard in.
+     * @param deadline The time (in milliseconds) the command must finish by or 0 for none.
+     * @return ProcessResult
+     * @throws FileRetrievalException if the command fails.
+     */
+    public ProcessResult execute(String[] args, InputStream in, long deadline) throws FileRetrievalException
+    {
+        String cmd = toCommandString(args);
+        log(cmd+" < stdin");
+        ProcessResult result = null;
+        long start = System.currentTimeMillis();
+        try
+        {
+            result = _processRunner.run(args, in, null, deadline);
+        }
+        catch (Exception e)
+        {
+            RunMetrics.getInstance().record(this, null, "command", start, false);
+            throw new FileRetrievalException(e);
+        }
+        RunMetrics.getInstance().record( this, null, "command", start, result.isSuccess(false) );
+        if ( !result.isSuccess(false) )
+        {
+            String msg = result.getFailureReason(false);
+            log("*** ERROR *** "+cmd+": "+msg);
+            throw new FileRetrievalException(cmd+": "+msg);
+        }
+        else if (result.getStderr().length() > 0)
+        {
+            log("*** WARNING *** "+result.getStderr());
+        }
+        log("Sent "+result.getInputBytes()+" bytes in "+result.getElapsed()+"ms");
+        return result;
+    }
+
+    /**
+     * Runs the command and writes everything it prints to standard out into the
+     * local file, then adds the file to the catalog. The output is written to the
+     * stream returned by openOutput (gzipped first if local_compress is on and
+     * encrypted if there is a keyfile) and is
+     * only committed after the command succeeds, so a failed transfer never leaves
+     * a partial dated file behind. The checksums of the file are computed as the
+     * output is written.
+     *
+     * @param instr The instruction.
+     * @param args The command and arguments.
+     * @param file The local file to write.
+     * @param deadline The time (in milliseconds) the command must finish by or 0 for none.
+     * @return long The number of bytes written to the file.
+     * @throws FileRetrievalException if the command fails or the file cannot be written.
+     * @see #openOutput(File)
+     */
+    public long streamToFile(BackupInstruction instr, String[] args, File file, long deadline) throws FileRetrievalException
+    {
+        return streamToFile(instr, args, null, file, deadline);
+    }
+
+    /**
+     * Runs the command with the stream sent to its standard in and writes everything
+     * it prints to standard out into the local file like streamToFile.
+     *
+     * @param instr The instruction.
+     * @param args The command and arguments.
+     * @param in What to send to standard in or null for nothing.
+     * @param file The local file to write.
+     * @param deadline The time (in milliseconds) the command must finish by or 0 for none.
+     * @return long The number of bytes written to the file.
+     * @throws FileRetrievalException if the command fails or the file cannot be written.
+     * @see #streamToFile(BackupInstruction, String[], File, long)
+     */
+    public long streamToFile(BackupInstruction instr, String[] args, InputStream in, File file, long deadline) throws FileRetrievalException
+    {
+        String cmd = toCommandString(args);
+        log(cmd+(in != null ? " < stdin" : "")+" > "+file);
+        BackupOutputStream out = null;
+        ChecksumOutputStream sums = null;
+        beginTransfer();
+        try
+        {
+            sums = new ChecksumOutputStream( openOutput(file), _fastHash );
+            out = encode(sums, _localCompress);
+            ProcessResult result = _processRunner.run( args, in, throttle(out, getRemoteServer() != null), deadline );
+            if ( !result.isSuccess(false) )
+            {
+                String msg = result.getFailureReason(false);
+                log("*** ERROR *** "+cmd+": "+msg);
+                throw new FileRetrievalException(cmd+": "+msg);
+            }
+            else if (result.getStderr().length() > 0)
+            {
+                log("*** WARNING *** "+result.getStderr());
+            }
+            out.commit();
+            long written = sums.getBytes();
+            if (_localCompress || _key != null) log(encoding()+" "+result.getBytes()+" bytes to "+written+" bytes");
+            log("Wrote "+written+" bytes to "+file+" in "+result.getElapsed()+"ms");
+            fileRetrieved(instr, file, written, sums);
+            return written;
+        }
+        catch (FileRetrievalException fre)
+        {
+            throw fre;
+        }
+        catch (Exception e)
+        {
+            throw new FileRetrievalException(e);
+        }
+        finally
+        {
+            if (out != null) out.abort();
+            endTransfer();
+        }
+    }
+
+    /**
+     * Runs the database dump command of the instruction and writes what it prints to
+     * standard out into the local file, gzipped on this host as it arrives if the file
+     * name ends in .gz. Nothing is written to disk on the database host and the dump is
+     * only read once. If the instruction has dump parts, then the command is run once
+     * for each part with the part as its last argument and each part becomes its own
+     * gzip members in the order the parts are given. With dump_threads greater than 1,
+     * the first part is written straight into the local file while the other parts are
+     * dumped at the same time into hidden files in the local backup directory, which
+     * are appended as soon as the parts before them are done. A part that fails
+     * interrupts the thread writing the local file, so the dump fails right away
+     * instead of after the parts before it are written. If there is a keyfile,
+     * then the local file and the hidden files are encrypted as they are written. The
+     * local file is only committed once every part succeeds and it is then cataloged
+     * like any other retrieved file.
+     *
+     * @param instr The instruction.
+     * @param file The local file to write.
+     * @return long The number of bytes written to the file.
+     * @throws FileRetrievalException if a dump fails or the file cannot be written.
+     * @see BackupInstruction#isDump()
+     */
+    public long dumpToFile(final BackupInstruction instr, File file) throws FileRetrievalException
+    {
+        final String[] parts = (instr.dumpParts.length > 0 ? instr.dumpParts : new String[] { null });
+        final boolean gzip = file.getName().toLowerCase().endsWith(".gz");
+        final long deadline = getDeadline(instr);
+        long start = System.currentTimeMillis();
+        ExecutorService pool = null;
+        File[] temps = new File[parts.length];
+        Future[] futures = new Future[parts.length];
+        //The first part to fail or false once the local file is no longer being written
+        final AtomicReference failure = new AtomicReference();
+        final Thread writer = Thread.currentThread();
+        ChecksumOutputStream sums = null;
+        BackupOutputStream enc = null;
+        beginTransfer();
+        try
+        {
+            if (parts.length > 1 && instr.dumpThreads > 1)
+            {
+                pool = Executors.newFixedThreadPool( Math.min(instr.dumpThreads-1, parts.length-1) );
+                for (int i=1; i<parts.length; i++)
+                {
+                    final String part = parts[i];
+                    final File temp = new File( file.getParentFile(), "."+file.getName()+".dump"+i );
+                    temps[i] = temp;
+                    futures[i] = pool.submit
+                    (
+                        new Callable()
+                        {
+                            public Object call() throws Exception
+                            {
+                                BackupOutputStream out = new AtomicFileOutputStream(temp);
+                                try
+                                {
+                                    out = encode(out, gzip);
+                                    dumpPart(instr, part, out, deadline);
+                                    out.commit();
+                                    return temp;
+                                }
+                                catch (Exception e)
+                                {
+                                    if ( failure.compareAndSet(null, e) ) writer.interrupt();
+                                    throw e;
+                                }
+                                finally
+                                {
+                                    out.abort();
+                                }
+                            }
+                        }
+                    );
+                }
+            }
+
+            sums = new ChecksumOutputStream( openOutput(file), _fastHash );
+            enc = (_key != null ? encrypt(sums) : sums);
+            for (int i=0; i<parts.length; i++)
+            {
+                if (futures[i] != null)
+                {
+                    futures[i].get();
+                    appendFile(temps[i], enc);
+                    continue;
+                }
+                BackupOutputStream out = (gzip ? compress(enc) : enc);
+                dumpPart(instr, parts[i], out, deadline);
+                //Write the rest of the part's members without committing the file
+                if (out instanceof ParallelGzipOutputStream) ((ParallelGzipOutputStream)out).finish();
+            }
+            enc.commit();
+            long written = sums.getBytes();
+            log
+            (
+                "Wrote "+written+" bytes of "+parts.length+" dump part"+(parts.length > 1 ? "s" : "")+" to "+file+
+                " in "+(System.currentTimeMillis()-start)+"ms"
+            );
+            fileRetrieved(instr, file, written, sums);
+            return written;
+        }
+        catch (Exception e)
+        {
+            //If a part failed, then whatever the interrupt did to this thread is not the reason
+            Object part = failure.get();
+            Throwable cause = e;
+            if (part instanceof Throwable) cause = (Throwable)part;
+            else if (e instanceof ExecutionException) cause = e.getCause();
+            if (cause instanceof FileRetrievalException) throw (FileRetrievalException)cause;
+            throw new FileRetrievalException(cause);
+        }
+        finally
+        {
+            //Parts that fail from here on do not interrupt, and one that did is cleared
+            if (failure.getAndSet(Boolean.FALSE) instanceof Throwable) Thread.interrupted();
+            if (enc != null) enc.abort();
+            else if (sums != null) sums.abort();
+            if (pool != null)
+            {
+                //A dump that is still running is killed when its thread is interrupted
+                pool.shutdownNow();
+                try
+                {
+                    pool.awaitTermination(1, TimeUnit.MINUTES);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (int i=0; i<parts.length; i++)
+            {
+                if (temps[i] != null) temps[i].delete();
+            }
+            endTransfer();
+        }
+    }
+
+    /**
+     * Runs the dump command for one part and writes its standard out to the stream.
+     * The stream is not committed.
+     *
+     * @param instr The instruction.
+     * @param part The table or schema or null for the whole dump.
+     * @param out The stream to write to.
+     * @param deadline The time (in milliseconds) the command must finish by or 0 for none.
+     * @return long The number of bytes the command wrote.
+     * @throws Exception if the command fails.
+     */
+    protected long dumpPart(BackupInstruction instr, String part, BackupOutputStream out, long deadline) throws Exception
+    {
+        String[] args = getDumpCommand(instr, part);
+        String cmd = toCommandString(args);
+        log(cmd);
+        ProcessResult result = _processRunner.run( args, throttle(out, getRemoteServer() != null), deadline );
+        if ( !result.isSuccess(false) )
+        {
+            String msg = result.getFailureReason(false);
+            log("*** ERROR *** "+cmd+": "+msg);
+            throw new FileRetrievalException(cmd+": "+msg);
+        }
+        else if (result.getStderr().length() > 0)
+        {
+            log("*** WARNING *** "+result.getStderr());
+        }
+        log("Dumped "+(part != null ? part : instr.remoteStagedFile)+": "+result.getBytes()+" bytes in "+result.getElapsed()+"ms");
+        return result.getBytes();
+    }
+
+    /**
+     * Returns the dump command of the instruction with its arguments followed by the
+     * part. By default, the command is run on this host.
+     *
+     * @param instr The instruction.
+     * @param part The table or schema or null for none.
+     * @return String[]
+     */
+    protected String[] getDumpCommand(BackupInstruction instr, String part)
+    {
+        int count = (instr.args != null ? instr.args.length : 0);
+        String[] ret = new String[count + (part != null ? 2 : 1)];
+        ret[0] = instr.dumpCommand;
+        for (int i=0; i<count; i++)
+        {
+            ret[i+1] = instr.args[i];
+        }
+        if (part != null) ret[count+1] = part;
+        return ret;
+    }
+
+    /**
+     * Copies a file to the stream. If there is a keyfile, then the file was written
+     * encrypted and it is decrypted as it is copied.
+     *
+     * @param from The file.
+     * @param out The stream.
+     * @throws IOException
+     */
+    protected void appendFile(File from, OutputStream out) throws IOException
+    {
+        FileInputStream file = new FileInputStream(from);
+        InputStream in = file;
+        try
+        {
+            if (_key != null) in = new DecryptingInputStream( file.getChannel(), _key, getEncryptPool() );
+            byte[] buf = new byte[256*1024];
+            int len;
+            while ( (len=in.read(buf)) != -1 )
+            {
+                out.write(buf, 0, len);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the instruction's source directory as a tar into the local file with a
+     * TarArchiver, gzipped on this host as it is written if the file name ends in .tgz
+     * or .gz and encrypted if there is a keyfile. Nothing is staged and tar is not run. The local file is only committed
+     * once the whole directory is written and it is then cataloged like any other
+     * retrieved file.
+     *
+     * @param instr The instruction.
+     * @param file The local file to write.
+     * @return long The number of bytes written to the file.
+     * @throws FileRetrievalException if the directory cannot be read or the file cannot be written.
+     * @see BackupInstruction#isArchive()
+     */
+    public long archiveToFile(BackupInstruction instr, File file) throws FileRetrievalException
+    {
+        return archiveToFile(instr, file, null);
+    }
+
+    /**
+     * Writes some of the entries of the instruction's source directory as a tar into
+     * the local file like archiveToFile.
+     *
+     * @param instr The instruction.
+     * @param file The local file to write.
+     * @param selection The paths relative to the source directory to archive or null for everything.
+     * @return long The number of bytes written to the file.
+     * @throws FileRetrievalException if the directory cannot be read or the file cannot be written.
+     * @see TarArchiver#setSelection(String[])
+     */
+    public long archiveToFile(BackupInstruction instr, File file, String[] selection) throws FileRetrievalException
+    {
+        File source = new File(instr.sourceDir);
+        if ( !source.isDirectory() ) throw new FileRetrievalException("Source directory does not exist: "+source);
+        long start = System.currentTimeMillis();
+        ChecksumOutputStream sums = null;
+        BackupOutputStream out = null;
+        beginTransfer();
+        try
+        {
+            sums = new ChecksumOutputStream( openOutput(file), _fastHash );
+            out = encode( sums, BackupRestorer.isGzip(file.getName()) );
+            TarArchiver tar = new TarArchiver(_logger, source, instr.sourceThreads);
+            tar.setDeadline( getDeadline(instr) );
+            tar.setSelection(selection);
+            long size = tar.write( throttle(out, false) );
+            out.commit();
+            long written = sums.getBytes();
+            log
+            (
+                "Archived "+tar.getEntries()+" entries ("+tar.getBytes()+" bytes) of "+source+" as "+size+
+                " tar bytes, wrote "+written+" bytes to "+file+" in "+(System.currentTimeMillis()-start)+"ms"
+            );
+            fileRetrieved(instr, file, written, sums);
+            return written;
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        finally
+        {
+            if (out != null) out.abort();
+            else if (sums != null) sums.abort();
+            endTransfer();
+        }
+    }
+
+    /**
+     * Writes the local file of an instruction that is not staged and returns true.
+     * This is a dump, an archive, or an instruction with nothing or only some files
+     * changed since its last backup. Returns false for any other instruction.
+     *
+     * @param instr The instruction.
+     * @return boolean
+     * @throws FileRetrievalException if the file cannot be written.
+     * @see #isStaged(BackupInstruction)
+     */
+    protected boolean copyUnstaged(BackupInstruction instr) throws FileRetrievalException
+    {
+        if ( isStaged(instr) ) return false;
+        File local = new File( createLocalBackupDir(), getDatedFilename(instr.remoteStagedFile) );
+        ChangePlan plan = (ChangePlan)_changePlans.get(instr);
+        if (plan != null && plan.mode == ChangePlan.SKIP) copyUnchanged(instr, plan, local);
+        else if (plan != null && plan.mode == ChangePlan.INCREMENTAL) copyIncremental(instr, plan, local);
+        else if ( instr.isDump() ) dumpToFile(instr, local);
+        else archiveToFile(instr, local);
+        return true;
+    }
+
+    /**
+     * Returns whether the instruction's file is staged on the remote server by its
+     * prep script. Dumps and archives are not, nor are instructions that were found
+     * by planChanges to be unchanged or to only need an incremental backup.
+     *
+     * @param instr The instruction.
+     * @return boolean
+     */
+    protected boolean isStaged(BackupInstruction instr)
+    {
+        ChangePlan plan = (ChangePlan)_changePlans.get(instr);
+        return ( instr.isStaged() && (plan == null || plan.mode == ChangePlan.FULL) );
+    }
+
+    /**
+     * Checks what changed in the instruction's change_dir since its last backup if
+     * it has change_mode. The directory is listed with find and compared with the
+     * change manifest of the instruction's newest dated file. Returns true if the prep
+     * script must not be run because nothing changed or because only the changed
+     * files are archived. Returns false if a full backup is needed, which is when the
+     * last backup has no change manifest, it was taken today, or it already has
+     * max_incrementals incremental backups on top of a full one. The new manifest is
+     * kept with the local file once it is retrieved.
+     *
+     * @param instr The instruction.
+     * @return boolean
+     * @throws FileRetrievalException if the directory cannot be listed.
+     * @see ChangeManifest
+     */
+    protected boolean planChanges(BackupInstruction instr) throws FileRetrievalException
+    {
+        _changePlans.remove(instr);
+        if ( !instr.isChangeChecked() ) return false;
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try
+        {
+            ChangePlan plan = new ChangePlan( listChanges(instr) );
+            _changePlans.put(instr, plan);
+            String today = getDatedFilename(instr.remoteStagedFile);
+            plan.previous = BackupCatalog.getInstance( getLocalBackupDir() ).getNewest(instr.remoteStagedFile);
+            ChangeManifest last = null;
+            if (plan.previous != null) last = ChangeManifest.read(getLocalBackupDir(), plan.previous.name);
+            if (last == null)
+            {
+                log("No change manifest for the last backup of "+instr.remoteStagedFile+", taking a full backup");
+                success = true;
+                return false;
+            }
+
+            plan.changed = plan.manifest.compare( last, instr.changeInodes );
+            int deleted = plan.manifest.getDeleted().length;
+            String[] chain = last.getChain();
+            if (plan.changed.length == 0 && deleted == 0)
+            {
+                log("Nothing changed in "+instr.getChangeDir()+" since "+plan.previous.name);
+                //The same file is stored again, so it has the same deletions on the same chain
+                plan.mode = ChangePlan.SKIP;
+                plan.manifest.setDeleted( last.getDeleted() );
+                plan.chain = replaceLast(chain, today);
+            }
+            else if ( !instr.isIncremental() || plan.previous.name.equals(today) || chain.length > instr.maxIncrementals )
+            {
+                log
+                (
+                    plan.changed.length+" changed and "+deleted+" deleted in "+instr.getChangeDir()+
+                    " since "+plan.previous.name+", taking a full backup"
+                );
+            }
+            else
+            {
+                log
+                (
+                    plan.changed.length+" changed and "+deleted+" deleted in "+instr.getChangeDir()+
+                    " since "+plan.previous.name+", taking incremental backup "+chain.length+" of "+instr.maxIncrementals
+                );
+                plan.mode = ChangePlan.INCREMENTAL;
+                plan.chain = new String[chain.length+1];
+                System.arraycopy(chain, 0, plan.chain, 0, chain.length);
+                plan.chain[chain.length] = today;
+            }
+            success = true;
+            return (plan.mode != ChangePlan.FULL);
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        finally
+        {
+            RunMetrics.getInstance().record(this, instr, "changes", start, success);
+        }
+    }
+
+    /**
+     * Lists the instruction's change_dir with find.
+     *
+     * @param instr The instruction.
+     * @return ChangeManifest
+     * @throws FileRetrievalException if find fails.
+     */
+    protected ChangeManifest listChanges(BackupInstruction instr) throws FileRetrievalException
+    {
+        ChangeManifest ret = new ChangeManifest();
+        String[] args = getChangeCommand( instr, ChangeManifest.getFindCommand(instr.getChangeDir()) );
+        String cmd = toCommandString(args);
+        log(cmd);
+        ProcessResult result = null;
+        try
+        {
+            result = _processRunner.run( args, ret.getParser(), getDeadline(instr) );
+        }
+        catch (Exception e)
+        {
+            throw new FileRetrievalException(e);
+        }
+        if ( !result.isSuccess(false) )
+        {
+            String msg = result.getFailureReason(false);
+            log("*** ERROR *** "+cmd+": "+msg);
+            throw new FileRetrievalException(cmd+": "+msg);
+        }
+        log("Listed "+ret.size()+" files in "+instr.getChangeDir()+" in "+result.getElapsed()+"ms");
+        return ret;
+    }
+
+    /**
+     * Returns the command line that runs a command on the server with the
+     * instruction's change_dir. By default, the command is run on this host.
+     *
+     * @param instr The instruction.
+     * @param args The command and arguments.
+     * @return String[]
+     */
+    protected String[] getChangeCommand(BackupInstruction instr, String[] args)
+    {
+        return args;
+    }
+
+    /**
+     * Stores the last backup of an unchanged instruction again under today's name.
+     * A file in the local backup directory is hard linked and a file in the dedup
+     * store is copied within the store, which only adds a recipe.
+     *
+     * @param instr The instruction.
+     * @param plan The change plan.
+     * @param file The local file.
+     * @throws FileRetrievalException if the file cannot be stored.
+     */
+    protected void copyUnchanged(BackupInstruction instr, ChangePlan plan, File file) throws FileRetrievalException
+    {
+        if ( plan.previous.name.equals(file.getName()) )
+        {
+            log(file+" is already stored");
+            saveChanges(instr, file);
+            journal(instr, RunJournal.VERIFIED);
+            return;
+        }
+        File previous = new File( getLocalBackupDir(), plan.previous.name );
+        BackupOutputStream out = null;
+        try
+        {
+            if ( previous.isFile() )
+            {
+                File tmp = AtomicFileOutputStream.getTempFile(file);
+                tmp.delete();
+                Files.createLink( tmp.toPath(), previous.toPath() );
+                if ( !tmp.renameTo(file) )
+                {
+                    tmp.delete();
+                    throw new IOException("Could not rename "+tmp+" to "+file);
+                }
+            }
+            else
+            {
+                DedupStore store = DedupStore.getInstance( getLocalBackupDir() );
+                out = store.createWriter( file.getName() );
+                store.restore(plan.previous.name, out);
+                out.commit();
+            }
+            log("Stored "+plan.previous.name+" as "+file+" since nothing changed");
+            BackupCatalog.getInstance( getLocalBackupDir() ).add
+            (
+                instr.remoteStagedFile, getRemoteServer(), file.getName(), plan.previous.size, plan.previous.sha256
+            );
+            RunManifest.getInstance( getLocalBackupDir() ).add( file.getName(), plan.previous.size, plan.previous.sha256, null );
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        finally
+        {
+            if (out != null) out.abort();
+        }
+        saveChanges(instr, file);
+        journal(instr, RunJournal.VERIFIED);
+    }
+
+    /**
+     * Archives only the files that changed since the instruction's last backup into
+     * the local file. An archive instruction is written by a TarArchiver. Otherwise
+     * tar is run on the server with change_dir and given the changed paths on
+     * standard in. It is gzipped there if the file name ends in .tgz or .gz, unless
+     * local_compress is on.
+     *
+     * @param instr The instruction.
+     * @param plan The change plan.
+     * @param file The local file.
+     * @throws FileRetrievalException if the file cannot be written.
+     */
+    protected void copyIncremental(BackupInstruction instr, ChangePlan plan, File file) throws FileRetrievalException
+    {
+        if ( instr.isArchive() )
+        {
+            archiveToFile(instr, file, plan.changed);
+            return;
+        }
+        boolean gzip = ( BackupRestorer.isGzip(file.getName()) && !_localCompress );
+        String[] args = getChangeCommand
+        (
+            instr, new String[]
+            {
+                "tar", "-c"+(gzip ? "z" : "")+"f", "-", "-C", instr.getChangeDir(), "--null", "--no-recursion", "-T", "-"
+            }
+        );
+        ByteArrayOutputStream paths = new ByteArrayOutputStream();
+        try
+        {
+            for (int i=0; i<plan.changed.length; i++)
+            {
+                paths.write( plan.changed[i].getBytes("UTF-8") );
+                paths.write(0);
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        streamToFile( instr, args, new ByteArrayInputStream(paths.toByteArray()), file, getDeadline(instr) );
+    }
+
+    /**
+     * Writes the change manifest of a retrieved file if the instruction's changes
+     * are checked. The manifest is not kept in memory once it is written.
+     *
+     * @param instr The instruction.
+     * @param file The local file.
+     * @throws FileRetrievalException if the manifest cannot be written.
+     */
+    protected void saveChanges(BackupInstruction instr, File file) throws FileRetrievalException
+    {
+        ChangePlan plan = (ChangePlan)_changePlans.get(instr);
+        if (plan == null || plan.manifest == null) return;
+        try
+        {
+            plan.manifest.setChain( plan.chain != null ? plan.chain : new String[] { file.getName() } );
+            plan.manifest.write( getLocalBackupDir(), file.getName() );
+            plan.manifest = null;
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+    }
+
+    /**
+     * Returns a copy of the names with the last one replaced.
+     *
+     * @param names The names.
+     * @param last The new last name.
+     * @return String[]
+     */
+    protected static String[] replaceLast(String[] names, String last)
+    {
+        String[] ret = names.clone();
+        if (ret.length == 0) return new String[] { last };
+        ret[ret.length-1] = last;
+        return ret;
+    }
+
+    /**
+     * Returns the stream to write a retrieved file to. If dedup is on, then the
+     * file is chunked into the dedup store of the local backup directory. Otherwise
+     * it is written to the local file when it is committed.
+     *
+     * @param file The local file.
+     * @return BackupOutputStream
+     * @throws IOException if the stream cannot be opened.
+     */
+    public BackupOutputStream openOutput(File file) throws IOException
+    {
+        if (_dedup) return DedupStore.getInstance( getLocalBackupDir() ).createWriter( file.getName() );
+        else return new AtomicFileOutputStream(file);
+    }
+
+    /**
+     * Returns whether retrieved files are compressed on this host.
+     *
+     * @return boolean
+     */
+    public boolean isLocalCompress()
+    {
+        return _localCompress;
+    }
+
+    /**
+     * Returns a stream that gzips what is written to it in parallel blocks using the
+     * compress_level, compress_block_kb, and compress_threads properties.
+     *
+     * @param out The stream to write the compressed data to.
+     * @return BackupOutputStream
+     */
+    protected BackupOutputStream compress(BackupOutputStream out)
+    {
+        return new ParallelGzipOutputStream
+        (
+            out, _compressBlockSize, _compressLevel, ParallelGzipOutputStream.getPool(_compressThreads)
+        );
+    }
+
+    /**
+     * Returns the key retrieved files are encrypted with or null if they are not
+     * encrypted.
+     *
+     * @return EncryptionKey
+     */
+    public EncryptionKey getKey()
+    {
+        return _key;
+    }
+
+    /**
+     * Returns a stream that encrypts what is written to it in parallel segments using
+     * the keyfile, encrypt_segment_kb, and encrypt_threads properties.
+     *
+     * @param out The stream to write the encrypted data to.
+     * @return BackupOutputStream
+     * @throws IOException if the file's key cannot be derived.
+     * @see EncryptionKey
+     */
+    protected BackupOutputStream encrypt(BackupOutputStream out) throws IOException
+    {
+        return new EncryptingOutputStream( out, _key, _encryptSegmentSize, getEncryptPool() );
+    }
+
+    /**
+     * Returns the pool that encrypts and decrypts.
+     *
+     * @return ForkJoinPool
+     */
+    protected ForkJoinPool getEncryptPool()
+    {
+        return ParallelGzipOutputStream.getPool(_encryptThreads);
+    }
+
+    /**
+     * Returns a stream that gzips what is written to it if asked and then encrypts it
+     * if there is a keyfile before writing it to the stream.
+     *
+     * @param out The stream to write the encoded data to.
+     * @param gzip Whether to gzip the data.
+     * @return BackupOutputStream
+     * @throws IOException if the file's key cannot be derived.
+     */
+    protected BackupOutputStream encode(BackupOutputStream out, boolean gzip) throws IOException
+    {
+        if (_key != null) out = encrypt(out);
+        return (gzip ? compress(out) : out);
+    }
+
+    /**
+     * Returns how retrieved files are encoded on this host for the log.
+     *
+     * @return String
+     */
+    protected String encoding()
+    {
+        if (_localCompress && _key != null) return "Compressed and encrypted";
+        return (_localCompress ? "Compressed" : "Encrypted");
+    }
+
+    /**
+     * Gzips a file into the local file in parallel blocks if local_compress is on and
+     * encrypts it if there is a keyfile. The local file is only replaced once all of
+     * it is written, so it can be the same file. The checksums of the file that is
+     * read and of the local file are computed as it is copied.
+     *
+     * @param from The file to encode.
+     * @param to The local file.
+     * @param received The stream to compute the checksums of the file that is read or null.
+     * @return ChecksumOutputStream The checksums of the local file.
+     * @throws FileRetrievalException if the file cannot be encoded.
+     */
+    protected ChecksumOutputStream encodeFile(File from, File to, ChecksumOutputStream received) throws FileRetrievalException
+    {
+        long start = System.currentTimeMillis();
+        long size = from.length();
+        try
+        {
+            InputStream in = new FileInputStream(from);
+            try
+            {
+                ChecksumOutputStream ret = new ChecksumOutputStream( new AtomicFileOutputStream(to), _fastHash );
+                BackupOutputStream encoded = encode(ret, _localCompress);
+                try
+                {
+                    OutputStream out = throttle(encoded, false);
+                    byte[] buf = new byte[256*1024];
+                    int n = 0;
+                    while ( (n=in.read(buf)) != -1 )
+                    {
+                        if (received != null) received.write(buf, 0, n);
+                        out.write(buf, 0, n);
+                    }
+                    encoded.commit();
+                    log
+                    (
+                        encoding()+" "+from+" to "+to+" ("+size+" to "+ret.getBytes()+" bytes in "+
+                        (System.currentTimeMillis()-start)+"ms)"
+                    );
+                    return ret;
+                }
+                finally
+                {
+                    encoded.abort();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+    }
+
+    /**
+     * Called by retrievers that copy a file straight to the local backup directory
+     * with an external command (such as scp) once the file is there. The file is
+     * read once to compress it if local_compress is on, to encrypt it if there is a
+     * keyfile, and to compute its checksums, which are checked against the checksum
+     * of the remote file. It is then added to the catalog and manifest of the local
+     * backup directory.
+     *
+     * @param instr The instruction.
+     * @param file The local file.
+     * @throws FileRetrievalException if the file does not match or cannot be stored.
+     */
+    protected void fileRetrieved(BackupInstruction instr, File file) throws FileRetrievalException
+    {
+        fileRetrieved(instr, file, null);
+    }
+
+    /**
+     * Called by retrievers that copy a file straight to the local backup directory
+     * with an external command once the file is there.
+     *
+     * @param instr The instruction.
+     * @param file The local file.
+     * @param expected The SHA-256 the file is known to have or null to get it with getRemoteChecksum.
+     * @throws FileRetrievalException if the file does not match or cannot be stored.
+     * @see #fileRetrieved(BackupInstruction, File)
+     */
+    protected void fileRetrieved(BackupInstruction instr, File file, String expected) throws FileRetrievalException
+    {
+        ChecksumOutputStream received = null;
+        ChecksumOutputStream stored = null;
+        if (_localCompress || _key != null)
+        {
+            received = new ChecksumOutputStream(null, false);
+            stored = encodeFile(file, file, received);
+        }
+        else
+        {
+            try
+            {
+                received = stored = ChecksumOutputStream.checksum(file, _fastHash);
+            }
+            catch (IOException ioe)
+            {
+                throw new FileRetrievalException(ioe);
+            }
+        }
+        verifyChecksum( instr, file, received.getSha256(), expected );
+        fileRetrieved( instr, file, file.length(), stored );
+    }
+
+    /**
+     * Adds a file that was written to the local backup directory (or its dedup
+     * store) to the catalog and manifest. If dedup is on and the file was written to
+     * the local backup directory, then it is moved into the dedup store. If the
+     * instruction's changes are checked, then its change manifest is written.
+     *
+     * @param instr The instruction.
+     * @param file The local file.
+     * @param size The file size.
+     * @param sums The checksums of the file.
+     * @throws FileRetrievalException if the file cannot be stored.
+     */
+    protected void fileRetrieved(BackupInstruction instr, File file, long size, ChecksumOutputStream sums) throws FileRetrievalException
+    {
+        journal(instr, RunJournal.RETRIEVED);
+        RunMetrics.getInstance().addBytes( _jobName, getRemoteServer(), instr.remoteStagedFile, size );
+        synchronized (_retrieved)
+        {
+            Long bytes = (Long)_retrieved.get(instr.remoteStagedFile);
+            _retrieved.put( instr.remoteStagedFile, Long.valueOf((bytes != null ? bytes.longValue() : 0) + size) );
+        }
+        try
+        {
+            if ( _dedup && file.isFile() ) DedupStore.getInstance( getLocalBackupDir() ).ingest(file);
+            BackupCatalog.getInstance( getLocalBackupDir() ).add
+            (
+                instr.remoteStagedFile, getRemoteServer(), file.getName(), size, sums.getSha256()
+            );
+            RunManifest.getInstance( getLocalBackupDir() ).add( file.getName(), size, sums.getSha256(), sums.getCrc32() );
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        saveChanges(instr, file);
+        journal(instr, RunJournal.VERIFIED);
+    }
+
+    /**
+     * Checks the SHA-256 of the bytes received for the instruction against the
+     * checksum of the remote file. If they do not match, then the local file is
+     * deleted. If the expected checksum is null and remote_checksum is on, then it
+     * comes from getRemoteChecksum. Nothing is checked if there is no checksum.
+     *
+     * @param instr The instruction.
+     * @param file The local file.
+     * @param sha256 The SHA-256 of the bytes received.
+     * @param expected The SHA-256 of the remote file or null.
+     * @throws FileRetrievalException if the checksums do not match.
+     */
+    protected void verifyChecksum(BackupInstruction instr, File file, String sha256, String expected) throws FileRetrievalException
+    {
+        if (expected == null && _remoteChecksum) expected = getRemoteChecksum(instr);
+        if (expected == null)
+        {
+            if (_remoteChecksum) log("*** WARNING *** No remote checksum for "+instr.remoteStagedFile);
+            return;
+        }
+        if ( !expected.equals(sha256) )
+        {
+            file.delete();
+            String msg = "SHA-256 of "+file+" ("+sha256+") does not match "+instr.remoteStagedFile+" ("+expected+")";
+            log("*** ERROR *** "+msg);
+            throw new FileRetrievalException(msg);
+        }
+        log("Verified "+file+" against the remote checksum");
+    }
+
+    /**
+     * Returns the SHA-256 of the instruction's remote staged file as a hex string or
+     * null if it is not available. Prep scripts can write it next to the staged file
+     * as the output of sha256sum in a file with .sha256 added to the name. By
+     * default, there is no remote checksum.
+     *
+     * @param instr The instruction.
+     * @return String
+     * @throws FileRetrievalException
+     */
+    protected String getRemoteChecksum(BackupInstruction instr) throws FileRetrievalException
+    {
+        return null;
+    }
+
+    /**
+     * Returns the checksum at the start of the output of sha256sum or null if it
+     * does not start with one.
+     *
+     * @param output The output.
+     * @return String
+     */
+    protected String parseSha256(String output)
+    {
+        String ret = output.trim().split("\\s+")[0].toLowerCase();
+        return ( ret.matches("[0-9a-f]{64}") ? ret : null );
+    }
+
+    /**
+     * Creates the local backup directory if it does not exist.
+     *
+     * @return File
+     * @throws FileRetrievalException if the directory cannot be created.
+     */
+    protected File createLocalBackupDir() throws FileRetrievalException
+    {
+        File ret = new File( getLocalBackupDir() );
+        if ( !ret.exists() )
+        {
+            if ( !ret.mkdir() && !ret.exists() )
+            {
+                throw new FileRetrievalException("Could not create local backup directory: "+ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the command and arguments as one string for logging.
+     *
+     * @param args The command and arguments.
+     * @return String
+     */
+    protected String toCommandString(String[] args)
+    {
+        StringBuffer ret = new StringBuffer();
+        for (int i=0; i<args.length; i++)
+        {
+            ret.append( (i>0?" ":"") ).append(args[i]);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Called when an instruction or the whole job has finished, whether it failed or
+     * not. When it finished is recorded in RunMetrics. If it did not fail, then how
+     * long it took and how many bytes were retrieved are added to the RunHistory of the
+     * local backup directory and an instruction is recorded as cleaned in the run
+     * journal. A history that cannot be written is logged and does not fail the
+     * instruction.
+     *
+     * @param instr The instruction or null for the whole job.
+     * @param millis How long it took.
+     * @param success Whether it succeeded.
+     */
+    public void instructionFinished(BackupInstruction instr, long millis, boolean success)
+    {
+        long bytes = 0;
+        synchronized (_retrieved)
+        {
+            if (instr != null)
+            {
+                Long b = (Long)_retrieved.remove(instr.remoteStagedFile);
+                if (b != null) bytes = b.longValue();
+                _jobBytes += bytes;
+            }
+            else
+            {
+                bytes = _jobBytes;
+                _jobBytes = 0;
+            }
+        }
+        String name = (instr != null ? instr.remoteStagedFile : null);
+        RunMetrics.getInstance().addCompletion( _jobName, getRemoteServer(), name, System.currentTimeMillis() );
+        if (!success) return;
+        if (instr != null) journal(instr, RunJournal.CLEANED);
+        try
+        {
+            RunHistory.getInstance( getLocalBackupDir() ).add
+            (
+                (instr != null ? RunHistory.INSTRUCTION : RunHistory.JOB), getRemoteServer(),
+                (instr != null ? name : _jobName), millis, bytes
+            );
+        }
+        catch (IOException ioe)
+        {
+            log("*** WARNING *** Could not add to the run history of "+getLocalBackupDir()+": "+ioe);
+        }
+    }
+
+    /**
+     * Sets the journal that the states of the instructions are recorded in.
+     *
+     * @param journal The journal or null if the run is not journaled.
+     * @see RunJournal
+     */
+    public void setJournal(RunJournal journal)
+    {
+        _journal = journal;
+    }
+
+    /**
+     * Records that the instruction reached a state in the run journal. A journal that
+     * cannot be written is logged and does not fail the instruction, since the
+     * instruction is then retrieved again if the run is continued.
+     *
+     * @param instr The instruction.
+     * @param state The state.
+     */
+    public void journal(BackupInstruction instr, String state)
+    {
+        if (_journal == null) return;
+        try
+        {
+            _journal.record( _jobName, instr.remoteStagedFile, getDatedFilename(instr.remoteStagedFile), state );
+        }
+        catch (IOException ioe)
+        {
+            log("*** WARNING *** Could not record that "+instr.remoteStagedFile+" is "+state+" in the run journal: "+ioe);
+        }
+    }
+
+    /**
+     * Returns the state the instruction reached in the run journal today or null if it
+     * has not reached one or the run is not journaled.
+     *
+     * @param instr The instruction.
+     * @return String
+     */
+    public String getJournalState(BackupInstruction instr)
+    {
+        if (_journal == null) return null;
+        return _journal.getState( _jobName, instr.remoteStagedFile, getDatedFilename(instr.remoteStagedFile) );
+    }
+
+    /**
+     * Deletes what an interrupted run left of the instruction's dated local file: its
+     * temporary file, the hidden files of its dump parts, its change manifest's
+     * temporary file, and its dedup recipe's temporary file. The .part files of a
+     * resumed download are kept so the copy can continue.
+     *
+     * @param instr The instruction.
+     * @return int The number of files deleted.
+     */
+    public int removeIncomplete(BackupInstruction instr)
+    {
+        String name = getDatedFilename(instr.remoteStagedFile);
+        if (name.length() == 0) return 0;
+        File dir = new File( getLocalBackupDir() );
+        Vector files = new Vector();
+        String[] list = dir.list();
+        for (int i=0; list != null && i<list.length; i++)
+        {
+            //The dump parts are written atomically too, so their temporary files have two dots
+            boolean dated = ( list[i].startsWith("."+name+".") && !list[i].endsWith(".part") && !list[i].endsWith(".part.info") );
+            if ( dated || list[i].startsWith(".."+name+".dump") ) files.add( new File(dir, list[i]) );
+        }
+        files.add( AtomicFileOutputStream.getTempFile(ChangeManifest.getFile(getLocalBackupDir(), name)) );
+        files.add( new File(dir, DedupStore.DIR_NAME+File.separator+"recipes"+File.separator+"."+name+DedupStore.RECIPE_EXT+".tmp") );
+        int ret = 0;
+        for (int i=0; i<files.size(); i++)
+        {
+            File f = (File)files.get(i);
+            if ( !f.isFile() ) continue;
+            if ( f.delete() )
+            {
+                log("Deleted "+f+" left by the interrupted run");
+                ret++;
+            }
+            else
+            {
+                log("*** WARNING *** Could not delete "+f+" left by the interrupted run");
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Marks the instruction as started. If there is an instruction timeout, then the
+     * instruction's deadline is set from now.
+     *
+     * @param instr The instruction.
+     */
+    protected void startInstruction(BackupInstruction instr)
+    {
+        instr.deadline = (_instructionTimeout > 0 ? System.currentTimeMillis()+_instructionTimeout*1000L : 0);
+    }
+
+    /**
+     * Moves the instruction's deadline back by the time it waited between stages. The
+     * retrieval pipeline calls this when a stage starts, so the time an instruction
+     * is queued behind another instruction's copy is not counted against its own
+     * instruction timeout.
+     *
+     * @param instr The instruction.
+     * @param waited The time (in milliseconds) it waited.
+     */
+    protected void extendDeadline(BackupInstruction instr, long waited)
+    {
+        if (instr.deadline > 0 && waited > 0) instr.deadline += waited;
+    }
+
+    /**
+     * Returns the deadline for a command run as part of the instruction. This is the
+     * earlier of the command timeout from now and the instruction's deadline.
+     *
+     * @param instr The instruction.
+     * @return long
+     */
+    protected long getDeadline(BackupInstruction instr)
+    {
+        long ret = getCommandDeadline();
+        if (instr.deadline > 0 && (ret == 0 || instr.deadline < ret) ) ret = instr.deadline;
+        return ret;
+    }
+
+    /**
+     * Returns the deadline for a command from now or 0 if there is no command timeout.
+     *
+     * @return long
+     */
+    protected long getCommandDeadline()
+    {
+        return (_commandTimeout > 0 ? System.currentTimeMillis()+_commandTimeout*1000L : 0);
+    }
+
+    /**
+     * Sets a property that is common to all file retrievers. Child classes call this
+     * for the properties they do not handle themselves. The common properties are:<br>
+     * command_timeout - The number of seconds a single command can run.<br>
+     * instruction_timeout - The number of seconds all the commands for an instruction can run.<br>
+     * max_output_lines - The number of lines of command output to keep for error messages.<br>
+     * stream_buffer_size - The buffer size in bytes used when a command's output is written to a file.<br>
+     * dedup - If true, retrieved files are stored in the dedup store of the local backup directory.<br>
+     * local_compress - If true, retrieved files are gzipped on this host with every core. Use it when
+     * the remote server is busy and its prep script sends the file uncompressed.<br>
+     * compress_level - The gzip level (1-9) for local_compress. The default is 6.<br>
+     * compress_block_kb - The size in kilobytes of the blocks that are compressed in parallel. The
+     * default is 1024.<br>
+     * compress_threads - The number of threads that compress. The default is one per core.<br>
+     * fast_hash - If true, the CRC32 of retrieved files is written to the manifest along with the SHA-256.<br>
+     * remote_checksum - If true, retrieved files are checked against the SHA-256 of the remote file
+     * and the instruction fails if they do not match.<br>
+     * keyfile - The file on this host with the key that retrieved files are encrypted with as they
+     * are written. See EncryptionKey. The checksums in the catalog and manifest are of the encrypted
+     * files, so they are verified without the key. Encrypted files share no chunks in the dedup store.<br>
+     * encrypt_segment_kb - The size in kilobytes of the segments that are encrypted in parallel. The
+     * default is 1024.<br>
+     * encrypt_threads - The number of threads that encrypt. The default is one per core.
+     *
+     * @param name The property name.
+     * @param value The property value.
+     * @return boolean Whether the property was handled.
+     */
+    protected boolean setProperty(String name, String value)
+    {
+        if ( name.equals("command_timeout") ) _commandTimeout = Long.parseLong(value);
+        else if ( name.equals("instruction_timeout") ) _instructionTimeout = Long.parseLong(value);
+        else if ( name.equals("max_output_lines") ) _processRunner.setMaxOutputLines( Integer.parseInt(value) );
+        else if ( name.equals("stream_buffer_size") ) _processRunner.setBufferSize( Integer.parseInt(value) );
+        else if ( name.equals("dedup") ) _dedup = "true".equals(value);
+        else if ( name.equals("local_compress") ) _localCompress = "true".equals(value);
+        else if ( name.equals("compress_level") ) _compressLevel = Integer.parseInt(value);
+        else if ( name.equals("compress_block_kb") ) _compressBlockSize = Integer.parseInt(value) * 1024;
+        else if ( name.equals("compress_threads") ) _compressThreads = Integer.parseInt(value);
+        else if ( name.equals("fast_hash") ) _fastHash = "true".equals(value);
+        else if ( name.equals("remote_checksum") ) _remoteChecksum = "true".equals(value);
+        else if ( name.equals("keyfile") ) _key = loadKey(value);
+        else if ( name.equals("encrypt_segment_kb") ) _encryptSegmentSize = Integer.parseInt(value) * 1024;
+        else if ( name.equals("encrypt_threads") ) _encryptThreads = Integer.parseInt(value);
+        else return false;
+        log(name+"="+value);
+        if ( _dedup && _key != null && (name.equals("dedup") || name.equals("keyfile")) )
+        {
+            log("*** WARNING *** Encrypted files share no chunks, so dedup saves no space with a keyfile");
+        }
+        return true;
+    }
+
+    /**
+     * Reads the key from a keyfile.
+     *
+     * @param path The keyfile.
+     * @return EncryptionKey
+     * @throws IllegalArgumentException if the keyfile cannot be read or does not hold a key.
+     */
+    protected EncryptionKey loadKey(String path)
+    {
+        try
+        {
+            return EncryptionKey.load( new File(path) );
+        }
+        catch (IOException ioe)
+        {
+            throw new IllegalArgumentException("Could not read keyfile "+path+": "+ioe.getMessage());
+        }
+    }
+
+    /**
+     * Sets the properties that are common to all file retrievers from an XmlTag.
+     *
+     * @param tag The xml tag.
+     * @see #setProperty(String, String)
+     */
+    protected void setCommonPropertiesFromXml(XmlTag tag)
+    {
+        String[] names = new String[]
+        {
+            "command_timeout", "instruction_timeout", "max_output_lines", "stream_buffer_size", "dedup",
+            "local_compress", "compress_level", "compress_block_kb", "compress_threads",
+            "fast_hash", "remote_checksum", "keyfile", "encrypt_segment_kb", "encrypt_threads"
+        };
+        for (int i=0; i<names.length; i++)
+        {
+            String val = tag.getChildValue(names[i]);
+            if (val != null) setProperty(names[i], val);
+        }
+    }
+
+    /**
+     * Returns the dated file name based on the one passed in. If the file name ends in a wild
+     * card (*) then an empty string is returned.
+     *
+     * @param f The filename.
+     * @return String
+     */
+    public String getDatedFilename(String f)
+    {
+        if ( !f.endsWith("*") )
+        {
+            int index = f.indexOf(".");
+            String name = f.substring(0, index);
+            String ext = f.substring(index);
+            String date = null;
+            synchronized (_fileFormat)
+            {
+                date = _fileFormat.format( new Date() );
+            }
+            StringBuffer ret = new StringBuffer()
+                .append(name).append("_").append(date).append(ext);
+            return ret.toString();
+        }
+        else
+        {
+            return "";
+        }
+    }
+
+    /**
+     * Returns the newest dated file name in the catalog for the file that was
+     * retrieved before today. Returns null if there is none.
+     *
+     * @param f The filename.
+     * @return String
+     */
+    public String findPreviousDatedFilename(String f)
+    {
+        if (f.indexOf(".") == -1 || f.endsWith("*")) return null;
+        String today = getDatedFilename(f);
+        try
+        {
+            BackupCatalog.Entry[] entries = BackupCatalog.getInstance( getLocalBackupDir() ).getEntries(f);
+            for (int i=entries.length-1; i>=0; i--)
+            {
+                if ( !entries[i].name.equals(today) ) return entries[i].name;
+            }
+        }
+        catch (IOException ioe)
+        {
+            log("*** WARNING *** Could not read the catalog: "+ioe);
+        }
+        return null;
+    }
+
+    /**
+     * Sets the name of the job that metrics are labeled with.
+     *
+     * @param name The job name.
+     * @see RunMetrics
+     */
+    public void setJobName(String name)
+    {
+        _jobName = name;
+    }
+
+    /**
+     * Returns the name of the job that metrics are labeled with.
+     *
+     * @return String
+     */
+    public String getJobName()
+    {
+        return _jobName;
+    }
+
+    /**
+     * Returns the remote server that files are retrieved from or null if the
+     * retriever does not connect to one.
+     *
+     * @return String
+     */
+    public String getRemoteServer()
+    {
+        return null;
+    }
+
+    /**
+     * Sets the remote staging directory to retrieve files from.
+     *
+     * @param dir The remote staging directory.
+     */
+    public void setRemoteStagingDir(String dir)
+    {
+        _remoteStagingDir = dir;
+    }
+
+    /**
+     * Returns the remote staging directory to retrieve files from.
+     *
+     * @return String
+     */
+    public String getRemoteStagingDir()
+    {
+        return _remoteStagingDir;
+    }
+
+    /**
+     * Sets the local directory to backup to.
+     *
+     * @param dir The directory.
+     */
+    public void setLocalBackupDir(String dir)
+    {
+        _localBackupDir = dir;
+    }
+
+    /**
+     * Returns the local directory to backup to.
+     *
+     * @return String
+     */
+    public String getLocalBackupDir()
+    {
+        return _localBackupDir;
+    }
+
+    /**
+     * What planChanges found for an instruction.
+     */
+    protected static class ChangePlan
+    {
+        /** The whole file is retrieved. */
+        protected static final int FULL = 0;
+        /** Nothing changed, so the last file is stored again. */
+        protected static final int SKIP = 1;
+        /** Only the changed files are archived. */
+        protected static final int INCREMENTAL = 2;
+
+        /** FULL, SKIP, or INCREMENTAL. */
+        protected int mode = FULL;
+        /** The manifest of the change_dir or null once it is written. */
+        protected ChangeManifest manifest;
+        /** The catalog entry of the last backup or null if there is none. */
+        protected BackupCatalog.Entry previous;
+        /** The chain of the new file or null for a full backup. */
+        protected String[] chain;
+        /** The paths that are new or changed since the last backup. */
+        protected String[] changed;
+
+        protected ChangePlan(ChangeManifest manifest)
+        {
+            this.manifest = manifest;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,449 @@
+package com.zitego.backup;
+
+import com.zitego.markup.xml.XmlTag;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * Retrieves files from a staging directory on the backup host itself, such as an
+ * NFS or bind mount of another server. Prep and clean scripts are run locally and
+ * staged files are copied into the local backup directory without ssh or scp. The
+ * properties are:<br>
+ * class - The java class to instantiate.<br>
+ * remote_staging_dir - The local directory the prep scripts stage files in.<br>
+ * local_backup_dir - The local directory to copy to.<br>
+ * clean_script - The local script that will clean out the staging directory (optional).<br>
+ * copy_mode - How staged files are copied (optional):<br>
+ * &nbsp;&nbsp;copy - The file is read once through a large buffer that computes its checksums as it is
+ *              written. This is the default.<br>
+ * &nbsp;&nbsp;link - The dated file is a hard link to the staged file. Nothing is copied, but the staged
+ *              file must be on the same filesystem and the prep script must replace the staged file rather
+ *              than write over it, or the backup will change too. It falls back to copy if the link fails.<br>
+ * &nbsp;&nbsp;reflink - The file is cloned with cp --reflink=always so the filesystem (btrfs, xfs) shares
+ *              the blocks until one of the files is changed. It falls back to copy if cloning fails.<br>
+ * reflink_cmd - The cp command used for reflink. Defaults to cp (optional).<br>
+ * local_compress - If true, the staged file is gzipped into the local backup directory with every core
+ *                  and copy_mode is not used (optional).<br>
+ * keyfile - The file with the key the staged file is encrypted with as it is copied into the local
+ *           backup directory with every core. copy_mode is not used with it (optional).<br>
+ * remote_checksum - If true, the copy is checked against the staged file's name plus .sha256 written
+ *                   by the prep script when there is one (optional).<br>
+ * command_timeout - The number of seconds a single prep or clean script can run (optional).<br>
+ * instruction_timeout - The number of seconds the prep script and copy of one instruction can run (optional).<br>
+ * <br>
+ * Example:<br>
+ * file_retriever=class=com.zitego.backup.LocalFileRetriever,\<br>
+ * clean_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/clean_backup_files.sh,\<br>
+ * remote_staging_dir=/mnt/zitego/bak_staging,\<br>
+ * local_backup_dir=/home/jglorioso/backups,\<br>
+ * copy_mode=copy<br>
+ * <br>
+ * Scripts must echo "----- EOF -----" and exit with a code of 0.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class LocalFileRetriever extends FileRetriever
+{
+    /** Copy staged files through a buffer that computes their checksums. */
+    public static final String COPY = "copy";
+    /** Hard link staged files. */
+    public static final String LINK = "link";
+    /** Clone staged files with cp --reflink. */
+    public static final String REFLINK = "reflink";
+    /** The size of the buffer files are copied through. */
+    protected static final int BUFFER_SIZE = 1024*1024;
+
+    /** The clean script to run. */
+    protected String _cleanScript;
+    /** How staged files are copied. */
+    protected String _copyMode = COPY;
+    /** The cp command used for reflink. */
+    protected String _reflink = "cp";
+
+    public void setProperties(String props)
+    {
+        String tokens[] = props.split(",");
+        if (tokens != null)
+        {
+            for (int i = 0; i < tokens.length; i++)
+            {
+                String token[] = tokens[i].split("=");
+                if ( token[0].equals("clean_script") ) _cleanScript = token[1];
+                else if (token[0].equals("remote_staging_dir") ) setRemoteStagingDir(token[1]);
+                else if (token[0].equals("local_backup_dir") ) setLocalBackupDir(token[1]);
+                else if (token[0].equals("copy_mode") ) setCopyMode(token[1]);
+                else if (token[0].equals("reflink_cmd") ) _reflink = token[1];
+                else setProperty(token[0], token[1]);
+            }
+        }
+        logProperties();
+    }
+
+    public void setPropertiesFromXml(XmlTag tag)
+    {
+        String val = tag.getChildValue("clean_script");
+        if (val != null) _cleanScript = val;
+        val = tag.getChildValue("remote_staging_dir");
+        if (val != null) _remoteStagingDir = val;
+        val = tag.getChildValue("local_backup_dir");
+        if (val != null) _localBackupDir = val;
+        val = tag.getChildValue("copy_mode");
+        if (val != null) setCopyMode(val);
+        val = tag.getChildValue("reflink_cmd");
+        if (val != null) _reflink = val;
+        setCommonPropertiesFromXml(tag);
+        logProperties();
+    }
+
+    /**
+     * Logs the properties.
+     */
+    protected void logProperties()
+    {
+        log("clean_script="+_cleanScript);
+        log("remote_staging_dir="+_remoteStagingDir);
+        log("local_backup_dir="+_localBackupDir);
+        log("copy_mode="+_copyMode);
+    }
+
+    public void retrieveFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        try
+        {
+            prepareFile(instr);
+            copyFile(instr);
+        }
+        finally
+        {
+            cleanFile(instr);
+        }
+    }
+
+    /**
+     * Runs the instruction's prep script unless planChanges finds that it does not
+     * need to be run.
+     *
+     * @param instr The instruction.
+     * @throws FileRetrievalException
+     */
+    public void prepareFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        log(instr.remoteStagedFile);
+        startInstruction(instr);
+        if ( planChanges(instr) ) return;
+        if (instr.prepScript != null)
+        {
+            String[] cmd = new String[(instr.args != null ? instr.args.length : 0) + 1];
+            cmd[0] = instr.prepScript;
+            for (int i=1; i<cmd.length; i++)
+            {
+                cmd[i] = instr.args[i-1];
+            }
+            execute( cmd, true, getDeadline(instr) );
+        }
+    }
+
+    /**
+     * Copies the instruction's staged file to the local backup directory using the
+     * copy mode. If local_compress is on or there is a keyfile, then the file is
+     * gzipped or encrypted into the local backup directory instead. A database dump is run on this host and written
+     * straight into the local backup directory, as is the tar of an archive
+     * instruction's source directory.
+     *
+     * @param instr The instruction.
+     * @throws FileRetrievalException
+     */
+    public void copyFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        if ( copyUnstaged(instr) ) return;
+        File staged = getStagedFile(instr);
+        if ( !staged.isFile() ) throw new FileRetrievalException("Staged file does not exist: "+staged);
+        File local = new File( createLocalBackupDir(), getDatedFilename(instr.remoteStagedFile) );
+        if (_localCompress || _key != null)
+        {
+            ChecksumOutputStream received = new ChecksumOutputStream(null, false);
+            ChecksumOutputStream stored = encodeFile(staged, local, received);
+            verifyChecksum( instr, local, received.getSha256(), null );
+            fileRetrieved( instr, local, local.length(), stored );
+            return;
+        }
+        File tmp = AtomicFileOutputStream.getTempFile(local);
+        long start = System.currentTimeMillis();
+        ChecksumOutputStream sums = null;
+        try
+        {
+            tmp.delete();
+            String how = COPY;
+            if ( LINK.equals(_copyMode) && link(staged, tmp) ) how = LINK;
+            else if ( REFLINK.equals(_copyMode) && reflink(staged, tmp, getDeadline(instr)) ) how = REFLINK;
+            else
+            {
+                sums = new ChecksumOutputStream(null, _fastHash);
+                transfer(staged, tmp, sums);
+            }
+            if (sums != null) verifyChecksum( instr, tmp, sums.getSha256(), null );
+
+            if ( !tmp.renameTo(local) )
+            {
+                local.delete();
+                if ( !tmp.renameTo(local) ) throw new FileRetrievalException("Could not rename "+tmp+" to "+local);
+            }
+            log
+            (
+                how+" "+staged+" to "+local+" ("+local.length()+" bytes in "+
+                (System.currentTimeMillis()-start)+"ms)"
+            );
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        finally
+        {
+            tmp.delete();
+        }
+        //Linked and cloned files were not read, so fileRetrieved reads them for their checksums
+        if (sums != null) fileRetrieved( instr, local, local.length(), sums );
+        else fileRetrieved(instr, local);
+    }
+
+    /**
+     * Runs the clean script with the instruction's staged file name. Database dumps,
+     * archives, and unchanged or incremental backups are not staged, so there is
+     * nothing to clean for them.
+     *
+     * @param instr The instruction.
+     * @throws FileRetrievalException
+     */
+    public void cleanFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        if ( _cleanScript != null && isStaged(instr) )
+        {
+            execute( new String[] { _cleanScript, instr.remoteStagedFile }, true, getCommandDeadline() );
+        }
+    }
+
+    /**
+     * Restores the stored file into the directory. The remote server is this host,
+     * so the file is extracted here.
+     *
+     * @param restorer The restorer with the paths to restore.
+     * @param name The dated file name.
+     * @param in The stored file.
+     * @param dir The directory.
+     * @throws FileRetrievalException if the file cannot be restored.
+     */
+    public void restoreFile(BackupRestorer restorer, String name, InputStream in, String dir) throws FileRetrievalException
+    {
+        try
+        {
+            restorer.extract( name, in, new File(dir) );
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+    }
+
+    /**
+     * Deletes restored files and directories. The remote server is this host, so they
+     * are deleted here.
+     *
+     * @param restorer The restorer.
+     * @param paths The paths relative to the directory.
+     * @param dir The directory.
+     * @throws FileRetrievalException if the files cannot be deleted.
+     */
+    public void removeRestored(BackupRestorer restorer, String[] paths, String dir) throws FileRetrievalException
+    {
+        try
+        {
+            restorer.remove( paths, new File(dir) );
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+    }
+
+    /**
+     * Copies the file through one direct buffer with FileChannel reads and writes,
+     * computing its checksums on the way, then syncs it to disk. Reading the data once
+     * here costs less than a kernel copy followed by a second read for the checksums,
+     * and a direct buffer saves the channels copying through a temporary one. If
+     * writes are throttled, then the file is copied in pieces that each wait on the
+     * throttle.
+     *
+     * @param from The file to copy.
+     * @param to The file to copy to.
+     * @param sums The stream to compute the checksums with.
+     * @throws IOException
+     */
+    protected void transfer(File from, File to, ChecksumOutputStream sums) throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(to);
+            try
+            {
+                FileChannel src = in.getChannel();
+                FileChannel dest = out.getChannel();
+                ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                boolean throttled = ( _throttle != null && _throttle.isLimited() );
+                while (true)
+                {
+                    buf.clear();
+                    if (throttled)
+                    {
+                        buf.limit(TransferThrottle.QUANTUM);
+                        _throttle.acquire(null, TransferThrottle.QUANTUM, false);
+                    }
+                    int len = src.read(buf);
+                    if (len == -1) break;
+                    buf.flip();
+                    sums.write( buf.duplicate() );
+                    while ( buf.hasRemaining() )
+                    {
+                        dest.write(buf);
+                    }
+                }
+                dest.force(true);
+            }
+            catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Hard links the file. Returns false if the link could not be made.
+     *
+     * @param from The file to link to.
+     * @param to The link to create.
+     * @return boolean
+     */
+    protected boolean link(File from, File to)
+    {
+        try
+        {
+            Files.createLink( to.toPath(), from.toPath() );
+            return true;
+        }
+        catch (Exception e)
+        {
+            log("*** WARNING *** Could not link "+to+" to "+from+", copying instead: "+e);
+            return false;
+        }
+    }
+
+    /**
+     * Clones the file with cp --reflink=always. Returns false if the filesystem
+     * cannot clone it.
+     *
+     * @param from The file to clone.
+     * @param to The clone to create.
+     * @param deadline The time the command must finish by or 0 for none.
+     * @return boolean
+     */
+    protected boolean reflink(File from, File to, long deadline)
+    {
+        try
+        {
+            execute( new String[] { _reflink, "--reflink=always", from.getPath(), to.getPath() }, false, deadline );
+            return true;
+        }
+        catch (FileRetrievalException fre)
+        {
+            log("*** WARNING *** Could not clone "+from+", copying instead");
+            to.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the instruction's staged file.
+     *
+     * @param instr The instruction.
+     * @return File
+     */
+    protected File getStagedFile(BackupInstruction instr)
+    {
+        return (getRemoteStagingDir() != null ? new File(getRemoteStagingDir(), instr.remoteStagedFile) : new File(instr.remoteStagedFile));
+    }
+
+    /**
+     * Returns the SHA-256 the prep script wrote next to the staged file or null if
+     * there is none.
+     *
+     * @param instr The instruction.
+     * @return String
+     * @throws FileRetrievalException
+     */
+    protected String getRemoteChecksum(BackupInstruction instr) throws FileRetrievalException
+    {
+        File file = new File( getStagedFile(instr).getPath()+".sha256" );
+        if ( !file.isFile() ) return null;
+        try
+        {
+            BufferedReader in = new BufferedReader( new FileReader(file) );
+            try
+            {
+                String line = in.readLine();
+                return (line != null ? parseSha256(line) : null);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+    }
+
+    /**
+     * Sets how staged files are copied (copy, link, or reflink).
+     *
+     * @param mode The copy mode.
+     * @throws IllegalArgumentException if the mode is not valid.
+     */
+    public void setCopyMode(String mode)
+    {
+        if ( !COPY.equals(mode) && !LINK.equals(mode) && !REFLINK.equals(mode) )
+        {
+            throw new IllegalArgumentException("Invalid copy_mode: "+mode);
+        }
+        _copyMode = mode;
+    }
+
+    /**
+     * Returns how staged files are copied.
+     *
+     * @return String
+     */
+    public String getCopyMode()
+    {
+        return _copyMode;
+    }
+}
\ No newline at end of file
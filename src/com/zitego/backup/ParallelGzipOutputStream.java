@@ -0,0 +1,279 @@
+package com.zitego.backup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses what is written to it with gzip using every core of the backup host.
+ * The data is cut into blocks that are compressed at the same time on a fork join
+ * pool and each block is written, in order, as its own gzip member. A file made of
+ * several gzip members is a standard gzip file that gunzip, tar -z, and
+ * GZIPInputStream read as one stream. Each block is compressed without the
+ * dictionary of the block before it, so larger blocks compress slightly better.<br>
+ * <br>
+ * Nothing is written to the underlying stream until the blocks before it are done
+ * and at most two blocks per thread are held in memory. commit and abort pass
+ * through to the underlying stream.
+ *
+ * @see FileRetriever#setProperty(String, String)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ParallelGzipOutputStream extends BackupOutputStream
+{
+    /** The default block size. */
+    public static final int DEFAULT_BLOCK_SIZE = 1024*1024;
+    /** The gzip header with no name, time, or flags. */
+    protected static final byte[] HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+    /** The shared pools keyed by the number of threads. */
+    protected static final Hashtable POOLS = new Hashtable();
+
+    /** The stream the compressed data is written to. */
+    protected BackupOutputStream _out;
+    /** The compression level. */
+    protected int _level;
+    /** The pool that compresses the blocks. */
+    protected ForkJoinPool _pool;
+    /** The block being filled. */
+    protected byte[] _block;
+    /** The number of bytes in the block. */
+    protected int _count = 0;
+    /** The blocks being compressed in the order they are written. */
+    protected Vector _pending = new Vector();
+    /** The most blocks that can be pending before write waits. */
+    protected int _maxPending;
+    /** The number of gzip members written. */
+    protected long _members = 0;
+    /** The number of bytes written to the underlying stream. */
+    protected long _written = 0;
+
+    /**
+     * Returns the shared pool with the number of threads.
+     *
+     * @param int The number of threads or 0 or less for one per core.
+     * @return ForkJoinPool
+     */
+    public static ForkJoinPool getPool(int threads)
+    {
+        if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+        synchronized (POOLS)
+        {
+            Integer key = Integer.valueOf(threads);
+            ForkJoinPool ret = (ForkJoinPool)POOLS.get(key);
+            if (ret == null)
+            {
+                ret = new ForkJoinPool(threads);
+                POOLS.put(key, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Creates a new stream with the default block size and level on a pool with one
+     * thread per core.
+     *
+     * @param BackupOutputStream The stream to write the compressed data to.
+     */
+    public ParallelGzipOutputStream(BackupOutputStream out)
+    {
+        this( out, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, getPool(0) );
+    }
+
+    /**
+     * Creates a new stream.
+     *
+     * @param BackupOutputStream The stream to write the compressed data to.
+     * @param int The block size in bytes.
+     * @param int The compression level (1-9).
+     * @param ForkJoinPool The pool to compress on.
+     */
+    public ParallelGzipOutputStream(BackupOutputStream out, int blockSize, int level, ForkJoinPool pool)
+    {
+        _out = out;
+        _level = level;
+        _pool = pool;
+        _block = new byte[Math.max(blockSize, 1024)];
+        _maxPending = pool.getParallelism() * 2;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int n = Math.min(len, _block.length-_count);
+            System.arraycopy(b, off, _block, _count, n);
+            _count += n;
+            off += n;
+            len -= n;
+            if (_count == _block.length) submit();
+        }
+    }
+
+    /**
+     * Compresses the remaining data, writes every member, and commits the underlying
+     * stream. If nothing was written, then one empty member is written so the file
+     * is still valid gzip.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException
+    {
+        finish();
+        _out.commit();
+    }
+
+    /**
+     * Compresses the remaining data and writes every member without committing the
+     * underlying stream, so more can be written to it after this stream's members.
+     * If nothing was written, then one empty member is written.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        if (_count > 0 || _members+_pending.size() == 0) submit();
+        while (_pending.size() > 0)
+        {
+            writeNext();
+        }
+    }
+
+    public void abort()
+    {
+        for (int i=0; i<_pending.size(); i++)
+        {
+            ((ForkJoinTask)_pending.get(i)).cancel(true);
+        }
+        _pending.clear();
+        _out.abort();
+    }
+
+    /**
+     * Returns the number of compressed bytes written to the underlying stream.
+     *
+     * @return long
+     */
+    public long getBytesWritten()
+    {
+        return _written;
+    }
+
+    /**
+     * Hands the current block to the pool and starts a new one. If too many blocks
+     * are pending, then this waits for the oldest to be written.
+     *
+     * @throws IOException
+     */
+    protected void submit() throws IOException
+    {
+        _pending.add( _pool.submit( new CompressTask(_block, _count, _level) ) );
+        _block = new byte[_block.length];
+        _count = 0;
+        while (_pending.size() > _maxPending)
+        {
+            writeNext();
+        }
+    }
+
+    /**
+     * Waits for the oldest pending block and writes it.
+     *
+     * @throws IOException
+     */
+    protected void writeNext() throws IOException
+    {
+        ForkJoinTask task = (ForkJoinTask)_pending.remove(0);
+        byte[] member = null;
+        try
+        {
+            member = (byte[])task.get();
+        }
+        catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException("Interrupted while compressing");
+        }
+        catch (ExecutionException ee)
+        {
+            IOException ioe = new IOException("Could not compress block: "+ee.getCause());
+            ioe.initCause( ee.getCause() );
+            throw ioe;
+        }
+        _out.write(member);
+        _written += member.length;
+        _members++;
+    }
+
+    /**
+     * Compresses one block into a complete gzip member.
+     */
+    protected static class CompressTask extends RecursiveTask
+    {
+        /** The version of the serialized form. */
+        private static final long serialVersionUID = 1L;
+
+        /** The block. */
+        protected byte[] _data;
+        /** The number of bytes in the block. */
+        protected int _len;
+        /** The compression level. */
+        protected int _level;
+
+        protected CompressTask(byte[] data, int len, int level)
+        {
+            _data = data;
+            _len = len;
+            _level = level;
+        }
+
+        protected Object compute()
+        {
+            ByteArrayOutputStream ret = new ByteArrayOutputStream(_len/2 + 64);
+            ret.write(HEADER, 0, HEADER.length);
+            Deflater deflater = new Deflater(_level, true);
+            try
+            {
+                deflater.setInput(_data, 0, _len);
+                deflater.finish();
+                byte[] buf = new byte[64*1024];
+                while ( !deflater.finished() )
+                {
+                    int n = deflater.deflate(buf);
+                    ret.write(buf, 0, n);
+                }
+            }
+            finally
+            {
+                deflater.end();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(_data, 0, _len);
+            writeInt( ret, (int)crc.getValue() );
+            writeInt(ret, _len);
+            return ret.toByteArray();
+        }
+
+        /**
+         * Writes an int in little endian order.
+         *
+         * @param ByteArrayOutputStream The stream.
+         * @param int The value.
+         */
+        protected void writeInt(ByteArrayOutputStream out, int val)
+        {
+            out.write(val & 0xff);
+            out.write( (val >> 8) & 0xff );
+            out.write( (val >> 16) & 0xff );
+            out.write( (val >> 24) & 0xff );
+        }
+    }
+}
\ No newline at end of file
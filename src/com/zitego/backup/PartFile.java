@@ -0,0 +1,394 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * A partially downloaded file that can be resumed. The data is kept in a hidden
+ * .part file in the local backup directory and a sidecar .part.info file records
+ * the remote file it came from (path, size, and modification time), the number of
+ * bytes that have been synced to disk, and the CRC32 of those bytes. The sidecar
+ * is only updated after the part file is synced, so the recorded offset is never
+ * ahead of the data. When a download is resumed, the part file is cut back to the
+ * recorded offset and the CRC32 of what is left is checked before more is appended.
+ * If it does not match, the download starts over.
+ *
+ * @see SSHFileRetriever
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class PartFile
+{
+    /** The number of bytes written between checkpoints. */
+    public static final long CHECKPOINT_BYTES = 8*1024*1024;
+
+    /** The part file. */
+    protected File _part;
+    /** The sidecar file. */
+    protected File _info;
+    /** The remote file path. */
+    protected String _remotePath;
+    /** The remote file size. */
+    protected long _remoteSize = -1;
+    /** The remote file modification time. */
+    protected long _remoteModified = -1;
+    /** The number of verified bytes in the part file. */
+    protected long _offset = 0;
+    /** The CRC32 of the verified bytes. */
+    protected long _crc = 0;
+    /** The running CRC32 of the part file after it is verified. */
+    protected CRC32 _verifiedCrc = new CRC32();
+
+    /**
+     * Creates a part file for the name in the directory and loads its sidecar if there
+     * is one.
+     *
+     * @param dir The local backup directory.
+     * @param name The file name.
+     * @throws IOException if the sidecar cannot be read.
+     */
+    public PartFile(File dir, String name) throws IOException
+    {
+        _part = new File(dir, "."+name+".part");
+        _info = new File(dir, "."+name+".part.info");
+        if ( _info.exists() ) load();
+    }
+
+    /**
+     * Returns whether there is a download to resume.
+     *
+     * @return boolean
+     */
+    public boolean exists()
+    {
+        return _info.exists();
+    }
+
+    /**
+     * Returns whether the part file was downloaded from the remote file with the size
+     * and modification time.
+     *
+     * @param path The remote file path.
+     * @param size The remote file size.
+     * @param modified The remote file modification time.
+     * @return boolean
+     */
+    public boolean matches(String path, long size, long modified)
+    {
+        return exists() && path.equals(_remotePath) && size == _remoteSize && modified == _remoteModified;
+    }
+
+    /**
+     * Starts a new download of the remote file, throwing away anything already
+     * downloaded.
+     *
+     * @param path The remote file path.
+     * @param size The remote file size.
+     * @param modified The remote file modification time.
+     * @throws IOException
+     */
+    public void start(String path, long size, long modified) throws IOException
+    {
+        _remotePath = path;
+        _remoteSize = size;
+        _remoteModified = modified;
+        reset();
+    }
+
+    /**
+     * Throws away the downloaded data but keeps the remote file information so the
+     * download starts over from the beginning.
+     *
+     * @throws IOException
+     */
+    public void reset() throws IOException
+    {
+        _offset = 0;
+        _crc = 0;
+        _verifiedCrc = new CRC32();
+        new FileOutputStream(_part).close();
+        save();
+    }
+
+    /**
+     * Cuts the part file back to the recorded offset and checks the CRC32 of what is
+     * left. If it does not match, then the download is reset. Returns the offset to
+     * resume from.
+     *
+     * @return long
+     * @throws IOException
+     */
+    public long verify() throws IOException
+    {
+        if ( !_part.exists() || _part.length() < _offset )
+        {
+            reset();
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(_part, "rw");
+        try
+        {
+            raf.setLength(_offset);
+        }
+        finally
+        {
+            raf.close();
+        }
+        _verifiedCrc = new CRC32();
+        CRC32 crc = _verifiedCrc;
+        InputStream in = new FileInputStream(_part);
+        try
+        {
+            byte[] buf = new byte[65536];
+            int len;
+            while ( (len=in.read(buf)) != -1 )
+            {
+                crc.update(buf, 0, len);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        if (crc.getValue() != _crc)
+        {
+            reset();
+            return 0;
+        }
+        return _offset;
+    }
+
+    /**
+     * Returns a stream that appends to the part file and records a checkpoint in the
+     * sidecar every CHECKPOINT_BYTES and when it is closed.
+     *
+     * @return OutputStream
+     * @throws IOException
+     */
+    public OutputStream openOutput() throws IOException
+    {
+        return new PartOutputStream();
+    }
+
+    /**
+     * Returns the SHA-256 digest of the part file as a hex string.
+     *
+     * @return String
+     * @throws IOException
+     */
+    public String sha256() throws IOException
+    {
+        MessageDigest md;
+        try
+        {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            throw new IOException( nsae.toString() );
+        }
+        InputStream in = new FileInputStream(_part);
+        try
+        {
+            byte[] buf = new byte[65536];
+            int len;
+            while ( (len=in.read(buf)) != -1 )
+            {
+                md.update(buf, 0, len);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        byte[] digest = md.digest();
+        StringBuffer ret = new StringBuffer();
+        for (int i=0; i<digest.length; i++)
+        {
+            ret.append( Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1) );
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Renames the part file to the local file and removes the sidecar.
+     *
+     * @param file The local file.
+     * @throws IOException
+     */
+    public void finish(File file) throws IOException
+    {
+        if ( !_part.renameTo(file) )
+        {
+            file.delete();
+            if ( !_part.renameTo(file) ) throw new IOException("Could not rename "+_part+" to "+file);
+        }
+        _info.delete();
+    }
+
+    /**
+     * Removes the part file and the sidecar.
+     */
+    public void delete()
+    {
+        _part.delete();
+        _info.delete();
+    }
+
+    /**
+     * Returns the number of verified bytes.
+     *
+     * @return long
+     */
+    public long getOffset()
+    {
+        return _offset;
+    }
+
+    /**
+     * Returns the remote file size.
+     *
+     * @return long
+     */
+    public long getRemoteSize()
+    {
+        return _remoteSize;
+    }
+
+    /**
+     * Returns the part file.
+     *
+     * @return File
+     */
+    public File getFile()
+    {
+        return _part;
+    }
+
+    /**
+     * Reads the sidecar.
+     *
+     * @throws IOException
+     */
+    protected void load() throws IOException
+    {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(_info);
+        try
+        {
+            props.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        try
+        {
+            _remotePath = props.getProperty("remote_path");
+            _remoteSize = Long.parseLong( props.getProperty("remote_size") );
+            _remoteModified = Long.parseLong( props.getProperty("remote_modified") );
+            _offset = Long.parseLong( props.getProperty("offset") );
+            _crc = Long.parseLong( props.getProperty("crc") );
+        }
+        catch (RuntimeException re)
+        {
+            throw new IOException("Invalid part file info "+_info+": "+re);
+        }
+    }
+
+    /**
+     * Writes the sidecar. The sidecar is replaced atomically so a crash leaves either
+     * the old or the new checkpoint.
+     *
+     * @throws IOException
+     */
+    protected void save() throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty( "remote_path", _remotePath );
+        props.setProperty( "remote_size", String.valueOf(_remoteSize) );
+        props.setProperty( "remote_modified", String.valueOf(_remoteModified) );
+        props.setProperty( "offset", String.valueOf(_offset) );
+        props.setProperty( "crc", String.valueOf(_crc) );
+        AtomicFileOutputStream out = new AtomicFileOutputStream(_info);
+        try
+        {
+            props.store(out, null);
+            out.commit();
+        }
+        finally
+        {
+            out.abort();
+        }
+    }
+
+    /**
+     * Appends to the part file and records checkpoints in the sidecar.
+     */
+    protected class PartOutputStream extends OutputStream
+    {
+        /** The stream to the part file. */
+        protected FileOutputStream _out;
+        /** The CRC32 of everything in the part file. */
+        protected CRC32 _runningCrc;
+        /** The number of bytes in the part file. */
+        protected long _written;
+
+        protected PartOutputStream() throws IOException
+        {
+            _written = verify();
+            _runningCrc = _verifiedCrc;
+            _out = new FileOutputStream(_part, true);
+        }
+
+        public void write(int b) throws IOException
+        {
+            write( new byte[] { (byte)b }, 0, 1 );
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            _out.write(b, off, len);
+            _runningCrc.update(b, off, len);
+            _written += len;
+            if (_written - _offset >= CHECKPOINT_BYTES) checkpoint();
+        }
+
+        /**
+         * Syncs the part file and records its length and CRC32 in the sidecar.
+         *
+         * @throws IOException
+         */
+        protected void checkpoint() throws IOException
+        {
+            _out.flush();
+            _out.getFD().sync();
+            _offset = _written;
+            _crc = _runningCrc.getValue();
+            save();
+        }
+
+        public void close() throws IOException
+        {
+            if (_out == null) return;
+            try
+            {
+                checkpoint();
+            }
+            finally
+            {
+                _out.close();
+                _out = null;
+            }
+        }
+    }
+}
\ No newline at end of file
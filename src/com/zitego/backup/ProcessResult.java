@@ -0,0 +1,195 @@
+package com.zitego.backup;
+
+/**
+ * The result of running a command with a ProcessRunner. Only the last few lines of
+ * standard out and standard error are kept.
+ *
+ * @see ProcessRunner
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ProcessResult
+{
+    /** The exit code of the process or -1 if it did not exit on its own. */
+    protected int _exitCode = -1;
+    /** Whether the process was killed because it ran past its deadline. */
+    protected boolean _timedOut = false;
+    /** Whether the end of file marker was printed to standard out. */
+    protected boolean _eofSeen = false;
+    /** The last lines of standard out. */
+    protected String _stdout = "";
+    /** The last lines of standard error. */
+    protected String _stderr = "";
+    /** How long the command ran in milliseconds. */
+    protected long _elapsed = 0;
+    /** The number of bytes of standard out copied to an output stream. */
+    protected long _bytes = 0;
+    /** The error writing standard out to an output stream. */
+    protected Exception _error;
+    /** The number of bytes sent to standard in. */
+    protected long _inputBytes = 0;
+    /** The error reading what was sent to standard in. */
+    protected Exception _inputError;
+    /** Whether standard out was still open after the process exited. */
+    protected boolean _drainFailed = false;
+
+    /**
+     * Returns whether the command succeeded. A command succeeded if it exited on its
+     * own with an exit code of 0, all of standard out was copied, and, if required,
+     * it printed the end of file marker.
+     *
+     * @param expectEof Whether the end of file marker is required.
+     * @return boolean
+     */
+    public boolean isSuccess(boolean expectEof)
+    {
+        return _error == null && _inputError == null && !_timedOut && !_drainFailed && _exitCode == 0 && (!expectEof || _eofSeen);
+    }
+
+    /**
+     * Returns a description of why the command failed.
+     *
+     * @param expectEof Whether the end of file marker was required.
+     * @return String
+     */
+    public String getFailureReason(boolean expectEof)
+    {
+        StringBuffer ret = new StringBuffer();
+        if (_error != null) ret.append("could not write output: ").append(_error);
+        else if (_inputError != null) ret.append("could not read input: ").append(_inputError);
+        else if (_timedOut) ret.append("timed out after ").append(_elapsed).append("ms");
+        else if (_drainFailed) ret.append("standard out was still open after the process exited");
+        else if (_exitCode != 0) ret.append("exit code ").append(_exitCode);
+        else if (expectEof && !_eofSeen) ret.append("no end of file marker");
+        if (_stderr.length() > 0) ret.append(": ").append(_stderr);
+        return ret.toString();
+    }
+
+    /**
+     * Returns the exit code of the process or -1 if it was killed.
+     *
+     * @return int
+     */
+    public int getExitCode()
+    {
+        return _exitCode;
+    }
+
+    /**
+     * Returns whether the process was killed because it ran past its deadline.
+     *
+     * @return boolean
+     */
+    public boolean isTimedOut()
+    {
+        return _timedOut;
+    }
+
+    /**
+     * Returns whether standard out was still open after the process exited, such as
+     * when a process it started in the background kept the pipe. What it wrote
+     * after the process exited was not copied.
+     *
+     * @return boolean
+     */
+    public boolean isDrainFailed()
+    {
+        return _drainFailed;
+    }
+
+    /**
+     * Returns whether the end of file marker was printed to standard out.
+     *
+     * @return boolean
+     */
+    public boolean isEofSeen()
+    {
+        return _eofSeen;
+    }
+
+    /**
+     * Returns the last lines of standard out.
+     *
+     * @return String
+     */
+    public String getStdout()
+    {
+        return _stdout;
+    }
+
+    /**
+     * Returns the last lines of standard error.
+     *
+     * @return String
+     */
+    public String getStderr()
+    {
+        return _stderr;
+    }
+
+    /**
+     * Returns the number of bytes of standard out that were copied to an output stream.
+     *
+     * @return long
+     */
+    public long getBytes()
+    {
+        return _bytes;
+    }
+
+    /**
+     * Returns the error writing standard out to an output stream or null if there
+     * was none.
+     *
+     * @return Exception
+     */
+    public Exception getError()
+    {
+        return _error;
+    }
+
+    /**
+     * Returns the number of bytes that were sent to standard in.
+     *
+     * @return long
+     */
+    public long getInputBytes()
+    {
+        return _inputBytes;
+    }
+
+    /**
+     * Returns the error reading what was sent to standard in or null if there was
+     * none.
+     *
+     * @return Exception
+     */
+    public Exception getInputError()
+    {
+        return _inputError;
+    }
+
+    /**
+     * Returns how long the command ran in milliseconds.
+     *
+     * @return long
+     */
+    public long getElapsed()
+    {
+        return _elapsed;
+    }
+
+    public String toString()
+    {
+        return new StringBuffer()
+            .append("[com.zitego.backup.ProcessResult:")
+            .append(" exitCode=").append(_exitCode)
+            .append(" timedOut=").append(_timedOut)
+            .append(" drainFailed=").append(_drainFailed)
+            .append(" eofSeen=").append(_eofSeen)
+            .append(" elapsed=").append(_elapsed)
+            .append(" bytes=").append(_bytes)
+            .append(" inputBytes=").append(_inputBytes)
+            .append("]").toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,615 @@
+package com.zitego.backup;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+
+/**
+ * Runs external commands for the file retrievers. Standard out and standard error
+ * are read at the same time on their own threads so that a command that writes
+ * a lot to either one can never fill the pipe and block. Only the last few lines
+ * of each are kept. A command that runs past its deadline is killed along with any
+ * processes it started (when the JVM supports finding them).<br>
+ * <br>
+ * Once a command exits, the rest of its standard out is read for at most DRAIN_WAIT.
+ * A process it left running in the background that still holds the pipe is then
+ * cut off and the command fails, even if it has no deadline.<br>
+ * <br>
+ * Remote scripts signal that they finished by printing the end of file marker
+ * "----- EOF -----" on a line by itself. Commands that produce a file on standard
+ * out (such as "tar -czf - dir") can have it copied straight to an output stream and
+ * commands that read one on standard in (such as "tar -xzf -") can be fed from an
+ * input stream.
+ *
+ * @see ProcessResult
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ProcessRunner
+{
+    /** The marker remote scripts print when they finish. */
+    public static final String EOF_MARKER = "----- EOF -----";
+    /** The longest line kept from a process. */
+    protected static final int MAX_LINE_LENGTH = 512;
+    /** How long to wait for the output threads after the process has exited. */
+    protected static final long DRAIN_WAIT = 5000L;
+    /** The number of lines to keep from standard out and standard error. */
+    protected int _maxOutputLines = 20;
+    /** The size of the buffer used to copy standard out to an output stream. */
+    protected int _bufferSize = 1024*1024;
+
+    /**
+     * Creates a new process runner.
+     */
+    public ProcessRunner() { }
+
+    /**
+     * Creates a new process runner that keeps the specified number of lines from
+     * standard out and standard error.
+     *
+     * @param lines The number of lines to keep.
+     */
+    public ProcessRunner(int lines)
+    {
+        setMaxOutputLines(lines);
+    }
+
+    /**
+     * Runs the command and waits for it to exit or for the deadline to pass.
+     *
+     * @param cmd The command and arguments.
+     * @param deadline The time (in milliseconds) to kill the command at or 0 for none.
+     * @return ProcessResult
+     * @throws IOException if the command cannot be started.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public ProcessResult run(String[] cmd, long deadline) throws IOException, InterruptedException
+    {
+        return run(cmd, null, deadline);
+    }
+
+    /**
+     * Runs the command and waits for it to exit or for the deadline to pass. If an
+     * output stream is given, then everything the command writes to standard out
+     * is copied to it as it arrives instead of being kept as lines. If writing to
+     * the output stream fails, then the command is killed. The output stream is
+     * not closed.
+     *
+     * @param cmd The command and arguments.
+     * @param stdout Where to copy standard out to or null to keep the last lines.
+     * @param deadline The time (in milliseconds) to kill the command at or 0 for none.
+     * @return ProcessResult
+     * @throws IOException if the command cannot be started.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public ProcessResult run(String[] cmd, OutputStream stdout, long deadline) throws IOException, InterruptedException
+    {
+        return run(cmd, null, stdout, deadline);
+    }
+
+    /**
+     * Runs the command and waits for it to exit or for the deadline to pass. If an
+     * input stream is given, then it is copied to the command's standard in on its own
+     * thread and standard in is closed at the end of it. Otherwise standard in is
+     * closed right away. If reading the input stream fails, then the command is
+     * killed. The input stream is not closed. Standard out is handled as in
+     * {@link #run(String[], OutputStream, long)}.
+     *
+     * @param cmd The command and arguments.
+     * @param stdin What to send to standard in or null for nothing.
+     * @param stdout Where to copy standard out to or null to keep the last lines.
+     * @param deadline The time (in milliseconds) to kill the command at or 0 for none.
+     * @return ProcessResult
+     * @throws IOException if the command cannot be started.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public ProcessResult run(String[] cmd, InputStream stdin, OutputStream stdout, long deadline) throws IOException, InterruptedException
+    {
+        ProcessResult ret = new ProcessResult();
+        long start = System.currentTimeMillis();
+        Process proc = new ProcessBuilder(cmd).start();
+        InputFeeder feeder = null;
+        if (stdin != null) feeder = new InputFeeder(proc, stdin, _bufferSize);
+        else proc.getOutputStream().close();
+        OutputDrainer out = null;
+        StreamCopier copier = null;
+        if (stdout != null) copier = new StreamCopier(proc, stdout, _bufferSize);
+        else out = new OutputDrainer(proc.getInputStream(), _maxOutputLines, "stdout");
+        OutputDrainer err = new OutputDrainer(proc.getErrorStream(), _maxOutputLines, "stderr");
+        if (copier != null) copier.start();
+        else out.start();
+        err.start();
+        if (feeder != null) feeder.start();
+        try
+        {
+            waitFor(proc, deadline, ret);
+            if (copier != null && ret._exitCode != -1)
+            {
+                //The rest of the output is still being written, unless a child holds the pipe open
+                long wait = DRAIN_WAIT;
+                if (deadline > 0) wait = Math.min( wait, deadline-System.currentTimeMillis() );
+                if (wait > 0) copier.join(wait);
+                if ( copier.isAlive() )
+                {
+                    if ( deadline > 0 && System.currentTimeMillis() >= deadline ) ret._timedOut = true;
+                    else ret._drainFailed = true;
+                }
+            }
+        }
+        finally
+        {
+            ret._elapsed = System.currentTimeMillis() - start;
+            if (ret._exitCode == -1 || ret._timedOut || ret._drainFailed) killTree(proc);
+            if (ret._drainFailed) closeQuietly( proc.getInputStream() );
+            finishDrain( proc, (copier != null ? (Thread)copier : (Thread)out), err );
+            if (feeder != null)
+            {
+                //The process is gone so writing to it fails right away
+                feeder.join(DRAIN_WAIT);
+            }
+        }
+        if (feeder != null)
+        {
+            ret._inputBytes = feeder.getBytes();
+            ret._inputError = feeder.getError();
+        }
+        if (copier != null)
+        {
+            ret._bytes = copier.getBytes();
+            ret._error = copier.getError();
+        }
+        else
+        {
+            ret._stdout = out.getTail();
+            ret._eofSeen = out.isEofSeen();
+        }
+        ret._stderr = err.getTail();
+        return ret;
+    }
+
+    /**
+     * Waits for the process to exit or for the deadline to pass. The exit code is
+     * set in the result if the process exits and the timed out flag is set if not.
+     *
+     * @param proc The process.
+     * @param deadline The deadline or 0 for none.
+     * @param result The result.
+     * @throws InterruptedException
+     */
+    protected void waitFor(final Process proc, long deadline, ProcessResult result) throws InterruptedException
+    {
+        if (deadline <= 0)
+        {
+            result._exitCode = proc.waitFor();
+            return;
+        }
+
+        final int[] exit = new int[] { -1 };
+        Thread waiter = new Thread("process-waiter")
+        {
+            public void run()
+            {
+                try
+                {
+                    exit[0] = proc.waitFor();
+                }
+                catch (InterruptedException ie) { }
+            }
+        };
+        waiter.setDaemon(true);
+        waiter.start();
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining > 0) waiter.join(remaining);
+        if ( waiter.isAlive() )
+        {
+            waiter.interrupt();
+            result._timedOut = true;
+        }
+        else
+        {
+            result._exitCode = exit[0];
+        }
+    }
+
+    /**
+     * Waits for the output threads to read the rest of the output. A process that
+     * started children that are still holding the pipes open could keep them reading
+     * forever, so the streams are closed if they take too long.
+     *
+     * @param proc The process.
+     * @param out The standard out thread.
+     * @param err The standard error thread.
+     */
+    protected void finishDrain(Process proc, Thread out, Thread err)
+    {
+        try
+        {
+            long until = System.currentTimeMillis() + DRAIN_WAIT;
+            out.join(DRAIN_WAIT);
+            err.join( Math.max(1, until-System.currentTimeMillis()) );
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if ( out.isAlive() ) closeQuietly( proc.getInputStream() );
+        if ( err.isAlive() ) closeQuietly( proc.getErrorStream() );
+    }
+
+    /**
+     * Kills the process and every process it started. Descendant processes can only
+     * be found on JVMs that provide Process.toHandle() (Java 9 and later). Otherwise
+     * only the process itself is killed which is enough for ssh and scp since
+     * the remote side is hung up when the connection closes.
+     *
+     * @param proc The process.
+     */
+    public static void killTree(Process proc)
+    {
+        try
+        {
+            Class handleClass = Class.forName("java.lang.ProcessHandle");
+            Object handle = Process.class.getMethod("toHandle", new Class[0]).invoke(proc, new Object[0]);
+            Object descendants = handleClass.getMethod("descendants", new Class[0]).invoke(handle, new Object[0]);
+            Object[] children = (Object[])Class.forName("java.util.stream.Stream").getMethod("toArray", new Class[0])
+                .invoke(descendants, new Object[0]);
+            Method kill = handleClass.getMethod("destroyForcibly", new Class[0]);
+            for (int i=0; i<children.length; i++)
+            {
+                kill.invoke(children[i], new Object[0]);
+            }
+        }
+        catch (Exception e)
+        {
+            //Not supported by this JVM
+        }
+        proc.destroy();
+    }
+
+    /**
+     * Sets the number of lines to keep from standard out and standard error.
+     *
+     * @param lines The number of lines.
+     */
+    public void setMaxOutputLines(int lines)
+    {
+        _maxOutputLines = (lines > 0 ? lines : 1);
+    }
+
+    /**
+     * Returns the number of lines to keep from standard out and standard error.
+     *
+     * @return int
+     */
+    public int getMaxOutputLines()
+    {
+        return _maxOutputLines;
+    }
+
+    /**
+     * Sets the size of the buffer used to copy standard out to an output stream.
+     *
+     * @param size The buffer size in bytes.
+     */
+    public void setBufferSize(int size)
+    {
+        _bufferSize = (size > 0 ? size : 8192);
+    }
+
+    /**
+     * Returns the size of the buffer used to copy standard out to an output stream.
+     *
+     * @return int
+     */
+    public int getBufferSize()
+    {
+        return _bufferSize;
+    }
+
+    /**
+     * Closes the stream ignoring any errors.
+     *
+     * @param in The stream.
+     */
+    protected static void closeQuietly(InputStream in)
+    {
+        try
+        {
+            in.close();
+        }
+        catch (IOException ioe) { }
+    }
+
+    /**
+     * Reads a process stream on its own thread keeping only the last lines that were
+     * read. Lines longer then MAX_LINE_LENGTH are cut off.
+     */
+    protected static class OutputDrainer extends Thread
+    {
+        /** The stream to read. */
+        protected InputStream _in;
+        /** The number of lines to keep. */
+        protected int _maxLines;
+        /** The last lines read. */
+        protected LinkedList _tail = new LinkedList();
+        /** Whether the end of file marker was read. */
+        protected boolean _eofSeen = false;
+
+        /**
+         * Creates a new output drainer.
+         *
+         * @param in The stream to read.
+         * @param maxLines The number of lines to keep.
+         * @param name The thread name.
+         */
+        protected OutputDrainer(InputStream in, int maxLines, String name)
+        {
+            super(name);
+            setDaemon(true);
+            _in = in;
+            _maxLines = maxLines;
+        }
+
+        public void run()
+        {
+            byte[] buf = new byte[8192];
+            StringBuffer line = new StringBuffer();
+            try
+            {
+                int len;
+                while ( (len=_in.read(buf)) != -1 )
+                {
+                    for (int i=0; i<len; i++)
+                    {
+                        char c = (char)(buf[i] & 0xff);
+                        if (c == '\n')
+                        {
+                            addLine( line.toString() );
+                            line.setLength(0);
+                        }
+                        else if (c != '\r' && line.length() < MAX_LINE_LENGTH)
+                        {
+                            line.append(c);
+                        }
+                    }
+                }
+            }
+            catch (IOException ioe)
+            {
+                //Closed because the process was killed
+            }
+            if (line.length() > 0) addLine( line.toString() );
+        }
+
+        /**
+         * Adds a line to the tail.
+         *
+         * @param line The line.
+         */
+        protected synchronized void addLine(String line)
+        {
+            if ( EOF_MARKER.equals(line.trim()) ) _eofSeen = true;
+            _tail.addLast(line);
+            if (_tail.size() > _maxLines) _tail.removeFirst();
+        }
+
+        /**
+         * Returns the last lines read separated by spaces.
+         *
+         * @return String
+         */
+        protected synchronized String getTail()
+        {
+            StringBuffer ret = new StringBuffer();
+            for (int i=0; i<_tail.size(); i++)
+            {
+                String line = (String)_tail.get(i);
+                if ( EOF_MARKER.equals(line.trim()) ) continue;
+                if (ret.length() > 0) ret.append(" ");
+                ret.append(line);
+            }
+            return ret.toString();
+        }
+
+        /**
+         * Returns whether the end of file marker was read.
+         *
+         * @return boolean
+         */
+        protected synchronized boolean isEofSeen()
+        {
+            return _eofSeen;
+        }
+    }
+
+    /**
+     * Copies an input stream to a process's standard in on its own thread and closes
+     * standard in at the end of it. If reading the input stream fails, then the
+     * process is killed so it does not act on part of the input. A write error means
+     * the process stopped reading, which shows up in its exit code.
+     */
+    protected static class InputFeeder extends Thread
+    {
+        /** The process. */
+        protected Process _proc;
+        /** What to send. */
+        protected InputStream _in;
+        /** The copy buffer. */
+        protected byte[] _buf;
+        /** The number of bytes sent. */
+        protected long _bytes = 0;
+        /** The error reading the input stream. */
+        protected IOException _error;
+
+        /**
+         * Creates a new input feeder.
+         *
+         * @param proc The process.
+         * @param in What to send.
+         * @param bufferSize The copy buffer size.
+         */
+        protected InputFeeder(Process proc, InputStream in, int bufferSize)
+        {
+            super("stdin-feeder");
+            setDaemon(true);
+            _proc = proc;
+            _in = in;
+            _buf = new byte[bufferSize];
+        }
+
+        public void run()
+        {
+            OutputStream out = _proc.getOutputStream();
+            boolean reading = false;
+            try
+            {
+                int len;
+                while (true)
+                {
+                    reading = true;
+                    len = _in.read(_buf);
+                    reading = false;
+                    if (len == -1) break;
+                    out.write(_buf, 0, len);
+                    addBytes(len);
+                }
+                out.close();
+            }
+            catch (IOException ioe)
+            {
+                if (reading)
+                {
+                    setError(ioe);
+                    killTree(_proc);
+                }
+                try
+                {
+                    out.close();
+                }
+                catch (IOException ioe2) { }
+            }
+        }
+
+        protected synchronized void addBytes(int len)
+        {
+            _bytes += len;
+        }
+
+        protected synchronized void setError(IOException ioe)
+        {
+            _error = ioe;
+        }
+
+        /**
+         * Returns the number of bytes sent.
+         *
+         * @return long
+         */
+        protected synchronized long getBytes()
+        {
+            return _bytes;
+        }
+
+        /**
+         * Returns the error reading the input stream or null if there was none.
+         *
+         * @return IOException
+         */
+        protected synchronized IOException getError()
+        {
+            return _error;
+        }
+    }
+
+    /**
+     * Copies a process's standard out to an output stream on its own thread. If
+     * writing fails, then the process is killed so it does not block on a full pipe.
+     */
+    protected static class StreamCopier extends Thread
+    {
+        /** The process. */
+        protected Process _proc;
+        /** Where to write the output. */
+        protected OutputStream _out;
+        /** The copy buffer. */
+        protected byte[] _buf;
+        /** The number of bytes copied. */
+        protected long _bytes = 0;
+        /** The error that stopped the copy. */
+        protected IOException _error;
+
+        /**
+         * Creates a new stream copier.
+         *
+         * @param proc The process.
+         * @param out Where to write the output.
+         * @param bufferSize The copy buffer size.
+         */
+        protected StreamCopier(Process proc, OutputStream out, int bufferSize)
+        {
+            super("stdout-copier");
+            setDaemon(true);
+            _proc = proc;
+            _out = out;
+            _buf = new byte[bufferSize];
+        }
+
+        public void run()
+        {
+            InputStream in = _proc.getInputStream();
+            boolean writing = false;
+            try
+            {
+                int len;
+                while ( (len=in.read(_buf)) != -1 )
+                {
+                    writing = true;
+                    _out.write(_buf, 0, len);
+                    writing = false;
+                    addBytes(len);
+                }
+            }
+            catch (IOException ioe)
+            {
+                //A read error only happens when the process was killed
+                if (writing)
+                {
+                    setError(ioe);
+                    killTree(_proc);
+                }
+            }
+        }
+
+        protected synchronized void addBytes(int len)
+        {
+            _bytes += len;
+        }
+
+        protected synchronized void setError(IOException ioe)
+        {
+            _error = ioe;
+        }
+
+        /**
+         * Returns the number of bytes copied.
+         *
+         * @return long
+         */
+        protected synchronized long getBytes()
+        {
+            return _bytes;
+        }
+
+        /**
+         * Returns the error that stopped the copy or null if there was none.
+         *
+         * @return IOException
+         */
+        protected synchronized IOException getError()
+        {
+            return _error;
+        }
+    }
+}
\ No newline at end of file
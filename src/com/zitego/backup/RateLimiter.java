@@ -0,0 +1,111 @@
+package com.zitego.backup;
+
+/**
+ * Limits how fast something is done using a token bucket. Tokens are added at a
+ * fixed rate per second up to a burst size and acquire blocks until there are
+ * enough. A rate of zero or less means there is no limit. One limiter can be
+ * shared by any number of threads.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RateLimiter
+{
+    /** The number of tokens added per second. */
+    protected double _rate;
+    /** The most tokens the bucket can hold. */
+    protected double _burst;
+    /** The tokens in the bucket. */
+    protected double _tokens;
+    /** The last time tokens were added in nanoseconds. */
+    protected long _last;
+
+    /**
+     * Creates a limiter with a burst of one second at the rate.
+     *
+     * @param rate The number of tokens per second or zero for no limit.
+     */
+    public RateLimiter(double rate)
+    {
+        this(rate, rate);
+    }
+
+    /**
+     * Creates a limiter. The bucket starts full.
+     *
+     * @param rate The number of tokens per second or zero for no limit.
+     * @param burst The most tokens that can be acquired without waiting.
+     */
+    public RateLimiter(double rate, double burst)
+    {
+        _rate = rate;
+        _burst = Math.max(burst, 1);
+        _tokens = _burst;
+        _last = System.nanoTime();
+    }
+
+    /**
+     * Waits until the tokens are available and takes them. A request for more than
+     * the burst size is allowed and puts the bucket into debt, so the next caller
+     * waits for it to be paid off.
+     *
+     * @param tokens The number of tokens.
+     * @throws InterruptedException
+     */
+    public void acquire(long tokens) throws InterruptedException
+    {
+        if (_rate <= 0 || tokens <= 0) return;
+        long wait;
+        synchronized (this)
+        {
+            refill();
+            _tokens -= tokens;
+            wait = (_tokens >= 0 ? 0 : (long)Math.ceil(-_tokens / _rate * 1000d));
+        }
+        if (wait > 0) Thread.sleep(wait);
+    }
+
+    /**
+     * Adds the tokens earned since the last refill.
+     */
+    protected void refill()
+    {
+        long now = System.nanoTime();
+        _tokens = Math.min( _burst, _tokens + (now-_last)/1e9d*_rate );
+        _last = now;
+    }
+
+    /**
+     * Sets the rate. Zero or less means there is no limit. The burst becomes one
+     * second at the new rate.
+     *
+     * @param rate The number of tokens per second.
+     */
+    public synchronized void setRate(double rate)
+    {
+        refill();
+        _rate = rate;
+        _burst = Math.max(rate, 1);
+        _tokens = Math.min(_tokens, _burst);
+    }
+
+    /**
+     * Returns the rate.
+     *
+     * @return double
+     */
+    public synchronized double getRate()
+    {
+        return _rate;
+    }
+
+    /**
+     * Returns whether there is a limit.
+     *
+     * @return boolean
+     */
+    public synchronized boolean isLimited()
+    {
+        return _rate > 0;
+    }
+}
\ No newline at end of file
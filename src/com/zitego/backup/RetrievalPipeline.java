@@ -0,0 +1,269 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Retrieves a set of backup instructions with the prepare, copy, and clean stages
+ * of the file retriever running at the same time for different instructions. While
+ * instruction N is being copied, instruction N+1 is being prepared and instruction
+ * N-1 is being cleaned. Each stage runs on its own thread so instructions still go
+ * through each stage in order.<br>
+ * <br>
+ * The depth is the number of instructions that can be prepared but not yet cleaned
+ * at once. This limits how much space is used in the remote staging directory. A
+ * depth of 1 is the same as retrieving each instruction one after another.<br>
+ * <br>
+ * The time an instruction spends in its stages is added to the RunHistory once it is
+ * cleaned.<br>
+ * <br>
+ * The time an instruction waits for a stage that is busy with another instruction
+ * is not counted against its instruction_timeout.
+ *
+ * @see FileRetriever#prepareFile(BackupInstruction)
+ * @see FileRetriever#copyFile(BackupInstruction)
+ * @see FileRetriever#cleanFile(BackupInstruction)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RetrievalPipeline
+{
+    /** The file retriever. */
+    protected FileRetriever _retriever;
+    /** The number of instructions that can be staged at once. */
+    protected int _depth;
+    /** To log progress. */
+    protected Logger _logger;
+    /** The prepare stage. */
+    protected ExecutorService _prepStage;
+    /** The copy stage. */
+    protected ExecutorService _copyStage;
+    /** The clean stage. */
+    protected ExecutorService _cleanStage;
+    /** The permits for staged instructions. */
+    protected Semaphore _staged;
+    /** The exceptions thrown by any of the stages. */
+    protected Vector _failures = new Vector();
+    /** The time (in milliseconds) spent in the stages that succeeded keyed by instruction. */
+    protected Hashtable _elapsed = new Hashtable();
+
+    /**
+     * Creates a new retrieval pipeline.
+     *
+     * @param FileRetriever The file retriever.
+     * @param int The number of instructions that can be staged at once.
+     * @param Logger The logger.
+     */
+    public RetrievalPipeline(FileRetriever retriever, int depth, Logger logger)
+    {
+        _retriever = retriever;
+        _depth = (depth > 0 ? depth : 1);
+        _logger = logger;
+    }
+
+    /**
+     * Retrieves the files for the instructions. If any stage fails, then no new
+     * instructions are started, the instructions already started are finished
+     * (and cleaned), and the first exception is thrown.
+     *
+     * @param BackupInstruction[] The instructions.
+     * @throws FileRetrievalException
+     */
+    public void retrieveFiles(BackupInstruction[] instr) throws FileRetrievalException
+    {
+        _failures.clear();
+        _elapsed.clear();
+        _staged = new Semaphore(_depth, true);
+        _prepStage = Executors.newSingleThreadExecutor();
+        _copyStage = Executors.newSingleThreadExecutor();
+        _cleanStage = Executors.newSingleThreadExecutor();
+        _logger.log("Retrieving "+instr.length+" files with pipeline_depth="+_depth);
+        try
+        {
+            for (int i=0; i<instr.length && !hasFailed(); i++)
+            {
+                _staged.acquireUninterruptibly();
+                if ( hasFailed() )
+                {
+                    _staged.release();
+                    break;
+                }
+                _prepStage.execute( new PrepareTask(instr[i]) );
+            }
+            //Wait for every started instruction to be cleaned
+            _staged.acquireUninterruptibly(_depth);
+            _staged.release(_depth);
+        }
+        finally
+        {
+            _prepStage.shutdown();
+            _copyStage.shutdown();
+            _cleanStage.shutdown();
+        }
+
+        if ( hasFailed() )
+        {
+            Throwable t = (Throwable)_failures.get(0);
+            if (t instanceof FileRetrievalException) throw (FileRetrievalException)t;
+            else throw new FileRetrievalException(t);
+        }
+    }
+
+    /**
+     * Returns whether any stage has failed.
+     *
+     * @return boolean
+     */
+    protected boolean hasFailed()
+    {
+        return _failures.size() > 0;
+    }
+
+    /**
+     * Records a stage failure.
+     *
+     * @param String The stage.
+     * @param BackupInstruction The instruction.
+     * @param Throwable The failure.
+     */
+    protected void failed(String stage, BackupInstruction instr, Throwable t)
+    {
+        _logger.log("*** ERROR *** "+stage+" failed for "+instr.remoteStagedFile+": "+t);
+        _failures.add(t);
+    }
+
+    /**
+     * Adds the time a stage of the instruction took after it succeeded.
+     *
+     * @param BackupInstruction The instruction.
+     * @param long When the stage started in milliseconds.
+     */
+    protected void addElapsed(BackupInstruction instr, long start)
+    {
+        Long elapsed = (Long)_elapsed.get(instr);
+        _elapsed.put( instr, Long.valueOf((elapsed != null ? elapsed.longValue() : 0) + System.currentTimeMillis()-start) );
+    }
+
+    /**
+     * Runs the prepare stage and hands the instruction off to the copy stage, or to
+     * the clean stage if the prepare failed.
+     */
+    protected class PrepareTask implements Runnable
+    {
+        /** The instruction. */
+        protected BackupInstruction _instr;
+
+        protected PrepareTask(BackupInstruction instr)
+        {
+            _instr = instr;
+        }
+
+        public void run()
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                _retriever.prepareFile(_instr);
+                RunMetrics.getInstance().record(_retriever, _instr, "prep", start, true);
+                _retriever.journal(_instr, RunJournal.PREPPED);
+                addElapsed(_instr, start);
+                _copyStage.execute( new CopyTask(_instr) );
+            }
+            catch (Throwable t)
+            {
+                RunMetrics.getInstance().record(_retriever, _instr, "prep", start, false);
+                failed("Prepare", _instr, t);
+                _cleanStage.execute( new CleanTask(_instr) );
+            }
+        }
+    }
+
+    /**
+     * Runs the copy stage and hands the instruction off to the clean stage.
+     */
+    protected class CopyTask implements Runnable
+    {
+        /** The instruction. */
+        protected BackupInstruction _instr;
+        /** When the instruction was handed to the stage in milliseconds. */
+        protected long _queued;
+
+        protected CopyTask(BackupInstruction instr)
+        {
+            _instr = instr;
+            _queued = System.currentTimeMillis();
+        }
+
+        public void run()
+        {
+            long start = System.currentTimeMillis();
+            _retriever.extendDeadline(_instr, start-_queued);
+            try
+            {
+                _retriever.journal(_instr, RunJournal.TRANSFERRING);
+                _retriever.copyFile(_instr);
+                RunMetrics.getInstance().record(_retriever, _instr, "copy", start, true);
+                addElapsed(_instr, start);
+            }
+            catch (Throwable t)
+            {
+                RunMetrics.getInstance().record(_retriever, _instr, "copy", start, false);
+                _elapsed.remove(_instr);
+                failed("Copy", _instr, t);
+            }
+            finally
+            {
+                _cleanStage.execute( new CleanTask(_instr) );
+            }
+        }
+    }
+
+    /**
+     * Runs the clean stage and frees the instruction's staging permit.
+     */
+    protected class CleanTask implements Runnable
+    {
+        /** The instruction. */
+        protected BackupInstruction _instr;
+        /** When the instruction was handed to the stage in milliseconds. */
+        protected long _queued;
+
+        protected CleanTask(BackupInstruction instr)
+        {
+            _instr = instr;
+            _queued = System.currentTimeMillis();
+        }
+
+        public void run()
+        {
+            long start = System.currentTimeMillis();
+            _retriever.extendDeadline(_instr, start-_queued);
+            boolean success = false;
+            try
+            {
+                _retriever.cleanFile(_instr);
+                RunMetrics.getInstance().record(_retriever, _instr, "clean", start, true);
+                success = true;
+            }
+            catch (Throwable t)
+            {
+                RunMetrics.getInstance().record(_retriever, _instr, "clean", start, false);
+                failed("Clean", _instr, t);
+            }
+            finally
+            {
+                //Only an instruction that was copied has its prepare and copy times
+                Long elapsed = (Long)_elapsed.remove(_instr);
+                _retriever.instructionFinished
+                (
+                    _instr, (elapsed != null ? elapsed.longValue() : 0)+System.currentTimeMillis()-start, success && elapsed != null
+                );
+                _staged.release();
+            }
+        }
+    }
+}
\ No newline at end of file
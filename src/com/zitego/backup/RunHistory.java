@@ -0,0 +1,291 @@
+package com.zitego.backup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * How long each instruction and job took and how many bytes it retrieved in past
+ * runs, so that a RunScheduler can predict how long the next run will take. The
+ * history is the file .history in the local backup directory. It is append only.
+ * One line is added each time an instruction or job finishes without failing. The
+ * fields are separated by tabs:<br>
+ * time type host name runs millis bytes last_millis last_bytes<br>
+ * <br>
+ * where type is I for an instruction (name is its remote_staged_file) or J for a job
+ * (name is the properties file path), millis and bytes are averages weighted toward
+ * the recent runs, and last_millis and last_bytes are of the last run. The last line
+ * for a type, host, and name is the one that counts. The file is rewritten with one
+ * line for each when more than half of its lines have been replaced.
+ *
+ * @see RunScheduler
+ * @see FileRetriever#instructionFinished(BackupInstruction, long, boolean)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RunHistory
+{
+    /** The history file name. */
+    public static final String FILE_NAME = ".history";
+    /** The type of an instruction's record. */
+    public static final String INSTRUCTION = "I";
+    /** The type of a job's record. */
+    public static final String JOB = "J";
+    /** How much the newest run counts in the averages. */
+    public static final double WEIGHT = 0.3;
+    /** The open histories keyed by canonical file. */
+    protected static final Hashtable HISTORIES = new Hashtable();
+
+    /** The history file. */
+    protected File _file;
+    /** The records keyed by type, host, and name. */
+    protected Hashtable _records = new Hashtable();
+    /** The number of lines in the history file. */
+    protected int _lines = 0;
+
+    /**
+     * Returns the history for the local backup directory, reading it if needed.
+     *
+     * @param localBackupDir The local backup directory.
+     * @return RunHistory
+     * @throws IOException if the history cannot be read.
+     */
+    public static RunHistory getInstance(String localBackupDir) throws IOException
+    {
+        File file = new File(localBackupDir, FILE_NAME).getCanonicalFile();
+        synchronized (HISTORIES)
+        {
+            RunHistory ret = (RunHistory)HISTORIES.get(file);
+            if (ret == null)
+            {
+                ret = new RunHistory(file);
+                HISTORIES.put(file, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Reads the history file if there is one.
+     *
+     * @param file The history file.
+     * @throws IOException
+     */
+    protected RunHistory(File file) throws IOException
+    {
+        _file = file;
+        if ( _file.exists() ) load();
+    }
+
+    /**
+     * Returns the record of an instruction or job or null if it has never finished.
+     *
+     * @param type INSTRUCTION or JOB.
+     * @param host The remote server or null if there is none.
+     * @param name The instruction's remote staged file or the job's properties file path.
+     * @return Record
+     */
+    public synchronized Record get(String type, String host, String name)
+    {
+        return (Record)_records.get( key(type, host, name) );
+    }
+
+    /**
+     * Returns the average time (in milliseconds) of the instructions or jobs in the
+     * history or 0 if there are none.
+     *
+     * @param type INSTRUCTION or JOB.
+     * @return long
+     */
+    public synchronized long getAverageMillis(String type)
+    {
+        long total = 0;
+        int count = 0;
+        for (Enumeration e=_records.elements(); e.hasMoreElements(); )
+        {
+            Record r = (Record)e.nextElement();
+            if ( !r.type.equals(type) ) continue;
+            total += r.millis;
+            count++;
+        }
+        return (count > 0 ? total/count : 0);
+    }
+
+    /**
+     * Adds a run of an instruction or job and appends its record to the history file.
+     *
+     * @param type INSTRUCTION or JOB.
+     * @param host The remote server or null if there is none.
+     * @param name The instruction's remote staged file or the job's properties file path.
+     * @param millis How long it took.
+     * @param bytes How many bytes it retrieved.
+     * @return Record
+     * @throws IOException
+     */
+    public synchronized Record add(String type, String host, String name, long millis, long bytes) throws IOException
+    {
+        String key = key(type, host, name);
+        Record r = (Record)_records.get(key);
+        if (r == null)
+        {
+            r = new Record(type, label(host), name);
+            r.millis = millis;
+            r.bytes = bytes;
+            _records.put(key, r);
+        }
+        else
+        {
+            r.millis += Math.round( (millis-r.millis)*WEIGHT );
+            r.bytes += Math.round( (bytes-r.bytes)*WEIGHT );
+        }
+        r.runs++;
+        r.lastMillis = millis;
+        r.lastBytes = bytes;
+        r.time = System.currentTimeMillis();
+
+        if (_lines > 100 && _lines > _records.size()*2)
+        {
+            compact();
+        }
+        else
+        {
+            _file.getParentFile().mkdirs();
+            FileOutputStream out = new FileOutputStream(_file, true);
+            try
+            {
+                out.write( (r.toString()+"\n").getBytes("UTF-8") );
+            }
+            finally
+            {
+                out.close();
+            }
+            _lines++;
+        }
+        return r;
+    }
+
+    /**
+     * Rewrites the history file with one line for each record. The file is replaced
+     * atomically.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException
+    {
+        AtomicFileOutputStream out = new AtomicFileOutputStream(_file);
+        try
+        {
+            for (Enumeration e=_records.elements(); e.hasMoreElements(); )
+            {
+                out.write( (e.nextElement().toString()+"\n").getBytes("UTF-8") );
+            }
+            out.commit();
+        }
+        finally
+        {
+            out.abort();
+        }
+        _lines = _records.size();
+    }
+
+    /**
+     * Reads the history file. A partly written last line (from a crash) is ignored.
+     *
+     * @throws IOException
+     */
+    protected void load() throws IOException
+    {
+        BufferedReader in = new BufferedReader( new FileReader(_file) );
+        try
+        {
+            String line;
+            while ( (line=in.readLine()) != null )
+            {
+                _lines++;
+                String[] field = line.split("\t");
+                if (field.length != 9) continue;
+                try
+                {
+                    Record r = new Record(field[1], field[2], field[3]);
+                    r.time = Long.parseLong(field[0]);
+                    r.runs = Long.parseLong(field[4]);
+                    r.millis = Long.parseLong(field[5]);
+                    r.bytes = Long.parseLong(field[6]);
+                    r.lastMillis = Long.parseLong(field[7]);
+                    r.lastBytes = Long.parseLong(field[8]);
+                    _records.put( key(r.type, r.host, r.name), r );
+                }
+                catch (NumberFormatException nfe) { }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the key of a record.
+     *
+     * @param type The type.
+     * @param host The host or null.
+     * @param name The name.
+     * @return String
+     */
+    protected static String key(String type, String host, String name)
+    {
+        return type+"\u0000"+label(host)+"\u0000"+name;
+    }
+
+    /**
+     * Returns the host to store for a host that may be null.
+     *
+     * @param host The host.
+     * @return String
+     */
+    protected static String label(String host)
+    {
+        return (host != null ? host : BackupCatalog.UNKNOWN);
+    }
+
+    /**
+     * The past runs of one instruction or job.
+     */
+    public static class Record
+    {
+        /** INSTRUCTION or JOB. */
+        public String type;
+        /** The remote server. */
+        public String host;
+        /** The instruction's remote staged file or the job's properties file path. */
+        public String name;
+        /** When it last finished. */
+        public long time;
+        /** The number of runs. */
+        public long runs = 0;
+        /** The weighted average time in milliseconds. */
+        public long millis = 0;
+        /** The weighted average bytes retrieved. */
+        public long bytes = 0;
+        /** The time of the last run in milliseconds. */
+        public long lastMillis = 0;
+        /** The bytes retrieved by the last run. */
+        public long lastBytes = 0;
+
+        protected Record(String type, String host, String name)
+        {
+            this.type = type;
+            this.host = host;
+            this.name = name;
+        }
+
+        public String toString()
+        {
+            return time+"\t"+type+"\t"+host+"\t"+name+"\t"+runs+"\t"+millis+"\t"+bytes+"\t"+lastMillis+"\t"+lastBytes;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,432 @@
+package com.zitego.backup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * A write-ahead journal of a backup run so that a run that is interrupted (the JVM
+ * dies or the host reboots) continues where it stopped the next time it is started
+ * instead of retrieving everything again. Each state an instruction reaches is
+ * appended to the journal and synced to disk before the next step is taken:<br>
+ * <br>
+ * prepped - The prep script ran and the file is staged on the remote server.<br>
+ * transferring - The dated local file is being written.<br>
+ * retrieved - The dated local file is complete.<br>
+ * verified - Its checksums are in the catalog and manifest.<br>
+ * cleaned - The remote staged file was cleaned. The instruction is done.<br>
+ * archived - The job's archive schedule ran. This is recorded for the job.<br>
+ * <br>
+ * The fields of each line are separated by tabs:<br>
+ * R time - A run started.<br>
+ * C time - An unfinished run was continued.<br>
+ * I time job instruction name state - An instruction reached a state, where job is
+ * the properties file path, instruction is the remote staged file, and name is the
+ * dated file name.<br>
+ * J time job state - A job reached a state.<br>
+ * E time - The run finished.<br>
+ * <br>
+ * A partly written last line (from a crash) is ignored. A state only counts for the
+ * dated file name it was recorded with, so a run continued on a later day retrieves
+ * everything again.<br>
+ * <br>
+ * Lines recorded at the same time by different threads are written and synced
+ * together. The first thread to find no sync in progress writes every line queued so
+ * far while the others wait for it, so a run with many instructions in flight pays
+ * for one sync per batch instead of one per line.
+ *
+ * @see BackupManager
+ * @see BackupJob
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RunJournal
+{
+    /** The file is staged on the remote server. */
+    public static final String PREPPED = "prepped";
+    /** The dated local file is being written. */
+    public static final String TRANSFERRING = "transferring";
+    /** The dated local file is complete. */
+    public static final String RETRIEVED = "retrieved";
+    /** The dated local file is in the catalog and manifest. */
+    public static final String VERIFIED = "verified";
+    /** The remote staged file was cleaned. */
+    public static final String CLEANED = "cleaned";
+    /** The job's archive schedule ran. */
+    public static final String ARCHIVED = "archived";
+    /** The states in the order they are reached. */
+    protected static final String[] STATES = { PREPPED, TRANSFERRING, RETRIEVED, VERIFIED, CLEANED, ARCHIVED };
+
+    /** The journal file. */
+    protected File _file;
+    /** The stream lines are appended to or null if the journal is not open. */
+    protected FileOutputStream _out;
+    /** The dated file name and state of each instruction keyed by job and remote staged file. */
+    protected Hashtable _instructions = new Hashtable();
+    /** The state of each job keyed by job. */
+    protected Hashtable _jobs = new Hashtable();
+    /** Whether the journal has a run that did not finish. */
+    protected boolean _unfinished = false;
+    /** Whether begin continued an unfinished run. */
+    protected boolean _resumed = false;
+    /** The lines waiting to be written. */
+    protected StringBuffer _pending = new StringBuffer();
+    /** The number of lines queued. */
+    protected long _queued = 0;
+    /** The number of lines written and synced. */
+    protected long _synced = 0;
+    /** Whether a thread is writing and syncing a batch. */
+    protected boolean _syncing = false;
+    /** Why the journal could not be written or null if it has not failed. */
+    protected IOException _failure;
+
+    /**
+     * Creates a run journal for the file and reads it if it exists.
+     *
+     * @param file The journal file.
+     * @throws IOException if the journal cannot be read.
+     */
+    public RunJournal(File file) throws IOException
+    {
+        _file = file;
+        if ( _file.exists() ) load();
+    }
+
+    /**
+     * Returns whether the journal has a run that did not finish.
+     *
+     * @return boolean
+     */
+    public synchronized boolean isUnfinished()
+    {
+        return _unfinished;
+    }
+
+    /**
+     * Returns whether begin continued an unfinished run.
+     *
+     * @return boolean
+     */
+    public synchronized boolean isResumed()
+    {
+        return _resumed;
+    }
+
+    /**
+     * Opens the journal for a run. If the last run did not finish, then it is
+     * continued and the journal is rewritten with just the states it reached.
+     * Otherwise a new run is started.
+     *
+     * @throws IOException if the journal cannot be written.
+     */
+    public synchronized void begin() throws IOException
+    {
+        if (_out != null) throw new IOException("The run journal is already open: "+_file);
+        _resumed = _unfinished;
+        if (!_resumed)
+        {
+            _instructions.clear();
+            _jobs.clear();
+        }
+        long now = System.currentTimeMillis();
+        StringBuffer lines = new StringBuffer().append("R\t").append(now).append("\n");
+        for (Enumeration e=_instructions.keys(); e.hasMoreElements(); )
+        {
+            String key = (String)e.nextElement();
+            String[] entry = (String[])_instructions.get(key);
+            int index = key.indexOf('\u0000');
+            lines.append( instructionLine(now, key.substring(0, index), key.substring(index+1), entry[0], entry[1]) );
+        }
+        for (Enumeration e=_jobs.keys(); e.hasMoreElements(); )
+        {
+            String job = (String)e.nextElement();
+            lines.append( jobLine(now, job, (String)_jobs.get(job)) );
+        }
+        if (_resumed) lines.append("C\t").append(now).append("\n");
+
+        //Replaced atomically so a crash now leaves either the old journal or the new one
+        _file.getAbsoluteFile().getParentFile().mkdirs();
+        AtomicFileOutputStream out = new AtomicFileOutputStream(_file);
+        try
+        {
+            out.write( lines.toString().getBytes("UTF-8") );
+            out.commit();
+        }
+        finally
+        {
+            out.abort();
+        }
+        _out = new FileOutputStream(_file, true);
+        _unfinished = true;
+        _failure = null;
+    }
+
+    /**
+     * Returns the state an instruction reached in the run or null if it has not
+     * reached one with the dated file name.
+     *
+     * @param job The properties file path.
+     * @param instruction The remote staged file.
+     * @param name The dated file name.
+     * @return String
+     */
+    public synchronized String getState(String job, String instruction, String name)
+    {
+        String[] entry = (String[])_instructions.get( key(job, instruction) );
+        return ( entry != null && entry[0].equals(name) ? entry[1] : null );
+    }
+
+    /**
+     * Returns the state a job reached in the run or null if it has not reached one.
+     *
+     * @param job The properties file path.
+     * @return String
+     */
+    public synchronized String getJobState(String job)
+    {
+        return (String)_jobs.get(job);
+    }
+
+    /**
+     * Records that an instruction reached a state. This returns once the line is
+     * synced to disk.
+     *
+     * @param job The properties file path.
+     * @param instruction The remote staged file.
+     * @param name The dated file name.
+     * @param state The state.
+     * @throws IOException if the journal cannot be written.
+     */
+    public void record(String job, String instruction, String name, String state) throws IOException
+    {
+        String line;
+        synchronized (this)
+        {
+            _instructions.put( key(job, instruction), new String[] { name, state } );
+            line = instructionLine(System.currentTimeMillis(), job, instruction, name, state);
+        }
+        append(line);
+    }
+
+    /**
+     * Records that a job reached a state. This returns once the line is synced to
+     * disk.
+     *
+     * @param job The properties file path.
+     * @param state The state.
+     * @throws IOException if the journal cannot be written.
+     */
+    public void recordJob(String job, String state) throws IOException
+    {
+        String line;
+        synchronized (this)
+        {
+            _jobs.put(job, state);
+            line = jobLine(System.currentTimeMillis(), job, state);
+        }
+        append(line);
+    }
+
+    /**
+     * Records that the run finished, so the next run starts over.
+     *
+     * @throws IOException if the journal cannot be written.
+     */
+    public void end() throws IOException
+    {
+        append( "E\t"+System.currentTimeMillis()+"\n" );
+        synchronized (this)
+        {
+            _unfinished = false;
+        }
+    }
+
+    /**
+     * Closes the journal. Lines are synced as they are recorded, so nothing is lost
+     * if it is not closed.
+     */
+    public synchronized void close()
+    {
+        if (_out == null) return;
+        try
+        {
+            _out.close();
+        }
+        catch (IOException ioe) { }
+        _out = null;
+    }
+
+    /**
+     * Returns whether a state comes at or after another one.
+     *
+     * @param state The state or null for none.
+     * @param other The other state.
+     * @return boolean
+     */
+    public static boolean isAtLeast(String state, String other)
+    {
+        return ( state != null && indexOf(state) >= indexOf(other) );
+    }
+
+    /**
+     * Queues a line and waits until it is synced. If no other thread is syncing, then
+     * this thread writes and syncs every queued line.
+     *
+     * @param line The line.
+     * @throws IOException if the journal cannot be written.
+     */
+    protected void append(String line) throws IOException
+    {
+        byte[] batch;
+        long last;
+        synchronized (this)
+        {
+            if (_out == null) throw new IOException("The run journal is not open: "+_file);
+            if (_failure != null) throw new IOException("The run journal could not be written: "+_failure);
+            _pending.append(line);
+            long seq = ++_queued;
+            try
+            {
+                while (_syncing && _synced < seq)
+                {
+                    wait();
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException("Interrupted waiting for the run journal to be synced");
+            }
+            if (_failure != null) throw new IOException("The run journal could not be written: "+_failure);
+            if (_synced >= seq) return;
+            batch = _pending.toString().getBytes("UTF-8");
+            _pending.setLength(0);
+            last = _queued;
+            _syncing = true;
+        }
+
+        IOException failure = null;
+        try
+        {
+            _out.write(batch);
+            _out.getFD().sync();
+        }
+        catch (IOException ioe)
+        {
+            failure = ioe;
+        }
+        synchronized (this)
+        {
+            _syncing = false;
+            _synced = last;
+            //A batch that was not written leaves the file in an unknown state, so nothing more is added
+            if (failure != null) _failure = failure;
+            notifyAll();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Reads the journal file. A partly written last line is ignored.
+     *
+     * @throws IOException
+     */
+    protected void load() throws IOException
+    {
+        BufferedReader in = new BufferedReader( new FileReader(_file) );
+        try
+        {
+            String line;
+            while ( (line=in.readLine()) != null )
+            {
+                String[] field = line.split("\t");
+                if ( field[0].equals("R") && field.length == 2 )
+                {
+                    _instructions.clear();
+                    _jobs.clear();
+                    _unfinished = true;
+                }
+                else if ( field[0].equals("C") && field.length == 2 )
+                {
+                    _unfinished = true;
+                }
+                else if ( field[0].equals("E") && field.length == 2 )
+                {
+                    _unfinished = false;
+                }
+                else if ( field[0].equals("I") && field.length == 6 && indexOf(field[5]) >= 0 )
+                {
+                    _instructions.put( key(field[2], field[3]), new String[] { field[4], field[5] } );
+                }
+                else if ( field[0].equals("J") && field.length == 4 && indexOf(field[3]) >= 0 )
+                {
+                    _jobs.put(field[2], field[3]);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the line recording the state of an instruction.
+     *
+     * @param time When the state was reached.
+     * @param job The properties file path.
+     * @param instruction The remote staged file.
+     * @param name The dated file name.
+     * @param state The state.
+     * @return String
+     */
+    protected static String instructionLine(long time, String job, String instruction, String name, String state)
+    {
+        return "I\t"+time+"\t"+job+"\t"+instruction+"\t"+name+"\t"+state+"\n";
+    }
+
+    /**
+     * Returns the line recording the state of a job.
+     *
+     * @param time When the state was reached.
+     * @param job The properties file path.
+     * @param state The state.
+     * @return String
+     */
+    protected static String jobLine(long time, String job, String state)
+    {
+        return "J\t"+time+"\t"+job+"\t"+state+"\n";
+    }
+
+    /**
+     * Returns the key of an instruction.
+     *
+     * @param job The properties file path.
+     * @param instruction The remote staged file.
+     * @return String
+     */
+    protected static String key(String job, String instruction)
+    {
+        return job+"\u0000"+instruction;
+    }
+
+    /**
+     * Returns the position of a state in the order they are reached or -1 if it is
+     * not a state.
+     *
+     * @param state The state.
+     * @return int
+     */
+    protected static int indexOf(String state)
+    {
+        for (int i=0; i<STATES.length; i++)
+        {
+            if ( STATES[i].equals(state) ) return i;
+        }
+        return -1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,181 @@
+package com.zitego.backup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Hashtable;
+
+/**
+ * The integrity manifest of the files retrieved into a local backup directory on one
+ * day. It is the file .manifest_yyyyMMdd next to the dated files. One line is
+ * appended and synced to disk as each file is retrieved. The fields are separated by
+ * tabs:<br>
+ * name size sha256 crc32<br>
+ * <br>
+ * where name is the dated file name and crc32 is - unless the retriever has
+ * fast_hash=true. The checksums are of the file as stored, after local_compress. A
+ * file retrieved again the same day is appended again and the last line for a name
+ * is the one that counts.
+ *
+ * @see FileRetriever#fileRetrieved(BackupInstruction, File, long, ChecksumOutputStream)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RunManifest
+{
+    /** The start of manifest file names. */
+    public static final String FILE_PREFIX = ".manifest_";
+    /** The open manifests keyed by canonical local backup directory. */
+    protected static final Hashtable MANIFESTS = new Hashtable();
+
+    /** The manifest file. */
+    protected File _file;
+    /** The day of the manifest as yyyyMMdd. */
+    protected String _date;
+    /** The stream that lines are appended to. */
+    protected FileOutputStream _out;
+
+    /**
+     * Returns today's manifest for the local backup directory, opening it if needed.
+     * The manifest of an earlier day is closed.
+     *
+     * @param localBackupDir The local backup directory.
+     * @return RunManifest
+     * @throws IOException if the manifest cannot be opened.
+     */
+    public static RunManifest getInstance(String localBackupDir) throws IOException
+    {
+        File dir = new File(localBackupDir).getCanonicalFile();
+        String date = new SimpleDateFormat("yyyyMMdd").format( new Date() );
+        synchronized (MANIFESTS)
+        {
+            RunManifest ret = (RunManifest)MANIFESTS.get(dir);
+            if ( ret != null && !ret._date.equals(date) )
+            {
+                ret.close();
+                ret = null;
+            }
+            if (ret == null)
+            {
+                ret = new RunManifest( new File(dir, FILE_PREFIX+date), date );
+                MANIFESTS.put(dir, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Reads every manifest of the local backup directory, oldest first, and returns
+     * the last line for each name as { size, sha256, crc32 } keyed by name.
+     *
+     * @param localBackupDir The local backup directory.
+     * @return Hashtable
+     * @throws IOException
+     */
+    public static Hashtable read(String localBackupDir) throws IOException
+    {
+        Hashtable ret = new Hashtable();
+        String[] names = new File(localBackupDir).list();
+        if (names == null) return ret;
+        Arrays.sort(names);
+        for (int i=0; i<names.length; i++)
+        {
+            if ( !names[i].startsWith(FILE_PREFIX) ) continue;
+            BufferedReader in = new BufferedReader
+            (
+                new InputStreamReader( new FileInputStream(new File(localBackupDir, names[i])), "UTF-8" )
+            );
+            try
+            {
+                String line = null;
+                while ( (line=in.readLine()) != null )
+                {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 4) ret.put( fields[0], new String[] { fields[1], fields[2], fields[3] } );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Deletes the manifests of the local backup directory for days before the time.
+     *
+     * @param localBackupDir The local backup directory.
+     * @param expired The time (in milliseconds) manifests must be older than.
+     * @return int The number of manifests deleted.
+     */
+    public static int purge(String localBackupDir, long expired)
+    {
+        String last = FILE_PREFIX + new SimpleDateFormat("yyyyMMdd").format( new Date(expired) );
+        String[] names = new File(localBackupDir).list();
+        int ret = 0;
+        for (int i=0; names != null && i<names.length; i++)
+        {
+            //yyyyMMdd names sort in date order
+            if ( names[i].startsWith(FILE_PREFIX) && names[i].compareTo(last) < 0 && new File(localBackupDir, names[i]).delete() ) ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Opens the manifest file for appending.
+     *
+     * @param file The manifest file.
+     * @param date The day of the manifest.
+     * @throws IOException
+     */
+    protected RunManifest(File file, String date) throws IOException
+    {
+        _file = file;
+        _date = date;
+        _file.getParentFile().mkdirs();
+        _out = new FileOutputStream(_file, true);
+    }
+
+    /**
+     * Adds a retrieved file to the manifest.
+     *
+     * @param name The dated file name.
+     * @param size The file size.
+     * @param sha256 The SHA-256 of the file.
+     * @param crc32 The CRC32 of the file or null if it is not known.
+     * @throws IOException
+     */
+    public synchronized void add(String name, long size, String sha256, String crc32) throws IOException
+    {
+        String line = name+"\t"+size+"\t"+sha256+"\t"+(crc32 != null ? crc32 : BackupCatalog.UNKNOWN)+"\n";
+        _out.write( line.getBytes("UTF-8") );
+        _out.getFD().sync();
+    }
+
+    /**
+     * Returns the manifest file.
+     *
+     * @return File
+     */
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Closes the manifest.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException
+    {
+        _out.close();
+    }
+}
\ No newline at end of file
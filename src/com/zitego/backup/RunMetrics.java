@@ -0,0 +1,759 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Collects the timings, byte counts, and failures of a backup run so they can be
+ * written as a JSON report and as a Prometheus text file for the node_exporter
+ * textfile collector. Each measurement is labeled with the properties file,
+ * remote server (host), instruction, and stage. The stages are:<br>
+ * prep, copy, clean - The stages of one instruction.<br>
+ * changes - Checking what changed since an instruction's last backup.<br>
+ * command - One ssh, scp, or script command.<br>
+ * purge - Archiving one local backup directory.<br>
+ * job - All of one properties file.<br>
+ * verify - Checking one stored file with BackupManager -verify.<br>
+ * restore - Restoring one stored file with BackupManager -restore.<br>
+ * <br>
+ * The bytes that delta copies did not need to transfer because they matched the
+ * previous copy are counted separately from the bytes retrieved.<br>
+ * <br>
+ * Files that are found to be bad are listed with the reason.<br>
+ * <br>
+ * When a RunScheduler ordered the run, the completion time it predicted for each
+ * instruction and job is listed with the time it actually finished.<br>
+ * <br>
+ * Durations are kept in a histogram with fixed buckets so the size does not grow
+ * with the number of measurements. There is one set of metrics per process.
+ *
+ * @see BackupManager
+ * @see RunScheduler
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RunMetrics
+{
+    /** The upper bounds (in seconds) of the duration buckets. */
+    public static final double[] BUCKETS = { 0.1, 0.5, 1, 5, 10, 30, 60, 300, 600, 1800, 3600, 14400 };
+    /** The value of a label that does not apply. */
+    public static final String NONE = "-";
+    /** The metrics for the process. */
+    protected static RunMetrics _instance;
+
+    /** The duration series keyed by job, host, instruction, and stage. */
+    protected Hashtable _stages = new Hashtable();
+    /** The byte counts keyed by job, host, and instruction. */
+    protected Hashtable _bytes = new Hashtable();
+    /** The number of bytes delta copies did not transfer keyed by job, host, and instruction. */
+    protected Hashtable _deltaSaved = new Hashtable();
+    /** The number of stored bytes restored keyed by job, host, and instruction. */
+    protected Hashtable _restored = new Hashtable();
+    /** The number of files purged keyed by job. */
+    protected Hashtable _purgedFiles = new Hashtable();
+    /** The number of bytes purged keyed by job. */
+    protected Hashtable _purgedBytes = new Hashtable();
+    /** The predicted and actual completion times as long[] { predicted, actual } keyed by job, host, and instruction. */
+    protected Hashtable _completions = new Hashtable();
+    /** The bad files as { job, host, instruction, stage, file, reason }. */
+    protected Vector _failures = new Vector();
+    /** When the run started. */
+    protected long _start = System.currentTimeMillis();
+    /** When the run ended or 0 if it has not. */
+    protected long _end = 0;
+    /** Whether the run succeeded. */
+    protected boolean _success = true;
+
+    /**
+     * Returns the metrics for the process.
+     *
+     * @return RunMetrics
+     */
+    public static synchronized RunMetrics getInstance()
+    {
+        if (_instance == null) _instance = new RunMetrics();
+        return _instance;
+    }
+
+    /**
+     * Clears the metrics and starts a new run.
+     */
+    public synchronized void start()
+    {
+        _stages.clear();
+        _bytes.clear();
+        _deltaSaved.clear();
+        _restored.clear();
+        _purgedFiles.clear();
+        _purgedBytes.clear();
+        _completions.clear();
+        _failures.clear();
+        _start = System.currentTimeMillis();
+        _end = 0;
+        _success = true;
+    }
+
+    /**
+     * Ends the run.
+     *
+     * @param boolean Whether the run succeeded.
+     */
+    public synchronized void end(boolean success)
+    {
+        _end = System.currentTimeMillis();
+        _success = success;
+    }
+
+    /**
+     * Records how long a stage took and whether it failed.
+     *
+     * @param String The job.
+     * @param String The host.
+     * @param String The instruction.
+     * @param String The stage.
+     * @param long When the stage started in milliseconds.
+     * @param boolean Whether the stage succeeded.
+     */
+    public synchronized void record(String job, String host, String instruction, String stage, long start, boolean success)
+    {
+        String[] labels = { label(job), label(host), label(instruction), stage };
+        String key = key(labels);
+        Series s = (Series)_stages.get(key);
+        if (s == null)
+        {
+            s = new Series(labels);
+            _stages.put(key, s);
+        }
+        s.add( System.currentTimeMillis()-start, success );
+    }
+
+    /**
+     * Records how long a stage of an instruction took for the retriever.
+     *
+     * @param FileRetriever The retriever.
+     * @param BackupInstruction The instruction or null if it does not apply.
+     * @param String The stage.
+     * @param long When the stage started in milliseconds.
+     * @param boolean Whether the stage succeeded.
+     */
+    public void record(FileRetriever retriever, BackupInstruction instr, String stage, long start, boolean success)
+    {
+        record
+        (
+            retriever.getJobName(), retriever.getRemoteServer(), (instr != null ? instr.remoteStagedFile : null),
+            stage, start, success
+        );
+    }
+
+    /**
+     * Adds to the number of bytes retrieved.
+     *
+     * @param String The job.
+     * @param String The host.
+     * @param String The instruction.
+     * @param long The number of bytes.
+     */
+    public synchronized void addBytes(String job, String host, String instruction, long bytes)
+    {
+        add( _bytes, key(new String[] { label(job), label(host), label(instruction) }), bytes );
+    }
+
+    /**
+     * Adds to the number of bytes a delta copy did not need to transfer.
+     *
+     * @param String The job.
+     * @param String The host.
+     * @param String The instruction.
+     * @param long The number of bytes.
+     */
+    public synchronized void addDeltaSaved(String job, String host, String instruction, long bytes)
+    {
+        add( _deltaSaved, key(new String[] { label(job), label(host), label(instruction) }), Math.max(0, bytes) );
+    }
+
+    /**
+     * Adds to the number of stored bytes restored.
+     *
+     * @param String The job.
+     * @param String The host.
+     * @param String The instruction.
+     * @param long The number of bytes.
+     */
+    public synchronized void addRestored(String job, String host, String instruction, long bytes)
+    {
+        add( _restored, key(new String[] { label(job), label(host), label(instruction) }), bytes );
+    }
+
+    /**
+     * Adds a purged file.
+     *
+     * @param String The job.
+     * @param long The size of the file.
+     */
+    public synchronized void addPurged(String job, long bytes)
+    {
+        add( _purgedFiles, label(job), 1 );
+        add( _purgedBytes, label(job), Math.max(0, bytes) );
+    }
+
+    /**
+     * Sets when an instruction or job is predicted to finish.
+     *
+     * @param String The job.
+     * @param String The host.
+     * @param String The instruction or null for the whole job.
+     * @param long The predicted completion time in milliseconds.
+     */
+    public synchronized void addPrediction(String job, String host, String instruction, long predicted)
+    {
+        getCompletion(job, host, instruction)[0] = predicted;
+    }
+
+    /**
+     * Sets when an instruction or job finished.
+     *
+     * @param String The job.
+     * @param String The host.
+     * @param String The instruction or null for the whole job.
+     * @param long The completion time in milliseconds.
+     */
+    public synchronized void addCompletion(String job, String host, String instruction, long actual)
+    {
+        getCompletion(job, host, instruction)[1] = actual;
+    }
+
+    /**
+     * Returns the predicted and actual completion times of an instruction or job,
+     * adding them if needed.
+     *
+     * @param String The job.
+     * @param String The host.
+     * @param String The instruction.
+     * @return long[]
+     */
+    protected long[] getCompletion(String job, String host, String instruction)
+    {
+        String key = key( new String[] { label(job), label(host), label(instruction) } );
+        long[] ret = (long[])_completions.get(key);
+        if (ret == null) _completions.put( key, ret=new long[2] );
+        return ret;
+    }
+
+    /**
+     * Adds a file that was found to be bad.
+     *
+     * @param String The job.
+     * @param String The host.
+     * @param String The instruction.
+     * @param String The stage.
+     * @param String The file name.
+     * @param String What is wrong with it.
+     */
+    public synchronized void addFailure(String job, String host, String instruction, String stage, String file, String reason)
+    {
+        _failures.add( new String[] { label(job), label(host), label(instruction), stage, file, reason } );
+    }
+
+    /**
+     * Writes the JSON report. The file is replaced atomically.
+     *
+     * @param File The file.
+     * @throws IOException
+     */
+    public synchronized void writeJson(File file) throws IOException
+    {
+        AtomicFileOutputStream out = new AtomicFileOutputStream(file);
+        try
+        {
+            PrintWriter pw = new PrintWriter( new OutputStreamWriter(out, "UTF-8") );
+            long end = (_end > 0 ? _end : System.currentTimeMillis());
+            pw.println("{");
+            pw.println("  \"start\": "+_start+",");
+            pw.println("  \"end\": "+end+",");
+            pw.println("  \"duration_ms\": "+(end-_start)+",");
+            pw.println("  \"success\": "+_success+",");
+
+            pw.println("  \"stages\": [");
+            String[] keys = sortedKeys(_stages);
+            for (int i=0; i<keys.length; i++)
+            {
+                Series s = (Series)_stages.get(keys[i]);
+                pw.print("    {"+labelsJson(s.labels)+", \"count\": "+s.count+", \"failures\": "+s.failures+
+                         ", \"total_ms\": "+s.sum+", \"min_ms\": "+s.min+", \"max_ms\": "+s.max+
+                         ", \"mean_ms\": "+(s.count > 0 ? s.sum/s.count : 0)+", \"buckets\": {");
+                for (int j=0; j<=BUCKETS.length; j++)
+                {
+                    pw.print( (j > 0 ? ", " : "")+"\""+(j < BUCKETS.length ? String.valueOf(BUCKETS[j]) : "+Inf")+"\": "+s.cumulative(j) );
+                }
+                pw.println( "}}"+(i < keys.length-1 ? "," : "") );
+            }
+            pw.println("  ],");
+
+            pw.println("  \"bytes\": [");
+            keys = sortedKeys(_bytes);
+            for (int i=0; i<keys.length; i++)
+            {
+                String[] labels = keys[i].split("\u0000");
+                pw.println
+                (
+                    "    {\"properties\": "+quote(labels[0])+", \"host\": "+quote(labels[1])+", \"instruction\": "+quote(labels[2])+
+                    ", \"bytes\": "+_bytes.get(keys[i])+"}"+(i < keys.length-1 ? "," : "")
+                );
+            }
+            pw.println("  ],");
+
+            pw.println("  \"delta_saved\": [");
+            keys = sortedKeys(_deltaSaved);
+            for (int i=0; i<keys.length; i++)
+            {
+                String[] labels = keys[i].split("\u0000");
+                pw.println
+                (
+                    "    {\"properties\": "+quote(labels[0])+", \"host\": "+quote(labels[1])+", \"instruction\": "+quote(labels[2])+
+                    ", \"bytes\": "+_deltaSaved.get(keys[i])+"}"+(i < keys.length-1 ? "," : "")
+                );
+            }
+            pw.println("  ],");
+
+            pw.println("  \"hosts\": [");
+            Hashtable hosts = getHostThroughput();
+            keys = sortedKeys(hosts);
+            for (int i=0; i<keys.length; i++)
+            {
+                long[] t = (long[])hosts.get(keys[i]);
+                pw.println
+                (
+                    "    {\"host\": "+quote(keys[i])+", \"bytes\": "+t[0]+", \"copy_ms\": "+t[1]+
+                    ", \"bytes_per_second\": "+(t[1] > 0 ? t[0]*1000L/t[1] : 0)+"}"+(i < keys.length-1 ? "," : "")
+                );
+            }
+            pw.println("  ],");
+
+            pw.println("  \"completions\": [");
+            keys = sortedKeys(_completions);
+            for (int i=0; i<keys.length; i++)
+            {
+                String[] labels = keys[i].split("\u0000");
+                long[] c = (long[])_completions.get(keys[i]);
+                pw.println
+                (
+                    "    {\"properties\": "+quote(labels[0])+", \"host\": "+quote(labels[1])+", \"instruction\": "+quote(labels[2])+
+                    ", \"predicted_end\": "+(c[0] > 0 ? String.valueOf(c[0]) : "null")+
+                    ", \"actual_end\": "+(c[1] > 0 ? String.valueOf(c[1]) : "null")+
+                    ", \"late_ms\": "+(c[0] > 0 && c[1] > 0 ? String.valueOf(c[1]-c[0]) : "null")+"}"+(i < keys.length-1 ? "," : "")
+                );
+            }
+            pw.println("  ],");
+
+            pw.println("  \"restored\": [");
+            keys = sortedKeys(_restored);
+            for (int i=0; i<keys.length; i++)
+            {
+                String[] labels = keys[i].split("\u0000");
+                pw.println
+                (
+                    "    {\"properties\": "+quote(labels[0])+", \"host\": "+quote(labels[1])+", \"instruction\": "+quote(labels[2])+
+                    ", \"bytes\": "+_restored.get(keys[i])+"}"+(i < keys.length-1 ? "," : "")
+                );
+            }
+            pw.println("  ],");
+
+            pw.println("  \"purged\": [");
+            keys = sortedKeys(_purgedFiles);
+            for (int i=0; i<keys.length; i++)
+            {
+                pw.println
+                (
+                    "    {\"properties\": "+quote(keys[i])+", \"files\": "+_purgedFiles.get(keys[i])+
+                    ", \"bytes\": "+_purgedBytes.get(keys[i])+"}"+(i < keys.length-1 ? "," : "")
+                );
+            }
+            pw.println("  ],");
+
+            pw.println("  \"failed\": [");
+            for (int i=0; i<_failures.size(); i++)
+            {
+                String[] f = (String[])_failures.get(i);
+                pw.println
+                (
+                    "    {"+labelsJson(new String[] { f[0], f[1], f[2], f[3] })+", \"file\": "+quote(f[4])+
+                    ", \"error\": "+quote(f[5])+"}"+(i < _failures.size()-1 ? "," : "")
+                );
+            }
+            pw.println("  ]");
+            pw.println("}");
+            pw.flush();
+            out.commit();
+        }
+        finally
+        {
+            out.abort();
+        }
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format. The file is replaced
+     * atomically so the textfile collector never reads a partial file.
+     *
+     * @param File The file.
+     * @throws IOException
+     */
+    public synchronized void writePrometheus(File file) throws IOException
+    {
+        AtomicFileOutputStream out = new AtomicFileOutputStream(file);
+        try
+        {
+            PrintWriter pw = new PrintWriter( new OutputStreamWriter(out, "UTF-8") );
+            long end = (_end > 0 ? _end : System.currentTimeMillis());
+
+            pw.println("# HELP backup_stage_duration_seconds How long each stage took.");
+            pw.println("# TYPE backup_stage_duration_seconds histogram");
+            String[] keys = sortedKeys(_stages);
+            for (int i=0; i<keys.length; i++)
+            {
+                Series s = (Series)_stages.get(keys[i]);
+                String labels = labelsProm(s.labels);
+                for (int j=0; j<=BUCKETS.length; j++)
+                {
+                    pw.println
+                    (
+                        "backup_stage_duration_seconds_bucket{"+labels+",le=\""+
+                        (j < BUCKETS.length ? String.valueOf(BUCKETS[j]) : "+Inf")+"\"} "+s.cumulative(j)
+                    );
+                }
+                pw.println("backup_stage_duration_seconds_sum{"+labels+"} "+(s.sum/1000d));
+                pw.println("backup_stage_duration_seconds_count{"+labels+"} "+s.count);
+            }
+
+            pw.println("# HELP backup_stage_failures_total The number of times each stage failed.");
+            pw.println("# TYPE backup_stage_failures_total counter");
+            for (int i=0; i<keys.length; i++)
+            {
+                Series s = (Series)_stages.get(keys[i]);
+                pw.println("backup_stage_failures_total{"+labelsProm(s.labels)+"} "+s.failures);
+            }
+
+            pw.println("# HELP backup_retrieved_bytes_total The number of bytes retrieved.");
+            pw.println("# TYPE backup_retrieved_bytes_total counter");
+            keys = sortedKeys(_bytes);
+            for (int i=0; i<keys.length; i++)
+            {
+                String[] labels = keys[i].split("\u0000");
+                pw.println
+                (
+                    "backup_retrieved_bytes_total{properties=\""+escape(labels[0])+"\",host=\""+escape(labels[1])+
+                    "\",instruction=\""+escape(labels[2])+"\"} "+_bytes.get(keys[i])
+                );
+            }
+
+            pw.println("# HELP backup_delta_saved_bytes_total The number of bytes delta copies did not need to transfer.");
+            pw.println("# TYPE backup_delta_saved_bytes_total counter");
+            keys = sortedKeys(_deltaSaved);
+            for (int i=0; i<keys.length; i++)
+            {
+                String[] labels = keys[i].split("\u0000");
+                pw.println
+                (
+                    "backup_delta_saved_bytes_total{properties=\""+escape(labels[0])+"\",host=\""+escape(labels[1])+
+                    "\",instruction=\""+escape(labels[2])+"\"} "+_deltaSaved.get(keys[i])
+                );
+            }
+
+            pw.println("# HELP backup_host_throughput_bytes_per_second Bytes retrieved per second spent copying.");
+            pw.println("# TYPE backup_host_throughput_bytes_per_second gauge");
+            Hashtable hosts = getHostThroughput();
+            keys = sortedKeys(hosts);
+            for (int i=0; i<keys.length; i++)
+            {
+                long[] t = (long[])hosts.get(keys[i]);
+                pw.println("backup_host_throughput_bytes_per_second{host=\""+escape(keys[i])+"\"} "+(t[1] > 0 ? t[0]*1000L/t[1] : 0));
+            }
+
+            pw.println("# HELP backup_predicted_completion_timestamp_seconds When each instruction and job was predicted to finish.");
+            pw.println("# TYPE backup_predicted_completion_timestamp_seconds gauge");
+            keys = sortedKeys(_completions);
+            for (int i=0; i<keys.length; i++)
+            {
+                long[] c = (long[])_completions.get(keys[i]);
+                if (c[0] > 0) pw.println("backup_predicted_completion_timestamp_seconds{"+completionLabels(keys[i])+"} "+(c[0]/1000L));
+            }
+            pw.println("# HELP backup_completion_timestamp_seconds When each instruction and job finished.");
+            pw.println("# TYPE backup_completion_timestamp_seconds gauge");
+            for (int i=0; i<keys.length; i++)
+            {
+                long[] c = (long[])_completions.get(keys[i]);
+                if (c[1] > 0) pw.println("backup_completion_timestamp_seconds{"+completionLabels(keys[i])+"} "+(c[1]/1000L));
+            }
+
+            pw.println("# HELP backup_restored_bytes_total The number of stored bytes restored.");
+            pw.println("# TYPE backup_restored_bytes_total counter");
+            keys = sortedKeys(_restored);
+            for (int i=0; i<keys.length; i++)
+            {
+                String[] labels = keys[i].split("\u0000");
+                pw.println
+                (
+                    "backup_restored_bytes_total{properties=\""+escape(labels[0])+"\",host=\""+escape(labels[1])+
+                    "\",instruction=\""+escape(labels[2])+"\"} "+_restored.get(keys[i])
+                );
+            }
+
+            pw.println("# HELP backup_purged_files_total The number of old files purged.");
+            pw.println("# TYPE backup_purged_files_total counter");
+            keys = sortedKeys(_purgedFiles);
+            for (int i=0; i<keys.length; i++)
+            {
+                pw.println("backup_purged_files_total{properties=\""+escape(keys[i])+"\"} "+_purgedFiles.get(keys[i]));
+            }
+            pw.println("# HELP backup_purged_bytes_total The number of bytes of old files purged.");
+            pw.println("# TYPE backup_purged_bytes_total counter");
+            for (int i=0; i<keys.length; i++)
+            {
+                pw.println("backup_purged_bytes_total{properties=\""+escape(keys[i])+"\"} "+_purgedBytes.get(keys[i]));
+            }
+
+            pw.println("# HELP backup_failed_file A file that was found to be bad.");
+            pw.println("# TYPE backup_failed_file gauge");
+            for (int i=0; i<_failures.size(); i++)
+            {
+                String[] f = (String[])_failures.get(i);
+                pw.println
+                (
+                    "backup_failed_file{"+labelsProm(new String[] { f[0], f[1], f[2], f[3] })+
+                    ",file=\""+escape(f[4])+"\"} 1"
+                );
+            }
+
+            pw.println("# HELP backup_run_duration_seconds How long the run took.");
+            pw.println("# TYPE backup_run_duration_seconds gauge");
+            pw.println("backup_run_duration_seconds "+((end-_start)/1000d));
+            pw.println("# HELP backup_run_success Whether the run succeeded.");
+            pw.println("# TYPE backup_run_success gauge");
+            pw.println("backup_run_success "+(_success ? 1 : 0));
+            pw.println("# HELP backup_run_end_timestamp_seconds When the run ended.");
+            pw.println("# TYPE backup_run_end_timestamp_seconds gauge");
+            pw.println("backup_run_end_timestamp_seconds "+(end/1000L));
+            pw.flush();
+            out.commit();
+        }
+        finally
+        {
+            out.abort();
+        }
+    }
+
+    /**
+     * Returns the bytes retrieved and the time spent in the copy stage for each host
+     * as long[] { bytes, milliseconds } keyed by host.
+     *
+     * @return Hashtable
+     */
+    protected Hashtable getHostThroughput()
+    {
+        Hashtable ret = new Hashtable();
+        for (Enumeration e=_bytes.keys(); e.hasMoreElements();)
+        {
+            String key = (String)e.nextElement();
+            String host = key.split("\u0000")[1];
+            long[] t = (long[])ret.get(host);
+            if (t == null) ret.put( host, t=new long[2] );
+            t[0] += ((Long)_bytes.get(key)).longValue();
+        }
+        for (Enumeration e=_stages.elements(); e.hasMoreElements();)
+        {
+            Series s = (Series)e.nextElement();
+            if ( !"copy".equals(s.labels[3]) ) continue;
+            long[] t = (long[])ret.get(s.labels[1]);
+            if (t != null) t[1] += s.sum;
+        }
+        return ret;
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param Hashtable The counters.
+     * @param String The key.
+     * @param long The amount.
+     */
+    protected static void add(Hashtable counters, String key, long amount)
+    {
+        Long val = (Long)counters.get(key);
+        counters.put( key, Long.valueOf((val != null ? val.longValue() : 0) + amount) );
+    }
+
+    /**
+     * Returns the label value to use for a value that may be null.
+     *
+     * @param String The value.
+     * @return String
+     */
+    protected static String label(String val)
+    {
+        return (val != null ? val : NONE);
+    }
+
+    /**
+     * Returns the key for the labels.
+     *
+     * @param String[] The labels.
+     * @return String
+     */
+    protected static String key(String[] labels)
+    {
+        StringBuffer ret = new StringBuffer();
+        for (int i=0; i<labels.length; i++)
+        {
+            if (i > 0) ret.append('\u0000');
+            ret.append(labels[i]);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Returns the keys of the table in order.
+     *
+     * @param Hashtable The table.
+     * @return String[]
+     */
+    protected static String[] sortedKeys(Hashtable table)
+    {
+        String[] ret = new String[table.size()];
+        Vector tmp = new Vector( table.keySet() );
+        tmp.copyInto(ret);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /**
+     * Returns the stage labels as JSON fields.
+     *
+     * @param String[] The labels.
+     * @return String
+     */
+    protected static String labelsJson(String[] labels)
+    {
+        return "\"properties\": "+quote(labels[0])+", \"host\": "+quote(labels[1])+
+               ", \"instruction\": "+quote(labels[2])+", \"stage\": "+quote(labels[3]);
+    }
+
+    /**
+     * Returns the stage labels in the Prometheus format.
+     *
+     * @param String[] The labels.
+     * @return String
+     */
+    protected static String labelsProm(String[] labels)
+    {
+        return "properties=\""+escape(labels[0])+"\",host=\""+escape(labels[1])+
+               "\",instruction=\""+escape(labels[2])+"\",stage=\""+escape(labels[3])+"\"";
+    }
+
+    /**
+     * Returns the job, host, and instruction of a key in the Prometheus format.
+     *
+     * @param String The key.
+     * @return String
+     */
+    protected static String completionLabels(String key)
+    {
+        String[] labels = key.split("\u0000");
+        return "properties=\""+escape(labels[0])+"\",host=\""+escape(labels[1])+"\",instruction=\""+escape(labels[2])+"\"";
+    }
+
+    /**
+     * Returns the value as a quoted JSON string.
+     *
+     * @param String The value.
+     * @return String
+     */
+    protected static String quote(String val)
+    {
+        StringBuffer ret = new StringBuffer("\"");
+        for (int i=0; i<val.length(); i++)
+        {
+            char c = val.charAt(i);
+            if (c == '"' || c == '\\') ret.append('\\').append(c);
+            else if (c < 0x20) ret.append("\\u").append( Integer.toHexString(c | 0x10000).substring(1) );
+            else ret.append(c);
+        }
+        return ret.append('"').toString();
+    }
+
+    /**
+     * Escapes a Prometheus label value.
+     *
+     * @param String The value.
+     * @return String
+     */
+    protected static String escape(String val)
+    {
+        return val.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The durations of one labeled stage.
+     */
+    protected static class Series
+    {
+        /** The job, host, instruction, and stage. */
+        protected String[] labels;
+        /** The number of measurements. */
+        protected long count = 0;
+        /** The number of failures. */
+        protected long failures = 0;
+        /** The total milliseconds. */
+        protected long sum = 0;
+        /** The shortest duration in milliseconds. */
+        protected long min = 0;
+        /** The longest duration in milliseconds. */
+        protected long max = 0;
+        /** The number of measurements in each bucket (the last is the overflow). */
+        protected long[] buckets = new long[BUCKETS.length+1];
+
+        protected Series(String[] labels)
+        {
+            this.labels = labels;
+        }
+
+        /**
+         * Adds a measurement.
+         *
+         * @param long The duration in milliseconds.
+         * @param boolean Whether it succeeded.
+         */
+        protected void add(long millis, boolean success)
+        {
+            if (count == 0 || millis < min) min = millis;
+            if (millis > max) max = millis;
+            count++;
+            sum += millis;
+            if (!success) failures++;
+            int i = 0;
+            while (i < BUCKETS.length && millis > BUCKETS[i]*1000d) i++;
+            buckets[i]++;
+        }
+
+        /**
+         * Returns the number of measurements in the bucket or a lower one.
+         *
+         * @param int The bucket.
+         * @return long
+         */
+        protected long cumulative(int bucket)
+        {
+            long ret = 0;
+            for (int i=0; i<=bucket; i++)
+            {
+                ret += buckets[i];
+            }
+            return ret;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,328 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Vector;
+
+/**
+ * Orders the backup jobs of a run so that the run finishes as soon as it can. How
+ * long each job and instruction will take is predicted from the RunHistory of its
+ * local backup directory and the jobs are started longest first, so that a long job
+ * is not left to run alone at the end while the other workers are idle. Jobs with a
+ * higher priority (the highest priority of their instructions) are still started
+ * first.<br>
+ * <br>
+ * The run is then simulated the way BackupManager runs it, on max_jobs workers with
+ * no more than max_jobs_per_host jobs against the same remote server at once. If an
+ * instruction with a finish_by is predicted to finish after it, then its job is
+ * moved ahead of the jobs of the same priority that have no finish_by or a later one
+ * until it is predicted to finish in time or cannot be moved any further.<br>
+ * <br>
+ * The predicted completion time of each job and instruction is logged and recorded
+ * in RunMetrics so that the report shows it next to the actual one. A job or
+ * instruction that has never finished is predicted to take the average time of the
+ * ones that have in its local backup directory.
+ *
+ * @see RunHistory
+ * @see BackupManager
+ * @see BackupInstruction
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RunScheduler
+{
+    /** To log the order. */
+    protected Logger _logger;
+    /** The number of jobs that run at the same time. */
+    protected int _maxJobs;
+    /** The number of jobs that run at the same time against one remote server. */
+    protected int _maxJobsPerHost;
+    /** To format predicted times. */
+    protected SimpleDateFormat _timeFormat = new SimpleDateFormat("HH:mm:ss");
+
+    /**
+     * Creates a new run scheduler.
+     *
+     * @param logger The logger.
+     * @param maxJobs The number of jobs that run at the same time.
+     * @param maxJobsPerHost The number of jobs that run at the same time against one remote server.
+     */
+    public RunScheduler(Logger logger, int maxJobs, int maxJobsPerHost)
+    {
+        _logger = logger;
+        _maxJobs = Math.max(1, maxJobs);
+        _maxJobsPerHost = Math.max(1, maxJobsPerHost);
+    }
+
+    /**
+     * Returns the jobs in the order they should be started and records when each job
+     * and instruction is predicted to finish.
+     *
+     * @param jobs The jobs.
+     * @param now When the run starts.
+     * @return BackupJob[]
+     */
+    public BackupJob[] order(BackupJob[] jobs, long now)
+    {
+        Plan[] plans = new Plan[jobs.length];
+        for (int i=0; i<jobs.length; i++)
+        {
+            plans[i] = plan(jobs[i], now);
+        }
+        //Highest priority first, then longest first. The sort is stable so ties keep their order.
+        Arrays.sort
+        (
+            plans,
+            new Comparator()
+            {
+                public int compare(Object a, Object b)
+                {
+                    Plan x = (Plan)a;
+                    Plan y = (Plan)b;
+                    if (x.priority != y.priority) return (x.priority > y.priority ? -1 : 1);
+                    if (x.millis != y.millis) return (x.millis > y.millis ? -1 : 1);
+                    return 0;
+                }
+            }
+        );
+
+        //Each move puts a job ahead of a less urgent one, so there are at most n*n moves
+        for (int moves=0; moves<plans.length*plans.length; moves++)
+        {
+            simulate(plans, now);
+            if ( !moveLate(plans) ) break;
+        }
+        simulate(plans, now);
+
+        _logger.log("Run order predicted from the run history with max_jobs="+_maxJobs+", max_jobs_per_host="+_maxJobsPerHost+":");
+        BackupJob[] ret = new BackupJob[plans.length];
+        RunMetrics metrics = RunMetrics.getInstance();
+        for (int i=0; i<plans.length; i++)
+        {
+            Plan p = plans[i];
+            ret[i] = p.job;
+            String host = p.job.getFileRetriever().getRemoteServer();
+            _logger.log
+            (
+                "  "+(i+1)+". "+p.job.getPropertiesPath()+(p.known ? "" : " (no history)")+(p.priority != 0 ? ", priority "+p.priority : "")+
+                ", "+(p.millis/1000L)+" seconds, "+_timeFormat.format( new Date(p.start) )+" to "+_timeFormat.format( new Date(p.end) )
+            );
+            metrics.addPrediction(p.job.getPropertiesPath(), host, null, p.end);
+            for (int j=0; j<p.instructions.length; j++)
+            {
+                BackupInstruction instr = p.instructions[j];
+                long end = p.start + p.offsets[j];
+                metrics.addPrediction(p.job.getPropertiesPath(), host, instr.remoteStagedFile, end);
+                long finishBy = p.finishBys[j];
+                if (finishBy > 0 && end > finishBy)
+                {
+                    _logger.log
+                    (
+                        "*** WARNING *** "+instr.remoteStagedFile+" of "+p.job.getPropertiesPath()+" is predicted to finish at "+
+                        _timeFormat.format( new Date(end) )+", after its finish_by of "+_timeFormat.format( new Date(finishBy) )
+                    );
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Predicts how long a job and each of its instructions will take.
+     *
+     * @param job The job.
+     * @param now When the run starts.
+     * @return Plan
+     */
+    protected Plan plan(BackupJob job, long now)
+    {
+        Plan ret = new Plan(job);
+        ret.instructions = job.getRunOrder(now);
+        ret.offsets = new long[ret.instructions.length];
+        ret.finishBys = new long[ret.instructions.length];
+        FileRetriever retriever = job.getFileRetriever();
+        String host = retriever.getRemoteServer();
+        RunHistory history = null;
+        try
+        {
+            history = RunHistory.getInstance( retriever.getLocalBackupDir() );
+        }
+        catch (IOException ioe)
+        {
+            _logger.log("*** WARNING *** Could not read the run history of "+retriever.getLocalBackupDir()+": "+ioe);
+        }
+
+        long total = 0;
+        boolean known = true;
+        long average = (history != null ? history.getAverageMillis(RunHistory.INSTRUCTION) : 0);
+        for (int i=0; i<ret.instructions.length; i++)
+        {
+            BackupInstruction instr = ret.instructions[i];
+            RunHistory.Record r = (history != null ? history.get(RunHistory.INSTRUCTION, host, instr.remoteStagedFile) : null);
+            if (r == null) known = false;
+            total += (r != null ? r.millis : average);
+            ret.offsets[i] = total;
+            ret.priority = (i == 0 ? instr.priority : Math.max(ret.priority, instr.priority));
+            ret.finishBys[i] = instr.getFinishBy(now);
+            if ( ret.finishBys[i] > 0 && (ret.finishBy == 0 || ret.finishBys[i] < ret.finishBy) ) ret.finishBy = ret.finishBys[i];
+        }
+
+        //The job's own time includes the stages that overlap when it is pipelined
+        RunHistory.Record r = (history != null ? history.get(RunHistory.JOB, host, job.getPropertiesPath()) : null);
+        ret.millis = (r != null ? r.millis : total);
+        ret.known = (r != null || known);
+        for (int i=0; total > 0 && i<ret.offsets.length; i++)
+        {
+            ret.offsets[i] = ret.offsets[i]*ret.millis/total;
+        }
+        return ret;
+    }
+
+    /**
+     * Predicts when each job starts and ends by running them in order on max_jobs
+     * workers, starting the first job that is not held back by max_jobs_per_host
+     * each time a worker is free.
+     *
+     * @param plans The jobs in order.
+     * @param now When the run starts.
+     */
+    protected void simulate(Plan[] plans, long now)
+    {
+        Vector pending = new Vector( Arrays.asList(plans) );
+        Vector running = new Vector();
+        long time = now;
+        while (pending.size() > 0)
+        {
+            for (int i=0; i<running.size(); i++)
+            {
+                if ( ((Plan)running.get(i)).end <= time ) running.remove(i--);
+            }
+            for (int i=0; i<pending.size() && running.size()<_maxJobs; i++)
+            {
+                Plan p = (Plan)pending.get(i);
+                if (getRunningCount(running, p.host) >= _maxJobsPerHost) continue;
+                pending.remove(i--);
+                p.start = time;
+                p.end = time + p.millis;
+                if (p.end > time) running.add(p);
+            }
+            if (pending.size() == 0 || running.size() == 0) break;
+            long next = Long.MAX_VALUE;
+            for (int i=0; i<running.size(); i++)
+            {
+                next = Math.min( next, ((Plan)running.get(i)).end );
+            }
+            time = next;
+        }
+    }
+
+    /**
+     * Moves the first job that is predicted to miss a finish_by one place ahead of a
+     * less urgent job.
+     *
+     * @param plans The jobs in order.
+     * @return boolean Whether a job was moved.
+     */
+    protected boolean moveLate(Plan[] plans)
+    {
+        for (int i=1; i<plans.length; i++)
+        {
+            if ( !plans[i].isLate() ) continue;
+            //A job that cannot pass the one before it moves that one up instead if it is also urgent
+            for (int j=i; j>0 && plans[j].priority == plans[i].priority && plans[j].finishBy > 0; j--)
+            {
+                if ( isMoreUrgent(plans[j], plans[j-1]) )
+                {
+                    Plan tmp = plans[j-1];
+                    plans[j-1] = plans[j];
+                    plans[j] = tmp;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a job should be started before another one to meet its
+     * finish_by. Priorities are never passed.
+     *
+     * @param a The job.
+     * @param b The other job.
+     * @return boolean
+     */
+    protected boolean isMoreUrgent(Plan a, Plan b)
+    {
+        return ( a.priority == b.priority && a.finishBy > 0 && (b.finishBy == 0 || a.finishBy < b.finishBy) );
+    }
+
+    /**
+     * Returns the number of the running jobs against the remote server.
+     *
+     * @param running The running jobs.
+     * @param host The remote server.
+     * @return int
+     */
+    protected int getRunningCount(Vector running, String host)
+    {
+        int ret = 0;
+        for (int i=0; i<running.size(); i++)
+        {
+            if ( ((Plan)running.get(i)).host.equals(host) ) ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * The prediction for one job.
+     */
+    protected static class Plan
+    {
+        /** The job. */
+        protected BackupJob job;
+        /** The remote server that counts toward max_jobs_per_host. */
+        protected String host;
+        /** The instructions in the order they are run. */
+        protected BackupInstruction[] instructions;
+        /** When each instruction is predicted to finish in milliseconds after the job starts. */
+        protected long[] offsets;
+        /** The finish_by of each instruction or 0 for none. */
+        protected long[] finishBys;
+        /** How long the job is predicted to take in milliseconds. */
+        protected long millis = 0;
+        /** Whether the job or all of its instructions have finished before. */
+        protected boolean known = false;
+        /** The highest priority of the instructions. */
+        protected int priority = 0;
+        /** The earliest finish_by of the instructions or 0 for none. */
+        protected long finishBy = 0;
+        /** When the job is predicted to start. */
+        protected long start = 0;
+        /** When the job is predicted to end. */
+        protected long end = 0;
+
+        protected Plan(BackupJob job)
+        {
+            this.job = job;
+            this.host = job.getRemoteServer();
+        }
+
+        /**
+         * Returns whether an instruction is predicted to finish after its finish_by.
+         *
+         * @return boolean
+         */
+        protected boolean isLate()
+        {
+            for (int i=0; i<finishBys.length; i++)
+            {
+                if (finishBys[i] > 0 && start+offsets[i] > finishBys[i]) return true;
+            }
+            return false;
+        }
+    }
+}
\ No newline at end of file
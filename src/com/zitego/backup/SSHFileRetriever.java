@@ -1,252 +1,1127 @@
-package com.zitego.backup;
-
-import com.zitego.markup.xml.XmlTag;
-import java.io.File;
-
-/**
- * Retrieves files using secure copy and ssh. The required properties to
- * specify are ssh_cmd, scp_cmd, prep_script, clean_script, user, and
- * remote_server. The meaning of each of these is as follows:<br>
- * class - The java class to instantiate.<br>
- * ssh_cmd - The ssh command path.<br>
- * scp_cmd - The scp command path.<br>
- * clean_script - The remote script that will clean out the remote staging directory.<br>
- * user - The user to ssh and scp as.<br>
- * remote_server - The remote server to ssh and scp to.<br>
- * remote_staging_dir - The remote directory to retrieve files from.<br>
- * local_backup_dir - The local directory to copy to.<br>
- * <br>
- * Example:<br>
- * class=com.zitego.backup.SSHFileRetriever,\<br>
- * ssh_cmd*=/usr/bin/ssh,\<br>
- * scp_cmd=/usr/bin/scp,\<br>
- * user=jglorioso,\<br>
- * remote_server=zitego.com,\<br>
- * clean_script*=/home/httpd/domains/penwrights.com/WEB-INF/bin/clean_backup_files.sh,\<br>
- * remote_staging_dir=/home/httpd/domains/bak_staging,\<br>
- * local_backup_dir=/home/jglorioso/backups<br>
- * <br>
- * * Remote scripts must echo "----- EOF -----"
- *
- * @author John Glorioso
- * @version $Id: SSHFileRetriever.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
- */
-public class SSHFileRetriever extends FileRetriever
-{
-    /** The ssh command. */
-    protected String _ssh;
-    /** The scp command. */
-    protected String _scp;
-    /** The clean script to run. */
-    protected String _cleanScript;
-    /** The user to connect as. */
-    protected String _user;
-    /** The remote server. */
-    protected String _remoteServer;
-
-    public void setProperties(String props)
-    {
-        String tokens[] = props.split(",");
-        if (tokens != null)
-        {
-            for (int i = 0; i < tokens.length; i++)
-            {
-                String token[] = tokens[i].split("=");
-                if ( token[0].equals("ssh_cmd") ) _ssh = token[1];
-                else if (token[0].equals("scp_cmd") ) _scp = token[1];
-                else if (token[0].equals("clean_script") ) _cleanScript = token[1];
-                else if (token[0].equals("user") ) _user = token[1];
-                else if (token[0].equals("remote_server") ) _remoteServer = token[1];
-                else if (token[0].equals("remote_staging_dir") ) setRemoteStagingDir(token[1]);
-                else if (token[0].equals("local_backup_dir") ) setLocalBackupDir(token[1]);
-            }
-        }
-        log("ssh_cmd="+_ssh);
-        log("scp_cmd="+_scp);
-        log("clean_script="+_cleanScript);
-        log("user="+_user);
-        log("remoteServer="+_remoteServer);
-        log("remote_staging_dir="+_remoteStagingDir);
-        log("local_backup_dir="+_localBackupDir);
-    }
-
-    public void setPropertiesFromXml(XmlTag tag)
-    {
-        String val = tag.getChildValue("ssh_cmd");
-        if (val != null) _ssh = val;
-        val = tag.getChildValue("scp_cmd");
-        if (val != null) _scp = val;
-        val = tag.getChildValue("clean_script");
-        if (val != null) _cleanScript = val;
-        val = tag.getChildValue("user");
-        if (val != null) _user = val;
-        val = tag.getChildValue("remote_server");
-        if (val != null) _remoteServer = val;
-        val = tag.getChildValue("remote_staging_dir");
-        if (val != null) _remoteStagingDir = val;
-        val = tag.getChildValue("local_backup_dir");
-        if (val != null) _localBackupDir = val;
-        log("ssh_cmd="+_ssh);
-        log("scp_cmd="+_scp);
-        log("clean_script="+_cleanScript);
-        log("user="+_user);
-        log("remoteServer="+_remoteServer);
-        log("remote_staging_dir="+_remoteStagingDir);
-        log("local_backup_dir="+_localBackupDir);
-    }
-
-    public void retrieveFile(BackupInstruction instr) throws FileRetrievalException
-    {
-        log(instr.remoteStagedFile);
-        File localDir = new File( getLocalBackupDir() );
-        if ( !localDir.exists() )
-        {
-            if ( !localDir.mkdir() )
-            {
-                throw new FileRetrievalException("Could not retrieve remote file: "+instr);
-            }
-        }
-
-        String connectString = _user+"@"+_remoteServer;
-        try
-        {
-            if (instr.prepScript != null)
-            {
-                //Run the prepare script
-                if (instr.args == null) instr.args = new String[0];
-                String[] cmdAndArgs = new String[instr.args.length+3];
-                cmdAndArgs[0] = _ssh;
-                cmdAndArgs[1] = connectString;
-                cmdAndArgs[2] = instr.prepScript;
-                for (int i=0; i<instr.args.length; i++)
-                {
-                    cmdAndArgs[i+3] = instr.args[i];
-                }
-                execute(cmdAndArgs);
-            }
-            //Copy the file locally
-            execute
-            (
-                new String[]
-                {
-                    _scp, connectString+":" + (getRemoteStagingDir() != null ? getRemoteStagingDir() + "/" : "") + instr.remoteStagedFile,
-                    getLocalBackupDir() + "/" + getDatedFilename(instr.remoteStagedFile)
-                }
-            );
-        }
-        finally
-        {
-            //Clean the remote staging dir
-            if (_cleanScript != null)
-            {
-                execute
-                (
-                    new String[]
-                    {
-                        _ssh, connectString, _cleanScript, instr.remoteStagedFile
-                    }
-                );
-            }
-        }
-    }
-
-    /**
-     * Sets the ssh command.
-     *
-     * @param ssh The ssh command.
-     */
-    public void setSshCommand(String ssh)
-    {
-        _ssh = ssh;
-    }
-
-    /**
-     * Returns the ssh command.
-     *
-     * @return String
-     */
-    public String getSshCommand()
-    {
-        return _ssh;
-    }
-
-    /**
-     * Sets the scp command.
-     *
-     * @param scp The scp command.
-     */
-    public void setScpCommand(String scp)
-    {
-        _scp = scp;
-    }
-
-    /**
-     * Returns the scp command.
-     *
-     * @return String
-     */
-    public String getScpCommand()
-    {
-        return _scp;
-    }
-
-    /**
-     * Sets the clean script.
-     *
-     * @param script The clean script.
-     */
-    public void setCleanScript(String script)
-    {
-        _cleanScript = script;
-    }
-
-    /**
-     * Returns the clean script.
-     *
-     * @return String
-     */
-    public String getCleanScript()
-    {
-        return _cleanScript;
-    }
-
-    /**
-     * Sets the user.
-     *
-     * @param user The user.
-     */
-    public void setUser(String user)
-    {
-        _user = user;
-    }
-
-    /**
-     * Returns the user.
-     *
-     * @return String
-     */
-    public String getUser()
-    {
-        return _user;
-    }
-
-    /**
-     * Sets the remote server.
-     *
-     * @param remote The remote server.
-     */
-    public void setRemoteServer(String remote)
-    {
-        _remoteServer = remote;
-    }
-
-    /**
-     * Returns the remote server.
-     *
-     * @return String
-     */
-    public String getRemoteServer()
-    {
-        return _remoteServer;
-    }
+package com.zitego.backup;
+
+import com.zitego.markup.xml.XmlTag;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Retrieves files using secure copy and ssh. The required properties to
+ * specify are ssh_cmd, scp_cmd, prep_script, clean_script, user, and
+ * remote_server. The meaning of each of these is as follows:<br>
+ * class - The java class to instantiate.<br>
+ * ssh_cmd - The ssh command path.<br>
+ * scp_cmd - The scp command path.<br>
+ * clean_script - The remote script that will clean out the remote staging directory.<br>
+ * user - The user to ssh and scp as.<br>
+ * remote_server - The remote server to ssh and scp to.<br>
+ * remote_staging_dir - The remote directory to retrieve files from.<br>
+ * local_backup_dir - The local directory to copy to.<br>
+ * command_timeout - The number of seconds a single ssh or scp command can run (optional).<br>
+ * instruction_timeout - The number of seconds the prep script and copy of one instruction can run (optional).<br>
+ * reuse_connection - If true, one shared (multiplexed) connection is opened per user and remote server
+ *                    and all of the ssh and scp commands are sent through it (optional).<br>
+ * control_dir - The directory to create the shared connection socket in. It is created readable by the
+ *               owner only if it does not exist and is not used if others can write to it. Defaults to
+ *               .ssh/backup in the home directory (optional).<br>
+ * control_persist - How many seconds an idle shared connection stays open if the backup dies
+ *                   before closing it. Defaults to 600 (optional).<br>
+ * delta - If true, rsync is used to transfer only the blocks that changed since the newest earlier
+ *         dated copy of the file. The whole file is copied with scp if there is no earlier copy (optional).<br>
+ * rsync_cmd - The rsync command path. Defaults to rsync (optional).<br>
+ * resume - If true, files are copied into a .part file in local_backup_dir that is kept when the copy
+ *          fails. The next attempt skips the prep script and continues from the last checkpoint if the
+ *          remote file has not changed. The clean script is not run until the copy is verified against
+ *          sha256sum of the remote file (optional).<br>
+ * local_compress - If true, the copied file is gzipped on this host instead of the remote server. delta
+ *                  is not used with it (optional).<br>
+ * keyfile - The file on this host with the key the copied file is encrypted with once it is here. delta
+ *           is not used with it (optional).<br>
+ * remote_checksum - If true, the copied file is checked against the remote staged file's name plus .sha256
+ *                   written by the prep script, or sha256sum of the remote file if there is none (optional).<br>
+ * <br>
+ * Example:<br>
+ * class=com.zitego.backup.SSHFileRetriever,\<br>
+ * ssh_cmd*=/usr/bin/ssh,\<br>
+ * scp_cmd=/usr/bin/scp,\<br>
+ * user=jglorioso,\<br>
+ * remote_server=zitego.com,\<br>
+ * clean_script*=/home/httpd/domains/penwrights.com/WEB-INF/bin/clean_backup_files.sh,\<br>
+ * remote_staging_dir=/home/httpd/domains/bak_staging,\<br>
+ * local_backup_dir=/home/jglorioso/backups<br>
+ * <br>
+ * * Remote scripts must echo "----- EOF -----" and exit with a code of 0.
+ *
+ * @author John Glorioso
+ * @version $Id: SSHFileRetriever.java,v 1.1.1.1 2008/02/20 15:12:44 jglorioso Exp $
+ */
+public class SSHFileRetriever extends FileRetriever
+{
+    /** The ssh command. */
+    protected String _ssh;
+    /** The scp command. */
+    protected String _scp;
+    /** The clean script to run. */
+    protected String _cleanScript;
+    /** The user to connect as. */
+    protected String _user;
+    /** The remote server. */
+    protected String _remoteServer;
+    /** Whether to send all commands through one shared connection. */
+    protected boolean _reuseConnection = false;
+    /** The directory to create shared connection sockets in. */
+    protected String _controlDir;
+    /** How long (in seconds) an idle shared connection stays open if it is not closed. */
+    protected int _controlPersist = 600;
+    /** The socket path of the shared connection in use or null if there is none. */
+    protected String _controlPath;
+    /** The shared connection this retriever is counted as a user of or null if there is none. */
+    protected SharedConnection _session;
+    /** Whether to only transfer the blocks that changed since the previous copy. */
+    protected boolean _delta = false;
+    /** The rsync command. */
+    protected String _rsync = "rsync";
+    /** Whether to keep partial downloads and resume them on the next attempt. */
+    protected boolean _resume = false;
+    /** The shared connections keyed by socket path. */
+    protected static final Hashtable SESSIONS = new Hashtable();
+
+    public void setProperties(String props)
+    {
+        String tokens[] = props.split(",");
+        if (tokens != null)
+        {
+            for (int i = 0; i < tokens.length; i++)
+            {
+                String token[] = tokens[i].split("=");
+                if ( token[0].equals("ssh_cmd") ) _ssh = token[1];
+                else if (token[0].equals("scp_cmd") ) _scp = token[1];
+                else if (token[0].equals("clean_script") ) _cleanScript = token[1];
+                else if (token[0].equals("user") ) _user = token[1];
+                else if (token[0].equals("remote_server") ) _remoteServer = token[1];
+                else if (token[0].equals("remote_staging_dir") ) setRemoteStagingDir(token[1]);
+                else if (token[0].equals("local_backup_dir") ) setLocalBackupDir(token[1]);
+                else if (token[0].equals("reuse_connection") ) _reuseConnection = "true".equals(token[1]);
+                else if (token[0].equals("control_dir") ) _controlDir = token[1];
+                else if (token[0].equals("control_persist") ) _controlPersist = Integer.parseInt(token[1]);
+                else if (token[0].equals("delta") ) _delta = "true".equals(token[1]);
+                else if (token[0].equals("rsync_cmd") ) _rsync = token[1];
+                else if (token[0].equals("resume") ) _resume = "true".equals(token[1]);
+                else setProperty(token[0], token[1]);
+            }
+        }
+        log("ssh_cmd="+_ssh);
+        log("scp_cmd="+_scp);
+        log("clean_script="+_cleanScript);
+        log("user="+_user);
+        log("remoteServer="+_remoteServer);
+        log("remote_staging_dir="+_remoteStagingDir);
+        log("local_backup_dir="+_localBackupDir);
+        log("reuse_connection="+_reuseConnection);
+        log("delta="+_delta);
+        log("resume="+_resume);
+    }
+
+    public void setPropertiesFromXml(XmlTag tag)
+    {
+        String val = tag.getChildValue("ssh_cmd");
+        if (val != null) _ssh = val;
+        val = tag.getChildValue("scp_cmd");
+        if (val != null) _scp = val;
+        val = tag.getChildValue("clean_script");
+        if (val != null) _cleanScript = val;
+        val = tag.getChildValue("user");
+        if (val != null) _user = val;
+        val = tag.getChildValue("remote_server");
+        if (val != null) _remoteServer = val;
+        val = tag.getChildValue("remote_staging_dir");
+        if (val != null) _remoteStagingDir = val;
+        val = tag.getChildValue("local_backup_dir");
+        if (val != null) _localBackupDir = val;
+        val = tag.getChildValue("reuse_connection");
+        if (val != null) _reuseConnection = "true".equals(val);
+        val = tag.getChildValue("control_dir");
+        if (val != null) _controlDir = val;
+        val = tag.getChildValue("control_persist");
+        if (val != null) _controlPersist = Integer.parseInt(val);
+        val = tag.getChildValue("delta");
+        if (val != null) _delta = "true".equals(val);
+        val = tag.getChildValue("rsync_cmd");
+        if (val != null) _rsync = val;
+        val = tag.getChildValue("resume");
+        if (val != null) _resume = "true".equals(val);
+        setCommonPropertiesFromXml(tag);
+        log("ssh_cmd="+_ssh);
+        log("scp_cmd="+_scp);
+        log("clean_script="+_cleanScript);
+        log("user="+_user);
+        log("remoteServer="+_remoteServer);
+        log("remote_staging_dir="+_remoteStagingDir);
+        log("local_backup_dir="+_localBackupDir);
+        log("reuse_connection="+_reuseConnection);
+        log("delta="+_delta);
+        log("resume="+_resume);
+    }
+
+    public void retrieveFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        try
+        {
+            prepareFile(instr);
+            copyFile(instr);
+        }
+        finally
+        {
+            cleanFile(instr);
+        }
+    }
+
+    /**
+     * Runs the instruction's prep script on the remote server unless planChanges
+     * finds that it does not need to be run.
+     *
+     * @param instr The instruction.
+     * @throws FileRetrievalException
+     */
+    public void prepareFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        log(instr.remoteStagedFile);
+        startInstruction(instr);
+        if ( planChanges(instr) ) return;
+        if ( _resume && isStaged(instr) && canResume(instr) )
+        {
+            log("Resuming the download of "+instr.remoteStagedFile+", skipping the prep script");
+            return;
+        }
+        if (instr.prepScript != null)
+        {
+            //Run the prepare script
+            execute( getSshCommand(getPrepCommand(instr)), true, getDeadline(instr) );
+        }
+    }
+
+    /**
+     * Copies the instruction's staged file from the remote server to the local
+     * backup directory. If local_compress is on or there is a keyfile, then the copy
+     * is gzipped or encrypted once it is here. A database dump is run on the remote server and streamed over ssh
+     * straight into the local backup directory. An archive instruction's source
+     * directory is on this host, so it is archived here.
+     *
+     * @param instr The instruction.
+     * @throws FileRetrievalException
+     */
+    public void copyFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        if ( copyUnstaged(instr) ) return;
+        File local = new File( createLocalBackupDir(), getDatedFilename(instr.remoteStagedFile) );
+
+        if ( _delta && (_localCompress || _key != null) )
+        {
+            log("Delta copies are not used with local_compress or keyfile, copying the whole file");
+        }
+        else if (_delta)
+        {
+            String basis = findPreviousDatedFilename(instr.remoteStagedFile);
+            if (basis != null)
+            {
+                deltaCopy(instr, basis, local);
+                fileRetrieved(instr, local);
+                return;
+            }
+            log("No previous copy of "+instr.remoteStagedFile+", copying the whole file");
+        }
+
+        if (_resume)
+        {
+            fileRetrieved( instr, local, resumableCopy(instr, local) );
+            return;
+        }
+
+        //Copy the file locally under the temporary name so a copy cut short is never taken for the dated file
+        File tmp = AtomicFileOutputStream.getTempFile(local);
+        beginTransfer();
+        try
+        {
+            execute
+            (
+                getScpCommand( getRemoteStagedPath(instr), tmp.getPath() ),
+                false, getDeadline(instr)
+            );
+            commitCopy(tmp, local);
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        finally
+        {
+            tmp.delete();
+            endTransfer();
+        }
+        fileRetrieved(instr, local);
+    }
+
+    /**
+     * Copies the instruction's staged file into a part file that is kept if the copy
+     * fails, so the next attempt continues from the last checkpoint instead of from
+     * the start. The file is read with "tail -c +offset" over ssh. Once all of the
+     * bytes are received, the SHA-256 of the part file is checked against sha256sum
+     * of the remote file before the part file is renamed to the local file.
+     *
+     * @param instr The instruction.
+     * @param local The local file.
+     * @return String The SHA-256 of the file.
+     * @throws FileRetrievalException
+     */
+    protected String resumableCopy(BackupInstruction instr, File local) throws FileRetrievalException
+    {
+        String path = getRemoteStagedPath(instr);
+        try
+        {
+            PartFile part = getPartFile(instr);
+            long[] stat = getRemoteStat(path);
+            if ( !part.matches(path, stat[0], stat[1]) ) part.start(path, stat[0], stat[1]);
+
+            OutputStream out = part.openOutput();
+            long offset = part.getOffset();
+            beginTransfer();
+            if (offset > 0) log("Resuming "+path+" at byte "+offset+" of "+stat[0]);
+            String[] cmd = getSshCommand( new String[] { "tail -c +"+(offset+1)+" "+quote(path) } );
+            log( toCommandString(cmd)+" >> "+part.getFile() );
+            ProcessResult result = null;
+            try
+            {
+                result = _processRunner.run( cmd, throttle(out, true), getDeadline(instr) );
+            }
+            finally
+            {
+                out.close();
+                endTransfer();
+            }
+            if ( !result.isSuccess(false) )
+            {
+                throw new FileRetrievalException
+                (
+                    "Download of "+path+" stopped at byte "+part.getOffset()+" of "+stat[0]+": "+result.getFailureReason(false)
+                );
+            }
+            if (part.getOffset() != stat[0])
+            {
+                throw new FileRetrievalException("Received "+part.getOffset()+" of "+stat[0]+" bytes of "+path);
+            }
+
+            String sum = getRemoteSha256(instr);
+            if ( !sum.equals(part.sha256()) )
+            {
+                part.reset();
+                throw new FileRetrievalException("SHA-256 of "+local+" does not match "+path);
+            }
+            part.finish(local);
+            log("Verified "+local+" ("+stat[0]+" bytes, "+(stat[0]-offset)+" transferred)");
+            return sum;
+        }
+        catch (FileRetrievalException fre)
+        {
+            throw fre;
+        }
+        catch (Exception e)
+        {
+            throw new FileRetrievalException(e);
+        }
+    }
+
+    /**
+     * Returns whether there is a partial download of the instruction's staged file
+     * and the remote file has not changed since. If the remote file has changed or is
+     * gone, then the partial download is removed.
+     *
+     * @param instr The instruction.
+     * @return boolean
+     * @throws FileRetrievalException
+     */
+    protected boolean canResume(BackupInstruction instr) throws FileRetrievalException
+    {
+        PartFile part = getPartFile(instr);
+        if ( !part.exists() ) return false;
+        String path = getRemoteStagedPath(instr);
+        try
+        {
+            long[] stat = getRemoteStat(path);
+            if ( part.matches(path, stat[0], stat[1]) ) return true;
+            log("Remote file "+path+" changed since the partial download, starting over");
+        }
+        catch (FileRetrievalException fre)
+        {
+            log("Remote file "+path+" is not available, starting over: "+fre.getMessage());
+        }
+        part.delete();
+        return false;
+    }
+
+    /**
+     * Returns the partial download of the instruction's staged file.
+     *
+     * @param instr The instruction.
+     * @return PartFile
+     * @throws FileRetrievalException
+     */
+    protected PartFile getPartFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        try
+        {
+            return new PartFile( createLocalBackupDir(), instr.remoteStagedFile );
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+    }
+
+    /**
+     * Returns the size and modification time (in seconds) of the remote file.
+     *
+     * @param path The remote file path.
+     * @return long[]
+     * @throws FileRetrievalException
+     */
+    protected long[] getRemoteStat(String path) throws FileRetrievalException
+    {
+        ProcessResult result = execute
+        (
+            getSshCommand( new String[] { "stat -c '%s %Y' "+quote(path) } ), false, getCommandDeadline()
+        );
+        String[] token = result.getStdout().trim().split("\\s+");
+        try
+        {
+            return new long[] { Long.parseLong(token[0]), Long.parseLong(token[1]) };
+        }
+        catch (RuntimeException re)
+        {
+            throw new FileRetrievalException("Could not stat "+path+": "+result.getStdout());
+        }
+    }
+
+    /**
+     * Returns the SHA-256 of the instruction's remote staged file as a hex string.
+     *
+     * @param instr The instruction.
+     * @return String
+     * @throws FileRetrievalException
+     */
+    protected String getRemoteSha256(BackupInstruction instr) throws FileRetrievalException
+    {
+        String path = getRemoteStagedPath(instr);
+        ProcessResult result = execute
+        (
+            getSshCommand( new String[] { "sha256sum "+quote(path) } ), false, getDeadline(instr)
+        );
+        String sum = parseSha256( result.getStdout() );
+        if (sum == null) throw new FileRetrievalException("Could not get the SHA-256 of "+path+": "+result.getStdout());
+        return sum;
+    }
+
+    /**
+     * Returns the SHA-256 the prep script wrote next to the instruction's remote
+     * staged file or, if there is none, runs sha256sum on the remote file.
+     *
+     * @param instr The instruction.
+     * @return String
+     * @throws FileRetrievalException
+     */
+    protected String getRemoteChecksum(BackupInstruction instr) throws FileRetrievalException
+    {
+        String path = getRemoteStagedPath(instr);
+        ProcessResult result = execute
+        (
+            getSshCommand( new String[] { "cat "+quote(path+".sha256")+" 2>/dev/null || sha256sum "+quote(path) } ), false, getDeadline(instr)
+        );
+        String sum = parseSha256( result.getStdout() );
+        if (sum == null) throw new FileRetrievalException("Could not get the SHA-256 of "+path+": "+result.getStdout());
+        return sum;
+    }
+
+    /**
+     * Copies the instruction's staged file by sending only the blocks that changed
+     * since the basis file. The basis is copied to the temporary file for the local
+     * file and rsync updates it in place. rsync sends the block checksums of the basis
+     * to the remote side, receives only the blocks that do not match along with
+     * instructions for rebuilding the file, and checks the checksum of the whole file
+     * when it is done. The temporary file is renamed to the local file once it is
+     * complete. The bytes that matched the basis are added to RunMetrics.
+     *
+     * @param instr The instruction.
+     * @param basis The dated file name of the previous copy.
+     * @param local The local file.
+     * @return long The number of bytes that did not need to be transferred.
+     * @throws FileRetrievalException
+     */
+    protected long deltaCopy(BackupInstruction instr, String basis, File local) throws FileRetrievalException
+    {
+        File tmp = AtomicFileOutputStream.getTempFile(local);
+        beginTransfer();
+        try
+        {
+            copyBasis(basis, tmp);
+            ProcessResult result = execute
+            (
+                getRsyncCommand( getRemoteStagedPath(instr), tmp.getPath() ), false, getDeadline(instr)
+            );
+            long literal = parseStat(result.getStdout(), "Literal data");
+            long matched = parseStat(result.getStdout(), "Matched data");
+            log
+            (
+                "Delta copy of "+local.getName()+" against "+basis+": transferred "+literal+
+                " bytes, reused "+matched+" bytes"
+            );
+            commitCopy(tmp, local);
+            RunMetrics.getInstance().addDeltaSaved( _jobName, getRemoteServer(), instr.remoteStagedFile, matched );
+            return matched;
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        finally
+        {
+            tmp.delete();
+            endTransfer();
+        }
+    }
+
+    /**
+     * Syncs a copy that was written to the temporary file of the local file and
+     * renames it to the local file.
+     *
+     * @param tmp The temporary file.
+     * @param local The local file.
+     * @throws IOException if the copy cannot be synced or renamed.
+     */
+    protected void commitCopy(File tmp, File local) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try
+        {
+            raf.getFD().sync();
+        }
+        finally
+        {
+            raf.close();
+        }
+        if ( !tmp.renameTo(local) )
+        {
+            local.delete();
+            if ( !tmp.renameTo(local) ) throw new IOException("Could not rename "+tmp+" to "+local);
+        }
+    }
+
+    /**
+     * Copies the basis file to the file that rsync will update. The basis is read
+     * from the local backup directory or from its dedup store.
+     *
+     * @param basis The dated file name of the basis.
+     * @param to The file to copy to.
+     * @throws IOException
+     */
+    protected void copyBasis(String basis, File to) throws IOException
+    {
+        File from = new File(getLocalBackupDir(), basis);
+        FileOutputStream out = new FileOutputStream(to);
+        try
+        {
+            if ( from.exists() )
+            {
+                FileInputStream in = new FileInputStream(from);
+                try
+                {
+                    FileChannel src = in.getChannel();
+                    FileChannel dest = out.getChannel();
+                    long pos = 0;
+                    long size = src.size();
+                    while (pos < size)
+                    {
+                        pos += src.transferTo(pos, size-pos, dest);
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            else
+            {
+                DedupStore.getInstance( getLocalBackupDir() ).restore(basis, out);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the rsync command line to update the local file from the remote file.
+     * If the transfer is throttled, then rsync is limited to its share of the bandwidth.
+     *
+     * @param remotePath The remote file path.
+     * @param localPath The local file path.
+     * @return String[]
+     */
+    protected String[] getRsyncCommand(String remotePath, String localPath)
+    {
+        Vector shell = new Vector();
+        shell.add(_ssh);
+        addConnectionOptions(shell);
+        StringBuffer rsh = new StringBuffer();
+        for (int i=0; i<shell.size(); i++)
+        {
+            rsh.append( (i>0?" ":"") ).append( shell.get(i) );
+        }
+        Vector tmp = new Vector();
+        tmp.add(_rsync);
+        tmp.add("-e");
+        tmp.add( rsh.toString() );
+        tmp.add("--inplace");
+        tmp.add("--no-whole-file");
+        tmp.add("--stats");
+        long share = getTransferShare();
+        if (share > 0) tmp.add( "--bwlimit="+Math.max(1, share/1024) );
+        tmp.add( getConnectString()+":"+remotePath );
+        tmp.add(localPath);
+        String[] ret = new String[tmp.size()];
+        tmp.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Returns the number of bytes for a statistic from the output of rsync --stats or
+     * -1 if it is not there.
+     *
+     * @param output The rsync output.
+     * @param stat The statistic name.
+     * @return long
+     */
+    protected static long parseStat(String output, String stat)
+    {
+        Matcher m = Pattern.compile( Pattern.quote(stat)+": ([\\d,.]+)" ).matcher(output);
+        if ( !m.find() ) return -1;
+        try
+        {
+            return Long.parseLong( m.group(1).replaceAll("[,.]", "") );
+        }
+        catch (NumberFormatException nfe)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Runs the clean script on the remote server to remove the instruction's
+     * staged file.
+     *
+     * @param instr The instruction.
+     * @throws FileRetrievalException
+     */
+    public void cleanFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        //Database dumps, archives, and unchanged or incremental backups are not staged
+        if ( !isStaged(instr) ) return;
+        if ( _resume && getPartFile(instr).exists() )
+        {
+            log("Keeping the remote staged file "+instr.remoteStagedFile+" until the download is verified");
+            return;
+        }
+
+        //Clean the remote staging dir
+        if (_cleanScript != null)
+        {
+            execute
+            (
+                getSshCommand( new String[] { _cleanScript, instr.remoteStagedFile } ),
+                true, getCommandDeadline()
+            );
+        }
+    }
+
+    /**
+     * Restores the stored file into the directory on the remote server by sending it
+     * to ssh's standard in. A tar is extracted by tar on the remote server as it
+     * arrives, so the file is sent compressed and decompressed there. Any other .gz
+     * file is decompressed into the directory without the .gz and any other file is
+     * written as is. The paths are given to tar as they are, so they have to match the
+     * names in the archive.
+     *
+     * @param restorer The restorer with the paths to restore.
+     * @param name The dated file name.
+     * @param in The stored file.
+     * @param dir The directory on the remote server.
+     * @throws FileRetrievalException if the file cannot be restored.
+     */
+    public void restoreFile(BackupRestorer restorer, String name, InputStream in, String dir) throws FileRetrievalException
+    {
+        StringBuffer cmd = new StringBuffer()
+            .append("mkdir -p ").append( quote(dir) ).append(" && ");
+        if ( BackupRestorer.isTar(name) )
+        {
+            cmd.append("tar -x").append(BackupRestorer.isGzip(name) ? "z" : "").append("f - -C ").append( quote(dir) );
+            String[] paths = restorer.getPaths();
+            for (int i=0; paths != null && i<paths.length; i++)
+            {
+                cmd.append(" ").append( quote(paths[i]) );
+            }
+        }
+        else
+        {
+            cmd.append(BackupRestorer.isGzip(name) ? "gunzip -c" : "cat").append(" > ")
+                .append( quote(dir+"/"+BackupRestorer.getRestoredName(name)) );
+        }
+        execute( getSshCommand(new String[] { cmd.toString() }), in, getCommandDeadline() );
+    }
+
+    /**
+     * Deletes restored files and directories on the remote server. The paths are sent
+     * to xargs over ssh so any number of them can be deleted with one command.
+     *
+     * @param restorer The restorer.
+     * @param paths The paths relative to the directory.
+     * @param dir The directory on the remote server.
+     * @throws FileRetrievalException if the files cannot be deleted.
+     */
+    public void removeRestored(BackupRestorer restorer, String[] paths, String dir) throws FileRetrievalException
+    {
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        try
+        {
+            for (int i=0; i<paths.length; i++)
+            {
+                list.write( paths[i].getBytes("UTF-8") );
+                list.write(0);
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new FileRetrievalException(ioe);
+        }
+        String cmd = "cd "+quote(dir)+" && xargs -0 rm -rf --";
+        execute( getSshCommand(new String[] { cmd }), new ByteArrayInputStream(list.toByteArray()), getCommandDeadline() );
+    }
+
+    /**
+     * Returns the ssh command line to run a command on the remote server, which has
+     * the change_dir of the instruction. The change_dir of an archive instruction is
+     * on this host, so its command is run here.
+     *
+     * @param instr The instruction.
+     * @param args The command and arguments.
+     * @return String[]
+     */
+    protected String[] getChangeCommand(BackupInstruction instr, String[] args)
+    {
+        if ( instr.isArchive() ) return args;
+        StringBuffer cmd = new StringBuffer();
+        for (int i=0; i<args.length; i++)
+        {
+            if (i > 0) cmd.append(" ");
+            cmd.append( quote(args[i]) );
+        }
+        return getSshCommand( new String[] { cmd.toString() } );
+    }
+
+    /**
+     * Returns the string quoted for the remote shell.
+     *
+     * @param s The string.
+     * @return String
+     */
+    protected static String quote(String s)
+    {
+        return "'"+s.replace("'", "'\\''")+"'";
+    }
+
+    /**
+     * Returns the user@remote_server string to connect with.
+     *
+     * @return String
+     */
+    protected String getConnectString()
+    {
+        return _user+"@"+_remoteServer;
+    }
+
+    /**
+     * Returns the instruction's prep script and arguments.
+     *
+     * @param instr The instruction.
+     * @return String[]
+     */
+    protected String[] getPrepCommand(BackupInstruction instr)
+    {
+        if (instr.args == null) instr.args = new String[0];
+        String[] ret = new String[instr.args.length+1];
+        ret[0] = instr.prepScript;
+        for (int i=0; i<instr.args.length; i++)
+        {
+            ret[i+1] = instr.args[i];
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the ssh command line to run the instruction's dump command on the
+     * remote server.
+     *
+     * @param instr The instruction.
+     * @param part The table or schema or null for none.
+     * @return String[]
+     */
+    protected String[] getDumpCommand(BackupInstruction instr, String part)
+    {
+        return getSshCommand( super.getDumpCommand(instr, part) );
+    }
+
+    /**
+     * Returns the path of the instruction's staged file on the remote server.
+     *
+     * @param instr The instruction.
+     * @return String
+     */
+    protected String getRemoteStagedPath(BackupInstruction instr)
+    {
+        return (getRemoteStagingDir() != null ? getRemoteStagingDir() + "/" : "") + instr.remoteStagedFile;
+    }
+
+    /**
+     * Returns the ssh command line to run the remote command and arguments. If
+     * there is a shared connection, then the command is sent through it.
+     *
+     * @param remote The remote command and arguments.
+     * @return String[]
+     */
+    protected String[] getSshCommand(String[] remote)
+    {
+        Vector tmp = new Vector();
+        tmp.add(_ssh);
+        addConnectionOptions(tmp);
+        tmp.add( getConnectString() );
+        for (int i=0; i<remote.length; i++)
+        {
+            tmp.add(remote[i]);
+        }
+        String[] ret = new String[tmp.size()];
+        tmp.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Returns the scp command line to copy the remote file to the local path. If
+     * there is a shared connection, then the copy is sent through it. If the transfer
+     * is throttled, then scp is limited to its share of the bandwidth.
+     *
+     * @param remotePath The remote file path.
+     * @param localPath The local file path.
+     * @return String[]
+     */
+    protected String[] getScpCommand(String remotePath, String localPath)
+    {
+        Vector tmp = new Vector();
+        tmp.add(_scp);
+        addConnectionOptions(tmp);
+        long share = getTransferShare();
+        //scp takes the limit in Kbit/s
+        if (share > 0)
+        {
+            tmp.add("-l");
+            tmp.add( String.valueOf(Math.max(1, share*8/1000)) );
+        }
+        tmp.add( getConnectString()+":"+remotePath );
+        tmp.add(localPath);
+        String[] ret = new String[tmp.size()];
+        tmp.copyInto(ret);
+        return ret;
+    }
+
+    /**
+     * Adds the options to send a command through the shared connection if there
+     * is one.
+     *
+     * @param cmd The command line being built.
+     */
+    protected void addConnectionOptions(Vector cmd)
+    {
+        if (_controlPath != null)
+        {
+            cmd.add("-o");
+            cmd.add("ControlMaster=no");
+            cmd.add("-o");
+            cmd.add("ControlPath="+_controlPath);
+        }
+    }
+
+    /**
+     * Starts the shared master connection to the remote server if reuse_connection
+     * is true. One master connection is shared by every retriever that connects
+     * to the same user and remote server. If the master connection cannot be
+     * started, then a new connection is made for each command, and the other
+     * retrievers that begin a session with the server before every one of them has
+     * ended its session do the same without trying to start it again. Only
+     * retrievers of the same server wait on each other while the master connection
+     * is started or stopped.
+     *
+     * @throws FileRetrievalException
+     */
+    public void beginSession() throws FileRetrievalException
+    {
+        if (!_reuseConnection || _session != null) return;
+
+        String dir = getControlDir();
+        try
+        {
+            createControlDir(dir);
+        }
+        catch (IOException ioe)
+        {
+            log("*** WARNING *** "+ioe.getMessage()+", using a connection per command");
+            return;
+        }
+        String path = dir + "/backup-" + getConnectString();
+        SharedConnection conn = null;
+        synchronized (SESSIONS)
+        {
+            //Entries are never removed, so a connection being stopped is started again by the same entry
+            conn = (SharedConnection)SESSIONS.get(path);
+            if (conn == null)
+            {
+                conn = new SharedConnection();
+                SESSIONS.put(path, conn);
+            }
+            conn._users++;
+        }
+        _session = conn;
+        synchronized (conn)
+        {
+            if (!conn._started && !conn._failed)
+            {
+                try
+                {
+                    execute
+                    (
+                        new String[]
+                        {
+                            _ssh, "-M", "-N", "-f", "-o", "ControlPath="+path,
+                            "-o", "ControlPersist="+_controlPersist, getConnectString()
+                        },
+                        false, getCommandDeadline()
+                    );
+                    conn._started = true;
+                }
+                catch (FileRetrievalException fre)
+                {
+                    conn._failed = true;
+                }
+            }
+            if (conn._failed)
+            {
+                log("*** WARNING *** Could not start shared connection to "+getConnectString()+", using a connection per command");
+                return;
+            }
+        }
+        _controlPath = path;
+    }
+
+    /**
+     * Stops using the shared master connection. The master connection is closed
+     * when the last retriever using it ends its session, which also lets the next
+     * session try again if it could not be started.
+     */
+    public void endSession()
+    {
+        if (_session == null) return;
+
+        SharedConnection conn = _session;
+        String path = (_controlPath != null ? _controlPath : getControlDir() + "/backup-" + getConnectString());
+        _session = null;
+        _controlPath = null;
+        synchronized (conn)
+        {
+            synchronized (SESSIONS)
+            {
+                if (--conn._users > 0) return;
+            }
+            conn._failed = false;
+            if (!conn._started) return;
+            conn._started = false;
+            try
+            {
+                execute
+                (
+                    new String[] { _ssh, "-o", "ControlPath="+path, "-O", "exit", getConnectString() },
+                    false, getCommandDeadline()
+                );
+            }
+            catch (FileRetrievalException fre)
+            {
+                log("*** WARNING *** Could not stop shared connection to "+getConnectString()+": "+fre.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the directory the shared connection sockets are created in.
+     *
+     * @return String
+     */
+    protected String getControlDir()
+    {
+        if (_controlDir != null) return _controlDir;
+        return System.getProperty("user.home") + "/.ssh/backup";
+    }
+
+    /**
+     * Creates the directory for the shared connection sockets readable by the
+     * owner only if it does not exist. Another user who can write to the directory
+     * could create the socket first, so such a directory is not used.
+     *
+     * @param dir The directory.
+     * @throws IOException if the directory cannot be created or others can write to it.
+     */
+    protected static void createControlDir(String dir) throws IOException
+    {
+        Path path = new File(dir).toPath();
+        Set perms = PosixFilePermissions.fromString("rwx------");
+        if ( !Files.isDirectory(path) ) Files.createDirectories( path, PosixFilePermissions.asFileAttribute(perms) );
+        Set actual = Files.getPosixFilePermissions(path);
+        if ( actual.contains(PosixFilePermission.GROUP_WRITE) || actual.contains(PosixFilePermission.OTHERS_WRITE) )
+        {
+            throw new IOException("The control_dir "+dir+" can be written to by other users");
+        }
+    }
+
+    /**
+     * Sets the ssh command.
+     *
+     * @param ssh The ssh command.
+     */
+    public void setSshCommand(String ssh)
+    {
+        _ssh = ssh;
+    }
+
+    /**
+     * Returns the ssh command.
+     *
+     * @return String
+     */
+    public String getSshCommand()
+    {
+        return _ssh;
+    }
+
+    /**
+     * Sets the scp command.
+     *
+     * @param scp The scp command.
+     */
+    public void setScpCommand(String scp)
+    {
+        _scp = scp;
+    }
+
+    /**
+     * Returns the scp command.
+     *
+     * @return String
+     */
+    public String getScpCommand()
+    {
+        return _scp;
+    }
+
+    /**
+     * Sets the clean script.
+     *
+     * @param script The clean script.
+     */
+    public void setCleanScript(String script)
+    {
+        _cleanScript = script;
+    }
+
+    /**
+     * Returns the clean script.
+     *
+     * @return String
+     */
+    public String getCleanScript()
+    {
+        return _cleanScript;
+    }
+
+    /**
+     * Sets the user.
+     *
+     * @param user The user.
+     */
+    public void setUser(String user)
+    {
+        _user = user;
+    }
+
+    /**
+     * Returns the user.
+     *
+     * @return String
+     */
+    public String getUser()
+    {
+        return _user;
+    }
+
+    /**
+     * Sets the remote server.
+     *
+     * @param remote The remote server.
+     */
+    public void setRemoteServer(String remote)
+    {
+        _remoteServer = remote;
+    }
+
+    /**
+     * Returns the remote server.
+     *
+     * @return String
+     */
+    public String getRemoteServer()
+    {
+        return _remoteServer;
+    }
+
+    /**
+     * A shared master connection. Its users are counted while holding the SESSIONS
+     * lock and it is started and stopped while holding its own lock.
+     */
+    protected static class SharedConnection
+    {
+        /** The number of retrievers that began a session with it. */
+        protected int _users = 0;
+        /** Whether the master connection is running. */
+        protected boolean _started = false;
+        /** Whether the master connection could not be started. */
+        protected boolean _failed = false;
+    }
 }
\ No newline at end of file
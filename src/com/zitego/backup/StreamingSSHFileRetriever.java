@@ -0,0 +1,83 @@
+package com.zitego.backup;
+
+import java.io.File;
+
+/**
+ * Retrieves files over ssh without staging them on the remote server. The
+ * instruction's prep script is run remotely and must write the backup file to
+ * standard out (for example "tar -czf - *"), which is written straight into the
+ * dated local file. Nothing is written to the remote staging directory, so there is
+ * no scp and no clean script. The file is written to a hidden temporary file and
+ * renamed once the prep script exits successfully.<br>
+ * <br>
+ * The properties are the same as SSHFileRetriever except that scp_cmd, clean_script,
+ * remote_staging_dir, and remote_checksum are not used. The remote_staged_file of each
+ * instruction is only used to name the dated local file. The checksums of the file are
+ * computed as it is written, and a stream that is cut short fails on the exit code of
+ * the prep script.<br>
+ * <br>
+ * Example:<br>
+ * instruction_0=remote_staged_file=photos.tgz,\<br>
+ * prep_script=/home/httpd/domains/penwrights.com/WEB-INF/bin/stream_backup_files.sh,\<br>
+ * arg=/home/httpd/domains/penwrights.com/images/photos<br>
+ * <br>
+ * file_retriever=class=com.zitego.backup.StreamingSSHFileRetriever,\<br>
+ * ssh_cmd=/usr/bin/ssh,\<br>
+ * user=jglorioso,\<br>
+ * remote_server=zitego.com,\<br>
+ * local_backup_dir=/home/jglorioso/backups<br>
+ * <br>
+ * * Prep scripts must write only the file to standard out and exit with a code of 0.
+ *
+ * @see SSHFileRetriever
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class StreamingSSHFileRetriever extends SSHFileRetriever
+{
+    public void retrieveFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        prepareFile(instr);
+        copyFile(instr);
+    }
+
+    /**
+     * Starts the instruction and checks its changes. The prep script is not run until
+     * the file is copied.
+     *
+     * @param instr The instruction.
+     * @throws FileRetrievalException if the changes cannot be checked.
+     */
+    public void prepareFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        log(instr.remoteStagedFile);
+        startInstruction(instr);
+        planChanges(instr);
+    }
+
+    /**
+     * Runs the prep script on the remote server and writes its output to the dated
+     * local file. Database dump and archive instructions are written the same
+     * way as with SSHFileRetriever.
+     *
+     * @param instr The instruction.
+     * @throws FileRetrievalException
+     */
+    public void copyFile(BackupInstruction instr) throws FileRetrievalException
+    {
+        if ( copyUnstaged(instr) ) return;
+        if (instr.prepScript == null)
+        {
+            throw new FileRetrievalException("A prep_script that writes the file to standard out is required: "+instr);
+        }
+        File local = new File( createLocalBackupDir(), getDatedFilename(instr.remoteStagedFile) );
+        streamToFile( instr, getSshCommand(getPrepCommand(instr)), local, getDeadline(instr) );
+    }
+
+    /**
+     * There is nothing to clean since nothing is staged.
+     *
+     * @param instr The instruction.
+     */
+    public void cleanFile(BackupInstruction instr) { }
+}
\ No newline at end of file
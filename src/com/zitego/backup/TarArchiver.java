@@ -0,0 +1,864 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes the contents of a directory on this host as a POSIX tar stream, the way
+ * prep_backup_files.sh does with tar, without running tar. Entries are written in a
+ * fixed order: each directory's entries are sorted by name and a directory is followed
+ * by everything in it. The names are relative to the directory, so the archive
+ * extracts the same as one made by tar in the directory. Names, link targets, sizes,
+ * and ids that do not fit in a ustar header are written in a PAX extended header,
+ * which GNU tar and TarExtractor read. The same tree always gives the same bytes.<br>
+ * <br>
+ * A pool of threads reads ahead of the writer. For each directory being written, the
+ * next READ_AHEAD entries per thread are looked up at the same time, subdirectories
+ * are listed, and regular files of up to SMALL_FILE bytes are read into memory while
+ * the entries before them are written. Larger files are read by the writer as they
+ * are written. A limit on the bytes read ahead keeps memory use bounded no matter how
+ * large the tree is; only the sorted names of the directories being written are held.
+ * <br><br>
+ * Hard links are written as separate copies of the file. Device files, fifos, and
+ * sockets are skipped. A file that is removed before it is written is skipped with a
+ * warning and a file that shrinks as it is written is padded with zeros, as tar does.
+ * <br><br>
+ * A selection limits the archive to some entries, as for an incremental backup. A
+ * selected directory is written without what is in it and only the directories with
+ * selected entries below them are listed.
+ *
+ * @see FileRetriever#archiveToFile(BackupInstruction, File)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class TarArchiver
+{
+    /** The size of a tar block. */
+    public static final int BLOCK_SIZE = 512;
+    /** The size the archive is padded to, which is tar's default of 20 blocks. */
+    public static final int RECORD_SIZE = 20*BLOCK_SIZE;
+    /** The largest file that is read ahead instead of as it is written. */
+    public static final int SMALL_FILE = 1024*1024;
+    /** The number of entries of a directory that are looked up ahead per thread. */
+    public static final int READ_AHEAD = 8;
+    /** The most bytes of small files that can be read ahead. */
+    protected static final int MAX_PENDING = 64*1024*1024;
+    /** The size of the buffer large files are copied through. */
+    protected static final int BUFFER_SIZE = 256*1024;
+    /** The largest number that fits in a 12 byte field. */
+    protected static final long MAX_SIZE = 077777777777L;
+    /** The largest number that fits in an 8 byte field. */
+    protected static final long MAX_ID = 07777777L;
+    /** The attributes read for each entry. */
+    protected static final String ATTRIBUTES = "unix:mode,uid,gid,size,lastModifiedTime,isDirectory,isRegularFile,isSymbolicLink";
+
+    /** The logger. */
+    protected Logger _logger;
+    /** The directory to archive. */
+    protected File _dir;
+    /** The number of threads that read ahead. */
+    protected int _threads;
+    /** The time (in milliseconds) the archive must be written by or 0 for none. */
+    protected long _deadline = 0;
+    /** Reads ahead of the writer. */
+    protected ExecutorService _pool;
+    /** The bytes of small files that can still be read ahead. */
+    protected Semaphore _pending = new Semaphore(MAX_PENDING);
+    /** User names keyed by uid. */
+    protected Hashtable _users = new Hashtable();
+    /** Group names keyed by gid. */
+    protected Hashtable _groups = new Hashtable();
+    /** The names of the entries to write or null for every entry. */
+    protected Hashtable _selected;
+    /** The directories with selected entries below them. */
+    protected Hashtable _parents;
+    /** The stream being written to. */
+    protected OutputStream _out;
+    /** The number of entries written. */
+    protected long _entries = 0;
+    /** The number of bytes of file data written. */
+    protected long _bytes = 0;
+    /** The number of tar bytes written. */
+    protected long _written = 0;
+
+    /**
+     * Creates a new archiver.
+     *
+     * @param Logger The logger.
+     * @param File The directory to archive.
+     * @param int The number of threads that read ahead or 0 or less for one per core.
+     */
+    public TarArchiver(Logger logger, File dir, int threads)
+    {
+        _logger = logger;
+        _dir = dir;
+        _threads = (threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sets the time the archive must be written by.
+     *
+     * @param long The time (in milliseconds) or 0 for none.
+     */
+    public void setDeadline(long deadline)
+    {
+        _deadline = deadline;
+    }
+
+    /**
+     * Limits the archive to the entries with the names.
+     *
+     * @param String[] The names relative to the directory or null for every entry.
+     */
+    public void setSelection(String[] names)
+    {
+        if (names == null)
+        {
+            _selected = null;
+            _parents = null;
+            return;
+        }
+        _selected = new Hashtable();
+        _parents = new Hashtable();
+        for (int i=0; i<names.length; i++)
+        {
+            _selected.put(names[i], names[i]);
+            for (int j=names[i].lastIndexOf('/'); j > 0; j=names[i].lastIndexOf('/', j-1))
+            {
+                String parent = names[i].substring(0, j);
+                if (_parents.put(parent, parent) != null) break;
+            }
+        }
+    }
+
+    /**
+     * Writes the archive to the stream and returns the number of bytes written. The
+     * stream is not closed.
+     *
+     * @param OutputStream The stream.
+     * @return long
+     * @throws IOException if the directory cannot be read or the stream cannot be written.
+     */
+    public long write(OutputStream out) throws IOException
+    {
+        if ( !_dir.isDirectory() ) throw new IOException(_dir+" is not a directory");
+        _out = out;
+        _pool = Executors.newFixedThreadPool(_threads);
+        try
+        {
+            LinkedList stack = new LinkedList();
+            stack.addLast( new Frame("", list(_dir)) );
+            while (stack.size() > 0)
+            {
+                Frame frame = (Frame)stack.getLast();
+                Entry entry = frame.next();
+                if (entry == null)
+                {
+                    stack.removeLast();
+                    continue;
+                }
+                if (_deadline > 0 && System.currentTimeMillis() > _deadline)
+                {
+                    throw new IOException("The deadline passed while archiving "+_dir);
+                }
+                if (entry.error != null)
+                {
+                    log("*** WARNING *** Skipping "+entry.name+": "+entry.error);
+                    continue;
+                }
+                if ( entry.type == 0 && isSelected(entry.name) )
+                {
+                    log("*** WARNING *** Skipping special file "+entry.name);
+                    continue;
+                }
+                if ( isSelected(entry.name) ) writeEntry(entry);
+                if (entry.children != null) stack.addLast( new Frame(entry.name+"/", entry.children) );
+            }
+            //Two zero blocks end the archive, which is then padded to a whole record
+            long end = _written + 2*BLOCK_SIZE;
+            writeZeros( 2*BLOCK_SIZE + (RECORD_SIZE - end%RECORD_SIZE) % RECORD_SIZE );
+            return _written;
+        }
+        finally
+        {
+            _pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the number of entries written.
+     *
+     * @return long
+     */
+    public long getEntries()
+    {
+        return _entries;
+    }
+
+    /**
+     * Returns the number of bytes of file data written.
+     *
+     * @return long
+     */
+    public long getBytes()
+    {
+        return _bytes;
+    }
+
+    /**
+     * Returns the sorted names in a directory.
+     *
+     * @param File The directory.
+     * @return String[]
+     * @throws IOException if the directory cannot be read.
+     */
+    protected String[] list(File dir) throws IOException
+    {
+        String[] ret = dir.list();
+        if (ret == null) throw new IOException("Could not list "+dir);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /**
+     * Looks up an entry. A subdirectory is listed and a small regular file is read
+     * if there is room for it. This is run by the pool.
+     *
+     * @param String The entry name relative to the directory being archived.
+     * @return Entry
+     */
+    protected Entry lookup(String name)
+    {
+        Entry ret = new Entry(name);
+        try
+        {
+            Path path = ret.file.toPath();
+            readAttributes(ret, path);
+            if ( ret.type == '5' && (_parents == null || _parents.containsKey(name)) )
+            {
+                ret.children = list(ret.file);
+            }
+            else if ( !isSelected(name) )
+            {
+                return ret;
+            }
+            else if (ret.type == '2')
+            {
+                ret.link = Files.readSymbolicLink(path).toString();
+            }
+            else if ( ret.type == '0' && ret.size <= SMALL_FILE && _pending.tryAcquire((int)ret.size) )
+            {
+                //Without room the writer reads the file itself, so the pool never waits on the writer
+                try
+                {
+                    ret.data = read(ret.file, (int)ret.size);
+                }
+                catch (IOException ioe)
+                {
+                    _pending.release( (int)ret.size );
+                    throw ioe;
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            ret.error = ioe;
+        }
+        catch (InvalidPathException ipe)
+        {
+            //The name cannot be encoded in the JVM's file name encoding (sun.jnu.encoding)
+            ret.error = new IOException( ipe.getMessage() );
+        }
+        return ret;
+    }
+
+    /**
+     * Returns whether the entry is written.
+     *
+     * @param String The entry name.
+     * @return boolean
+     */
+    protected boolean isSelected(String name)
+    {
+        return ( _selected == null || _selected.containsKey(name) );
+    }
+
+    /**
+     * Reads the type, mode, owner, size, and time of an entry without following links.
+     *
+     * @param Entry The entry.
+     * @param Path The path of the entry.
+     * @throws IOException
+     */
+    protected void readAttributes(Entry entry, Path path) throws IOException
+    {
+        Map attrs = null;
+        try
+        {
+            attrs = Files.readAttributes(path, ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (UnsupportedOperationException uoe)
+        {
+            //Without the unix view, use the basic attributes and default modes
+            BasicFileAttributes basic = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            entry.type = getType( basic.isDirectory(), basic.isRegularFile(), basic.isSymbolicLink() );
+            entry.mode = ( basic.isDirectory() || entry.file.canExecute() ? 0755 : 0644 );
+            entry.size = basic.size();
+            entry.mtime = basic.lastModifiedTime().toMillis();
+            entry.uname = "";
+            entry.gname = "";
+            return;
+        }
+        entry.type = getType
+        (
+            ((Boolean)attrs.get("isDirectory")).booleanValue(),
+            ((Boolean)attrs.get("isRegularFile")).booleanValue(),
+            ((Boolean)attrs.get("isSymbolicLink")).booleanValue()
+        );
+        entry.mode = ((Integer)attrs.get("mode")).intValue() & 07777;
+        entry.size = ((Long)attrs.get("size")).longValue();
+        entry.mtime = ((FileTime)attrs.get("lastModifiedTime")).toMillis();
+        entry.uid = ((Integer)attrs.get("uid")).intValue() & 0xffffffffL;
+        entry.gid = ((Integer)attrs.get("gid")).intValue() & 0xffffffffL;
+        entry.uname = getUserName(path, entry.uid);
+        entry.gname = getGroupName(path, entry.gid);
+    }
+
+    /**
+     * Returns the tar type of an entry or 0 if it is a special file.
+     *
+     * @param boolean Whether it is a directory.
+     * @param boolean Whether it is a regular file.
+     * @param boolean Whether it is a symbolic link.
+     * @return char
+     */
+    protected char getType(boolean dir, boolean file, boolean link)
+    {
+        if (dir) return '5';
+        else if (link) return '2';
+        else if (file) return '0';
+        else return 0;
+    }
+
+    /**
+     * Returns the name of the user that owns the file, looking it up once per uid.
+     *
+     * @param Path The file.
+     * @param long The uid.
+     * @return String
+     */
+    protected String getUserName(Path path, long uid)
+    {
+        Long key = Long.valueOf(uid);
+        String ret = (String)_users.get(key);
+        if (ret != null) return ret;
+        try
+        {
+            ret = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
+        }
+        catch (IOException ioe)
+        {
+            ret = "";
+        }
+        //An id without a name comes back as the number
+        if ( ret.equals(String.valueOf(uid)) ) ret = "";
+        _users.put(key, ret);
+        return ret;
+    }
+
+    /**
+     * Returns the name of the group of the file, looking it up once per gid.
+     *
+     * @param Path The file.
+     * @param long The gid.
+     * @return String
+     */
+    protected String getGroupName(Path path, long gid)
+    {
+        Long key = Long.valueOf(gid);
+        String ret = (String)_groups.get(key);
+        if (ret != null) return ret;
+        try
+        {
+            ret = ((GroupPrincipal)Files.getAttribute(path, "posix:group", LinkOption.NOFOLLOW_LINKS)).getName();
+        }
+        catch (Exception e)
+        {
+            ret = "";
+        }
+        if ( ret.equals(String.valueOf(gid)) ) ret = "";
+        _groups.put(key, ret);
+        return ret;
+    }
+
+    /**
+     * Reads up to size bytes of a file. The array is shorter if the file shrank.
+     *
+     * @param File The file.
+     * @param int The size of the file.
+     * @return byte[]
+     * @throws IOException
+     */
+    protected byte[] read(File file, int size) throws IOException
+    {
+        byte[] ret = new byte[size];
+        int count = 0;
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int len;
+            while ( count < size && (len=in.read(ret, count, size-count)) != -1 )
+            {
+                count += len;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        if (count == size) return ret;
+        byte[] tmp = new byte[count];
+        System.arraycopy(ret, 0, tmp, 0, count);
+        return tmp;
+    }
+
+    /**
+     * Writes the headers and data of an entry.
+     *
+     * @param Entry The entry.
+     * @throws IOException
+     */
+    protected void writeEntry(Entry entry) throws IOException
+    {
+        String name = (entry.type == '5' ? entry.name+"/" : entry.name);
+        long size = (entry.type == '0' ? entry.size : 0);
+        String link = (entry.link != null ? entry.link : "");
+        String[] split = splitName(name);
+
+        StringBuffer pax = new StringBuffer();
+        if (split == null) addPaxRecord(pax, "path", name);
+        if ( !fits(link, 100) ) addPaxRecord(pax, "linkpath", link);
+        if (size > MAX_SIZE) addPaxRecord( pax, "size", String.valueOf(size) );
+        if (entry.uid > MAX_ID) addPaxRecord( pax, "uid", String.valueOf(entry.uid) );
+        if (entry.gid > MAX_ID) addPaxRecord( pax, "gid", String.valueOf(entry.gid) );
+        //User and group names end with a NUL
+        if ( !fits(entry.uname, 31) ) addPaxRecord(pax, "uname", entry.uname);
+        if ( !fits(entry.gname, 31) ) addPaxRecord(pax, "gname", entry.gname);
+        if (pax.length() > 0)
+        {
+            byte[] records = pax.toString().getBytes("UTF-8");
+            String paxName = "PaxHeaders/"+entry.file.getName();
+            writeHeader
+            (
+                new String[] { "", truncate(paxName, 100) }, 0644, 0, 0, records.length, entry.mtime, 'x', "", "", ""
+            );
+            writeData(records, records.length);
+            if (split == null) split = new String[] { "", truncate(name, 100) };
+        }
+        writeHeader
+        (
+            split, entry.mode, Math.min(entry.uid, MAX_ID), Math.min(entry.gid, MAX_ID), Math.min(size, MAX_SIZE),
+            entry.mtime, entry.type, truncate(link, 100), truncate(entry.uname, 31), truncate(entry.gname, 31)
+        );
+        _entries++;
+        if (entry.type != '0') return;
+
+        if (entry.data != null)
+        {
+            try
+            {
+                if (entry.data.length < size) log("*** WARNING *** "+entry.name+" shrank, padding with zeros");
+                writeData(entry.data, size);
+            }
+            finally
+            {
+                _pending.release( (int)entry.size );
+            }
+        }
+        else
+        {
+            writeFile(entry, size);
+        }
+        _bytes += size;
+    }
+
+    /**
+     * Copies a file into the archive as it is read. Only the size in the header is
+     * copied and a file that shrank is padded with zeros.
+     *
+     * @param Entry The entry.
+     * @param long The size in the header.
+     * @throws IOException
+     */
+    protected void writeFile(Entry entry, long size) throws IOException
+    {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long left = size;
+        InputStream in = new FileInputStream(entry.file);
+        try
+        {
+            int len;
+            while ( left > 0 && (len=in.read(buf, 0, (int)Math.min(buf.length, left))) != -1 )
+            {
+                write(buf, 0, len);
+                left -= len;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        if (left > 0) log("*** WARNING *** "+entry.name+" shrank by "+left+" bytes, padding with zeros");
+        writeZeros( left + (BLOCK_SIZE - size%BLOCK_SIZE) % BLOCK_SIZE );
+    }
+
+    /**
+     * Writes data padded with zeros to the size and then to a whole block.
+     *
+     * @param byte[] The data.
+     * @param long The size of the entry.
+     * @throws IOException
+     */
+    protected void writeData(byte[] data, long size) throws IOException
+    {
+        write(data, 0, data.length);
+        writeZeros( (size - data.length) + (BLOCK_SIZE - size%BLOCK_SIZE) % BLOCK_SIZE );
+    }
+
+    /**
+     * Writes a ustar header.
+     *
+     * @param String[] The prefix and name.
+     * @param int The mode.
+     * @param long The uid.
+     * @param long The gid.
+     * @param long The size.
+     * @param long The modification time in milliseconds.
+     * @param char The type.
+     * @param String The link target.
+     * @param String The user name.
+     * @param String The group name.
+     * @throws IOException
+     */
+    protected void writeHeader(String[] name, int mode, long uid, long gid, long size, long mtime, char type,
+                               String link, String uname, String gname) throws IOException
+    {
+        byte[] header = new byte[BLOCK_SIZE];
+        putString(header, 0, 100, name[1]);
+        putOctal(header, 100, 8, mode);
+        putOctal(header, 108, 8, uid);
+        putOctal(header, 116, 8, gid);
+        putOctal(header, 124, 12, size);
+        putOctal( header, 136, 12, Math.max(0, Math.min(mtime/1000, MAX_SIZE)) );
+        header[156] = (byte)type;
+        putString(header, 157, 100, link);
+        putString(header, 257, 6, "ustar");
+        header[263] = '0';
+        header[264] = '0';
+        putString(header, 265, 32, uname);
+        putString(header, 297, 32, gname);
+        putOctal(header, 329, 8, 0);
+        putOctal(header, 337, 8, 0);
+        putString(header, 345, 155, name[0]);
+
+        //The checksum is summed with its own field as spaces
+        Arrays.fill(header, 148, 156, (byte)' ');
+        long sum = 0;
+        for (int i=0; i<BLOCK_SIZE; i++)
+        {
+            sum += header[i] & 0xff;
+        }
+        putOctal(header, 148, 7, sum);
+        header[155] = ' ';
+        write(header, 0, BLOCK_SIZE);
+    }
+
+    /**
+     * Splits a name into a ustar prefix and name or returns null if it does not fit.
+     *
+     * @param String The name.
+     * @return String[]
+     */
+    protected String[] splitName(String name)
+    {
+        if ( !isAscii(name) ) return null;
+        if (name.length() <= 100) return new String[] { "", name };
+        //Split at the first slash that leaves a name that fits, ignoring a trailing slash
+        for (int i=name.indexOf('/'); i != -1 && i < name.length()-1; i=name.indexOf('/', i+1))
+        {
+            if (name.length()-i-1 > 100) continue;
+            if (i > 155) return null;
+            return new String[] { name.substring(0, i), name.substring(i+1) };
+        }
+        return null;
+    }
+
+    /**
+     * Adds a PAX record. The length at the start of a record counts itself.
+     *
+     * @param StringBuffer The records.
+     * @param String The key.
+     * @param String The value.
+     * @throws IOException
+     */
+    protected void addPaxRecord(StringBuffer pax, String key, String value) throws IOException
+    {
+        String record = " "+key+"="+value+"\n";
+        int len = record.getBytes("UTF-8").length;
+        int total = len + String.valueOf(len).length();
+        if ( String.valueOf(total).length() != String.valueOf(len).length() ) total++;
+        pax.append(total).append(record);
+    }
+
+    /**
+     * Returns whether the string is ASCII and fits in the field.
+     *
+     * @param String The string.
+     * @param int The size of the field.
+     * @return boolean
+     */
+    protected static boolean fits(String s, int len)
+    {
+        return ( s.length() <= len && isAscii(s) );
+    }
+
+    /**
+     * Returns whether the string is ASCII.
+     *
+     * @param String The string.
+     * @return boolean
+     */
+    protected static boolean isAscii(String s)
+    {
+        for (int i=0; i<s.length(); i++)
+        {
+            if (s.charAt(i) > 127) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the string as ASCII cut to the length. It is only used where a PAX
+     * record has the whole value.
+     *
+     * @param String The string.
+     * @param int The length.
+     * @return String
+     */
+    protected static String truncate(String s, int len)
+    {
+        StringBuffer ret = new StringBuffer();
+        for (int i=0; i<s.length() && ret.length()<len; i++)
+        {
+            char c = s.charAt(i);
+            ret.append(c > 127 ? '_' : c);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Puts an ASCII string into a header field padded with NULs.
+     *
+     * @param byte[] The header.
+     * @param int The offset of the field.
+     * @param int The size of the field.
+     * @param String The string.
+     */
+    protected static void putString(byte[] header, int off, int len, String s)
+    {
+        for (int i=0; i<len && i<s.length(); i++)
+        {
+            header[off+i] = (byte)s.charAt(i);
+        }
+    }
+
+    /**
+     * Puts a number into a header field as zero padded octal followed by a NUL.
+     *
+     * @param byte[] The header.
+     * @param int The offset of the field.
+     * @param int The size of the field.
+     * @param long The number.
+     */
+    protected static void putOctal(byte[] header, int off, int len, long value)
+    {
+        String s = Long.toOctalString(value);
+        int digits = len - 1;
+        for (int i=0; i<digits; i++)
+        {
+            int j = s.length() - digits + i;
+            header[off+i] = (byte)(j >= 0 ? s.charAt(j) : '0');
+        }
+        header[off+digits] = 0;
+    }
+
+    /**
+     * Writes zeros to the archive.
+     *
+     * @param long The number of zeros.
+     * @throws IOException
+     */
+    protected void writeZeros(long count) throws IOException
+    {
+        byte[] zeros = new byte[(int)Math.min(count, BUFFER_SIZE)];
+        while (count > 0)
+        {
+            int len = (int)Math.min(count, zeros.length);
+            write(zeros, 0, len);
+            count -= len;
+        }
+    }
+
+    /**
+     * Writes to the archive.
+     *
+     * @param byte[] The bytes.
+     * @param int The offset.
+     * @param int The length.
+     * @throws IOException
+     */
+    protected void write(byte[] b, int off, int len) throws IOException
+    {
+        _out.write(b, off, len);
+        _written += len;
+    }
+
+    /**
+     * Logs a message if there is a logger.
+     *
+     * @param String The message.
+     */
+    protected void log(String msg)
+    {
+        if (_logger != null) _logger.log(msg);
+    }
+
+    /**
+     * A directory being written. The next entries are looked up by the pool ahead of
+     * the writer.
+     */
+    protected class Frame
+    {
+        /** The prefix of the entry names. */
+        protected String _prefix;
+        /** The sorted names in the directory. */
+        protected String[] _names;
+        /** The index of the next name to look up. */
+        protected int _next = 0;
+        /** The lookups of the next entries in order. */
+        protected LinkedList _ahead = new LinkedList();
+
+        protected Frame(String prefix, String[] names)
+        {
+            _prefix = prefix;
+            _names = names;
+        }
+
+        /**
+         * Returns the next entry or null if there are no more.
+         *
+         * @return Entry
+         * @throws IOException
+         */
+        protected Entry next() throws IOException
+        {
+            while ( _next < _names.length && _ahead.size() < _threads*READ_AHEAD )
+            {
+                final String name = _prefix + _names[_next];
+                //The name is not needed once it is looked up
+                _names[_next++] = null;
+                _ahead.addLast
+                (
+                    _pool.submit
+                    (
+                        new Callable()
+                        {
+                            public Object call()
+                            {
+                                return lookup(name);
+                            }
+                        }
+                    )
+                );
+            }
+            if (_ahead.size() == 0) return null;
+            try
+            {
+                return (Entry)( (Future)_ahead.removeFirst() ).get();
+            }
+            catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException("Interrupted while archiving "+_dir);
+            }
+            catch (ExecutionException ee)
+            {
+                Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                throw new IOException( cause.toString() );
+            }
+        }
+    }
+
+    /**
+     * An entry that has been looked up.
+     */
+    protected class Entry
+    {
+        /** The name relative to the directory being archived. */
+        protected String name;
+        /** The file. */
+        protected File file;
+        /** The tar type or 0 for a special file. */
+        protected char type;
+        /** The permission bits. */
+        protected int mode;
+        /** The owner's uid. */
+        protected long uid;
+        /** The group's gid. */
+        protected long gid;
+        /** The owner's name. */
+        protected String uname;
+        /** The group's name. */
+        protected String gname;
+        /** The size. */
+        protected long size;
+        /** The modification time in milliseconds. */
+        protected long mtime;
+        /** The target of a symbolic link. */
+        protected String link;
+        /** The contents of a small file that was read ahead. */
+        protected byte[] data;
+        /** The sorted names in a directory. */
+        protected String[] children;
+        /** The error looking up the entry. */
+        protected IOException error;
+
+        protected Entry(String name)
+        {
+            this.name = name;
+            this.file = new File(_dir, name);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,734 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracts a tar stream into a directory as it is read. ustar entries, GNU long
+ * names, and PAX extended headers are understood, which covers what GNU tar writes.
+ * Regular files of up to SMALL_FILE bytes are read into memory and written by a pool
+ * of threads while the next entries are read, so an archive of many small files is
+ * not held up by creating them one at a time. Larger files are written as they are
+ * read. A limit on the bytes waiting to be written keeps memory use bounded.<br>
+ * <br>
+ * Directory permissions and times are set once everything in them has been written
+ * and hard links are made once every file has been written. Entry names are taken
+ * as relative to the directory. Names with a .. component are refused and nothing is
+ * written through a symbolic link that points outside the directory. If paths are
+ * set, then only the entries at or below one of them are extracted. Owners are not
+ * restored. Device and fifo entries are skipped.
+ *
+ * @see BackupRestorer
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class TarExtractor
+{
+    /** The size of a tar block. */
+    public static final int BLOCK_SIZE = 512;
+    /** The largest file that is written by the pool instead of as it is read. */
+    public static final int SMALL_FILE = 1024*1024;
+    /** The most bytes of small files that can be waiting to be written. */
+    protected static final int MAX_PENDING = 64*1024*1024;
+    /** The size of the buffer large files are copied through. */
+    protected static final int BUFFER_SIZE = 256*1024;
+
+    /** The logger. */
+    protected Logger _logger;
+    /** The directory to extract into. */
+    protected File _dir;
+    /** The canonical path of the directory. */
+    protected String _canonicalDir;
+    /** The number of threads that write small files. */
+    protected int _threads;
+    /** The paths to extract or null for everything. */
+    protected String[] _paths;
+    /** Writes small files. */
+    protected ExecutorService _pool;
+    /** The bytes of small files that can still be queued. */
+    protected Semaphore _pending = new Semaphore(MAX_PENDING);
+    /** The first error writing a file. */
+    protected IOException _error;
+    /** The directories extracted as { File, mode, mtime }. */
+    protected Vector _dirs = new Vector();
+    /** The hard links to make as { link name, target name }. */
+    protected Vector _links = new Vector();
+    /** Whether a symbolic link was extracted. */
+    protected boolean _symlinks = false;
+    /** The number of entries extracted. */
+    protected long _entries = 0;
+    /** The number of bytes of file data extracted. */
+    protected long _bytes = 0;
+    /** The number of tar bytes read. */
+    protected long _read = 0;
+
+    /**
+     * Creates a new extractor.
+     *
+     * @param Logger The logger.
+     * @param File The directory to extract into.
+     * @param int The number of threads that write small files or 0 or less for one per core.
+     * @param String[] The relative paths to extract or null for everything.
+     * @throws IOException if the directory cannot be created.
+     */
+    public TarExtractor(Logger logger, File dir, int threads, String[] paths) throws IOException
+    {
+        _logger = logger;
+        _dir = dir;
+        if ( !_dir.isDirectory() && !_dir.mkdirs() ) throw new IOException("Could not create "+_dir);
+        _canonicalDir = _dir.getCanonicalPath();
+        _threads = (threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        _paths = paths;
+    }
+
+    /**
+     * Reads the tar stream to the end of the archive and extracts the entries. The
+     * stream is not closed.
+     *
+     * @param InputStream The tar stream.
+     * @throws IOException if the stream is not a valid tar or a file cannot be written.
+     */
+    public void extract(InputStream in) throws IOException
+    {
+        _pool = Executors.newFixedThreadPool(_threads);
+        try
+        {
+            byte[] header = new byte[BLOCK_SIZE];
+            String longName = null;
+            String longLink = null;
+            String[] pax = null;
+            while ( readBlock(in, header) )
+            {
+                checkError();
+                if ( isZero(header) ) break;
+                checkHeader(header);
+
+                char type = (char)header[156];
+                long size = parseNumber(header, 124, 12);
+                if (type == 'L' || type == 'K')
+                {
+                    String value = trimNul( new String(readData(in, size), "UTF-8") );
+                    if (type == 'L') longName = value;
+                    else longLink = value;
+                    continue;
+                }
+                else if (type == 'x')
+                {
+                    pax = parsePax( readData(in, size) );
+                    continue;
+                }
+                else if (type == 'g')
+                {
+                    skip(in, size);
+                    continue;
+                }
+
+                String name = (longName != null ? longName : getName(header));
+                String link = (longLink != null ? longLink : parseString(header, 157, 100));
+                long mtime = parseNumber(header, 136, 12);
+                if (pax != null)
+                {
+                    if (pax[0] != null) name = pax[0];
+                    if (pax[1] != null) link = pax[1];
+                    if (pax[2] != null) size = Long.parseLong(pax[2]);
+                    if (pax[3] != null) mtime = (long)Double.parseDouble(pax[3]);
+                }
+                longName = null;
+                longLink = null;
+                pax = null;
+                //Links, devices, directories, and fifos have no data in the archive
+                long data = ( "123456".indexOf(type) != -1 ? 0 : size );
+
+                name = normalize(name);
+                if ( name.length() == 0 || !isSelected(name) )
+                {
+                    skip(in, data);
+                    continue;
+                }
+                int mode = (int)parseNumber(header, 100, 8);
+                File file = new File(_dir, name);
+                checkParent(file);
+                if (type == '5')
+                {
+                    if ( !file.isDirectory() && !file.mkdirs() ) throw new IOException("Could not create "+file);
+                    _dirs.add( new Object[] { file, Integer.valueOf(mode), Long.valueOf(mtime) } );
+                }
+                else if (type == '2')
+                {
+                    Path path = file.toPath();
+                    file.getParentFile().mkdirs();
+                    Files.deleteIfExists(path);
+                    Files.createSymbolicLink( path, new File(link).toPath() );
+                    _symlinks = true;
+                }
+                else if (type == '1')
+                {
+                    _links.add( new String[] { name, normalize(link) } );
+                }
+                else if (type == '0' || type == '\0' || type == '7')
+                {
+                    writeFile(in, file, data, mode, mtime);
+                }
+                else
+                {
+                    _logger.log("*** WARNING *** Skipping special file "+name);
+                    skip(in, data);
+                    continue;
+                }
+                _entries++;
+            }
+            finishWrites();
+            makeLinks();
+            setDirectoryAttributes();
+        }
+        finally
+        {
+            _pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a regular file. A small file is read into memory and written by the pool.
+     *
+     * @param InputStream The tar stream positioned at the file data.
+     * @param File The file.
+     * @param long The size of the file.
+     * @param int The permissions.
+     * @param long The modification time in seconds.
+     * @throws IOException
+     */
+    protected void writeFile(InputStream in, final File file, long size, final int mode, final long mtime) throws IOException
+    {
+        file.getParentFile().mkdirs();
+        //Do not write through a link that was in the way
+        Files.deleteIfExists( file.toPath() );
+        _bytes += size;
+        if (size > SMALL_FILE)
+        {
+            OutputStream out = new FileOutputStream(file);
+            try
+            {
+                byte[] buf = new byte[BUFFER_SIZE];
+                long left = size;
+                while (left > 0)
+                {
+                    int len = in.read( buf, 0, (int)Math.min(buf.length, left) );
+                    if (len == -1) throw new IOException("Unexpected end of archive in "+file);
+                    out.write(buf, 0, len);
+                    left -= len;
+                    _read += len;
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            skipPadding(in, size);
+            setAttributes(file, mode, mtime);
+            return;
+        }
+
+        final byte[] data = readData(in, size);
+        try
+        {
+            _pending.acquire(data.length);
+        }
+        catch (InterruptedException ie)
+        {
+            throw new IOException("Interrupted while waiting to write "+file);
+        }
+        _pool.execute
+        (
+            new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        OutputStream out = new FileOutputStream(file);
+                        try
+                        {
+                            out.write(data);
+                        }
+                        finally
+                        {
+                            out.close();
+                        }
+                        setAttributes(file, mode, mtime);
+                    }
+                    catch (IOException ioe)
+                    {
+                        setError(ioe);
+                    }
+                    finally
+                    {
+                        _pending.release(data.length);
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Waits for the pool to write the small files.
+     *
+     * @throws IOException if a file could not be written.
+     */
+    protected void finishWrites() throws IOException
+    {
+        _pool.shutdown();
+        try
+        {
+            while ( !_pool.awaitTermination(1, TimeUnit.MINUTES) ) { }
+        }
+        catch (InterruptedException ie)
+        {
+            throw new IOException("Interrupted while waiting for files to be written");
+        }
+        checkError();
+    }
+
+    /**
+     * Makes the hard links now that their targets have been written. A link to a file
+     * that was not extracted is skipped.
+     *
+     * @throws IOException
+     */
+    protected void makeLinks() throws IOException
+    {
+        for (int i=0; i<_links.size(); i++)
+        {
+            String[] link = (String[])_links.get(i);
+            File file = new File(_dir, link[0]);
+            File target = new File(_dir, link[1]);
+            if ( !target.isFile() )
+            {
+                _logger.log("*** WARNING *** Skipping "+link[0]+", its target "+link[1]+" was not extracted");
+                continue;
+            }
+            file.getParentFile().mkdirs();
+            Files.deleteIfExists( file.toPath() );
+            Files.createLink( file.toPath(), target.toPath() );
+        }
+    }
+
+    /**
+     * Sets the permissions and times of the directories, deepest first so setting one
+     * does not change the time of its parent.
+     *
+     * @throws IOException
+     */
+    protected void setDirectoryAttributes() throws IOException
+    {
+        for (int i=_dirs.size()-1; i>=0; i--)
+        {
+            Object[] dir = (Object[])_dirs.get(i);
+            setAttributes( (File)dir[0], ((Integer)dir[1]).intValue(), ((Long)dir[2]).longValue() );
+        }
+    }
+
+    /**
+     * Sets the permissions and modification time of a file or directory.
+     *
+     * @param File The file.
+     * @param int The permissions.
+     * @param long The modification time in seconds.
+     * @throws IOException
+     */
+    protected void setAttributes(File file, int mode, long mtime) throws IOException
+    {
+        try
+        {
+            Files.setPosixFilePermissions( file.toPath(), toPermissions(mode) );
+        }
+        catch (UnsupportedOperationException uoe)
+        {
+            file.setExecutable( (mode & 0100) != 0 );
+            file.setWritable( (mode & 0200) != 0 );
+        }
+        file.setLastModified(mtime*1000L);
+    }
+
+    /**
+     * Returns the POSIX permissions of the mode.
+     *
+     * @param int The mode.
+     * @return Set
+     */
+    protected static Set toPermissions(int mode)
+    {
+        PosixFilePermission[] all =
+        {
+            PosixFilePermission.OTHERS_EXECUTE, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_READ,
+            PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_READ,
+            PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ
+        };
+        Set ret = new HashSet();
+        for (int i=0; i<all.length; i++)
+        {
+            if ( (mode & (1 << i)) != 0 ) ret.add(all[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Throws an exception if the file's parent directory is not inside the directory
+     * being extracted into. This can only happen through a symbolic link so it is not
+     * checked until one has been extracted.
+     *
+     * @param File The file.
+     * @throws IOException
+     */
+    protected void checkParent(File file) throws IOException
+    {
+        if (!_symlinks) return;
+        String parent = file.getParentFile().getCanonicalPath();
+        if ( !parent.equals(_canonicalDir) && !parent.startsWith(_canonicalDir+File.separator) )
+        {
+            throw new IOException("Refusing to extract "+file+" through a link outside of "+_dir);
+        }
+    }
+
+    /**
+     * Returns whether the entry is at or below one of the paths to extract.
+     *
+     * @param String The normalized entry name.
+     * @return boolean
+     */
+    protected boolean isSelected(String name)
+    {
+        if (_paths == null) return true;
+        for (int i=0; i<_paths.length; i++)
+        {
+            if ( name.equals(_paths[i]) || name.startsWith(_paths[i]+"/") ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name relative to the directory without a leading / or ./ or a
+     * trailing /.
+     *
+     * @param String The name.
+     * @return String
+     * @throws IOException if the name has a .. component.
+     */
+    public static String normalize(String name) throws IOException
+    {
+        while ( name.startsWith("/") || name.startsWith("./") )
+        {
+            name = name.substring( name.startsWith("/") ? 1 : 2 );
+        }
+        while ( name.endsWith("/") )
+        {
+            name = name.substring(0, name.length()-1);
+        }
+        if ( name.equals(".") ) return "";
+        String[] parts = name.split("/");
+        for (int i=0; i<parts.length; i++)
+        {
+            if ( parts[i].equals("..") ) throw new IOException("Refusing to extract "+name);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the name of the entry, joining the ustar prefix if there is one.
+     *
+     * @param byte[] The header.
+     * @return String
+     */
+    protected String getName(byte[] header) throws IOException
+    {
+        String name = parseString(header, 0, 100);
+        //The prefix field is only in POSIX ustar headers, GNU tar uses it for other things
+        if ( "ustar\0".equals(new String(header, 257, 6, "ISO-8859-1")) )
+        {
+            String prefix = parseString(header, 345, 155);
+            if (prefix.length() > 0) name = prefix+"/"+name;
+        }
+        return name;
+    }
+
+    /**
+     * Returns { path, linkpath, size, mtime } from a PAX extended header. Each one is
+     * null if it is not in the header.
+     *
+     * @param byte[] The header data.
+     * @return String[]
+     * @throws IOException if the header is not valid.
+     */
+    protected String[] parsePax(byte[] data) throws IOException
+    {
+        String[] ret = new String[4];
+        int pos = 0;
+        while (pos < data.length)
+        {
+            //Each record is "length key=value\n" where length counts the whole record
+            int space = pos;
+            while (space < data.length && data[space] != ' ') space++;
+            if (space == pos || space >= data.length) break;
+            int len = Integer.parseInt( new String(data, pos, space-pos, "ISO-8859-1") );
+            if (len <= 0 || pos+len > data.length) throw new IOException("Invalid PAX header");
+            String record = new String(data, space+1, pos+len-space-2, "UTF-8");
+            pos += len;
+            int eq = record.indexOf('=');
+            if (eq == -1) continue;
+            String key = record.substring(0, eq);
+            String value = record.substring(eq+1);
+            if ( key.equals("path") ) ret[0] = value;
+            else if ( key.equals("linkpath") ) ret[1] = value;
+            else if ( key.equals("size") ) ret[2] = value;
+            else if ( key.equals("mtime") ) ret[3] = value;
+        }
+        return ret;
+    }
+
+    /**
+     * Throws an exception if the header checksum is wrong.
+     *
+     * @param byte[] The header.
+     * @throws IOException
+     */
+    protected void checkHeader(byte[] header) throws IOException
+    {
+        long sum = 0;
+        for (int i=0; i<BLOCK_SIZE; i++)
+        {
+            //The checksum field counts as spaces
+            sum += (i >= 148 && i < 156 ? ' ' : header[i] & 0xff);
+        }
+        if ( sum != parseNumber(header, 148, 8) ) throw new IOException("Bad tar header checksum at byte "+(_read-BLOCK_SIZE));
+    }
+
+    /**
+     * Returns a numeric header field. Fields are octal text unless the high bit of the
+     * first byte is set, in which case the rest is a big endian binary number (GNU
+     * tar's format for sizes over 8GB).
+     *
+     * @param byte[] The header.
+     * @param int The offset of the field.
+     * @param int The length of the field.
+     * @return long
+     */
+    protected static long parseNumber(byte[] header, int off, int len)
+    {
+        long ret = 0;
+        if ( (header[off] & 0x80) != 0 )
+        {
+            for (int i=off+1; i<off+len; i++)
+            {
+                ret = (ret << 8) | (header[i] & 0xff);
+            }
+            return ret;
+        }
+        for (int i=off; i<off+len; i++)
+        {
+            int c = header[i];
+            if (c >= '0' && c <= '7') ret = (ret << 3) + (c - '0');
+            else if (c == 0 || (c == ' ' && ret > 0)) break;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a NUL terminated string header field.
+     *
+     * @param byte[] The header.
+     * @param int The offset of the field.
+     * @param int The length of the field.
+     * @return String
+     * @throws IOException
+     */
+    protected static String parseString(byte[] header, int off, int len) throws IOException
+    {
+        int end = off;
+        while (end < off+len && header[end] != 0) end++;
+        return new String(header, off, end-off, "UTF-8");
+    }
+
+    /**
+     * Returns the string up to the first NUL.
+     *
+     * @param String The string.
+     * @return String
+     */
+    protected static String trimNul(String s)
+    {
+        int index = s.indexOf('\0');
+        return (index == -1 ? s : s.substring(0, index));
+    }
+
+    /**
+     * Returns whether every byte of the block is zero, which marks the end of the archive.
+     *
+     * @param byte[] The block.
+     * @return boolean
+     */
+    protected static boolean isZero(byte[] block)
+    {
+        for (int i=0; i<block.length; i++)
+        {
+            if (block[i] != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a whole block. Returns false if the stream ends before the block starts.
+     *
+     * @param InputStream The stream.
+     * @param byte[] The block.
+     * @return boolean
+     * @throws IOException if the stream ends in the middle of the block.
+     */
+    protected boolean readBlock(InputStream in, byte[] block) throws IOException
+    {
+        int pos = 0;
+        while (pos < block.length)
+        {
+            int len = in.read(block, pos, block.length-pos);
+            if (len == -1)
+            {
+                if (pos == 0) return false;
+                throw new IOException("Unexpected end of archive");
+            }
+            pos += len;
+        }
+        _read += pos;
+        return true;
+    }
+
+    /**
+     * Reads entry data and the padding after it.
+     *
+     * @param InputStream The stream.
+     * @param long The size of the data.
+     * @return byte[]
+     * @throws IOException
+     */
+    protected byte[] readData(InputStream in, long size) throws IOException
+    {
+        if (size > Integer.MAX_VALUE) throw new IOException("Entry of "+size+" bytes is too large to read into memory");
+        byte[] ret = new byte[(int)size];
+        int pos = 0;
+        while (pos < ret.length)
+        {
+            int len = in.read(ret, pos, ret.length-pos);
+            if (len == -1) throw new IOException("Unexpected end of archive");
+            pos += len;
+        }
+        _read += pos;
+        skipPadding(in, size);
+        return ret;
+    }
+
+    /**
+     * Skips entry data and the padding after it. The stream's skip is used for all but
+     * the last byte, so a file or an encrypted file that is read from disk seeks past
+     * the entry, and the last byte is read to make sure the archive is not cut short.
+     *
+     * @param InputStream The stream.
+     * @param long The size of the data.
+     * @throws IOException
+     */
+    protected void skip(InputStream in, long size) throws IOException
+    {
+        long left = size + padding(size);
+        while (left > 1)
+        {
+            long len = in.skip(left-1);
+            if (len <= 0) break;
+            left -= len;
+            _read += len;
+        }
+        byte[] buf = new byte[(int)Math.min(BUFFER_SIZE, Math.max(left, 1))];
+        while (left > 0)
+        {
+            int len = in.read( buf, 0, (int)Math.min(buf.length, left) );
+            if (len == -1) throw new IOException("Unexpected end of archive");
+            left -= len;
+            _read += len;
+        }
+    }
+
+    /**
+     * Skips the padding after entry data.
+     *
+     * @param InputStream The stream.
+     * @param long The size of the data.
+     * @throws IOException
+     */
+    protected void skipPadding(InputStream in, long size) throws IOException
+    {
+        int left = padding(size);
+        byte[] buf = new byte[BLOCK_SIZE];
+        while (left > 0)
+        {
+            int len = in.read(buf, 0, left);
+            if (len == -1) throw new IOException("Unexpected end of archive");
+            left -= len;
+            _read += len;
+        }
+    }
+
+    /**
+     * Returns the number of padding bytes after entry data of the size.
+     *
+     * @param long The size of the data.
+     * @return int
+     */
+    protected static int padding(long size)
+    {
+        return (int)( (BLOCK_SIZE - size%BLOCK_SIZE) % BLOCK_SIZE );
+    }
+
+    protected synchronized void setError(IOException ioe)
+    {
+        if (_error == null) _error = ioe;
+    }
+
+    /**
+     * Throws the first error writing a file if there was one.
+     *
+     * @throws IOException
+     */
+    protected synchronized void checkError() throws IOException
+    {
+        if (_error != null) throw _error;
+    }
+
+    /**
+     * Returns the number of entries extracted.
+     *
+     * @return long
+     */
+    public long getEntries()
+    {
+        return _entries;
+    }
+
+    /**
+     * Returns the number of bytes of file data extracted.
+     *
+     * @return long
+     */
+    public long getBytes()
+    {
+        return _bytes;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,427 @@
+package com.zitego.backup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.Vector;
+
+/**
+ * Limits the bandwidth used by all of the file retrievers in the process. There are
+ * three limits, each a token bucket shared by every transfer: the total bytes per
+ * second received from all remote servers, the bytes per second received from any
+ * one remote server, and the bytes per second written to local disk. Transfers take
+ * tokens in small pieces in the order they ask for them, so throttled transfers
+ * share the bandwidth evenly instead of one taking all of it.<br>
+ * <br>
+ * The limits are set in the properties file given to BackupManager with
+ * -bandwidth_file with the bandwidth property, in kilobytes per second. A limit that is left out or is 0 is not limited:<br>
+ * bandwidth=total=20480,host=8192,write=51200<br>
+ * <br>
+ * Time of day profiles replace the limits while they are in effect. hours is a
+ * start and end time (which can wrap past midnight) and days is an optional range
+ * (mon-fri) or list (sat+sun) of days. The first profile that matches is used:<br>
+ * bandwidth_profile_0=hours=08:00-18:00,days=mon-fri,total=2048,host=1024,write=10240<br>
+ * <br>
+ * Transfers that write through Java are throttled directly. Transfers done by scp
+ * or rsync are given their fair share of the limits when they start.<br>
+ * <br>
+ * There is one throttle per process and its limits are set once when the backup
+ * manager starts, so every properties file run together shares the same limits.
+ *
+ * @see FileRetriever#throttle(OutputStream, boolean)
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class TransferThrottle
+{
+    /** The most bytes taken from a bucket at once. */
+    public static final int QUANTUM = 64*1024;
+    /** How often (in milliseconds) the profiles are checked. */
+    protected static final long PROFILE_CHECK = 1000;
+    /** The day names. */
+    protected static final String[] DAYS = { "sun", "mon", "tue", "wed", "thu", "fri", "sat" };
+    /** The throttle for the process. */
+    protected static TransferThrottle _instance;
+
+    /** The limits when no profile is in effect. */
+    protected Profile _default = new Profile();
+    /** The time of day profiles. */
+    protected Vector _profiles = new Vector();
+    /** The profile in effect. */
+    protected Profile _current;
+    /** When the profiles were last checked. */
+    protected long _lastCheck = 0;
+    /** The limit on bytes received from all remote servers. */
+    protected RateLimiter _total = new RateLimiter(0);
+    /** The limit on bytes written locally. */
+    protected RateLimiter _write = new RateLimiter(0);
+    /** The limits on bytes received from each remote server keyed by server. */
+    protected Hashtable _hosts = new Hashtable();
+    /** The number of running transfers from each remote server keyed by server. */
+    protected Hashtable _active = new Hashtable();
+    /** The number of running transfers. */
+    protected int _activeTotal = 0;
+
+    /**
+     * Returns the throttle for the process.
+     *
+     * @return TransferThrottle
+     */
+    public static synchronized TransferThrottle getInstance()
+    {
+        if (_instance == null) _instance = new TransferThrottle();
+        return _instance;
+    }
+
+    /**
+     * Sets the limits from the bandwidth and bandwidth_profile_[n] properties. Nothing
+     * changes if there is no bandwidth property.
+     *
+     * @param Properties The properties.
+     */
+    public synchronized void configure(Properties props)
+    {
+        String val = props.getProperty("bandwidth");
+        if (val == null) return;
+        _default = new Profile();
+        _default.parse(val);
+        _profiles.clear();
+        for (int i=0; (val=props.getProperty("bandwidth_profile_"+i)) != null; i++)
+        {
+            Profile p = new Profile();
+            p.parse(val);
+            _profiles.add(p);
+        }
+        _current = null;
+        _lastCheck = 0;
+        update();
+    }
+
+    /**
+     * Returns whether any limit is set.
+     *
+     * @return boolean
+     */
+    public synchronized boolean isLimited()
+    {
+        if ( _default.isLimited() ) return true;
+        for (int i=0; i<_profiles.size(); i++)
+        {
+            if ( ((Profile)_profiles.get(i)).isLimited() ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits until the bytes can be transferred under every limit that applies.
+     *
+     * @param String The remote server or null for a local transfer.
+     * @param long The number of bytes.
+     * @param boolean Whether the bytes came over the network.
+     * @throws InterruptedException
+     */
+    public void acquire(String host, long bytes, boolean network) throws InterruptedException
+    {
+        RateLimiter hostLimit = null;
+        synchronized (this)
+        {
+            update();
+            if (network && host != null) hostLimit = getHostLimiter(host);
+        }
+        if (network)
+        {
+            if (hostLimit != null) hostLimit.acquire(bytes);
+            _total.acquire(bytes);
+        }
+        _write.acquire(bytes);
+    }
+
+    /**
+     * Records that a transfer from the remote server started.
+     *
+     * @param String The remote server or null for a local transfer.
+     */
+    public synchronized void begin(String host)
+    {
+        _activeTotal++;
+        if (host == null) return;
+        Integer count = (Integer)_active.get(host);
+        _active.put( host, Integer.valueOf((count != null ? count.intValue() : 0) + 1) );
+    }
+
+    /**
+     * Records that a transfer from the remote server finished.
+     *
+     * @param String The remote server or null for a local transfer.
+     */
+    public synchronized void end(String host)
+    {
+        _activeTotal = Math.max(0, _activeTotal-1);
+        if (host == null) return;
+        Integer count = (Integer)_active.get(host);
+        if (count == null || count.intValue() <= 1) _active.remove(host);
+        else _active.put( host, Integer.valueOf(count.intValue()-1) );
+    }
+
+    /**
+     * Returns the bytes per second one running transfer from the remote server can
+     * use if the limits are split evenly between the running transfers, or 0 if it is
+     * not limited. This is used for transfers by external commands that cannot take
+     * tokens themselves. begin must be called for the transfer first.
+     *
+     * @param String The remote server.
+     * @return long
+     */
+    public synchronized long getShare(String host)
+    {
+        update();
+        Profile p = (_current != null ? _current : _default);
+        long ret = 0;
+        if (p.total > 0) ret = p.total / Math.max(1, _activeTotal);
+        if (p.host > 0 && host != null)
+        {
+            Integer count = (Integer)_active.get(host);
+            long share = p.host / Math.max( 1, (count != null ? count.intValue() : 1) );
+            ret = (ret > 0 ? Math.min(ret, share) : share);
+        }
+        if (p.write > 0)
+        {
+            long share = p.write / Math.max(1, _activeTotal);
+            ret = (ret > 0 ? Math.min(ret, share) : share);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a stream that waits on the limits before each write.
+     *
+     * @param OutputStream The stream to write to.
+     * @param String The remote server or null for a local transfer.
+     * @param boolean Whether the data comes over the network.
+     * @return OutputStream
+     */
+    public OutputStream wrap(OutputStream out, String host, boolean network)
+    {
+        return new ThrottledOutputStream(out, host, network);
+    }
+
+    /**
+     * Sets the rates for the profile in effect if it has changed.
+     */
+    protected synchronized void update()
+    {
+        long now = System.currentTimeMillis();
+        if (now - _lastCheck < PROFILE_CHECK) return;
+        _lastCheck = now;
+
+        Calendar cal = Calendar.getInstance();
+        int day = cal.get(Calendar.DAY_OF_WEEK) - 1;
+        int minute = cal.get(Calendar.HOUR_OF_DAY)*60 + cal.get(Calendar.MINUTE);
+        Profile p = _default;
+        for (int i=0; i<_profiles.size(); i++)
+        {
+            Profile profile = (Profile)_profiles.get(i);
+            if ( profile.matches(day, minute) )
+            {
+                p = profile;
+                break;
+            }
+        }
+        if (p == _current) return;
+        _current = p;
+        _total.setRate(p.total);
+        _write.setRate(p.write);
+        for (Enumeration e=_hosts.elements(); e.hasMoreElements();)
+        {
+            ((RateLimiter)e.nextElement()).setRate(p.host);
+        }
+    }
+
+    /**
+     * Returns the limiter for the remote server.
+     *
+     * @param String The remote server.
+     * @return RateLimiter
+     */
+    protected synchronized RateLimiter getHostLimiter(String host)
+    {
+        RateLimiter ret = (RateLimiter)_hosts.get(host);
+        if (ret == null)
+        {
+            ret = new RateLimiter( (_current != null ? _current : _default).host );
+            _hosts.put(host, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * A set of limits and when they apply. The limits are in bytes per second.
+     */
+    protected static class Profile
+    {
+        /** The limit on bytes received from all remote servers. */
+        protected long total = 0;
+        /** The limit on bytes received from one remote server. */
+        protected long host = 0;
+        /** The limit on bytes written locally. */
+        protected long write = 0;
+        /** The minute of the day the profile starts or -1 for always. */
+        protected int start = -1;
+        /** The minute of the day the profile ends. */
+        protected int end = -1;
+        /** The days of the week (0 is Sunday) the profile applies. */
+        protected boolean[] days = { true, true, true, true, true, true, true };
+
+        /**
+         * Parses the comma delimited profile properties.
+         *
+         * @param String The properties.
+         */
+        protected void parse(String props)
+        {
+            String tokens[] = props.split(",");
+            for (int i = 0; i < tokens.length; i++)
+            {
+                String token[] = tokens[i].trim().split("=");
+                if ( token[0].equals("total") ) total = Long.parseLong(token[1])*1024L;
+                else if ( token[0].equals("host") ) host = Long.parseLong(token[1])*1024L;
+                else if ( token[0].equals("write") ) write = Long.parseLong(token[1])*1024L;
+                else if ( token[0].equals("hours") )
+                {
+                    String[] range = token[1].split("-");
+                    start = parseTime(range[0]);
+                    end = parseTime(range[1]);
+                }
+                else if ( token[0].equals("days") )
+                {
+                    days = new boolean[7];
+                    String[] list = token[1].split("\\+");
+                    for (int j=0; j<list.length; j++)
+                    {
+                        String[] range = list[j].split("-");
+                        int from = parseDay(range[0]);
+                        int to = (range.length > 1 ? parseDay(range[1]) : from);
+                        for (int d=from; ; d=(d+1)%7)
+                        {
+                            days[d] = true;
+                            if (d == to) break;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns whether the profile applies at the minute of the day.
+         *
+         * @param int The day of the week (0 is Sunday).
+         * @param int The minute of the day.
+         * @return boolean
+         */
+        protected boolean matches(int day, int minute)
+        {
+            if (start < 0) return days[day];
+            //A range that wraps past midnight belongs to the day it started on
+            if (start <= end) return days[day] && minute >= start && minute < end;
+            else if (minute >= start) return days[day];
+            else return minute < end && days[(day+6)%7];
+        }
+
+        /**
+         * Returns whether the profile has any limit.
+         *
+         * @return boolean
+         */
+        protected boolean isLimited()
+        {
+            return (total > 0 || host > 0 || write > 0);
+        }
+
+        /**
+         * Returns the minute of the day for HH:mm.
+         *
+         * @param String The time.
+         * @return int
+         */
+        protected static int parseTime(String time)
+        {
+            String[] parts = time.trim().split(":");
+            return Integer.parseInt(parts[0])*60 + (parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+        }
+
+        /**
+         * Returns the day of the week (0 is Sunday) for a three letter day name.
+         *
+         * @param String The day name.
+         * @return int
+         * @throws IllegalArgumentException if it is not a day.
+         */
+        protected static int parseDay(String name)
+        {
+            String day = name.trim().toLowerCase();
+            for (int i=0; i<DAYS.length; i++)
+            {
+                if ( day.startsWith(DAYS[i]) ) return i;
+            }
+            throw new IllegalArgumentException("Invalid day: "+name);
+        }
+    }
+
+    /**
+     * Waits on the throttle before writing each piece of data.
+     */
+    protected class ThrottledOutputStream extends OutputStream
+    {
+        /** The stream to write to. */
+        protected OutputStream _out;
+        /** The remote server. */
+        protected String _host;
+        /** Whether the data comes over the network. */
+        protected boolean _network;
+
+        protected ThrottledOutputStream(OutputStream out, String host, boolean network)
+        {
+            _out = out;
+            _host = host;
+            _network = network;
+        }
+
+        public void write(int b) throws IOException
+        {
+            write( new byte[] { (byte)b }, 0, 1 );
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                int n = Math.min(len, QUANTUM);
+                try
+                {
+                    acquire(_host, n, _network);
+                }
+                catch (InterruptedException ie)
+                {
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+                _out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            _out.flush();
+        }
+
+        public void close() throws IOException
+        {
+            _out.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+package com.zitego.backup;
+
+import java.util.Calendar;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the next fire times of CronSchedule. Times are built in the default time
+ * zone like the schedule's, on dates away from daylight saving changes.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class CronScheduleTest
+{
+    @Test
+    public void testSecondsStep()
+    {
+        CronSchedule schedule = new CronSchedule("*/15 * * * * *");
+        assertEquals( time(2026, 6, 10, 10, 0, 15), schedule.next(time(2026, 6, 10, 10, 0, 7)) );
+        assertEquals( time(2026, 6, 10, 10, 1, 0), schedule.next(time(2026, 6, 10, 10, 0, 45)) );
+        assertEquals( "strictly after", time(2026, 6, 10, 10, 0, 30), schedule.next(time(2026, 6, 10, 10, 0, 15)) );
+    }
+
+    @Test
+    public void testSecondsListAndRange()
+    {
+        CronSchedule schedule = new CronSchedule("5,10-12 30 4 * * *");
+        assertEquals( time(2026, 6, 10, 4, 30, 5), schedule.next(time(2026, 6, 10, 0, 0, 0)) );
+        assertEquals( time(2026, 6, 10, 4, 30, 10), schedule.next(time(2026, 6, 10, 4, 30, 5)) );
+        assertEquals( time(2026, 6, 10, 4, 30, 12), schedule.next(time(2026, 6, 10, 4, 30, 11)) );
+        assertEquals( "next day", time(2026, 6, 11, 4, 30, 5), schedule.next(time(2026, 6, 10, 4, 30, 12)) );
+    }
+
+    @Test
+    public void testFiveFieldsFireOnTheMinute()
+    {
+        CronSchedule schedule = new CronSchedule("30 2 * * *");
+        assertEquals( time(2026, 6, 10, 2, 30, 0), schedule.next(time(2026, 6, 10, 2, 29, 59)+500) );
+        assertEquals( time(2026, 6, 11, 2, 30, 0), schedule.next(time(2026, 6, 10, 2, 30, 0)) );
+    }
+
+    @Test
+    public void testWeekdays()
+    {
+        CronSchedule schedule = new CronSchedule("0 1 * * mon-fri");
+        //Friday after the run to Monday
+        assertEquals( time(2026, 6, 15, 1, 0, 0), schedule.next(time(2026, 6, 12, 2, 0, 0)) );
+    }
+
+    @Test
+    public void testDayOfMonthOrWeekday()
+    {
+        CronSchedule schedule = new CronSchedule("0 0 13 * fri");
+        assertEquals( "Friday", time(2026, 6, 12, 0, 0, 0), schedule.next(time(2026, 6, 10, 0, 0, 0)) );
+        assertEquals( "the 13th", time(2026, 6, 13, 0, 0, 0), schedule.next(time(2026, 6, 12, 0, 0, 0)) );
+    }
+
+    @Test
+    public void testMonthNameAndSundayAsSeven()
+    {
+        CronSchedule schedule = new CronSchedule("0 0 * feb 7");
+        assertEquals( time(2027, 2, 7, 0, 0, 0), schedule.next(time(2026, 6, 10, 0, 0, 0)) );
+    }
+
+    @Test
+    public void testYearly()
+    {
+        CronSchedule schedule = new CronSchedule("@yearly");
+        assertEquals( time(2027, 1, 1, 0, 0, 0), schedule.next(time(2026, 12, 31, 23, 59, 59)) );
+    }
+
+    @Test
+    public void testNoMatch()
+    {
+        assertEquals( -1, new CronSchedule("0 0 31 2 *").next(time(2026, 6, 10, 0, 0, 0)) );
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testSecondOutOfRange()
+    {
+        new CronSchedule("60 * * * * *");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testZeroStep()
+    {
+        new CronSchedule("*/0 * * * * *");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testTooManyFields()
+    {
+        new CronSchedule("0 0 0 * * * *");
+    }
+
+    /**
+     * Returns the time in milliseconds in the default time zone.
+     *
+     * @param year The year.
+     * @param month The month (1-12).
+     * @param day The day of the month.
+     * @param hour The hour.
+     * @param minute The minute.
+     * @param second The second.
+     * @return long
+     */
+    protected static long time(int year, int month, int day, int hour, int minute, int second)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(year, month-1, day, hour, minute, second);
+        return cal.getTimeInMillis();
+    }
+}
\ No newline at end of file
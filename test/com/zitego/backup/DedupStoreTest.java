@@ -0,0 +1,271 @@
+package com.zitego.backup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests storing files in a dedup store and reading them back. The files are random
+ * data, so the only chunks two files share are the ones cut from the same bytes.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class DedupStoreTest
+{
+    /** The size of each file. */
+    protected static final int SIZE = 3*1024*1024;
+    /** Where the insert is made in the changed file. */
+    protected static final int INSERT_AT = 1024*1024 + 17;
+
+    /** The local backup directory. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+    /** The store. */
+    protected DedupStore _store;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _store = open();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (_store != null) _store.close();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        byte[] data = random(1, SIZE);
+        DedupStore.ChunkWriter out = write("db_01012026.sql", data);
+        assertEquals( SIZE, out.getBytes() );
+        assertEquals( "every chunk new", SIZE, out.getNewBytes() );
+        assertArrayEquals( data, read("db_01012026.sql") );
+        assertEquals( "db_01012026.sql", _store.list()[0] );
+
+        //The same file again adds no chunks
+        out = write("db_01022026.sql", data);
+        assertEquals( 0, out.getNewBytes() );
+        assertArrayEquals( data, read("db_01022026.sql") );
+    }
+
+    @Test
+    public void testBoundariesRealignAfterInsert() throws IOException
+    {
+        byte[] data = random(1, SIZE);
+        byte[] changed = insert( data, INSERT_AT, random(2, 100) );
+        write("db_01012026.sql", data);
+        DedupStore.ChunkWriter out = write("db_01022026.sql", changed);
+        assertArrayEquals( changed, read("db_01022026.sql") );
+        assertTrue( "new bytes "+out.getNewBytes(), out.getNewBytes() <= 2*DedupStore.MAX_CHUNK );
+
+        //Past the insert the chunks are the same as the original's
+        Vector before = readRecipe("db_01012026.sql");
+        Vector after = readRecipe("db_01022026.sql");
+        int same = 0;
+        while ( same < before.size() && same < after.size() &&
+                before.get(before.size()-1-same).equals(after.get(after.size()-1-same)) )
+        {
+            same++;
+        }
+        assertTrue( "shared tail of "+same+" of "+before.size()+" chunks", same >= before.size()/2 );
+    }
+
+    @Test
+    public void testGcKeepsChunksOfOtherRecipes() throws IOException
+    {
+        _store._packSize = 1024*1024;
+        byte[] data = random(1, SIZE);
+        byte[] other = random(3, SIZE);
+        byte[] changed = insert( data, INSERT_AT, random(2, 100) );
+        write("db_01012026.sql", data);
+        write("www_01012026.tar", other);
+        write("db_01022026.sql", changed);
+        long packs = packBytes();
+
+        _store.delete("www_01012026.tar");
+        assertTrue( _store.gc() > 0 );
+        assertTrue( "packs shrank", packBytes() < packs-SIZE/2 );
+        assertArrayEquals( data, read("db_01012026.sql") );
+        assertArrayEquals( changed, read("db_01022026.sql") );
+        try
+        {
+            _store.open("www_01012026.tar");
+            fail("The deleted recipe was opened");
+        }
+        catch (IOException ioe)
+        {
+            //Expected
+        }
+
+        //The chunks the changed file shares with the deleted one are kept
+        _store.delete("db_01012026.sql");
+        _store.gc();
+        assertArrayEquals( changed, read("db_01022026.sql") );
+        assertEquals( 1, _store.list().length );
+    }
+
+    @Test
+    public void testRebuildIndexAfterLoss() throws IOException
+    {
+        byte[] data = random(1, SIZE);
+        byte[] changed = insert( data, INSERT_AT, random(2, 100) );
+        write("db_01012026.sql", data);
+        write("db_01022026.sql", changed);
+        _store.close();
+        _store = null;
+        assertTrue( new File(new File(_tmp.getRoot(), DedupStore.DIR_NAME), "index").delete() );
+
+        _store = open();
+        _store.rebuildIndex();
+        assertArrayEquals( data, read("db_01012026.sql") );
+        assertArrayEquals( changed, read("db_01022026.sql") );
+        assertEquals( "chunks found again", 0, write("db_01032026.sql", changed).getNewBytes() );
+
+        //The reference counts were rebuilt, so deleting one recipe keeps the shared chunks
+        _store.delete("db_01012026.sql");
+        _store.delete("db_01032026.sql");
+        _store.gc();
+        assertArrayEquals( changed, read("db_01022026.sql") );
+        assertFalse( _store.getRecipe("db_01012026.sql").exists() );
+    }
+
+    /**
+     * Opens the store in the local backup directory.
+     *
+     * @return DedupStore
+     * @throws IOException
+     */
+    protected DedupStore open() throws IOException
+    {
+        return DedupStore.getInstance( _tmp.getRoot().getPath() );
+    }
+
+    /**
+     * Stores the data under the name.
+     *
+     * @param name The dated file name.
+     * @param data The data.
+     * @return DedupStore.ChunkWriter The committed writer.
+     * @throws IOException
+     */
+    protected DedupStore.ChunkWriter write(String name, byte[] data) throws IOException
+    {
+        DedupStore.ChunkWriter ret = (DedupStore.ChunkWriter)_store.createWriter(name);
+        //Written in uneven pieces so chunks span writes
+        for (int off=0; off<data.length; off+=7919)
+        {
+            ret.write( data, off, Math.min(7919, data.length-off) );
+        }
+        ret.commit();
+        return ret;
+    }
+
+    /**
+     * Reads back the stored file.
+     *
+     * @param name The dated file name.
+     * @return byte[]
+     * @throws IOException
+     */
+    protected byte[] read(String name) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        _store.restore(name, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the chunk digests in the recipe as hex strings.
+     *
+     * @param name The dated file name.
+     * @return Vector
+     * @throws IOException
+     */
+    protected Vector readRecipe(String name) throws IOException
+    {
+        Vector ret = new Vector();
+        DataInputStream in = DedupStore.openRecipe( _store.getRecipe(name) );
+        try
+        {
+            byte[] digest = new byte[32];
+            while (DedupStore.readEntry(in, digest) != -1)
+            {
+                StringBuffer hex = new StringBuffer();
+                for (int i=0; i<digest.length; i++)
+                {
+                    hex.append( Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1) );
+                }
+                ret.add( hex.toString() );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the total size of the packs.
+     *
+     * @return long
+     */
+    protected long packBytes()
+    {
+        File[] packs = new File( new File(_tmp.getRoot(), DedupStore.DIR_NAME), "packs" ).listFiles();
+        long ret = 0;
+        for (int i=0; i<packs.length; i++)
+        {
+            ret += packs[i].length();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns random bytes.
+     *
+     * @param seed The random seed.
+     * @param len The number of bytes.
+     * @return byte[]
+     */
+    protected static byte[] random(long seed, int len)
+    {
+        byte[] ret = new byte[len];
+        new Random(seed).nextBytes(ret);
+        return ret;
+    }
+
+    /**
+     * Returns the data with bytes inserted.
+     *
+     * @param data The data.
+     * @param at Where to insert.
+     * @param bytes The bytes to insert.
+     * @return byte[]
+     */
+    protected static byte[] insert(byte[] data, int at, byte[] bytes)
+    {
+        byte[] ret = Arrays.copyOf(data, data.length+bytes.length);
+        System.arraycopy(bytes, 0, ret, at, bytes.length);
+        System.arraycopy(data, at, ret, at+bytes.length, data.length-at);
+        return ret;
+    }
+}
\ No newline at end of file
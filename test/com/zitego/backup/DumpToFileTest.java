@@ -0,0 +1,190 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests database dumps that are split into parts. The dump command is
+ * bin/synthetic_dump.sh, which prints synthetic SQL for the table it is given, or a
+ * stub script in front of it that makes one of the tables fail. The scripts in bin
+ * are not executable in a checkout, so it is run with sh.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class DumpToFileTest
+{
+    /** The number of rows dumped for each table. */
+    protected static final int ROWS = 2000;
+
+    /** The directory the stub and the backups are created in. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+    /** The dump stub. */
+    protected StubCommands _stubs;
+    /** The local backup directory. */
+    protected File _local;
+    /** The stand-in dump command. */
+    protected File _dump;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _stubs = new StubCommands(_tmp);
+        _local = _tmp.newFolder("backups");
+        _dump = new File("bin/synthetic_dump.sh").getAbsoluteFile();
+        assertTrue( _dump+" exists", _dump.exists() );
+    }
+
+    @Test
+    public void testPartsJoinedInOrder() throws Exception
+    {
+        File file = new File(_local, "db_01012026.sql.gz");
+        long written = createRetriever().dumpToFile
+        (
+            new BackupInstruction
+            (
+                "remote_staged_file=db.sql.gz,dump_cmd=/bin/sh,arg="+_dump+",arg="+ROWS+
+                ",dump_part=users,dump_part=orders,dump_part=items,dump_threads=2"
+            ),
+            file
+        );
+        assertEquals( file.length(), written );
+
+        String sql = read( new GZIPInputStream(new FileInputStream(file)) );
+        int users = sql.indexOf("-- Synthetic dump of users\n");
+        int orders = sql.indexOf("-- Synthetic dump of orders\n");
+        int items = sql.indexOf("-- Synthetic dump of items\n");
+        assertEquals( "users first", 0, users );
+        assertTrue( "orders after users", orders > users );
+        assertTrue( "items after orders", items > orders );
+        assertEquals( "every part completed", 3, count(sql, "-- Dump completed\n") );
+        assertTrue( sql.endsWith("-- Dump completed\n") );
+        assertEquals( "hidden part files removed", 0, countParts(file) );
+    }
+
+    @Test
+    public void testFailedPartFailsDump() throws Exception
+    {
+        //users is dumped straight into the file and takes far longer than orders takes to fail
+        _stubs.write
+        (
+            "dump",
+            "case \"$2\" in\n"+
+            "users) sleep 60;;\n"+
+            "orders) echo \"Table 'orders' doesn't exist\" >&2; exit 2;;\n"+
+            "esac\n"+
+            "exec sh '"+_dump+"' \"$@\"\n"
+        );
+        File file = new File(_local, "db_01012026.sql");
+        long start = System.currentTimeMillis();
+        try
+        {
+            createRetriever().dumpToFile
+            (
+                new BackupInstruction
+                (
+                    "remote_staged_file=db.sql,dump_cmd="+_stubs.get("dump")+",arg="+ROWS+
+                    ",dump_part=users,dump_part=orders,dump_part=items,dump_threads=3"
+                ),
+                file
+            );
+            fail("The dump did not fail");
+        }
+        catch (FileRetrievalException fre)
+        {
+            assertTrue( fre.getMessage(), fre.getMessage().indexOf("orders") != -1 );
+        }
+        assertTrue( "failed before users finished", System.currentTimeMillis()-start < 30000 );
+        assertFalse( "interrupt cleared", Thread.interrupted() );
+        assertFalse( "no local file", file.exists() );
+        assertEquals( "hidden part files removed", 0, countParts(file) );
+    }
+
+    /**
+     * Returns a retriever that dumps into the local backup directory.
+     *
+     * @return LocalFileRetriever
+     */
+    protected LocalFileRetriever createRetriever()
+    {
+        LocalFileRetriever ret = new LocalFileRetriever();
+        ret.setProperties("remote_staging_dir="+_tmp.getRoot()+",local_backup_dir="+_local);
+        return ret;
+    }
+
+    /**
+     * Returns the number of hidden part files of the dump left in the local backup
+     * directory.
+     *
+     * @param file The local file of the dump.
+     * @return int
+     */
+    protected int countParts(File file)
+    {
+        int ret = 0;
+        String[] names = _local.list();
+        for (int i=0; i<names.length; i++)
+        {
+            if ( names[i].startsWith("."+file.getName()+".dump") ) ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the stream as UTF-8 and closes it.
+     *
+     * @param in The stream.
+     * @return String
+     * @throws IOException
+     */
+    protected String read(InputStream in) throws IOException
+    {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try
+        {
+            StringBuffer ret = new StringBuffer();
+            char[] buf = new char[8192];
+            int len;
+            while ( (len=reader.read(buf)) != -1 )
+            {
+                ret.append(buf, 0, len);
+            }
+            return ret.toString();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the number of times the string is in the text.
+     *
+     * @param text The text.
+     * @param s The string.
+     * @return int
+     */
+    protected int count(String text, String s)
+    {
+        int ret = 0;
+        for (int i=text.indexOf(s); i != -1; i=text.indexOf(s, i+s.length()))
+        {
+            ret++;
+        }
+        return ret;
+    }
+}
\ No newline at end of file
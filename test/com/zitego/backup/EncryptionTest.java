@@ -0,0 +1,235 @@
+package com.zitego.backup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests writing files with EncryptingOutputStream and reading them back with
+ * DecryptingInputStream. A small segment size is used so every file has many
+ * segments.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class EncryptionTest
+{
+    /** The number of plain bytes in each segment. */
+    protected static final int SEGMENT = 4096;
+    /** The size of the file, which ends in a partial segment. */
+    protected static final int SIZE = SEGMENT*20 + 123;
+
+    /** The directory the encrypted files are written to. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+    /** The key. */
+    protected EncryptionKey _key;
+    /** The pool to encrypt and decrypt on. */
+    protected ForkJoinPool _pool;
+    /** The plain data. */
+    protected byte[] _data;
+    /** The encrypted file. */
+    protected File _file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        byte[] key = new byte[EncryptionKey.KEY_SIZE];
+        new Random(1).nextBytes(key);
+        _key = new EncryptionKey(key, null);
+        _pool = new ForkJoinPool(4);
+        _data = new byte[SIZE];
+        new Random(2).nextBytes(_data);
+        _file = new File(_tmp.getRoot(), "db_01012026.sql.enc");
+    }
+
+    @After
+    public void tearDown()
+    {
+        _pool.shutdown();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        long written = encrypt(_data);
+        assertEquals( _file.length(), written );
+        assertEquals( EncryptionKey.HEADER_SIZE + SIZE + 21*EncryptionKey.TAG_SIZE, written );
+        assertTrue( EncryptionKey.isEncrypted(_file) );
+        assertArrayEquals( _data, decrypt(new FileInputStream(_file)) );
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException
+    {
+        encrypt( new byte[0] );
+        assertEquals( EncryptionKey.HEADER_SIZE + EncryptionKey.TAG_SIZE, _file.length() );
+        assertEquals( 0, decrypt(new FileInputStream(_file)).length );
+    }
+
+    @Test
+    public void testTamperedSegmentFails() throws IOException
+    {
+        encrypt(_data);
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        try
+        {
+            long pos = EncryptionKey.HEADER_SIZE + 7*(SEGMENT+EncryptionKey.TAG_SIZE) + 100;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 1);
+        }
+        finally
+        {
+            raf.close();
+        }
+        assertDecryptFails();
+    }
+
+    @Test
+    public void testCutShortAtSegmentFails() throws IOException
+    {
+        encrypt(_data);
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        try
+        {
+            raf.setLength( EncryptionKey.HEADER_SIZE + 10*(SEGMENT+EncryptionKey.TAG_SIZE) );
+        }
+        finally
+        {
+            raf.close();
+        }
+        assertDecryptFails();
+    }
+
+    @Test
+    public void testWrongKeyFails() throws IOException
+    {
+        encrypt(_data);
+        byte[] key = new byte[EncryptionKey.KEY_SIZE];
+        new Random(3).nextBytes(key);
+        _key = new EncryptionKey(key, null);
+        assertDecryptFails();
+    }
+
+    @Test
+    public void testSeek() throws IOException
+    {
+        encrypt(_data);
+        DecryptingInputStream in = new DecryptingInputStream( new RandomAccessFile(_file, "r").getChannel(), _key, _pool );
+        try
+        {
+            assertEquals( SIZE, in.getSize() );
+            int[] positions = { SEGMENT*13 + 5, 17, SEGMENT*20, SEGMENT*20 + 122 };
+            for (int i=0; i<positions.length; i++)
+            {
+                in.seek( positions[i] );
+                assertEquals( positions[i], in.getPosition() );
+                assertEquals( "byte at "+positions[i], _data[positions[i]] & 0xff, in.read() );
+            }
+
+            in.seek(0);
+            assertEquals( SEGMENT*15, in.skip(SEGMENT*15) );
+            byte[] rest = new byte[SIZE-SEGMENT*15];
+            int off = 0;
+            int len;
+            while ( off < rest.length && (len=in.read(rest, off, rest.length-off)) != -1 )
+            {
+                off += len;
+            }
+            assertArrayEquals( Arrays.copyOfRange(_data, SEGMENT*15, SIZE), rest );
+            assertEquals( -1, in.read() );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Encrypts the data into the file.
+     *
+     * @param data The data.
+     * @return long The number of encrypted bytes written.
+     * @throws IOException
+     */
+    protected long encrypt(byte[] data) throws IOException
+    {
+        EncryptingOutputStream out = new EncryptingOutputStream( new AtomicFileOutputStream(_file), _key, SEGMENT, _pool );
+        try
+        {
+            //Written in uneven pieces so segments span writes
+            for (int off=0; off<data.length; off+=3001)
+            {
+                out.write( data, off, Math.min(3001, data.length-off) );
+            }
+            out.commit();
+        }
+        finally
+        {
+            out.abort();
+        }
+        return out.getBytesWritten();
+    }
+
+    /**
+     * Reads and decrypts the stream and closes it.
+     *
+     * @param in The encrypted stream.
+     * @return byte[]
+     * @throws IOException
+     */
+    protected byte[] decrypt(InputStream in) throws IOException
+    {
+        DecryptingInputStream dec = new DecryptingInputStream(in, _key, _pool);
+        try
+        {
+            ByteArrayOutputStream ret = new ByteArrayOutputStream();
+            byte[] buf = new byte[5000];
+            int len;
+            while ( (len=dec.read(buf)) != -1 )
+            {
+                ret.write(buf, 0, len);
+            }
+            return ret.toByteArray();
+        }
+        finally
+        {
+            dec.close();
+        }
+    }
+
+    /**
+     * Checks that decrypting the file fails.
+     *
+     * @throws IOException
+     */
+    protected void assertDecryptFails() throws IOException
+    {
+        try
+        {
+            decrypt( new FileInputStream(_file) );
+            fail("The damaged file was decrypted");
+        }
+        catch (IOException ioe)
+        {
+            //Expected
+        }
+    }
+}
\ No newline at end of file
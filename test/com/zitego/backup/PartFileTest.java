@@ -0,0 +1,171 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests resuming partial downloads. A resumable copy is run through an ssh stub
+ * that runs the remote command on this host, so the "remote" file is a local file.
+ * The stub kills itself part way through the first tail, the way a dropped
+ * connection would end the transfer.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class PartFileTest
+{
+    /** The size of the file that is copied. */
+    protected static final int SIZE = 12*1024*1024 + 345;
+    /** The number of bytes the first transfer gets before it is killed. */
+    protected static final int KILLED_AT = 10*1024*1024 + 123;
+
+    /** The directory the stub, the "remote" file, and the backups are created in. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+    /** The ssh stub. */
+    protected StubCommands _stubs;
+    /** The staging directory on the "remote" server. */
+    protected File _staging;
+    /** The local backup directory. */
+    protected File _local;
+    /** The contents of the staged file. */
+    protected byte[] _data;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _stubs = new StubCommands(_tmp);
+        _staging = _tmp.newFolder("remote staging");
+        _local = _tmp.newFolder("backups");
+        _data = new byte[SIZE];
+        new Random(8).nextBytes(_data);
+        OutputStream out = new FileOutputStream( new File(_staging, "data.bin") );
+        try
+        {
+            out.write(_data);
+        }
+        finally
+        {
+            out.close();
+        }
+        _stubs.write
+        (
+            "ssh",
+            "shift\n"+
+            "echo \"$*\" >> '"+_stubs.getCallLog()+"'\n"+
+            "case \"$*\" in\n"+
+            "tail*)\n"+
+            "    if [ -f '"+_stubs.get("kill_at")+"' ]; then\n"+
+            "        n=`cat '"+_stubs.get("kill_at")+"'`\n"+
+            "        rm '"+_stubs.get("kill_at")+"'\n"+
+            "        sh -c \"$*\" | head -c $n\n"+
+            "        kill -9 $$\n"+
+            "    fi;;\n"+
+            "esac\n"+
+            "exec sh -c \"$*\"\n"
+        );
+    }
+
+    @Test
+    public void testResumeAfterKilledTransfer() throws Exception
+    {
+        Files.write( _stubs.get("kill_at").toPath(), String.valueOf(KILLED_AT).getBytes("UTF-8") );
+        BackupInstruction instr = new BackupInstruction("data.bin", null, null);
+        try
+        {
+            createRetriever().retrieveFile(instr);
+            fail("The killed transfer did not fail");
+        }
+        catch (FileRetrievalException fre)
+        {
+            //Expected
+        }
+        PartFile part = new PartFile(_local, "data.bin");
+        assertTrue( "part file kept", part.exists() );
+        assertEquals( "checkpointed offset", KILLED_AT, part.getOffset() );
+        assertEquals( "part file length", KILLED_AT, part.getFile().length() );
+
+        SSHFileRetriever retriever = createRetriever();
+        retriever.retrieveFile(instr);
+        List calls = _stubs.readCalls();
+        assertEquals( "tail -c +1 '"+_staging+"/data.bin'", calls.get(1) );
+        assertEquals( "resumed at", "tail -c +"+(KILLED_AT+1)+" '"+_staging+"/data.bin'", calls.get(calls.size()-2) );
+        assertFalse( "part file removed", new PartFile(_local, "data.bin").exists() );
+        File copy = new File( _local, retriever.getDatedFilename("data.bin") );
+        assertArrayEquals( _data, Files.readAllBytes(copy.toPath()) );
+    }
+
+    @Test
+    public void testCrashKeepsLastCheckpoint() throws IOException
+    {
+        PartFile part = new PartFile(_local, "data.bin");
+        part.start( "/var/backup/data.bin", SIZE, 1000 );
+        OutputStream out = part.openOutput();
+        for (int i=0; i<9; i++)
+        {
+            out.write( _data, i*1024*1024, 1024*1024 );
+        }
+        //The stream is not closed, as if the process died, so only the checkpoint is recorded
+        part = new PartFile(_local, "data.bin");
+        assertTrue( part.matches("/var/backup/data.bin", SIZE, 1000) );
+        assertEquals( PartFile.CHECKPOINT_BYTES, part.getOffset() );
+        assertEquals( PartFile.CHECKPOINT_BYTES, part.verify() );
+        assertEquals( "cut back to the checkpoint", PartFile.CHECKPOINT_BYTES, part.getFile().length() );
+        out.close();
+    }
+
+    @Test
+    public void testDamagedPartFileStartsOver() throws IOException
+    {
+        PartFile part = new PartFile(_local, "data.bin");
+        part.start( "/var/backup/data.bin", SIZE, 1000 );
+        OutputStream out = part.openOutput();
+        out.write( _data, 0, KILLED_AT );
+        out.close();
+        RandomAccessFile raf = new RandomAccessFile(part.getFile(), "rw");
+        try
+        {
+            raf.seek(4096);
+            raf.write( ~_data[4096] );
+        }
+        finally
+        {
+            raf.close();
+        }
+        part = new PartFile(_local, "data.bin");
+        assertEquals( KILLED_AT, part.getOffset() );
+        assertEquals( 0, part.verify() );
+        assertEquals( 0, part.getFile().length() );
+    }
+
+    /**
+     * Returns a retriever that resumes downloads through the ssh stub.
+     *
+     * @return SSHFileRetriever
+     */
+    protected SSHFileRetriever createRetriever()
+    {
+        SSHFileRetriever ret = new SSHFileRetriever();
+        ret.setProperties
+        (
+            "ssh_cmd="+_stubs.get("ssh")+",user=backup,remote_server=db1.example.com"+
+            ",remote_staging_dir="+_staging+",local_backup_dir="+_local+",resume=true"
+        );
+        return ret;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,49 @@
+package com.zitego.backup;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests running commands whose standard out is copied to a stream.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ProcessRunnerTest
+{
+    @Test
+    public void testOutputCopied() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProcessResult result = new ProcessRunner().run
+        (
+            new String[] { "/bin/sh", "-c", "echo one; echo two" }, out, 0
+        );
+        assertTrue( result.getFailureReason(false), result.isSuccess(false) );
+        assertEquals( "one\ntwo\n", out.toString("UTF-8") );
+        assertEquals( 8, result.getBytes() );
+    }
+
+    @Test
+    public void testBackgroundChildDoesNotHangWithoutDeadline() throws Exception
+    {
+        //The background sleep keeps standard out open after the shell exits. The shell waits
+        //a second first so the copier is blocked reading when it exits, since otherwise the
+        //JVM may read what is left in the pipe and close it when it sees the process exit.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        ProcessResult result = new ProcessRunner().run
+        (
+            new String[] { "/bin/sh", "-c", "echo started; sleep 60 2>/dev/null & sleep 1; exit 0" }, out, 0
+        );
+        assertTrue( "returned after the drain wait", System.currentTimeMillis()-start < 30000 );
+        assertEquals( 0, result.getExitCode() );
+        assertTrue( result.isDrainFailed() );
+        assertFalse( result.isTimedOut() );
+        assertFalse( result.isSuccess(false) );
+        assertEquals( "started\n", out.toString("UTF-8") );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests running instructions through the retrieval pipeline. The retriever's copy
+ * stage sleeps instead of copying and then checks the instruction's deadline the way
+ * a command run for the instruction would.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RetrievalPipelineTest
+{
+    /** The time (in milliseconds) each copy takes. */
+    protected static final long COPY_MILLIS = 1500;
+
+    /** The local backup directory. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    @Test
+    public void testQueuedTimeNotCountedAgainstTimeout() throws Exception
+    {
+        //Each copy fits in the timeout, but the third is queued for two copies
+        SlowRetriever retriever = createRetriever();
+        new RetrievalPipeline( retriever, 3, Logger.getInstance("com.zitego.backup") ).retrieveFiles
+        (
+            new BackupInstruction[]
+            {
+                new BackupInstruction("a.sql", null, null),
+                new BackupInstruction("b.sql", null, null),
+                new BackupInstruction("c.sql", null, null)
+            }
+        );
+        assertEquals( 3, retriever._copied );
+    }
+
+    @Test
+    public void testSlowCopyStillTimesOut() throws Exception
+    {
+        SlowRetriever retriever = createRetriever();
+        retriever._copyMillis = 2500;
+        try
+        {
+            new RetrievalPipeline( retriever, 2, Logger.getInstance("com.zitego.backup") ).retrieveFiles
+            (
+                new BackupInstruction[] { new BackupInstruction("a.sql", null, null) }
+            );
+            fail("The copy did not time out");
+        }
+        catch (FileRetrievalException fre)
+        {
+            //Expected
+        }
+        assertEquals( 0, retriever._copied );
+    }
+
+    /**
+     * Returns a retriever with an instruction timeout of two seconds.
+     *
+     * @return SlowRetriever
+     * @throws IOException
+     */
+    protected SlowRetriever createRetriever() throws IOException
+    {
+        SlowRetriever ret = new SlowRetriever();
+        ret.setProperties
+        (
+            "remote_staging_dir="+_tmp.newFolder("staging")+",local_backup_dir="+_tmp.newFolder("backups")+
+            ",instruction_timeout=2"
+        );
+        return ret;
+    }
+
+    /**
+     * A retriever whose prepare and clean stages do nothing and whose copy stage
+     * sleeps and then fails if the instruction's deadline passed.
+     */
+    protected static class SlowRetriever extends LocalFileRetriever
+    {
+        /** The time (in milliseconds) each copy takes. */
+        protected long _copyMillis = COPY_MILLIS;
+        /** The number of instructions copied before their deadline. */
+        protected int _copied = 0;
+
+        public void prepareFile(BackupInstruction instr)
+        {
+            startInstruction(instr);
+        }
+
+        public void copyFile(BackupInstruction instr) throws FileRetrievalException
+        {
+            try
+            {
+                Thread.sleep(_copyMillis);
+            }
+            catch (InterruptedException ie)
+            {
+                throw new FileRetrievalException("Interrupted copying "+instr.remoteStagedFile);
+            }
+            if ( System.currentTimeMillis() >= getDeadline(instr) )
+            {
+                throw new FileRetrievalException("Instruction timed out: "+instr.remoteStagedFile);
+            }
+            synchronized (this)
+            {
+                _copied++;
+            }
+        }
+
+        public void cleanFile(BackupInstruction instr) { }
+    }
+}
\ No newline at end of file
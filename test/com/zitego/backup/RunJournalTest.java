@@ -0,0 +1,154 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests continuing an interrupted run from its journal. A run is "interrupted" by
+ * not ending or closing the journal and reading the file again with a new one.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RunJournalTest
+{
+    /** The properties file path of the job. */
+    protected static final String JOB = "/etc/backup/db1.properties";
+
+    /** The directory the journal is created in. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+    /** The journal file. */
+    protected File _file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _file = new File(_tmp.getRoot(), "run.journal");
+    }
+
+    @Test
+    public void testInterruptedRunContinues() throws IOException
+    {
+        RunJournal journal = new RunJournal(_file);
+        journal.begin();
+        journal.record( JOB, "db.sql.gz", "db_01012026.sql.gz", RunJournal.PREPPED );
+        journal.record( JOB, "db.sql.gz", "db_01012026.sql.gz", RunJournal.RETRIEVED );
+        journal.record( JOB, "www.tar.gz", "www_01012026.tar.gz", RunJournal.CLEANED );
+        journal.recordJob( JOB, RunJournal.ARCHIVED );
+
+        journal = new RunJournal(_file);
+        assertTrue( journal.isUnfinished() );
+        journal.begin();
+        assertTrue( journal.isResumed() );
+        assertEquals( RunJournal.RETRIEVED, journal.getState(JOB, "db.sql.gz", "db_01012026.sql.gz") );
+        assertEquals( RunJournal.CLEANED, journal.getState(JOB, "www.tar.gz", "www_01012026.tar.gz") );
+        assertEquals( RunJournal.ARCHIVED, journal.getJobState(JOB) );
+        assertNull( "other date", journal.getState(JOB, "db.sql.gz", "db_01022026.sql.gz") );
+
+        //The rewritten journal still has the states after a second interruption
+        journal.record( JOB, "db.sql.gz", "db_01012026.sql.gz", RunJournal.VERIFIED );
+        journal = new RunJournal(_file);
+        assertTrue( journal.isUnfinished() );
+        assertEquals( RunJournal.VERIFIED, journal.getState(JOB, "db.sql.gz", "db_01012026.sql.gz") );
+        assertEquals( RunJournal.CLEANED, journal.getState(JOB, "www.tar.gz", "www_01012026.tar.gz") );
+    }
+
+    @Test
+    public void testFinishedRunStartsOver() throws IOException
+    {
+        RunJournal journal = new RunJournal(_file);
+        journal.begin();
+        journal.record( JOB, "db.sql.gz", "db_01012026.sql.gz", RunJournal.CLEANED );
+        journal.end();
+        journal.close();
+
+        journal = new RunJournal(_file);
+        assertFalse( journal.isUnfinished() );
+        journal.begin();
+        assertFalse( journal.isResumed() );
+        assertNull( journal.getState(JOB, "db.sql.gz", "db_01012026.sql.gz") );
+    }
+
+    @Test
+    public void testPartialLastLineIgnored() throws IOException
+    {
+        RunJournal journal = new RunJournal(_file);
+        journal.begin();
+        journal.record( JOB, "db.sql.gz", "db_01012026.sql.gz", RunJournal.PREPPED );
+        OutputStream out = new FileOutputStream(_file, true);
+        try
+        {
+            out.write( ("I\t"+System.currentTimeMillis()+"\t"+JOB+"\tdb.sql.gz\tdb_01012026.sql.gz\tretr").getBytes("UTF-8") );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        journal = new RunJournal(_file);
+        assertEquals( RunJournal.PREPPED, journal.getState(JOB, "db.sql.gz", "db_01012026.sql.gz") );
+    }
+
+    @Test
+    public void testConcurrentRecordsAllSynced() throws Exception
+    {
+        final RunJournal journal = new RunJournal(_file);
+        journal.begin();
+        Thread[] threads = new Thread[8];
+        final IOException[] failure = new IOException[1];
+        for (int i=0; i<threads.length; i++)
+        {
+            final String instr = "file"+i+".tar.gz";
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j=0; j<RunJournal.STATES.length-1; j++)
+                        {
+                            journal.record( JOB, instr, "dated_"+instr, RunJournal.STATES[j] );
+                        }
+                    }
+                    catch (IOException ioe)
+                    {
+                        failure[0] = ioe;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i=0; i<threads.length; i++)
+        {
+            threads[i].join();
+        }
+        assertNull( String.valueOf(failure[0]), failure[0] );
+
+        RunJournal reread = new RunJournal(_file);
+        for (int i=0; i<threads.length; i++)
+        {
+            String instr = "file"+i+".tar.gz";
+            assertEquals( instr, RunJournal.CLEANED, reread.getState(JOB, instr, "dated_"+instr) );
+        }
+    }
+
+    @Test
+    public void testIsAtLeast()
+    {
+        assertTrue( RunJournal.isAtLeast(RunJournal.VERIFIED, RunJournal.RETRIEVED) );
+        assertTrue( RunJournal.isAtLeast(RunJournal.RETRIEVED, RunJournal.RETRIEVED) );
+        assertFalse( RunJournal.isAtLeast(RunJournal.TRANSFERRING, RunJournal.RETRIEVED) );
+        assertFalse( RunJournal.isAtLeast(null, RunJournal.PREPPED) );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,382 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests how many connections SSHFileRetriever opens and how it makes delta copies.
+ * The ssh, scp, and rsync commands are stub scripts named ssh, scp, and rsync in a
+ * bin directory that log their arguments to calls.log instead of connecting
+ * anywhere. A command that is sent through a shared connection has ControlMaster=no
+ * on its command line and one that starts the shared connection has -M. Starting a
+ * shared connection to slow.example.com takes the ssh stub a few seconds.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class SSHFileRetrieverTest
+{
+    /** The directory the stubs, sockets, and backups are created in. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+    /** The ssh, scp, and rsync stubs. */
+    protected StubCommands _stubs;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        RunMetrics.getInstance().start();
+        _stubs = new StubCommands(_tmp);
+        writeStubs(true);
+    }
+
+    @Test
+    public void testReuseConnection() throws Exception
+    {
+        SSHFileRetriever first = createRetriever(true);
+        SSHFileRetriever second = createRetriever(true);
+        first.beginSession();
+        second.beginSession();
+        first.retrieveFile( new BackupInstruction("site.tgz", "/usr/local/bin/prep_site.sh", null) );
+        second.retrieveFile( new BackupInstruction("db.sql", "/usr/local/bin/prep_db.sh", null) );
+        first.endSession();
+        assertEquals( "master closed while in use", 0, count("-O exit") );
+        second.endSession();
+
+        assertEquals( "masters started", 1, count("-M") );
+        assertEquals( "masters closed", 1, count("-O exit") );
+        assertEquals( "commands sent through the master", 6, count("ControlMaster=no") );
+        assertEquals( "connections opened", 1, connectionsOpened() );
+    }
+
+    @Test
+    public void testConnectionPerCommand() throws Exception
+    {
+        SSHFileRetriever retriever = createRetriever(false);
+        retriever.beginSession();
+        retriever.retrieveFile( new BackupInstruction("site.tgz", "/usr/local/bin/prep_site.sh", null) );
+        retriever.endSession();
+
+        assertEquals( "masters started", 0, count("-M") );
+        assertEquals( "masters closed", 0, count("-O exit") );
+        assertEquals( "commands sent through a master", 0, count("ControlMaster=no") );
+        assertEquals( "connections opened", 3, connectionsOpened() );
+    }
+
+    @Test
+    public void testMasterFailureFallsBack() throws Exception
+    {
+        writeStubs(false);
+        SSHFileRetriever retriever = createRetriever(true);
+        retriever.beginSession();
+        retriever.retrieveFile( new BackupInstruction("site.tgz", "/usr/local/bin/prep_site.sh", null) );
+        retriever.endSession();
+
+        assertEquals( "masters started", 1, count("-M") );
+        assertEquals( "masters closed", 0, count("-O exit") );
+        assertEquals( "commands sent through a master", 0, count("ControlMaster=no") );
+        assertEquals( "connections opened", 4, connectionsOpened() );
+    }
+
+    @Test
+    public void testFailedMasterNotRetried() throws Exception
+    {
+        writeStubs(false);
+        SSHFileRetriever first = createRetriever(true);
+        SSHFileRetriever second = createRetriever(true);
+        first.beginSession();
+        second.beginSession();
+        assertEquals( "masters started while one has failed", 1, count("-M") );
+        first.endSession();
+        second.endSession();
+
+        SSHFileRetriever third = createRetriever(true);
+        third.beginSession();
+        third.endSession();
+        assertEquals( "retried once every session ended", 2, count("-M") );
+    }
+
+    @Test
+    public void testSlowMasterDoesNotBlockOtherHosts() throws Exception
+    {
+        final SSHFileRetriever slow = createRetriever(true, ",remote_server=slow.example.com");
+        Thread thread = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    slow.beginSession();
+                }
+                catch (FileRetrievalException fre) { }
+            }
+        };
+        thread.start();
+        while (count("-M") == 0) Thread.sleep(10);
+
+        SSHFileRetriever fast = createRetriever(true);
+        long start = System.currentTimeMillis();
+        fast.beginSession();
+        fast.endSession();
+        assertTrue( "waited on the slow host", System.currentTimeMillis()-start < 2000 );
+        thread.join();
+        slow.endSession();
+        assertEquals( "masters started", 2, count("-M") );
+        assertEquals( "masters closed", 2, count("-O exit") );
+    }
+
+    @Test
+    public void testControlDirIsPrivate() throws Exception
+    {
+        String home = System.getProperty("user.home");
+        System.setProperty( "user.home", _tmp.newFolder("home").getPath() );
+        try
+        {
+            SSHFileRetriever retriever = new SSHFileRetriever();
+            retriever.setProperties
+            (
+                "ssh_cmd="+_stubs.get("ssh")+",user=backup,remote_server=db1.example.com,reuse_connection=true"
+            );
+            retriever.beginSession();
+            retriever.endSession();
+            File dir = new File(System.getProperty("user.home"), ".ssh/backup");
+            assertEquals( "rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.toPath())) );
+            String master = (String)_stubs.readCalls().get(0);
+            assertTrue( master, master.startsWith("ssh -M -N -f -o ControlPath="+dir+"/backup-backup@db1.example.com ") );
+        }
+        finally
+        {
+            System.setProperty("user.home", home);
+        }
+    }
+
+    @Test
+    public void testSharedControlDirNotUsed() throws Exception
+    {
+        File dir = _tmp.newFolder("shared");
+        Files.setPosixFilePermissions( dir.toPath(), PosixFilePermissions.fromString("rwxrwxrwx") );
+        SSHFileRetriever retriever = createRetriever(true, ",control_dir="+dir);
+        retriever.beginSession();
+        retriever.retrieveFile( new BackupInstruction("site.tgz", "/usr/local/bin/prep_site.sh", null) );
+        retriever.endSession();
+
+        assertEquals( "masters started", 0, count("-M") );
+        assertEquals( "connections opened", 3, connectionsOpened() );
+    }
+
+    @Test
+    public void testCopyRenamedWhenComplete() throws Exception
+    {
+        SSHFileRetriever retriever = createRetriever(false);
+        retriever.retrieveFile( new BackupInstruction("site.tgz", "/usr/local/bin/prep_site.sh", null) );
+
+        File local = new File( retriever.getLocalBackupDir(), retriever.getDatedFilename("site.tgz") );
+        assertEquals( "staged file\n", new String(Files.readAllBytes(local.toPath()), "UTF-8") );
+        assertFalse( "temporary file left", AtomicFileOutputStream.getTempFile(local).exists() );
+        assertEquals( "copied to the temporary file", 1, count(AtomicFileOutputStream.getTempFile(local).getPath()) );
+    }
+
+    @Test
+    public void testFailedCopyLeavesNoDatedFile() throws Exception
+    {
+        _stubs.write
+        (
+            "scp",
+            "echo \"scp $*\" >> '"+_stubs.getCallLog()+"'\n"+
+            "for last; do :; done\n"+
+            "echo 'staged' > \"$last\"\n"+
+            "exit 1\n"
+        );
+        SSHFileRetriever retriever = createRetriever(false);
+        try
+        {
+            retriever.retrieveFile( new BackupInstruction("site.tgz", "/usr/local/bin/prep_site.sh", null) );
+            fail("The failed copy did not fail");
+        }
+        catch (FileRetrievalException fre)
+        {
+            //Expected
+        }
+        File local = new File( retriever.getLocalBackupDir(), retriever.getDatedFilename("site.tgz") );
+        assertFalse( "cut short dated file", local.exists() );
+        assertFalse( "temporary file left", AtomicFileOutputStream.getTempFile(local).exists() );
+    }
+
+    @Test
+    public void testDeltaSavedInMetrics() throws Exception
+    {
+        SSHFileRetriever retriever = createRetriever(false, ",delta=true,rsync_cmd="+_stubs.get("rsync"));
+        addPreviousCopy(retriever);
+        retriever.retrieveFile( new BackupInstruction("site.tgz", "/usr/local/bin/prep_site.sh", null) );
+
+        assertEquals( "rsync copies", 1, count("rsync") );
+        assertEquals( "scp copies", 0, count("scp") );
+        assertTrue
+        (
+            readPrometheus().contains
+            (
+                "backup_delta_saved_bytes_total{properties=\"sample.properties\",host=\"db1.example.com\",instruction=\"site.tgz\"} 5242880"
+            )
+        );
+    }
+
+    @Test
+    public void testNoDeltaWithLocalCompress() throws Exception
+    {
+        SSHFileRetriever retriever = createRetriever
+        (
+            false, ",delta=true,rsync_cmd="+_stubs.get("rsync")+",local_compress=true"
+        );
+        addPreviousCopy(retriever);
+        retriever.retrieveFile( new BackupInstruction("site.tgz", "/usr/local/bin/prep_site.sh", null) );
+
+        assertEquals( "rsync copies", 0, count("rsync") );
+        assertEquals( "scp copies", 1, count("scp") );
+        assertFalse( readPrometheus().contains("backup_delta_saved_bytes_total{") );
+    }
+
+    /**
+     * Returns a retriever that runs the stubs. Each test has its own control_dir,
+     * so the shared connections of one test are not seen by another.
+     *
+     * @param reuse Whether to reuse the connection.
+     * @return SSHFileRetriever
+     * @throws IOException
+     */
+    protected SSHFileRetriever createRetriever(boolean reuse) throws IOException
+    {
+        return createRetriever(reuse, "");
+    }
+
+    /**
+     * Returns a retriever that runs the stubs with more properties.
+     *
+     * @param reuse Whether to reuse the connection.
+     * @param props The properties to add, starting with a comma.
+     * @return SSHFileRetriever
+     * @throws IOException
+     */
+    protected SSHFileRetriever createRetriever(boolean reuse, String props) throws IOException
+    {
+        SSHFileRetriever ret = new SSHFileRetriever();
+        ret.setProperties
+        (
+            "ssh_cmd="+_stubs.get("ssh")+",scp_cmd="+_stubs.get("scp")+
+            ",clean_script=/usr/local/bin/clean_backup_files.sh,user=backup,remote_server=db1.example.com"+
+            ",remote_staging_dir=/var/backup/staging,local_backup_dir="+_tmp.newFolder()+
+            ",reuse_connection="+reuse+",control_dir="+new File(_tmp.getRoot(), "control")+props
+        );
+        ret.setJobName("sample.properties");
+        return ret;
+    }
+
+    /**
+     * Adds an earlier copy of site.tgz to the retriever's local backup directory and
+     * catalog for a delta copy to start from.
+     *
+     * @param retriever The retriever.
+     * @throws IOException
+     */
+    protected void addPreviousCopy(SSHFileRetriever retriever) throws IOException
+    {
+        File previous = new File(retriever.getLocalBackupDir(), "site_01012020.tgz");
+        Files.write( previous.toPath(), "staged fil".getBytes("UTF-8") );
+        BackupCatalog.getInstance( retriever.getLocalBackupDir() ).add
+        (
+            "site.tgz", "db1.example.com", previous.getName(), previous.length(), "0"
+        );
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text format.
+     *
+     * @return String
+     * @throws IOException
+     */
+    protected String readPrometheus() throws IOException
+    {
+        File prom = new File(_tmp.getRoot(), "backup.prom");
+        RunMetrics.getInstance().writePrometheus(prom);
+        return new String( Files.readAllBytes(prom.toPath()), "UTF-8" );
+    }
+
+    /**
+     * Writes the ssh, scp, and rsync stubs. The ssh stub prints the end of file marker
+     * the remote scripts print. The scp and rsync stubs write the file they are asked
+     * to copy and rsync prints the statistics of a delta copy.
+     *
+     * @param masterStarts Whether the ssh stub can start a master connection.
+     * @throws IOException
+     */
+    protected void writeStubs(boolean masterStarts) throws IOException
+    {
+        _stubs.write
+        (
+            "ssh",
+            "echo \"ssh $*\" >> '"+_stubs.getCallLog()+"'\n"+
+            "case \" $* \" in\n"+
+            "*\" -M \"*slow.example.com*) sleep 3; exit 0;;\n"+
+            "*\" -M \"*) exit "+(masterStarts ? 0 : 255)+";;\n"+
+            "*\" -O exit \"*) exit 0;;\n"+
+            "esac\n"+
+            "echo '----- EOF -----'\n"
+        );
+        _stubs.write
+        (
+            "scp",
+            "echo \"scp $*\" >> '"+_stubs.getCallLog()+"'\n"+
+            "for last; do :; done\n"+
+            "echo 'staged file' > \"$last\"\n"
+        );
+        _stubs.write
+        (
+            "rsync",
+            "echo \"rsync $*\" >> '"+_stubs.getCallLog()+"'\n"+
+            "for last; do :; done\n"+
+            "echo 'staged file' > \"$last\"\n"+
+            "echo 'Literal data: 1,024 bytes'\n"+
+            "echo 'Matched data: 5,242,880 bytes'\n"
+        );
+    }
+
+    /**
+     * Returns the number of stub command lines that contain the string.
+     *
+     * @param s The string.
+     * @return int
+     * @throws IOException
+     */
+    protected int count(String s) throws IOException
+    {
+        int ret = 0;
+        List lines = _stubs.readCalls();
+        for (int i=0; i<lines.size(); i++)
+        {
+            if ( (" "+lines.get(i)+" ").indexOf(" "+s+" ") != -1 ) ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of stub command lines that opened a connection of their own,
+     * which is every one that neither went through a master nor closed one.
+     *
+     * @return int
+     * @throws IOException
+     */
+    protected int connectionsOpened() throws IOException
+    {
+        return _stubs.readCalls().size() - count("ControlMaster=no") - count("-O exit");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,107 @@
+package com.zitego.backup;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Vector;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A bin directory of stub shell scripts that tests put in place of ssh, scp, rsync,
+ * or a dump command. The retrievers are given the scripts by path since a test
+ * cannot change the PATH of its own JVM. Stubs that want to show what they were run
+ * with append their command lines to calls.log in the directory.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class StubCommands
+{
+    /** The directory with the stubs. */
+    protected File _dir;
+    /** The log the stubs write their command lines to. */
+    protected File _calls;
+
+    /**
+     * Creates the bin directory in the test's temporary folder.
+     *
+     * @param tmp The temporary folder.
+     * @throws IOException
+     */
+    public StubCommands(TemporaryFolder tmp) throws IOException
+    {
+        _dir = tmp.newFolder("bin");
+        _calls = new File(_dir, "calls.log");
+    }
+
+    /**
+     * Returns the bin directory.
+     *
+     * @return File
+     */
+    public File getDir()
+    {
+        return _dir;
+    }
+
+    /**
+     * Returns the log the stubs write their command lines to.
+     *
+     * @return File
+     */
+    public File getCallLog()
+    {
+        return _calls;
+    }
+
+    /**
+     * Returns the path of a stub.
+     *
+     * @param name The script name.
+     * @return File
+     */
+    public File get(String name)
+    {
+        return new File(_dir, name);
+    }
+
+    /**
+     * Writes an executable shell script to the bin directory.
+     *
+     * @param name The script name.
+     * @param body The script after the #! line.
+     * @return File The script.
+     * @throws IOException
+     */
+    public File write(String name, String body) throws IOException
+    {
+        File script = get(name);
+        FileWriter out = new FileWriter(script);
+        try
+        {
+            out.write("#!/bin/sh\n"+body);
+        }
+        finally
+        {
+            out.close();
+        }
+        assertTrue( script.setExecutable(true) );
+        return script;
+    }
+
+    /**
+     * Returns the command lines the stubs logged or none if no stub logged any.
+     *
+     * @return List
+     * @throws IOException
+     */
+    public List readCalls() throws IOException
+    {
+        if ( !_calls.exists() ) return new Vector();
+        return Files.readAllLines( _calls.toPath(), Charset.forName("UTF-8") );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,214 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests archiving a directory with TarArchiver. The archives are extracted with
+ * TarExtractor, and with tar when it is installed, and compared to the directory.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class TarArchiverTest
+{
+    /** A path longer than fits in a ustar header. */
+    protected static final String LONG_PATH =
+        "var/www/site/assets/a-directory-name-that-goes-on-for-quite-a-while/"+
+        "and-another-one-below-it-that-is-just-as-long/logo-with-a-long-name.png";
+
+    /** The directories that are archived and extracted into. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+    /** The directory that is archived. */
+    protected File _src;
+    /** The logger. */
+    protected Logger _logger;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _logger = Logger.getInstance("com.zitego.backup");
+        _src = _tmp.newFolder("src");
+        write( "etc/app/app.conf", "port=8080\n".getBytes("UTF-8") );
+        write( "etc/app/secret.key", random(1, 64) );
+        write( "var/lib/db/data.bin", random(2, TarArchiver.SMALL_FILE*3 + 77) );
+        write( LONG_PATH, random(3, 5000) );
+        write( "bin/run.sh", "#!/bin/sh\nexit 0\n".getBytes("UTF-8") );
+        Files.setPosixFilePermissions( new File(_src, "bin/run.sh").toPath(), PosixFilePermissions.fromString("rwxr-x---") );
+        Files.setPosixFilePermissions( new File(_src, "etc/app/secret.key").toPath(), PosixFilePermissions.fromString("rw-------") );
+        assertTrue( new File(_src, "var/empty").mkdirs() );
+        Files.createSymbolicLink( new File(_src, "etc/app/current.conf").toPath(), new File("app.conf").toPath() );
+        new File(_src, "etc/app/app.conf").setLastModified(1500000000000L);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        TarArchiver tar = new TarArchiver(_logger, _src, 4);
+        byte[] archive = archive(tar);
+        assertEquals( 0, archive.length % TarArchiver.RECORD_SIZE );
+        File dest = extract(archive);
+        assertSameTree(_src, dest);
+        assertEquals( 1500000000000L, new File(dest, "etc/app/app.conf").lastModified() );
+        assertEquals( "rwxr-x---", perms(new File(dest, "bin/run.sh")) );
+        assertEquals( "rw-------", perms(new File(dest, "etc/app/secret.key")) );
+    }
+
+    @Test
+    public void testSameTreeSameBytes() throws IOException
+    {
+        assertArrayEquals( archive(new TarArchiver(_logger, _src, 1)), archive(new TarArchiver(_logger, _src, 8)) );
+    }
+
+    @Test
+    public void testSelection() throws IOException
+    {
+        TarArchiver tar = new TarArchiver(_logger, _src, 2);
+        tar.setSelection( new String[] { "etc/app/app.conf", LONG_PATH } );
+        File dest = extract(archive(tar));
+        assertEquals( 2, tar.getEntries() );
+        assertTrue( new File(dest, "etc/app/app.conf").isFile() );
+        assertTrue( new File(dest, LONG_PATH).isFile() );
+        assertFalse( new File(dest, "etc/app/secret.key").exists() );
+        assertFalse( new File(dest, "var/lib").exists() );
+        assertFalse( new File(dest, "bin").exists() );
+    }
+
+    @Test
+    public void testTarReadsArchive() throws Exception
+    {
+        File tar = new File("/usr/bin/tar");
+        if ( !tar.exists() ) tar = new File("/bin/tar");
+        //tar is not installed everywhere the tests are run
+        if ( !tar.exists() ) return;
+
+        byte[] archive = archive( new TarArchiver(_logger, _src, 4) );
+        File dest = _tmp.newFolder("tar");
+        ProcessResult result = new ProcessRunner().run
+        (
+            new String[] { tar.getPath(), "-xf", "-", "-C", dest.getPath() }, new ByteArrayInputStream(archive), null, 0
+        );
+        assertTrue( result.getFailureReason(false), result.isSuccess(false) );
+        assertSameTree(_src, dest);
+    }
+
+    /**
+     * Writes a file under the directory that is archived.
+     *
+     * @param name The relative name.
+     * @param data The contents.
+     * @throws IOException
+     */
+    protected void write(String name, byte[] data) throws IOException
+    {
+        File file = new File(_src, name);
+        file.getParentFile().mkdirs();
+        Files.write( file.toPath(), data );
+    }
+
+    /**
+     * Writes the archive into memory.
+     *
+     * @param tar The archiver.
+     * @return byte[]
+     * @throws IOException
+     */
+    protected byte[] archive(TarArchiver tar) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals( tar.write(out), out.size() );
+        return out.toByteArray();
+    }
+
+    /**
+     * Extracts the archive into a new directory.
+     *
+     * @param archive The archive.
+     * @return File The directory.
+     * @throws IOException
+     */
+    protected File extract(byte[] archive) throws IOException
+    {
+        File ret = new File( _tmp.getRoot(), "dest"+_tmp.getRoot().list().length );
+        new TarExtractor(_logger, ret, 4, null).extract( new ByteArrayInputStream(archive) );
+        return ret;
+    }
+
+    /**
+     * Checks that the directories hold the same names, file contents, and link targets.
+     *
+     * @param expected The directory that was archived.
+     * @param actual The directory it was extracted into.
+     * @throws IOException
+     */
+    protected void assertSameTree(File expected, File actual) throws IOException
+    {
+        String[] names = expected.list();
+        String[] found = actual.list();
+        Arrays.sort(names);
+        Arrays.sort(found);
+        assertArrayEquals( actual.getPath(), names, found );
+        for (int i=0; i<names.length; i++)
+        {
+            File e = new File(expected, names[i]);
+            File a = new File(actual, names[i]);
+            if ( Files.isSymbolicLink(e.toPath()) )
+            {
+                assertTrue( a+" is a link", Files.isSymbolicLink(a.toPath()) );
+                assertEquals( Files.readSymbolicLink(e.toPath()), Files.readSymbolicLink(a.toPath()) );
+            }
+            else if ( e.isDirectory() )
+            {
+                assertTrue( a+" is a directory", a.isDirectory() );
+                assertSameTree(e, a);
+            }
+            else
+            {
+                assertArrayEquals( a.getPath(), Files.readAllBytes(e.toPath()), Files.readAllBytes(a.toPath()) );
+                assertEquals( a.getPath(), e.canExecute(), a.canExecute() );
+            }
+        }
+    }
+
+    /**
+     * Returns the permissions of the file as rwx text.
+     *
+     * @param file The file.
+     * @return String
+     * @throws IOException
+     */
+    protected static String perms(File file) throws IOException
+    {
+        return PosixFilePermissions.toString( Files.getPosixFilePermissions(file.toPath()) );
+    }
+
+    /**
+     * Returns random bytes.
+     *
+     * @param seed The random seed.
+     * @param len The number of bytes.
+     * @return byte[]
+     */
+    protected static byte[] random(long seed, int len)
+    {
+        byte[] ret = new byte[len];
+        new Random(seed).nextBytes(ret);
+        return ret;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,218 @@
+package com.zitego.backup;
+
+import com.zitego.logging.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests extracting tar streams with TarExtractor. The archives are put together
+ * header by header so entries that tar itself would not write can be tested.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class TarExtractorTest
+{
+    /** The directories that are extracted into. */
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+    /** The directory to extract into. */
+    protected File _dest;
+    /** A directory next to it that nothing should be written to. */
+    protected File _outside;
+    /** The archive being put together. */
+    protected ByteArrayOutputStream _archive;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _dest = new File(_tmp.getRoot(), "restore");
+        _outside = _tmp.newFolder("outside");
+        _archive = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void testEntries() throws IOException
+    {
+        addEntry( "./etc/", '5', null, null, 0750 );
+        addEntry( "etc/app.conf", '0', "port=8080\n", null, 0640 );
+        addEntry( "etc/app.conf.link", '2', null, "app.conf", 0777 );
+        addEntry( "etc/app.conf.hard", '1', null, "etc/app.conf", 0640 );
+        addEntry( "fifo", '6', null, null, 0644 );
+        TarExtractor tar = extract(null);
+
+        assertEquals( 4, tar.getEntries() );
+        assertEquals( 10, tar.getBytes() );
+        assertEquals( "port=8080\n", read("etc/app.conf") );
+        assertEquals( "app.conf", Files.readSymbolicLink(new File(_dest, "etc/app.conf.link").toPath()).toString() );
+        assertEquals( "port=8080\n", read("etc/app.conf.hard") );
+        assertEquals( 2, ((Integer)Files.getAttribute(new File(_dest, "etc/app.conf").toPath(), "unix:nlink")).intValue() );
+        assertFalse( "special file skipped", new File(_dest, "fifo").exists() );
+    }
+
+    @Test
+    public void testSelectedPaths() throws IOException
+    {
+        addEntry( "etc/app/app.conf", '0', "port=8080\n", null, 0644 );
+        addEntry( "etc/application.conf", '0', "other\n", null, 0644 );
+        addEntry( "var/lib/data.bin", '0', "data\n", null, 0644 );
+        TarExtractor tar = extract( new String[] { "etc/app" } );
+
+        assertEquals( 1, tar.getEntries() );
+        assertEquals( "port=8080\n", read("etc/app/app.conf") );
+        assertFalse( "prefix of the name only", new File(_dest, "etc/application.conf").exists() );
+        assertFalse( new File(_dest, "var").exists() );
+    }
+
+    @Test
+    public void testDotDotRefused() throws IOException
+    {
+        addEntry( "etc/../../outside/escaped.txt", '0', "gotcha\n", null, 0644 );
+        assertExtractFails();
+        assertEquals( 0, _outside.list().length );
+    }
+
+    @Test
+    public void testWriteThroughLinkRefused() throws IOException
+    {
+        addEntry( "etc", '2', null, _outside.getPath(), 0777 );
+        addEntry( "etc/escaped.txt", '0', "gotcha\n", null, 0644 );
+        assertExtractFails();
+        assertEquals( 0, _outside.list().length );
+    }
+
+    @Test
+    public void testBadChecksumFails() throws IOException
+    {
+        addEntry( "etc/app.conf", '0', "port=8080\n", null, 0644 );
+        byte[] archive = _archive.toByteArray();
+        archive[0] ^= 1;
+        try
+        {
+            new TarExtractor( Logger.getInstance("com.zitego.backup"), _dest, 2, null ).extract( new ByteArrayInputStream(archive) );
+            fail("The damaged header was extracted");
+        }
+        catch (IOException ioe)
+        {
+            assertTrue( ioe.getMessage(), ioe.getMessage().indexOf("checksum") != -1 );
+        }
+    }
+
+    /**
+     * Adds a ustar entry to the archive.
+     *
+     * @param name The entry name.
+     * @param type The entry type.
+     * @param data The file contents or null for none.
+     * @param link The link target or null for none.
+     * @param mode The permissions.
+     * @throws IOException
+     */
+    protected void addEntry(String name, char type, String data, String link, int mode) throws IOException
+    {
+        byte[] bytes = (data != null ? data.getBytes("UTF-8") : new byte[0]);
+        byte[] header = new byte[TarExtractor.BLOCK_SIZE];
+        put( header, 0, name );
+        put( header, 100, octal(mode, 7) );
+        put( header, 108, octal(0, 7) );
+        put( header, 116, octal(0, 7) );
+        put( header, 124, octal(bytes.length, 11) );
+        put( header, 136, octal(1500000000L, 11) );
+        header[156] = (byte)type;
+        if (link != null) put(header, 157, link);
+        put( header, 257, "ustar\u000000" );
+        long sum = 0;
+        for (int i=0; i<header.length; i++)
+        {
+            sum += (i >= 148 && i < 156 ? ' ' : header[i] & 0xff);
+        }
+        put( header, 148, octal(sum, 6)+"\u0000 " );
+        _archive.write(header);
+        _archive.write(bytes);
+        _archive.write( new byte[(TarExtractor.BLOCK_SIZE - bytes.length%TarExtractor.BLOCK_SIZE) % TarExtractor.BLOCK_SIZE] );
+    }
+
+    /**
+     * Ends the archive and extracts it.
+     *
+     * @param paths The paths to extract or null for everything.
+     * @return TarExtractor
+     * @throws IOException
+     */
+    protected TarExtractor extract(String[] paths) throws IOException
+    {
+        _archive.write( new byte[2*TarExtractor.BLOCK_SIZE] );
+        TarExtractor ret = new TarExtractor( Logger.getInstance("com.zitego.backup"), _dest, 2, paths );
+        ret.extract( new ByteArrayInputStream(_archive.toByteArray()) );
+        return ret;
+    }
+
+    /**
+     * Checks that extracting the archive fails.
+     *
+     * @throws IOException
+     */
+    protected void assertExtractFails() throws IOException
+    {
+        try
+        {
+            extract(null);
+            fail("The archive was extracted");
+        }
+        catch (IOException ioe)
+        {
+            assertTrue( ioe.getMessage(), ioe.getMessage().startsWith("Refusing to extract") );
+        }
+    }
+
+    /**
+     * Returns the contents of an extracted file.
+     *
+     * @param name The relative name.
+     * @return String
+     * @throws IOException
+     */
+    protected String read(String name) throws IOException
+    {
+        return new String( Files.readAllBytes(new File(_dest, name).toPath()), "UTF-8" );
+    }
+
+    /**
+     * Copies the text into the header.
+     *
+     * @param header The header.
+     * @param off Where the field starts.
+     * @param s The text.
+     * @throws IOException
+     */
+    protected static void put(byte[] header, int off, String s) throws IOException
+    {
+        byte[] b = s.getBytes("UTF-8");
+        System.arraycopy(b, 0, header, off, b.length);
+    }
+
+    /**
+     * Returns the number as zero padded octal digits.
+     *
+     * @param n The number.
+     * @param digits The number of digits.
+     * @return String
+     */
+    protected static String octal(long n, int digits)
+    {
+        String ret = Long.toOctalString(n);
+        while (ret.length() < digits) ret = "0"+ret;
+        return ret;
+    }
+}
\ No newline at end of file